@@ -0,0 +1,86 @@
+package place;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Where a PlaceBoard keeps its cells: a byte of two packed colors, an owner
+ * id and a time, each in an array of its own indexed from 0.  The board
+ * decides what goes where; the cells only store it, on the heap or in a
+ * mapped file.
+ *
+ * @author Cameron Myron
+ */
+interface BoardCells extends Serializable {
+
+    /**
+     * Get a byte of colors
+     * @param i the index of the byte
+     * @return the byte
+     */
+    byte getColors(int i);
+
+    /**
+     * Change a byte of colors
+     * @param i the index of the byte
+     * @param b the byte
+     */
+    void setColors(int i, byte b);
+
+    /**
+     * Get the owner id of a cell
+     * @param i the index of the cell
+     * @return the id
+     */
+    int getOwner(int i);
+
+    /**
+     * Change the owner id of a cell
+     * @param i the index of the cell
+     * @param id the id
+     */
+    void setOwner(int i, int id);
+
+    /**
+     * Get the time of a cell
+     * @param i the index of the cell
+     * @return the time in milliseconds
+     */
+    long getTime(int i);
+
+    /**
+     * Change the time of a cell
+     * @param i the index of the cell
+     * @param time the time in milliseconds
+     */
+    void setTime(int i, long time);
+
+    /**
+     * Makes a copy of the same kind, which is off the heap if these cells are
+     * @return the copy
+     * @throws IOException if a file for the copy can not be made
+     */
+    BoardCells copy() throws IOException;
+
+    /**
+     * Copies every cell into cells of the same size
+     * @param other the cells to overwrite
+     */
+    void copyTo(BoardCells other);
+
+    /**
+     * Copies a run of color bytes and a run of cells into the same places in
+     * cells of the same size
+     * @param other the cells to overwrite
+     * @param colors the index of the first byte of colors
+     * @param colorCount the number of bytes of colors
+     * @param from the index of the first cell
+     * @param count the number of cells
+     */
+    void copyTo(BoardCells other, int colors, int colorCount, int from, int count);
+
+    /**
+     * Writes the cells out to where they are kept, if that is not the heap
+     */
+    void flush();
+}
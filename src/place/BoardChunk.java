@@ -0,0 +1,171 @@
+package place;
+
+import java.io.Serializable;
+
+/**
+ * A copy of one chunk of a PlaceBoard: the cells of a square of the board,
+ * CHUNK on a side (less at the right and bottom edges), and the version the
+ * chunk had when it was copied.  Changing the board does not change the copy.
+ *
+ * @author Cameron Myron
+ */
+public class BoardChunk implements Serializable {
+    /** The version of the serialized form */
+    private static final long serialVersionUID = 1L;
+    /** The index of the chunk in the board */
+    private final int index;
+    /** The row of the top left cell */
+    private final int row;
+    /** The column of the top left cell */
+    private final int col;
+    /** The number of rows */
+    private final int rows;
+    /** The number of columns */
+    private final int cols;
+    /** The version of the chunk when it was copied */
+    private final long version;
+    /** The color number of every cell, row by row */
+    private final byte[] colors;
+    /** The owner id of every cell, row by row */
+    private final int[] owners;
+    /** The time of every cell, row by row */
+    private final long[] times;
+    /** The names of the owners */
+    private final OwnerDictionary names;
+
+    /**
+     * Create a chunk of all white cells, filled in by the board.
+     *
+     * @param index the index of the chunk in the board
+     * @param row the row of the top left cell
+     * @param col the column of the top left cell
+     * @param rows the number of rows
+     * @param cols the number of columns
+     * @param version the version of the chunk
+     * @param names the names of the owners
+     */
+    BoardChunk(int index, int row, int col, int rows, int cols, long version, OwnerDictionary names) {
+        this.index = index;
+        this.row = row;
+        this.col = col;
+        this.rows = rows;
+        this.cols = cols;
+        this.version = version;
+        this.colors = new byte[rows * cols];
+        this.owners = new int[rows * cols];
+        this.times = new long[rows * cols];
+        this.names = names;
+    }
+
+    /**
+     * Fill in a cell.
+     *
+     * @param i the index of the cell in the chunk, row by row
+     * @param color the color number
+     * @param owner the owner id
+     * @param time the time
+     */
+    void set(int i, int color, int owner, long time) {
+        colors[i] = (byte) color;
+        owners[i] = owner;
+        times[i] = time;
+    }
+
+    /**
+     * Get the index of the chunk in the board.
+     *
+     * @return the index
+     */
+    public int getIndex() { return this.index; }
+
+    /**
+     * Get the row of the top left cell.
+     *
+     * @return the row on the board
+     */
+    public int getRow() { return this.row; }
+
+    /**
+     * Get the column of the top left cell.
+     *
+     * @return the column on the board
+     */
+    public int getCol() { return this.col; }
+
+    /**
+     * Get the number of rows in the chunk.
+     *
+     * @return the rows
+     */
+    public int getRows() { return this.rows; }
+
+    /**
+     * Get the number of columns in the chunk.
+     *
+     * @return the columns
+     */
+    public int getCols() { return this.cols; }
+
+    /**
+     * Get the version the chunk had when it was copied.
+     *
+     * @return the version
+     */
+    public long getVersion() { return this.version; }
+
+    /**
+     * Get the color of a cell.
+     *
+     * @param row the row on the board
+     * @param col the column on the board
+     * @rit.pre the cell is in the chunk
+     * @return the color
+     */
+    public PlaceColor getColor(int row, int col) {
+        return PlaceColor.fromNumber(colors[(row - this.row) * cols + col - this.col]);
+    }
+
+    /**
+     * Get the owner of a cell as an id.
+     *
+     * @param row the row on the board
+     * @param col the column on the board
+     * @rit.pre the cell is in the chunk
+     * @return the id in the board's owners
+     */
+    public int getOwnerId(int row, int col) {
+        return owners[(row - this.row) * cols + col - this.col];
+    }
+
+    /**
+     * Get the tiles of the chunk that were changed at least once, the rest
+     * being as white as on a new board.
+     *
+     * @return the tiles, row by row
+     */
+    public PlaceTile[] getChangedTiles() {
+        int n = 0;
+        for (long time : times)
+            if (time != 0)
+                n++;
+        PlaceTile[] tiles = new PlaceTile[n];
+        n = 0;
+        for (int i = 0; i < times.length; i++)
+            if (times[i] != 0)
+                tiles[n++] = getTile(row + i / cols, col + i % cols);
+        return tiles;
+    }
+
+    /**
+     * Get a tile of the chunk.
+     *
+     * @param row the row on the board
+     * @param col the column on the board
+     * @rit.pre the cell is in the chunk
+     * @return the tile
+     */
+    public PlaceTile getTile(int row, int col) {
+        int i = (row - this.row) * cols + col - this.col;
+        return new PlaceTile(row, col, names.nameOf(owners[i]), PlaceColor.fromNumber(colors[i]), times[i]);
+    }
+}
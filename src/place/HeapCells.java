@@ -0,0 +1,125 @@
+package place;
+
+/**
+ * The cells of a board in arrays on the heap.
+ *
+ * @author Cameron Myron
+ */
+final class HeapCells implements BoardCells {
+
+    /** The version of the serialized form */
+    private static final long serialVersionUID = 1L;
+
+    /** The colors, two cells a byte */
+    private final byte[] colors;
+    /** The owner ids */
+    private final int[] owners;
+    /** The times */
+    private final long[] times;
+
+    /**
+     * Creates cells that are all zero
+     * @param colorBytes the number of bytes of colors
+     * @param cells the number of cells
+     */
+    HeapCells(int colorBytes, int cells) {
+        this(new byte[colorBytes], new int[cells], new long[cells]);
+    }
+
+    /**
+     * Creates cells around arrays
+     * @param colors the colors
+     * @param owners the owner ids
+     * @param times the times
+     */
+    private HeapCells(byte[] colors, int[] owners, long[] times) {
+        this.colors = colors;
+        this.owners = owners;
+        this.times = times;
+    }
+
+    @Override
+    public byte getColors(int i) {
+        return colors[i];
+    }
+
+    @Override
+    public void setColors(int i, byte b) {
+        colors[i] = b;
+    }
+
+    @Override
+    public int getOwner(int i) {
+        return owners[i];
+    }
+
+    @Override
+    public void setOwner(int i, int id) {
+        owners[i] = id;
+    }
+
+    @Override
+    public long getTime(int i) {
+        return times[i];
+    }
+
+    @Override
+    public void setTime(int i, long time) {
+        times[i] = time;
+    }
+
+    @Override
+    public BoardCells copy() {
+        return new HeapCells(colors.clone(), owners.clone(), times.clone());
+    }
+
+    @Override
+    public void copyTo(BoardCells other) {
+        if (other instanceof HeapCells) {
+            HeapCells h = (HeapCells) other;
+            System.arraycopy(colors, 0, h.colors, 0, colors.length);
+            System.arraycopy(owners, 0, h.owners, 0, owners.length);
+            System.arraycopy(times, 0, h.times, 0, times.length);
+            return;
+        }
+        if (other instanceof MappedCells) {
+            ((MappedCells) other).put(colors, owners, times);
+            return;
+        }
+        for (int i = 0; i < colors.length; i++)
+            other.setColors(i, colors[i]);
+        for (int i = 0; i < owners.length; i++) {
+            other.setOwner(i, owners[i]);
+            other.setTime(i, times[i]);
+        }
+    }
+
+    @Override
+    public void copyTo(BoardCells other, int colors, int colorCount, int from, int count) {
+        if (other instanceof HeapCells) {
+            HeapCells h = (HeapCells) other;
+            System.arraycopy(this.colors, colors, h.colors, colors, colorCount);
+            System.arraycopy(owners, from, h.owners, from, count);
+            System.arraycopy(times, from, h.times, from, count);
+            return;
+        }
+        for (int i = colors; i < colors + colorCount; i++)
+            other.setColors(i, this.colors[i]);
+        for (int i = from; i < from + count; i++) {
+            other.setOwner(i, owners[i]);
+            other.setTime(i, times[i]);
+        }
+    }
+
+    /**
+     * Overwrites every cell with the cells of a mapped file of the same size
+     * @param cells the mapped cells
+     */
+    void load(MappedCells cells) {
+        cells.get(colors, owners, times);
+    }
+
+    @Override
+    public void flush() {
+    }
+}
@@ -0,0 +1,325 @@
+package place;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The cells of a board in a memory mapped file, outside the Java heap.  The
+ * file is a header followed by the colors, the owner ids and the times, each
+ * aligned to 8 bytes, and it is mapped in pieces of a gigabyte since one
+ * mapping can not pass 2 GB.  A new file is sparse, so making even a huge
+ * board is instant and pages only take memory once they are touched.
+ *
+ * Header: magic "PLCB" (int), layout version (int), DIM (int), unused (int).
+ *
+ * A file may go on past the times, as a checkpoint does; what follows is
+ * not mapped.
+ *
+ * @author Cameron Myron
+ */
+final class MappedCells implements BoardCells {
+
+    /**
+     * The version of the serialized form
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The first four bytes of a board file
+     */
+    static final int MAGIC = 0x504C4342;
+
+    /**
+     * The layout of the file
+     */
+    private static final int LAYOUT = 1;
+
+    /**
+     * The bytes before the colors
+     */
+    private static final int HEADER = 16;
+
+    /**
+     * The size of a mapped piece as a power of two
+     */
+    private static final int PIECE_BITS = 30;
+
+    /**
+     * The size of a mapped piece, a multiple of every field's size so no
+     * field is ever split between two pieces
+     */
+    private static final long PIECE = 1L << PIECE_BITS;
+
+    /**
+     * The board dimension the file was made for
+     */
+    private final int DIM;
+
+    /**
+     * The number of bytes of colors
+     */
+    private final int COLOR_BYTES;
+
+    /**
+     * Where the owner ids start in the file
+     */
+    private final long OWNERS;
+
+    /**
+     * Where the times start in the file
+     */
+    private final long TIMES;
+
+    /**
+     * The bytes mapped: the header and the cells
+     */
+    private final long SIZE;
+
+    /**
+     * The file, in pieces
+     */
+    private final MappedByteBuffer[] pieces;
+
+    /**
+     * Maps a board file, making it if it does not exist yet
+     * @param file the file
+     * @param dim the square dimension of the board
+     * @param colorBytes the number of bytes of colors
+     * @throws IOException if the file can not be mapped or is for another board
+     */
+    MappedCells(Path file, int dim, int colorBytes) throws IOException {
+        this(file, dim, colorBytes, false);
+    }
+
+    /**
+     * Maps a board file, making it if it does not exist yet
+     * @param file the file
+     * @param dim the square dimension of the board
+     * @param colorBytes the number of bytes of colors
+     * @param trailer whether the file may go on past the cells
+     * @throws IOException if the file can not be mapped or is for another board
+     */
+    MappedCells(Path file, int dim, int colorBytes, boolean trailer) throws IOException {
+        DIM = dim;
+        COLOR_BYTES = colorBytes;
+        long cells = (long) dim * dim;
+        OWNERS = align(HEADER + colorBytes);
+        TIMES = align(OWNERS + 4 * cells);
+        long size = SIZE = TIMES + 8 * cells;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            boolean fresh = ch.size() == 0;
+            if (!fresh && (trailer ? ch.size() < size : ch.size() != size))
+                throw new IOException("Board File " + file + " Does Not Hold A " + dim + "x" + dim + " Board");
+            pieces = new MappedByteBuffer[(int) ((size + PIECE - 1) >> PIECE_BITS)];
+            for (int i = 0; i < pieces.length; i++) {
+                long at = (long) i << PIECE_BITS;
+                pieces[i] = ch.map(FileChannel.MapMode.READ_WRITE, at, Math.min(PIECE, size - at));
+                pieces[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+            ByteBuffer header = pieces[0];
+            if (fresh) {
+                header.putInt(0, MAGIC).putInt(4, LAYOUT).putInt(8, dim);
+            } else if (header.getInt(0) != MAGIC || header.getInt(4) != LAYOUT || header.getInt(8) != dim) {
+                throw new IOException("Board File " + file + " Does Not Hold A " + dim + "x" + dim + " Board");
+            }
+        }
+    }
+
+    /**
+     * Rounds a position up to a multiple of 8
+     * @param at the position
+     * @return the aligned position
+     */
+    private static long align(long at) {
+        return (at + 7) & ~7L;
+    }
+
+    /**
+     * Get the bytes the cells take in the file, which is where a trailer starts
+     * @return the size
+     */
+    long size() {
+        return SIZE;
+    }
+
+    /**
+     * Get a run of the file that does not cross into the next piece
+     * @param at the position in the file
+     * @param bytes the most bytes wanted
+     * @return the run, little endian, as far as the bytes or the end of its piece
+     */
+    private ByteBuffer run(long at, long bytes) {
+        ByteBuffer b = piece(at).duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int off = (int) (at & (PIECE - 1));
+        b.position(off).limit((int) Math.min(b.capacity(), off + bytes));
+        return b;
+    }
+
+    /**
+     * Copies every cell into arrays in bulk
+     * @param colors the bytes of colors
+     * @param owners the owner ids
+     * @param times the times
+     */
+    void get(byte[] colors, int[] owners, long[] times) {
+        for (int i = 0; i < colors.length; ) {
+            ByteBuffer b = run(HEADER + i, colors.length - i);
+            int n = b.remaining();
+            b.get(colors, i, n);
+            i += n;
+        }
+        for (int i = 0; i < owners.length; ) {
+            ByteBuffer b = run(OWNERS + 4L * i, 4L * (owners.length - i));
+            int n = b.remaining() / 4;
+            b.asIntBuffer().get(owners, i, n);
+            i += n;
+        }
+        for (int i = 0; i < times.length; ) {
+            ByteBuffer b = run(TIMES + 8L * i, 8L * (times.length - i));
+            int n = b.remaining() / 8;
+            b.asLongBuffer().get(times, i, n);
+            i += n;
+        }
+    }
+
+    /**
+     * Overwrites every cell from arrays in bulk
+     * @param colors the bytes of colors
+     * @param owners the owner ids
+     * @param times the times
+     */
+    void put(byte[] colors, int[] owners, long[] times) {
+        for (int i = 0; i < colors.length; ) {
+            ByteBuffer b = run(HEADER + i, colors.length - i);
+            int n = b.remaining();
+            b.put(colors, i, n);
+            i += n;
+        }
+        for (int i = 0; i < owners.length; ) {
+            ByteBuffer b = run(OWNERS + 4L * i, 4L * (owners.length - i));
+            int n = b.remaining() / 4;
+            b.asIntBuffer().put(owners, i, n);
+            i += n;
+        }
+        for (int i = 0; i < times.length; ) {
+            ByteBuffer b = run(TIMES + 8L * i, 8L * (times.length - i));
+            int n = b.remaining() / 8;
+            b.asLongBuffer().put(times, i, n);
+            i += n;
+        }
+    }
+
+    /**
+     * Get the piece a position is in
+     * @param at the position in the file
+     * @return the piece
+     */
+    private ByteBuffer piece(long at) {
+        return pieces[(int) (at >>> PIECE_BITS)];
+    }
+
+    @Override
+    public byte getColors(int i) {
+        long at = HEADER + i;
+        return piece(at).get((int) (at & (PIECE - 1)));
+    }
+
+    @Override
+    public void setColors(int i, byte b) {
+        long at = HEADER + i;
+        piece(at).put((int) (at & (PIECE - 1)), b);
+    }
+
+    @Override
+    public int getOwner(int i) {
+        long at = OWNERS + 4L * i;
+        return piece(at).getInt((int) (at & (PIECE - 1)));
+    }
+
+    @Override
+    public void setOwner(int i, int id) {
+        long at = OWNERS + 4L * i;
+        piece(at).putInt((int) (at & (PIECE - 1)), id);
+    }
+
+    @Override
+    public long getTime(int i) {
+        long at = TIMES + 8L * i;
+        return piece(at).getLong((int) (at & (PIECE - 1)));
+    }
+
+    @Override
+    public void setTime(int i, long time) {
+        long at = TIMES + 8L * i;
+        piece(at).putLong((int) (at & (PIECE - 1)), time);
+    }
+
+    /**
+     * Copies the cells into a new file that is deleted when the JVM exits
+     * @return the copy
+     * @throws IOException if the file can not be made
+     */
+    @Override
+    public BoardCells copy() throws IOException {
+        File tmp = File.createTempFile("place", ".board");
+        tmp.deleteOnExit();
+        MappedCells copy = new MappedCells(tmp.toPath(), DIM, COLOR_BYTES);
+        copyTo(copy);
+        return copy;
+    }
+
+    @Override
+    public void copyTo(BoardCells other) {
+        if (other instanceof MappedCells && ((MappedCells) other).DIM == DIM) {
+            MappedCells m = (MappedCells) other;
+            for (int i = 0; i < pieces.length; i++)
+                m.pieces[i].duplicate().put(pieces[i].duplicate());
+            return;
+        }
+        if (other instanceof HeapCells) {
+            ((HeapCells) other).load(this);
+            return;
+        }
+        for (int i = 0; i < COLOR_BYTES; i++)
+            other.setColors(i, getColors(i));
+        for (int i = 0; i < DIM * DIM; i++) {
+            other.setOwner(i, getOwner(i));
+            other.setTime(i, getTime(i));
+        }
+    }
+
+    @Override
+    public void copyTo(BoardCells other, int colors, int colorCount, int from, int count) {
+        for (int i = colors; i < colors + colorCount; i++)
+            other.setColors(i, getColors(i));
+        for (int i = from; i < from + count; i++) {
+            other.setOwner(i, getOwner(i));
+            other.setTime(i, getTime(i));
+        }
+    }
+
+    @Override
+    public void flush() {
+        for (MappedByteBuffer piece : pieces)
+            piece.force();
+    }
+
+    /**
+     * A mapping can not be serialized, so the cells travel as heap cells
+     * @return a copy on the heap
+     * @throws ObjectStreamException never
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        HeapCells heap = new HeapCells(COLOR_BYTES, DIM * DIM);
+        copyTo(heap);
+        return heap;
+    }
+}
@@ -0,0 +1,188 @@
+package place;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Gives every owner name a small number.  The server keeps one dictionary
+ * for everything it does, so the same id means the same owner on every
+ * connection and a frame holding ids can be encoded once for all of them.
+ * Id 0 is the empty owner of a tile nobody has changed.  Ids are never
+ * reused.  A PlaceBoard keeps its owners in one too.
+ *
+ * A dictionary opened from a file writes every new name to the end of it
+ * before handing out its id, so a board kept in a file can be read back with
+ * the same ids.  The file is the names in id order, from id 1, as UTF strings.
+ *
+ * @author Cameron Myron
+ */
+public class OwnerDictionary implements Serializable {
+
+    /**
+     * The version of the serialized form
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The id of every name
+     */
+    private final ConcurrentHashMap<String,Integer> ids = new ConcurrentHashMap<>();
+
+    /**
+     * The name of every id, with room to grow
+     */
+    private volatile String[] names = new String[64];
+
+    /**
+     * The number of ids handed out, the empty owner included
+     */
+    private int size = 1;
+
+    /**
+     * Where new names are written, null if the dictionary is not kept in a file
+     */
+    private transient DataOutputStream file;
+
+    /**
+     * Creates a dictionary that only knows the empty owner
+     */
+    public OwnerDictionary() {
+        names[0] = "";
+    }
+
+    /**
+     * Opens a dictionary kept in a file, making the file if it does not exist.
+     * A name cut short at the end, by a crash while it was written, is dropped.
+     * @param path the file
+     * @return the dictionary with the names in the file
+     * @throws IOException if the file can not be read or opened for writing
+     */
+    public static OwnerDictionary open(Path path) throws IOException {
+        OwnerDictionary d = new OwnerDictionary();
+        long good = d.load(path);
+        FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        ch.truncate(good);
+        ch.position(good);
+        d.file = new DataOutputStream(Channels.newOutputStream(ch));
+        return d;
+    }
+
+    /**
+     * Reads a dictionary kept in a file without opening the file for writing,
+     * so it can be read while whoever keeps it adds to it.  Names added to
+     * this dictionary are not written anywhere.
+     * @param path the file
+     * @return the dictionary with the names in the file
+     * @throws IOException if the file can not be read
+     */
+    public static OwnerDictionary read(Path path) throws IOException {
+        OwnerDictionary d = new OwnerDictionary();
+        d.load(path);
+        return d;
+    }
+
+    /**
+     * Adds the names in a file, up to a name cut short at the end
+     * @param path the file, which may not exist
+     * @return the bytes of whole names
+     * @throws IOException if the file can not be read
+     */
+    private long load(Path path) throws IOException {
+        long good = 0;
+        if (Files.exists(path)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+                while (true) {
+                    String name = in.readUTF();
+                    add(name);
+                    good += 2 + utfLength(name);
+                }
+            } catch (EOFException e) {
+                // the end, or a name cut short
+            }
+        }
+        return good;
+    }
+
+    /**
+     * Get the length of a name as writeUTF writes it
+     * @param name the name
+     * @return the bytes, without the length in front
+     */
+    private static int utfLength(String name) {
+        int len = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            len += c >= 1 && c <= 0x7F ? 1 : c <= 0x7FF ? 2 : 3;
+        }
+        return len;
+    }
+
+    /**
+     * Get the id of a name, giving it the next id if it is new
+     * @param name the owner
+     * @return the id, 0 for a null or empty name
+     */
+    public int idOf(String name) {
+        if (name == null || name.isEmpty())
+            return 0;
+        Integer id = ids.get(name);
+        return id != null ? id : add(name);
+    }
+
+    /**
+     * Get the name of an id
+     * @param id the id
+     * @return the name, null if the id was never handed out
+     */
+    public String nameOf(int id) {
+        String[] n = names;
+        return id >= 0 && id < n.length ? n[id] : null;
+    }
+
+    /**
+     * Get the number of ids handed out
+     * @return the size, the empty owner included
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Hands out the next id. The name is stored, and written to the file if
+     * there is one, before the id is published, so anyone who has the id can
+     * look the name up.
+     * @param name the owner
+     * @return the id
+     */
+    private synchronized int add(String name) {
+        Integer id = ids.get(name);
+        if (id != null)
+            return id;
+        if (file != null) {
+            try {
+                file.writeUTF(name);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        String[] n = names;
+        if (size == n.length)
+            n = Arrays.copyOf(n, size * 2);
+        n[size] = name;
+        names = n;
+        ids.put(name, size);
+        return size++;
+    }
+}
@@ -1,19 +1,77 @@
 package place;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * The board is the place that holds the colored tiles.  The server creates
  * the initial Board and then transmits it only once to each client that
  * successfully logs in to the server.
  *
+ * The tiles are not kept as objects.  Each cell is a color nibble, an owner
+ * id and a time in three flat arrays, so a big board is a few bytes a cell
+ * instead of a PlaceTile each.  The arrays are on the heap, or for a board
+ * opened from a file, mapped from that file outside the heap.  getTile makes
+ * a tile for the cell when it is asked for and setTile copies one in; code
+ * that walks the whole board uses getColor, getOwner and getTime instead.
+ * The server's board names its owners in the server-wide OwnerDictionary, so
+ * its owner ids are the ones on the wire.  The two cells of a row that share
+ * a color byte (columns 2k and 2k+1) have to be written under the same lock.
+ *
+ * The board is also cut into chunks, CHUNK cells on a side, numbered row by
+ * row.  Every chunk has a version that counts the changes made in it, so code
+ * that keeps the versions it last saw can tell which chunks changed since and
+ * look at only those: changedChunks finds them, getChunk copies one out and
+ * copyTo brings a copy of the board up to date one chunk at a time.
+ *
+ * A checkpoint of the board is a board file (the layout a board opened from
+ * a file has) followed by the sequence number it was taken at and the owner
+ * names in id order, from id 1, as UTF strings.  It is written to the side
+ * and renamed into place once it is on disk, so a checkpoint that is there
+ * is whole, and read back by mapping it.
+ *
  * @author Sean Strout @ RIT CS
+ * @author Cameron Myron
  */
 public class PlaceBoard implements Serializable {
     /** The square dimension of the board */
     public final int DIM;
-    /** The grid of tiles */
-    private PlaceTile[][] board;
+    /** The bytes of one row of colors */
+    private final int STRIDE;
+    /**
+     * The colors (two cells a byte, the even column in the high nibble, kept
+     * as the color number xor white so cells that are all zero are white),
+     * the owner of every cell as an id in the names and the time every cell
+     * was changed
+     */
+    private final BoardCells cells;
+    /** The names of the owners */
+    private final OwnerDictionary names;
+    /** The side of a chunk, in cells */
+    public static final int CHUNK = 64;
+    /** The number of chunks across a row */
+    private final int ACROSS;
+    /** The version of every chunk, the number of changes made in it */
+    private final AtomicLongArray versions;
+    /** The sequence number of the last change the board holds, 0 if unknown */
+    private volatile long seq;
+
+    /** A byte of two white cells, as the colors are kept */
+    private static final int WHITE = PlaceColor.WHITE.getNumber() * 0x11;
 
     /**
      * Create a new board of all white tiles.
@@ -21,27 +79,368 @@ public class PlaceBoard implements Serializable {
      * @param DIM the square dimension of the board
      */
     public PlaceBoard(int DIM) {
+        this(DIM, new OwnerDictionary());
+    }
+
+    /**
+     * Create a new board of all white tiles that names its owners in a
+     * dictionary it shares.
+     *
+     * @param DIM the square dimension of the board
+     * @param names the owner dictionary
+     */
+    public PlaceBoard(int DIM, OwnerDictionary names) {
+        this(DIM, new HeapCells((DIM + 1) / 2 * DIM, DIM * DIM), names, null);
+    }
+
+    /**
+     * Create a board around its cells.
+     *
+     * @param DIM the square dimension of the board
+     * @param cells the cells
+     * @param names the owner dictionary
+     * @param versions the versions of the chunks, null for all 0
+     */
+    private PlaceBoard(int DIM, BoardCells cells, OwnerDictionary names, AtomicLongArray versions) {
         this.DIM = DIM;
-        this.board = new PlaceTile[DIM][DIM];
-        for (int row=0; row<DIM; ++row) {
-            for (int col=0; col<DIM; ++col) {
-                this.board[row][col] =
-                        new PlaceTile(row, col, "", PlaceColor.WHITE);
+        this.STRIDE = (DIM + 1) / 2;
+        this.cells = cells;
+        this.names = names;
+        this.ACROSS = (DIM + CHUNK - 1) / CHUNK;
+        this.versions = versions != null ? versions : new AtomicLongArray(ACROSS * ACROSS);
+    }
+
+    /**
+     * Open a board kept in a file outside the heap, making a white one if
+     * the file does not exist.  Changes go to the file as they are made; the
+     * owner ids in it only mean something with the dictionary they came from.
+     *
+     * @param file the board file
+     * @param DIM the square dimension of the board
+     * @param names the owner dictionary
+     * @return the board
+     * @throws IOException if the file can not be mapped or holds another size of board
+     */
+    public static PlaceBoard open(Path file, int DIM, OwnerDictionary names) throws IOException {
+        return new PlaceBoard(DIM, new MappedCells(file, DIM, (DIM + 1) / 2 * DIM), names, null);
+    }
+
+    /**
+     * Copies the board.  The cells are copied, into a new file that is gone
+     * when the JVM exits if the board is kept in a file; the owner names are
+     * shared, which is safe because names are only ever added.  The chunks
+     * keep their versions.
+     *
+     * @return the copy
+     */
+    public PlaceBoard copy() {
+        long[] v = new long[versions.length()];
+        for (int i = 0; i < v.length; i++)
+            v[i] = versions.get(i);
+        try {
+            PlaceBoard copy = new PlaceBoard(DIM, cells.copy(), names, new AtomicLongArray(v));
+            copy.seq = seq;
+            return copy;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Brings a copy of the board up to date, which saves making a new copy
+     * every time.  Only the chunks whose versions differ are copied, so the
+     * other board has to be one made by copy (or kept up to date by copyTo);
+     * a board that changed on its own could match a version by chance.  When
+     * a good part of the board changed it is quicker to copy all of it.
+     *
+     * @param other the copy to overwrite
+     * @return the number of chunks copied
+     */
+    public int copyTo(PlaceBoard other) {
+        if (other.DIM != DIM)
+            throw new IllegalArgumentException("Board Is Not " + DIM + "x" + DIM);
+        int copied = 0;
+        for (int chunk = 0; chunk < versions.length(); chunk++)
+            if (other.versions.get(chunk) != versions.get(chunk))
+                copied++;
+        if (copied * 4 > versions.length()) {
+            cells.copyTo(other.cells);
+            for (int chunk = 0; chunk < versions.length(); chunk++)
+                other.versions.set(chunk, versions.get(chunk));
+            return copied;
+        }
+        copied = 0;
+        for (int chunk = 0; chunk < versions.length(); chunk++) {
+            long v = versions.get(chunk);
+            if (other.versions.get(chunk) == v)
+                continue;
+            int row = chunk / ACROSS * CHUNK, col = chunk % ACROSS * CHUNK;
+            int rows = Math.min(CHUNK, DIM - row), cols = Math.min(CHUNK, DIM - col);
+            for (int r = row; r < row + rows; r++)
+                cells.copyTo(other.cells, r * STRIDE + col / 2, (cols + 1) / 2, r * DIM + col, cols);
+            other.versions.set(chunk, v);
+            copied++;
+        }
+        return copied;
+    }
+
+    /**
+     * Get the sequence number of the last change the board holds.  The server
+     * stamps the boards it sends, so a client knows which changes it has.
+     *
+     * @return the sequence number, 0 if unknown
+     */
+    public long getSeq() {
+        return seq;
+    }
+
+    /**
+     * Stamp the board with the sequence number of the last change it holds.
+     *
+     * @param seq the sequence number
+     */
+    public void setSeq(long seq) {
+        this.seq = seq;
+    }
+
+    /**
+     * Get the number of chunks across a row (and down a column) of the board.
+     *
+     * @return the chunks across
+     */
+    public int getChunksAcross() {
+        return ACROSS;
+    }
+
+    /**
+     * Get the number of chunks in the board.
+     *
+     * @return the chunks, numbered from 0 row by row
+     */
+    public int getChunkCount() {
+        return versions.length();
+    }
+
+    /**
+     * Get the chunk a cell is in.
+     *
+     * @param row row
+     * @param col column
+     * @rit.pre row and column constitute a valid board coordinate
+     * @return the index of the chunk
+     */
+    public int chunkOf(int row, int col) {
+        return row / CHUNK * ACROSS + col / CHUNK;
+    }
+
+    /**
+     * Get the version of a chunk.  It only goes up, by one for every change
+     * made in the chunk.
+     *
+     * @param chunk the index of the chunk
+     * @return the version
+     */
+    public long getVersion(int chunk) {
+        return versions.get(chunk);
+    }
+
+    /**
+     * Find the chunks that changed since the versions someone last saw, and
+     * remember the versions they have now.  Passing versions that are all 0
+     * finds every chunk that was ever changed.
+     *
+     * @param seen the version of every chunk last seen, updated
+     * @return the indexes of the chunks that changed, in order
+     */
+    public int[] changedChunks(long[] seen) {
+        int[] changed = new int[seen.length];
+        int n = 0;
+        for (int chunk = 0; chunk < seen.length; chunk++) {
+            long v = versions.get(chunk);
+            if (v != seen[chunk]) {
+                seen[chunk] = v;
+                changed[n++] = chunk;
             }
         }
+        return Arrays.copyOf(changed, n);
+    }
+
+    /**
+     * Copy a chunk out of the board.  Changes being made while it is copied
+     * may or may not be in it unless the caller holds the locks of its cells.
+     *
+     * @param chunk the index of the chunk
+     * @return the copy
+     */
+    public BoardChunk getChunk(int chunk) {
+        int row = chunk / ACROSS * CHUNK, col = chunk % ACROSS * CHUNK;
+        int rows = Math.min(CHUNK, DIM - row), cols = Math.min(CHUNK, DIM - col);
+        BoardChunk copy = new BoardChunk(chunk, row, col, rows, cols, versions.get(chunk), names);
+        int i = 0;
+        for (int r = row; r < row + rows; r++)
+            for (int c = col; c < col + cols; c++)
+                copy.set(i++, getColor(r, c).getNumber(), getOwnerId(r, c), getTime(r, c));
+        return copy;
     }
 
     /**
-     * Get the entire board.
+     * Copy a chunk out of the board if it changed since a version.
+     *
+     * @param chunk the index of the chunk
+     * @param since the version last seen
+     * @return the copy, null if the chunk is still at that version
+     */
+    public BoardChunk getChunk(int chunk, long since) {
+        return versions.get(chunk) == since ? null : getChunk(chunk);
+    }
+
+    /**
+     * Writes the board out to its file, if it is kept in one.
+     */
+    public void flush() {
+        cells.flush();
+    }
+
+    /**
+     * Writes a checkpoint of the board.  The cells are copied without any
+     * lock, so a change made while it is written may or may not be in it; the
+     * caller replays those changes over it after loading it.  The file is
+     * replaced only once the new one is on disk.
+     *
+     * @param file the checkpoint file
+     * @param seq the sequence number of the last change before it was started
+     * @throws IOException if the checkpoint can not be written
+     */
+    public void writeCheckpoint(Path file, long seq) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.deleteIfExists(tmp);
+        MappedCells copy = new MappedCells(tmp, DIM, STRIDE * DIM, true);
+        cells.copyTo(copy);
+        copy.flush();
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            ch.position(copy.size());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch)));
+            int size = names.size();
+            out.writeLong(seq);
+            out.writeInt(size);
+            for (int id = 1; id < size; id++)
+                out.writeUTF(names.nameOf(id));
+            out.flush();
+            ch.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        try (FileChannel dir = FileChannel.open(file.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException e) {
+            // not every file system lets a directory be forced
+        }
+    }
+
+    /**
+     * Overwrites the board with a checkpoint.  The owner names in it are
+     * added to the board's owners, and the cells given the ids they have
+     * there.  Every chunk gets a new version, so copies made before can tell.
+     *
+     * @param file the checkpoint file
+     * @return the sequence number it was taken at
+     * @throws IOException if the file can not be read or is not a checkpoint
+     *                     of a board of the same size
+     */
+    public long loadCheckpoint(Path file) throws IOException {
+        MappedCells saved = new MappedCells(file, DIM, STRIDE * DIM, true);
+        long at;
+        int[] ids;
+        try (DataInputStream trailer = trailer(file, saved)) {
+            at = trailer.readLong();
+            ids = readNames(trailer, names);
+        }
+        saved.copyTo(cells);
+        boolean same = true;
+        for (int id = 0; id < ids.length; id++)
+            same &= ids[id] == id;
+        if (!same)
+            for (int i = 0; i < DIM * DIM; i++) {
+                int id = cells.getOwner(i);
+                cells.setOwner(i, id >= 0 && id < ids.length ? ids[id] : 0);
+            }
+        for (int chunk = 0; chunk < versions.length(); chunk++)
+            versions.incrementAndGet(chunk);
+        seq = at;
+        return at;
+    }
+
+    /**
+     * Opens a checkpoint as a board without copying it: the cells are mapped
+     * from the file and the owners are the names in it, with the ids they
+     * have there, so reading a few cells costs only the pages they are on.
+     * The board is for reading; a change to it would change the checkpoint.
+     *
+     * @param file the checkpoint file
+     * @param DIM the square dimension of the board
+     * @return the board, stamped with the sequence number of the checkpoint
+     * @throws IOException if the file can not be read or is not a checkpoint
+     *                     of a board of that size
+     */
+    public static PlaceBoard openCheckpoint(Path file, int DIM) throws IOException {
+        MappedCells saved = new MappedCells(file, DIM, (DIM + 1) / 2 * DIM, true);
+        OwnerDictionary names = new OwnerDictionary();
+        PlaceBoard board = new PlaceBoard(DIM, saved, names, null);
+        try (DataInputStream trailer = trailer(file, saved)) {
+            board.seq = trailer.readLong();
+            readNames(trailer, names);
+        }
+        return board;
+    }
+
+    /**
+     * Opens the trailer of a checkpoint for reading
+     * @param file the checkpoint file
+     * @param saved its cells
+     * @return the trailer, from the sequence number on
+     * @throws IOException if the file can not be read
+     */
+    private static DataInputStream trailer(Path file, MappedCells saved) throws IOException {
+        InputStream in = Files.newInputStream(file);
+        try {
+            in.skipNBytes(saved.size());
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return new DataInputStream(new BufferedInputStream(in));
+    }
+
+    /**
+     * Reads the owner names of a checkpoint into a dictionary
+     * @param trailer the trailer, at the names
+     * @param names the dictionary
+     * @return the id in the dictionary of every owner id in the checkpoint
+     * @throws IOException if the names can not be read
+     */
+    private static int[] readNames(DataInputStream trailer, OwnerDictionary names) throws IOException {
+        int[] ids = new int[trailer.readInt()];
+        for (int id = 1; id < ids.length; id++)
+            ids[id] = names.idOf(trailer.readUTF());
+        return ids;
+    }
+
+    /**
+     * Get the entire board.  Every tile is made on the spot, so this is for
+     * code that wants a grid to draw; use getTile or the cell getters otherwise.
      *
      * @return the board
      */
     public PlaceTile[][] getBoard() {
-        return this.board;
+        PlaceTile[][] grid = new PlaceTile[DIM][DIM];
+        for (int row=0; row<DIM; ++row)
+            for (int col=0; col<DIM; ++col)
+                grid[row][col] = getTile(row, col);
+        return grid;
     }
 
     /**
-     * Get a tile on the board
+     * Get a tile on the board.  The tile is a copy of the cell; changing it
+     * does not change the board.
      *
      * @param row row
      * @param col column
@@ -49,7 +448,65 @@ public class PlaceBoard implements Serializable {
      * @return the tile
      */
     public PlaceTile getTile(int row, int col){
-        return this.board[row][col];
+        return new PlaceTile(row, col, getOwner(row, col), getColor(row, col), getTime(row, col));
+    }
+
+    /**
+     * Get the color of a cell.
+     *
+     * @param row row
+     * @param col column
+     * @rit.pre row and column constitute a valid board coordinate
+     * @return the color
+     */
+    public PlaceColor getColor(int row, int col) {
+        int b = this.cells.getColors(row * STRIDE + (col >> 1)) ^ WHITE;
+        return PlaceColor.fromNumber((col & 1) == 0 ? (b >> 4) & 0xF : b & 0xF);
+    }
+
+    /**
+     * Get the owner of a cell.
+     *
+     * @param row row
+     * @param col column
+     * @rit.pre row and column constitute a valid board coordinate
+     * @return the owner, empty if nobody changed it
+     */
+    public String getOwner(int row, int col) {
+        return this.names.nameOf(this.cells.getOwner(row * DIM + col));
+    }
+
+    /**
+     * Get the owner of a cell as an id.
+     *
+     * @param row row
+     * @param col column
+     * @rit.pre row and column constitute a valid board coordinate
+     * @return the id in getOwners, 0 if nobody changed it
+     */
+    public int getOwnerId(int row, int col) {
+        return this.cells.getOwner(row * DIM + col);
+    }
+
+    /**
+     * Get the dictionary that names the owners.
+     *
+     * @return the dictionary
+     */
+    public OwnerDictionary getOwners() {
+        return this.names;
+    }
+
+    /**
+     * Get the time a cell was changed.
+     *
+     * @param row row
+     * @param col column
+     * @rit.pre row and column constitute a valid board coordinate
+     * @return the time in milliseconds, 0 if nobody changed it
+     */
+    public long getTime(int row, int col) {
+        return this.cells.getTime(row * DIM + col);
     }
 
     /**
@@ -59,7 +516,41 @@ public class PlaceBoard implements Serializable {
      * @rit.pre row and column constitute a valid board coordinate
      */
     public void setTile(PlaceTile tile) {
-        this.board[tile.getRow()][tile.getCol()] = tile;
+        set(tile.getRow(), tile.getCol(), tile.getColor(), tile.getOwner(), tile.getTime());
+    }
+
+    /**
+     * Change a cell in the board.
+     *
+     * @param row row
+     * @param col column
+     * @param color the color
+     * @param owner the owner
+     * @param time the time it was changed
+     * @rit.pre row and column constitute a valid board coordinate
+     */
+    public void set(int row, int col, PlaceColor color, String owner, long time) {
+        set(row, col, color, this.names.idOf(owner), time);
+    }
+
+    /**
+     * Change a cell in the board, its owner given as an id.
+     *
+     * @param row row
+     * @param col column
+     * @param color the color
+     * @param ownerId the id of the owner in getOwners
+     * @param time the time it was changed
+     * @rit.pre row and column constitute a valid board coordinate
+     */
+    public void set(int row, int col, PlaceColor color, int ownerId, long time) {
+        int i = row * STRIDE + (col >> 1);
+        int b = this.cells.getColors(i) ^ WHITE;
+        b = (col & 1) == 0 ? (b & 0x0F) | color.getNumber() << 4 : (b & 0xF0) | color.getNumber();
+        this.cells.setColors(i, (byte) (b ^ WHITE));
+        this.cells.setOwner(row * DIM + col, ownerId);
+        this.cells.setTime(row * DIM + col, time);
+        this.versions.incrementAndGet(chunkOf(row, col));
     }
 
     /**
@@ -86,7 +577,7 @@ public class PlaceBoard implements Serializable {
         for (int row=0; row<DIM; ++row) {
             builder.append("\n");
             for (int col=0; col<DIM; ++col) {
-                builder.append(this.board[row][col].getColor());
+                builder.append(getColor(row, col));
             }
         }
         return builder.toString();
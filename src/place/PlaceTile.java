@@ -25,6 +25,12 @@ public class PlaceTile implements Serializable {
      */
     private long time;
 
+    /**
+     * the position of the change in the order the server committed changes,
+     * 0 for a tile the server never committed.
+     */
+    private long seq;
+
     /**
      * Create a tile (with no timestamp).
      *
@@ -98,6 +104,22 @@ public class PlaceTile implements Serializable {
         this.time = time;
     }
 
+    /**
+     * Get the tile's sequence number.
+     *
+     * @return the sequence number
+     */
+    public long getSeq() { return this.seq; }
+
+    /**
+     * Set the tile's sequence number.
+     *
+     * @param seq the position of the change in the server's order
+     */
+    public void setSeq(long seq) {
+        this.seq = seq;
+    }
+
     public String getOwner() {
         return this.user;
     }
@@ -119,6 +141,7 @@ public class PlaceTile implements Serializable {
                 ", user=" + this.user +
                 ", color=" + this.color +
                 ", time=" + this.time +
+                ", seq=" + this.seq +
                 '}';
     }
 }
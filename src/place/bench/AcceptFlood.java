@@ -0,0 +1,202 @@
+package place.bench;
+
+import place.network.BinaryCodec;
+import place.network.PlaceExchange;
+import place.network.PlaceRequest;
+import place.server.PlaceServer;
+import place.server.ServerOptions;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks that a flood of connections from one address does not keep real
+ * users out.  It starts a server in this JVM and times logins, each from an
+ * address of its own in 127.0.1.0/24, first on their own and then while a
+ * few threads connect from 127.0.0.2 as fast as they can, keeping the newest
+ * connections open and never sending a LOGIN, as a flood would.  That is
+ * done twice: once with no limits but the default cap on pending
+ * connections, and once with the address limits given (by default 16 open
+ * and 20 new a second), which turn the flood away at the accept.  The
+ * server's stats after each show what the admission control did.
+ *
+ * $ java place.bench.AcceptFlood mode [logins] [flooders] [held] [options]
+ *
+ * Options are passed to the second server, for example -ip-connections 8.
+ *
+ * @author Cameron Myron
+ */
+public class AcceptFlood {
+
+    /**
+     * How long a login may take before it counts as failed, in milliseconds
+     */
+    private static final int GIVE_UP = 10_000;
+
+    /**
+     * Runs the test
+     * @param args mode [logins] [flooders] [held] [options]
+     * @throws Exception if the test can not run
+     */
+    public static void main(String[] args) throws Exception {
+        String[] pos = ServerOptions.positional(args);
+        if (pos.length < 1) {
+            System.out.println("Usage: java place.bench.AcceptFlood mode [logins] [flooders] [held] [options]");
+            return;
+        }
+        String mode = pos[0];
+        int logins = pos.length > 1 ? Integer.parseInt(pos[1]) : 200;
+        int flooders = pos.length > 2 ? Integer.parseInt(pos[2]) : 4;
+        int held = pos.length > 3 ? Integer.parseInt(pos[3]) : 2000;
+        Path access = Files.createTempFile("access", ".txt");
+        Files.writeString(access, "127.0.0.0/8\n");
+
+        ServerOptions open = new ServerOptions().set("mode", mode).set("access", access.toString())
+                .set("login-timeout", "3000");
+        ServerOptions limited = new ServerOptions(args).set("mode", mode).set("access", access.toString())
+                .set("login-timeout", "3000");
+        if (limited.get("ip-connections", null) == null)
+            limited.set("ip-connections", "16");
+        if (limited.get("ip-connect-rate", null) == null)
+            limited.set("ip-connect-rate", "20");
+        run("no limits", open, logins, flooders, held);
+        run("limited", limited, logins, flooders, held);
+        Files.delete(access);
+    }
+
+    /**
+     * Times logins alone and in a flood against a server
+     * @param name what the server is
+     * @param options the server's options
+     * @param logins the number of logins each time
+     * @param flooders the threads flooding
+     * @param held the connections each flooder keeps open
+     * @throws Exception if the test can not run
+     */
+    private static void run(String name, ServerOptions options, int logins, int flooders, int held)
+            throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        PlaceServer server = new PlaceServer(100, port, logins + 1, options);
+        Thread serverThread = new Thread(server::run, "PlaceServer");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(500);
+
+        long[] quiet = logins(port, logins, "quiet");
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicLong connects = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        Thread[] flood = new Thread[flooders];
+        for (int f = 0; f < flooders; f++) {
+            flood[f] = new Thread(() -> {
+                ArrayDeque<Socket> open = new ArrayDeque<>();
+                while (!stop.get()) {
+                    Socket s = new Socket();
+                    try {
+                        s.bind(new InetSocketAddress("127.0.0.2", 0));
+                        s.connect(new InetSocketAddress("127.0.0.1", port), 1000);
+                        connects.incrementAndGet();
+                        open.add(s);
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                        close(s);
+                    }
+                    while (open.size() > held)
+                        close(open.poll());
+                }
+                for (Socket s : open)
+                    close(s);
+            }, "Flood-" + f);
+            flood[f].start();
+        }
+        Thread.sleep(1000);
+        long start = System.nanoTime();
+        long before = connects.get();
+        long failedBefore = failed.get();
+        long[] stormy = logins(port, logins, "flood");
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long flooded = connects.get() - before;
+        long unconnected = failed.get() - failedBefore;
+        stop.set(true);
+        for (Thread t : flood)
+            t.join();
+        String stats = server.stats();
+        System.setOut(out);
+
+        System.out.printf("%s: %,d flood connects in %.1f s (%,.0f/s), %,d failed to connect%n",
+                name, flooded, seconds, flooded / seconds, unconnected);
+        report("  alone", quiet);
+        report("  in flood", stormy);
+        System.out.println("  " + stats);
+    }
+
+    /**
+     * Logs in connections one after the other, each closing once it has the board
+     * @param port the port of the server
+     * @param logins the number of logins
+     * @param name the start of their usernames
+     * @return how long each one took in milliseconds, GIVE_UP if it did not make it
+     */
+    private static long[] logins(int port, int logins, String name) {
+        long[] took = new long[logins];
+        for (int i = 0; i < logins; i++) {
+            long start = System.nanoTime();
+            try (Socket s = new Socket()) {
+                s.bind(new InetSocketAddress("127.0.1." + (1 + i % 250), 0));
+                s.connect(new InetSocketAddress("127.0.0.1", port), GIVE_UP);
+                s.setSoTimeout(GIVE_UP);
+                PlaceExchange e = new PlaceExchange(s);
+                e.setCodec(new BinaryCodec());
+                e.send(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN, name + i));
+                PlaceRequest.RequestType type;
+                do {
+                    type = e.receive().getType();
+                } while (type != PlaceRequest.RequestType.BOARD && type != PlaceRequest.RequestType.ERROR);
+                took[i] = type == PlaceRequest.RequestType.BOARD ? (System.nanoTime() - start) / 1_000_000 : GIVE_UP;
+            } catch (Exception e) {
+                took[i] = GIVE_UP;
+            }
+        }
+        return took;
+    }
+
+    /**
+     * Closes a socket
+     * @param s the socket
+     */
+    private static void close(Socket s) {
+        try {
+            s.close();
+        } catch (Exception e) {
+            // squash
+        }
+    }
+
+    /**
+     * Prints the percentiles of a set of logins
+     * @param name the name of the set
+     * @param took how long each one took in milliseconds
+     */
+    private static void report(String name, long[] took) {
+        long[] sorted = took.clone();
+        Arrays.sort(sorted);
+        long failed = Arrays.stream(took).filter(t -> t >= GIVE_UP).count();
+        System.out.printf("%-11s p50=%dms p99=%dms max=%dms failed=%d%n", name,
+                sorted[sorted.length / 2], sorted[(int) ((sorted.length - 1) * 0.99)],
+                sorted[sorted.length - 1], failed);
+    }
+}
@@ -0,0 +1,172 @@
+package place.bench;
+
+import place.server.AccessList;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures the AccessList the server checks every connection against, with
+ * as many entries as a big blacklist has.  It writes a list of single
+ * addresses, CIDR ranges and IPv6 ones, loads it, and checks addresses, a mix
+ * of ones on the list and ones not, first from their bytes and then as the
+ * InetAddresses the server has: the time per check, and the bytes allocated
+ * by all of them, which should be none for the bytes and only the copies of
+ * the IPv6 ones for the InetAddresses.  Then it is loaded again, warm, and a thread keeps checking while
+ * the file is written again with a new range, and it is timed how long the
+ * list takes to see it and the longest a check took meanwhile.
+ *
+ * $ java place.bench.AccessListBench [entries] [checks]
+ *
+ * @author Cameron Myron
+ */
+public class AccessListBench {
+
+    /**
+     * Runs the benchmark
+     * @param args [entries] [checks]
+     * @throws IOException if the list can not be written
+     * @throws InterruptedException if interrupted
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 300_000;
+        int checks = args.length > 1 ? Integer.parseInt(args[1]) : 20_000_000;
+        Random random = new Random(42);
+        Path dir = Files.createTempDirectory("access");
+        Path file = dir.resolve("blacklist.txt");
+
+        byte[][] listed = new byte[4096][];
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+            out.println("# made by AccessListBench");
+            for (int i = 0; i < entries; i++) {
+                int kind = i % 10;
+                int a = random.nextInt();
+                if (kind < 7) {
+                    out.println(v4(a));
+                    if (i % 7 == 0 && i / 7 < listed.length)
+                        listed[i / 7] = new byte[]{(byte) (a >>> 24), (byte) (a >>> 16), (byte) (a >>> 8), (byte) a};
+                } else if (kind < 9) {
+                    out.println(v4(a) + "/" + (16 + random.nextInt(13)));
+                } else {
+                    out.printf("2001:db8:%x:%x::/64%n", random.nextInt(1 << 16), random.nextInt(1 << 16));
+                }
+            }
+        }
+
+        long start = System.nanoTime();
+        AccessList list = new AccessList(file.toString(), AccessList.Type.BLACKLIST);
+        System.out.printf("loaded %,d entries (%,d ranges) in %d ms%n", list.size(), list.getRanges(),
+                (System.nanoTime() - start) / 1_000_000);
+        for (byte[] b : listed)
+            if (b != null && !list.onList(b))
+                throw new IllegalStateException("Missing A Listed Address");
+
+        byte[][] addresses = new byte[1 << 12][];
+        for (int i = 0; i < addresses.length; i++) {
+            if (i % 4 == 0 && listed[i / 4] != null) {
+                addresses[i] = listed[i / 4];
+            } else if (i % 8 == 1) {
+                addresses[i] = new byte[16];
+                random.nextBytes(addresses[i]);
+                addresses[i][0] = 0x20;
+                addresses[i][1] = 0x01;
+                addresses[i][2] = 0x0d;
+                addresses[i][3] = (byte) 0xb8;
+            } else {
+                addresses[i] = new byte[4];
+                random.nextBytes(addresses[i]);
+            }
+        }
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        for (int i = 0; i < checks / 10; i++)
+            list.onList(addresses[i & (addresses.length - 1)]);
+        long id = Thread.currentThread().getId();
+        long allocated = threads.getThreadAllocatedBytes(id);
+        int hits = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < checks; i++)
+            if (list.onList(addresses[i & (addresses.length - 1)]))
+                hits++;
+        long ns = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(id) - allocated;
+        System.out.printf("%,d checks: %.0f ns/check, %,d on the list, %,d bytes allocated%n",
+                checks, ns / (double) checks, hits, allocated);
+
+        InetAddress[] inet = new InetAddress[addresses.length];
+        int v6 = 0;
+        for (int i = 0; i < inet.length; i++) {
+            inet[i] = InetAddress.getByAddress(addresses[i]);
+            if (addresses[i].length == 16)
+                v6++;
+        }
+        for (int i = 0; i < checks / 10; i++)
+            list.onList(inet[i & (inet.length - 1)]);
+        allocated = threads.getThreadAllocatedBytes(id);
+        int inetHits = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < checks; i++)
+            if (list.onList(inet[i & (inet.length - 1)]))
+                inetHits++;
+        ns = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(id) - allocated;
+        if (inetHits != hits)
+            throw new IllegalStateException("InetAddresses Checked Differently");
+        System.out.printf("%,d InetAddress checks (%d%% IPv6): %.0f ns/check, %,d bytes allocated%n",
+                checks, 100 * v6 / inet.length, ns / (double) checks, allocated);
+
+        start = System.nanoTime();
+        list.reload();
+        System.out.printf("reloaded %,d entries in %d ms%n", list.size(), (System.nanoTime() - start) / 1_000_000);
+
+        if (!list.watch())
+            throw new IllegalStateException("Can Not Watch " + dir);
+        byte[] added = new byte[16];
+        added[0] = (byte) 0xfd;
+        added[15] = 7;
+        if (list.onList(added))
+            throw new IllegalStateException("Already Listed");
+        long[] slowest = {0};
+        AtomicBoolean done = new AtomicBoolean();
+        Thread checker = new Thread(() -> {
+            int i = 0;
+            while (!done.get()) {
+                long t = System.nanoTime();
+                list.onList(addresses[i++ & (addresses.length - 1)]);
+                slowest[0] = Math.max(slowest[0], System.nanoTime() - t);
+            }
+        });
+        checker.start();
+        Thread.sleep(200);
+        start = System.nanoTime();
+        Files.writeString(file, Files.readString(file) + "fd00::/8\n");
+        while (!list.onList(added)) {
+            if (System.nanoTime() - start > 30_000_000_000L)
+                throw new IllegalStateException("Not Reloaded");
+            Thread.sleep(1);
+        }
+        long seen = System.nanoTime() - start;
+        done.set(true);
+        checker.join();
+        System.out.printf("reloaded after the file changed in %d ms, slowest check meanwhile %.1f us%n",
+                seen / 1_000_000, slowest[0] / 1e3);
+
+        Files.delete(file);
+        Files.delete(dir);
+    }
+
+    /**
+     * Writes an IPv4 address
+     * @param a the address
+     * @return the dotted form
+     */
+    private static String v4(int a) {
+        return (a >>> 24) + "." + (a >>> 16 & 0xff) + "." + (a >>> 8 & 0xff) + "." + (a & 0xff);
+    }
+}
@@ -0,0 +1,165 @@
+package place.bench;
+
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+
+import java.util.Random;
+
+/**
+ * Compares the packed PlaceBoard with the grid of PlaceTile objects it used
+ * to be: the heap a board takes once it is partly painted, how many tiles a
+ * second setTile takes and how long a walk over every cell's color takes
+ * (what the encoders and the GUI do).  Then how long a copy of the packed
+ * board takes, and bringing that copy up to date one chunk at a time.
+ *
+ * $ java place.bench.BoardBench [DIM] [painted percent] [owners]
+ *
+ * Run it with a heap big enough for both boards, for example -Xmx2g.
+ *
+ * @author Cameron Myron
+ */
+public class BoardBench {
+
+    /**
+     * The board as it was: one PlaceTile per cell, replaced on every change
+     */
+    private static class ObjectBoard {
+
+        /**
+         * The grid of tiles
+         */
+        private final PlaceTile[][] board;
+
+        /**
+         * Create a new board of all white tiles
+         * @param dim the square dimension of the board
+         */
+        ObjectBoard(int dim) {
+            board = new PlaceTile[dim][dim];
+            for (int row = 0; row < dim; ++row)
+                for (int col = 0; col < dim; ++col)
+                    board[row][col] = new PlaceTile(row, col, "", PlaceColor.WHITE);
+        }
+
+        /**
+         * Change a tile in the board
+         * @param tile the new tile
+         */
+        void setTile(PlaceTile tile) {
+            board[tile.getRow()][tile.getCol()] = tile;
+        }
+
+        /**
+         * Get the color of a cell
+         * @param row row
+         * @param col column
+         * @return the color
+         */
+        PlaceColor getColor(int row, int col) {
+            return board[row][col].getColor();
+        }
+    }
+
+    /**
+     * Runs the benchmark
+     * @param args [DIM] [painted percent] [owners]
+     */
+    public static void main(String[] args) {
+        int dim = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int painted = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        int owners = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int changes = (int) ((long) dim * dim * painted / 100);
+        System.out.println("DIM=" + dim + " painted=" + painted + "% owners=" + owners);
+
+        long base = heap();
+        PlaceTile[] tiles = tiles(changes, dim, owners);
+        ObjectBoard objects = new ObjectBoard(dim);
+        long start = System.nanoTime();
+        for (PlaceTile t : tiles)
+            objects.setTile(t);
+        double objectWrites = changes / ((System.nanoTime() - start) / 1e9);
+        tiles = null;
+        long objectHeap = heap() - base;
+        start = System.nanoTime();
+        long sum = 0;
+        for (int row = 0; row < dim; row++)
+            for (int col = 0; col < dim; col++)
+                sum += objects.getColor(row, col).getNumber();
+        double objectScan = (System.nanoTime() - start) / 1e6;
+        objects = null;
+
+        base = heap();
+        tiles = tiles(changes, dim, owners);
+        PlaceBoard packed = new PlaceBoard(dim);
+        start = System.nanoTime();
+        for (PlaceTile t : tiles)
+            packed.setTile(t);
+        double packedWrites = changes / ((System.nanoTime() - start) / 1e9);
+        tiles = null;
+        long packedHeap = heap() - base;
+        start = System.nanoTime();
+        for (int row = 0; row < dim; row++)
+            for (int col = 0; col < dim; col++)
+                sum -= packed.getColor(row, col).getNumber();
+        double packedScan = (System.nanoTime() - start) / 1e6;
+
+        start = System.nanoTime();
+        PlaceBoard image = packed.copy();
+        double fullCopy = (System.nanoTime() - start) / 1e6;
+        Random random = new Random(7);
+        int chunks = 0;
+        double chunkCopy = 0;
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 100; i++)
+                packed.set(random.nextInt(dim), random.nextInt(dim), PlaceColor.BLACK, 0, i);
+            start = System.nanoTime();
+            chunks = packed.copyTo(image);
+            chunkCopy = (System.nanoTime() - start) / 1e6;
+        }
+        for (int row = 0; row < dim; row++)
+            for (int col = 0; col < dim; col++)
+                if (image.getColor(row, col) != packed.getColor(row, col))
+                    sum++;
+
+        System.out.printf("PlaceTile[][]  heap %,6d MB  setTile %,12.0f tiles/s  color scan %7.1f ms%n",
+                objectHeap >> 20, objectWrites, objectScan);
+        System.out.printf("packed         heap %,6d MB  setTile %,12.0f tiles/s  color scan %7.1f ms%n",
+                packedHeap >> 20, packedWrites, packedScan);
+        System.out.printf("copy %7.1f ms, after 100 changes copyTo %7.1f ms (%,d of %,d chunks)%n",
+                fullCopy, chunkCopy, chunks, packed.getChunkCount());
+        if (sum != 0)
+            System.out.println("The boards do not match!");
+    }
+
+    /**
+     * Makes the changes that paint the board, the tiles of one owner sharing a name
+     * @param changes the number of changes
+     * @param dim the square dimension of the board
+     * @param owners the number of owners
+     * @return the tiles
+     */
+    private static PlaceTile[] tiles(int changes, int dim, int owners) {
+        String[] names = new String[owners];
+        for (int i = 0; i < owners; i++)
+            names[i] = "user" + i;
+        Random random = new Random(42);
+        long time = System.currentTimeMillis();
+        PlaceTile[] tiles = new PlaceTile[changes];
+        for (int i = 0; i < changes; i++)
+            tiles[i] = new PlaceTile(random.nextInt(dim), random.nextInt(dim), names[random.nextInt(owners)],
+                    PlaceColor.fromNumber(random.nextInt(PlaceColor.TOTAL_COLORS)), time += random.nextInt(50));
+        return tiles;
+    }
+
+    /**
+     * Get the heap in use after a collection
+     * @return the bytes
+     */
+    private static long heap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
@@ -0,0 +1,120 @@
+package place.bench;
+
+import place.PlaceColor;
+import place.PlaceTile;
+import place.server.PlaceServer;
+import place.server.ServerOptions;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Measures what checkpoints do for a server that has been up a long time.
+ * Tiles are placed on a server with a log, and after every round the time a
+ * restart takes is measured from the log alone, then a checkpoint is written
+ * while a thread keeps placing tiles, and the restart is measured again from
+ * the checkpoint and the compacted log.  The restart from the log grows with
+ * the changes made since the last checkpoint; the one from the checkpoint
+ * should not.  It also reports the slowest tile placed during the checkpoint
+ * next to the slowest one placed just before, which shows whether tile
+ * traffic stopped for it.
+ *
+ * $ java place.bench.CheckpointBench [DIM] [changes,...] [directory]
+ *
+ * Every round places its number of changes and then checkpoints.
+ *
+ * @author Cameron Myron
+ */
+public class CheckpointBench {
+
+    /**
+     * Runs the benchmark
+     * @param args [DIM] [changes,...] [directory]
+     * @throws Exception if the files can not be made
+     */
+    public static void main(String[] args) throws Exception {
+        int dim = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        String rounds = args.length > 1 ? args[1] : "1000000,4000000,15000000";
+        Path dir = Files.createTempDirectory(args.length > 2 ? Path.of(args[2])
+                : Path.of(System.getProperty("java.io.tmpdir")), "place");
+        Path log = dir.resolve("board.log");
+        Path checkpoint = dir.resolve("board.log.checkpoint");
+        ServerOptions options = new ServerOptions().set("log", log.toString()).set("checkpoint-ms", "0");
+        System.out.println("DIM=" + dim + " directory=" + dir);
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        PlaceServer server = new PlaceServer(dim, 0, 1, options);
+        Random random = new Random(42);
+        for (String round : rounds.split(",")) {
+            long n = Long.parseLong(round);
+            for (long i = 0; i < n; i++)
+                place(server, random, dim, i);
+            Thread.sleep(500);
+            long logBytes = Files.size(log);
+            Files.deleteIfExists(checkpoint);
+            long fromLog = restart(dim, options, server.getSequence());
+
+            long[] slowest = {0, 0};
+            boolean[] done = {false};
+            Thread placer = new Thread(() -> {
+                Random r = new Random(7);
+                for (long i = 0; !done[0]; i++) {
+                    long start = System.nanoTime();
+                    place(server, r, dim, i);
+                    slowest[1] = Math.max(slowest[1], System.nanoTime() - start);
+                }
+            });
+            placer.start();
+            Thread.sleep(200);
+            slowest[0] = slowest[1];
+            slowest[1] = 0;
+            long start = System.nanoTime();
+            server.checkpoint();
+            double write = (System.nanoTime() - start) / 1e6;
+            done[0] = true;
+            placer.join();
+            Thread.sleep(500);
+            long fromCheckpoint = restart(dim, options, server.getSequence());
+
+            out.printf("%,11d changes: restart from log %,7.0f ms (%,5d MB)   checkpoint %,6.0f ms (%,4d MB), "
+                            + "slowest tile %,5.2f ms before, %,5.2f ms meanwhile   "
+                            + "restart from checkpoint %,6.0f ms (log %,5d KB)%n",
+                    n, fromLog / 1e6, logBytes >> 20, write, Files.size(checkpoint) >> 20, slowest[0] / 1e6,
+                    slowest[1] / 1e6, fromCheckpoint / 1e6, Files.size(log) >> 10);
+        }
+        System.setOut(out);
+        System.exit(0);
+    }
+
+    /**
+     * Places a tile at random
+     * @param server the server
+     * @param random where the tile goes
+     * @param dim the square dimension of the board
+     * @param i the number of the tile
+     */
+    private static void place(PlaceServer server, Random random, int dim, long i) {
+        server.changeTile(new PlaceTile(random.nextInt(dim), random.nextInt(dim), "placer" + (i % 500),
+                PlaceColor.fromNumber(random.nextInt(PlaceColor.TOTAL_COLORS))));
+    }
+
+    /**
+     * Starts a second server on the same files, the way a restart would
+     * @param dim the square dimension of the board
+     * @param options the options, with the log
+     * @param seq the sequence number the server should come back at
+     * @return the nanoseconds it took
+     */
+    private static long restart(int dim, ServerOptions options, long seq) {
+        long start = System.nanoTime();
+        PlaceServer again = new PlaceServer(dim, 0, 1, options);
+        long ns = System.nanoTime() - start;
+        if (again.getSequence() < seq)
+            System.err.println("The restarted server is at " + again.getSequence() + ", not " + seq + "!");
+        return ns;
+    }
+}
@@ -0,0 +1,93 @@
+package place.bench;
+
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+import place.network.BinaryCodec;
+import place.network.Codec;
+import place.network.PlaceExchange;
+import place.network.PlaceRequest;
+import place.network.SerialCodec;
+
+/**
+ * Compares the serialized and binary protocols: the bytes one TILE_CHANGED
+ * costs on the wire, the CPU to encode it for one recipient and to decode it,
+ * and the size of the BOARD sent at login.
+ *
+ * $ java place.bench.CodecBench [tiles] [DIM]
+ *
+ * @author Cameron Myron
+ */
+public class CodecBench {
+
+    /**
+     * The number of different owners placing tiles
+     */
+    private static final int OWNERS = 100;
+
+    /**
+     * Runs the benchmark
+     * @param args [tiles] [DIM]
+     * @throws Exception if a codec fails
+     */
+    public static void main(String[] args) throws Exception {
+        int tiles = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int dim = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        PlaceTile[] changes = new PlaceTile[tiles];
+        for (int i = 0; i < tiles; i++)
+            changes[i] = new PlaceTile(i / dim % dim, i % dim, "user" + (i % OWNERS),
+                    PlaceColor.fromNumber(i % PlaceColor.TOTAL_COLORS), System.currentTimeMillis());
+        PlaceBoard board = new PlaceBoard(dim);
+        for (PlaceTile t : changes)
+            board.setTile(t);
+
+        for (int round = 0; round < 2; round++) {
+            boolean print = round == 1;
+            run("serial", SerialCodec.INSTANCE, SerialCodec.INSTANCE, changes, board, print);
+            run("binary", new BinaryCodec(), new BinaryCodec(), changes, board, print);
+        }
+    }
+
+    /**
+     * Measures one codec
+     * @param name the codec name
+     * @param encoder the server side codec
+     * @param decoder the client side codec
+     * @param changes the tiles to send
+     * @param board the board to send
+     * @param print whether to print (the first round only warms up)
+     * @throws Exception if the codec fails
+     */
+    private static void run(String name, Codec encoder, Codec decoder, PlaceTile[] changes,
+                            PlaceBoard board, boolean print) throws Exception {
+        byte[][] frames = new byte[changes.length][];
+        long bytes = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < changes.length; i++) {
+            frames[i] = encoder.encode(new PlaceRequest<>(PlaceRequest.RequestType.TILE_CHANGED, changes[i]));
+            bytes += frames[i].length;
+        }
+        long encodeNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (byte[] frame : frames) {
+            int off = 0;
+            while (off < frame.length) {
+                int len = ((frame[off] & 0xFF) << 24) | ((frame[off + 1] & 0xFF) << 16)
+                        | ((frame[off + 2] & 0xFF) << 8) | (frame[off + 3] & 0xFF);
+                decoder.decode(frame, off + PlaceExchange.HEADER, len);
+                off += PlaceExchange.HEADER + len;
+            }
+        }
+        long decodeNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        byte[] boardFrame = encoder.encode(new PlaceRequest<>(PlaceRequest.RequestType.BOARD, board));
+        long boardNs = System.nanoTime() - start;
+
+        if (print)
+            System.out.printf("%-6s bytes/tile=%6.1f encode=%7.0fns decode=%7.0fns board(%dx%d)=%d bytes in %.1fms%n",
+                    name, (double) bytes / changes.length, (double) encodeNs / changes.length,
+                    (double) decodeNs / changes.length, board.DIM, board.DIM, boardFrame.length, boardNs / 1e6);
+    }
+}
@@ -0,0 +1,151 @@
+package place.bench;
+
+import place.PlaceColor;
+import place.PlaceTile;
+import place.network.Codec;
+import place.network.SerialCodec;
+import place.server.BoardSnapshot;
+import place.server.Broadcast;
+import place.server.PlaceServer;
+import place.server.ServerOptions;
+import place.server.Session;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how many tile changes the server commits per second as more
+ * threads place tiles at once, with no network in the way.  Every commit is
+ * handed to a number of stand in clients that only count it, so the numbers
+ * show the commit path and the fan out and nothing else.  Each thread count
+ * is run with the board under one stripe (a single lock, like the server
+ * used to have) and under the given number of stripes.
+ *
+ * $ java place.bench.CommitBench [clients] [seconds] [DIM] [stripes]
+ *
+ * @author Cameron Myron
+ */
+public class CommitBench {
+
+    /**
+     * A client that counts the tile changes it is given
+     */
+    private static class CountingSession implements Session {
+
+        /**
+         * The username
+         */
+        private final String USERNAME;
+
+        /**
+         * The tile changes received
+         */
+        private long received;
+
+        /**
+         * Creates a session
+         * @param username the username
+         */
+        CountingSession(String username) {
+            USERNAME = username;
+        }
+
+        @Override
+        public String getUSERNAME() {
+            return USERNAME;
+        }
+
+        @Override
+        public Codec getCodec() {
+            return SerialCodec.INSTANCE;
+        }
+
+        @Override
+        public void start(BoardSnapshot board, PlaceTile[] missed) {
+        }
+
+        @Override
+        public synchronized void broadcast(Broadcast b) {
+            received++;
+        }
+
+        @Override
+        public void sendBoard(BoardSnapshot board, PlaceTile[] missed) {
+        }
+
+        @Override
+        public long getQueuedBytes() {
+            return 0;
+        }
+
+        @Override
+        public void cooldown(long wait) {
+        }
+    }
+
+    /**
+     * Runs the benchmark
+     * @param args [clients] [seconds] [DIM] [stripes]
+     * @throws InterruptedException if interrupted
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int dim = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int stripes = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println("cores=" + cores + " clients=" + clients + " DIM=" + dim);
+
+        run(1, 1, clients, 1, dim);
+        for (int threads = 1; threads <= Math.max(2, cores * 2); threads *= 2) {
+            double single = run(1, threads, clients, seconds, dim);
+            double striped = run(stripes, threads, clients, seconds, dim);
+            System.out.printf("threads=%d  1 stripe: %,.0f commits/s  %d stripes: %,.0f commits/s%n",
+                    threads, single, stripes, striped);
+        }
+    }
+
+    /**
+     * Commits tiles from a number of threads for a while
+     * @param stripes the number of stripes
+     * @param threads the number of threads placing tiles
+     * @param clients the number of clients every change goes to
+     * @param seconds how long to run
+     * @param dim the square dimension of the board
+     * @return the commits per second
+     * @throws InterruptedException if interrupted
+     */
+    private static double run(int stripes, int threads, int clients, int seconds, int dim)
+            throws InterruptedException {
+        PlaceServer server = new PlaceServer(dim, 0, clients,
+                new ServerOptions().set("stripes", String.valueOf(stripes)));
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        for (int i = 0; i < clients; i++)
+            server.register(new CountingSession("bench" + i));
+        System.setOut(out);
+
+        LongAdder commits = new LongAdder();
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            String owner = "placer" + t;
+            new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long n = 0;
+                while ((n & 255) != 0 || System.nanoTime() < end) {
+                    server.changeTile(new PlaceTile(random.nextInt(dim), random.nextInt(dim), owner,
+                            PlaceColor.fromNumber(random.nextInt(PlaceColor.TOTAL_COLORS))));
+                    n++;
+                }
+                commits.add(n);
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        return commits.sum() / (double) seconds;
+    }
+}
@@ -0,0 +1,132 @@
+package place.bench;
+
+import place.network.BinaryCodec;
+import place.network.PlaceExchange;
+import place.network.PlaceRequest;
+import place.server.PlaceServer;
+import place.server.ServerOptions;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks that connections which never send their LOGIN do not hold up the
+ * ones that do.  It starts a server in this JVM and times a number of logins,
+ * from the connect to the BOARD, first on their own and then right after a
+ * storm of silent connections has been opened.  Then it waits out the login
+ * timeout and prints the server's stats, which show the silent connections
+ * timing out and how long each login stage took.
+ *
+ * $ java place.bench.ConnectStorm mode [silent] [logins] [DIM] [options]
+ *
+ * Options are passed to the server, for example -login-timeout 2000.
+ *
+ * @author Cameron Myron
+ */
+public class ConnectStorm {
+
+    /**
+     * How long a login may take before it counts as stalled, in milliseconds
+     */
+    private static final int GIVE_UP = 30_000;
+
+    /**
+     * Runs the test
+     * @param args mode [silent] [logins] [DIM] [options]
+     * @throws Exception if the test can not run
+     */
+    public static void main(String[] args) throws Exception {
+        String[] pos = ServerOptions.positional(args);
+        if (pos.length < 1) {
+            System.out.println("Usage: java place.bench.ConnectStorm mode [silent] [logins] [DIM] [options]");
+            return;
+        }
+        String mode = pos[0];
+        int silent = pos.length > 1 ? Integer.parseInt(pos[1]) : 500;
+        int logins = pos.length > 2 ? Integer.parseInt(pos[2]) : 50;
+        int dim = pos.length > 3 ? Integer.parseInt(pos[3]) : 100;
+        ServerOptions options = new ServerOptions(args).set("mode", mode);
+
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        PlaceServer server = new PlaceServer(dim, port, logins + 1, options);
+        Thread serverThread = new Thread(server::run, "PlaceServer");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(500);
+
+        long[] quiet = logins(port, logins, "quiet");
+        List<Socket> storm = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < silent; i++) {
+            Socket s = new Socket();
+            s.connect(new InetSocketAddress("127.0.0.1", port));
+            storm.add(s);
+        }
+        long opened = (System.nanoTime() - start) / 1_000_000;
+        long[] stormy = logins(port, logins, "storm");
+        long timeout = Long.parseLong(options.get("login-timeout", "5000"));
+        Thread.sleep(timeout + 1000);
+        System.setOut(out);
+
+        System.out.println("mode=" + mode + " silent=" + silent + " (opened in " + opened + "ms) logins=" + logins);
+        report("alone", quiet);
+        report("in storm", stormy);
+        System.out.println(server.stats());
+        for (Socket s : storm)
+            s.close();
+    }
+
+    /**
+     * Logs in connections one after the other, each closing once it has the board
+     * @param port the port of the server
+     * @param logins the number of logins
+     * @param name the start of their usernames
+     * @return how long each one took in milliseconds, GIVE_UP if it did not make it
+     */
+    private static long[] logins(int port, int logins, String name) {
+        long[] took = new long[logins];
+        for (int i = 0; i < logins; i++) {
+            long start = System.nanoTime();
+            try (Socket s = new Socket()) {
+                s.connect(new InetSocketAddress("127.0.0.1", port));
+                s.setSoTimeout(GIVE_UP);
+                PlaceExchange e = new PlaceExchange(s);
+                e.setCodec(new BinaryCodec());
+                e.send(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN, name + i));
+                PlaceRequest.RequestType type;
+                do {
+                    type = e.receive().getType();
+                } while (type != PlaceRequest.RequestType.BOARD && type != PlaceRequest.RequestType.ERROR);
+                took[i] = type == PlaceRequest.RequestType.BOARD ? (System.nanoTime() - start) / 1_000_000 : GIVE_UP;
+            } catch (Exception e) {
+                took[i] = GIVE_UP;
+            }
+        }
+        return took;
+    }
+
+    /**
+     * Prints the percentiles of a set of logins
+     * @param name the name of the set
+     * @param took how long each one took in milliseconds
+     */
+    private static void report(String name, long[] took) {
+        long[] sorted = took.clone();
+        Arrays.sort(sorted);
+        long failed = Arrays.stream(took).filter(t -> t >= GIVE_UP).count();
+        System.out.printf("%-9s p50=%dms p99=%dms max=%dms failed=%d%n", name,
+                sorted[sorted.length / 2], sorted[(int) ((sorted.length - 1) * 0.99)],
+                sorted[sorted.length - 1], failed);
+    }
+}
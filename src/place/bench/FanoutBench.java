@@ -0,0 +1,172 @@
+package place.bench;
+
+import place.PlaceColor;
+import place.PlaceTile;
+import place.network.Codec;
+import place.network.BinaryCodec;
+import place.server.BoardSnapshot;
+import place.server.Broadcast;
+import place.server.PlaceServer;
+import place.server.ServerOptions;
+import place.server.Session;
+import place.server.SharedFrame;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Measures what one tile change costs the server as the number of viewers
+ * grows, with no network in the way.  The stand in clients either queue the
+ * shared frame of the broadcast, the way the sessions do, or encode the change
+ * for themselves the way every session used to.  The frames are thrown away
+ * once a client has a few queued, as if they had been written.
+ *
+ * $ java place.bench.FanoutBench [tiles] [viewers,...] [server options]
+ *
+ * @author Cameron Myron
+ */
+public class FanoutBench {
+
+    /**
+     * The frames a client keeps before they count as written
+     */
+    private static final int WRITTEN = 64;
+
+    /**
+     * A client that queues the frames it is given
+     */
+    private static class QueueingSession implements Session {
+
+        /**
+         * The username
+         */
+        private final String USERNAME;
+
+        /**
+         * Whether the client encodes every change itself
+         */
+        private final boolean ENCODE;
+
+        /**
+         * The codec of the connection
+         */
+        private final BinaryCodec CODEC = new BinaryCodec();
+
+        /**
+         * The queued frames
+         */
+        private final ArrayDeque<SharedFrame> frames = new ArrayDeque<>();
+
+        /**
+         * The queued views
+         */
+        private final ArrayDeque<ByteBuffer> views = new ArrayDeque<>();
+
+        /**
+         * Creates a session
+         * @param server the server
+         * @param username the username
+         * @param encode whether the client encodes every change itself
+         */
+        QueueingSession(PlaceServer server, String username, boolean encode) {
+            USERNAME = username;
+            ENCODE = encode;
+            if (!encode)
+                CODEC.shareOwners(server.getOwners());
+        }
+
+        @Override
+        public String getUSERNAME() {
+            return USERNAME;
+        }
+
+        @Override
+        public Codec getCodec() {
+            return CODEC;
+        }
+
+        @Override
+        public void start(BoardSnapshot board, PlaceTile[] missed) {
+        }
+
+        @Override
+        public synchronized void broadcast(Broadcast b) {
+            if (ENCODE) {
+                views.add(ByteBuffer.wrap(CODEC.encode(b.getRequest())));
+            } else {
+                byte[] names = CODEC.announce(b.getOwnerIds());
+                if (names != null)
+                    views.add(ByteBuffer.wrap(names));
+                SharedFrame f = b.frame(CODEC);
+                frames.add(f);
+                views.add(f.view());
+            }
+            if (views.size() >= WRITTEN) {
+                views.clear();
+                SharedFrame f;
+                while ((f = frames.poll()) != null)
+                    f.release();
+            }
+        }
+
+        @Override
+        public void sendBoard(BoardSnapshot board, PlaceTile[] missed) {
+        }
+
+        @Override
+        public long getQueuedBytes() {
+            return 0;
+        }
+
+        @Override
+        public void cooldown(long wait) {
+        }
+    }
+
+    /**
+     * Runs the benchmark
+     * @param args [tiles] [viewers,...] [server options]
+     */
+    public static void main(String[] args) {
+        String[] pos = ServerOptions.positional(args);
+        int tiles = pos.length > 0 ? Integer.parseInt(pos[0]) : 5_000;
+        String viewers = pos.length > 1 ? pos[1] : "10,100,1000,5000";
+        ServerOptions options = new ServerOptions(args);
+
+        run(1000, 1000, false, options);
+        run(1000, 1000, true, options);
+        for (String v : viewers.split(",")) {
+            int n = Integer.parseInt(v);
+            double shared = run(tiles, n, false, options);
+            double encoded = run(tiles, n, true, options);
+            System.out.printf("viewers=%-6d encode once: %,9.0f ns/tile %6.1f ns/viewer"
+                            + "   encode per viewer: %,10.0f ns/tile %6.1f ns/viewer%n",
+                    n, shared, shared / n, encoded, encoded / n);
+        }
+    }
+
+    /**
+     * Places tiles with a number of viewers online
+     * @param tiles the number of tiles
+     * @param viewers the number of viewers
+     * @param encode whether every viewer encodes for itself
+     * @param options the server options
+     * @return the nanoseconds per tile
+     */
+    private static double run(int tiles, int viewers, boolean encode, ServerOptions options) {
+        PlaceServer server = new PlaceServer(100, 0, viewers, options);
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        for (int i = 0; i < viewers; i++)
+            server.register(new QueueingSession(server, "viewer" + i, encode));
+        System.setOut(out);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < tiles; i++)
+            server.changeTile(new PlaceTile(i / 100 % 100, i % 100, "placer" + (i % 500),
+                    PlaceColor.fromNumber(i % PlaceColor.TOTAL_COLORS)));
+        return (System.nanoTime() - start) / (double) tiles;
+    }
+}
@@ -0,0 +1,153 @@
+package place.bench;
+
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+import place.server.HistoryStore;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Measures looking back at a long history.  The same days of tile changes
+ * are kept in two histories: one with a keyframe every so many changes, and
+ * one with a keyframe only at the start, which has to go through everything
+ * since then, as a board with no index would.  Then the board is rebuilt at
+ * random moments from both (and the two must match), and the changes to
+ * random tiles are looked up over an hour and over a day.
+ *
+ * $ java place.bench.HistoryBench [DIM] [days] [changes] [keyframe every] [queries] [directory]
+ *
+ * @author Cameron Myron
+ */
+public class HistoryBench {
+
+    /**
+     * Milliseconds in an hour
+     */
+    private static final long HOUR = 3_600_000L;
+
+    /**
+     * Runs the benchmark
+     * @param args [DIM] [days] [changes] [keyframe every] [queries] [directory]
+     * @throws IOException if a history can not be written or read
+     */
+    public static void main(String[] args) throws IOException {
+        int dim = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int days = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int changes = args.length > 2 ? Integer.parseInt(args[2]) : 5_000_000;
+        long every = args.length > 3 ? Long.parseLong(args[3]) : 250_000;
+        int queries = args.length > 4 ? Integer.parseInt(args[4]) : 20;
+        Path dir = Files.createTempDirectory(args.length > 5 ? Path.of(args[5])
+                : Path.of(System.getProperty("java.io.tmpdir")), "history");
+        System.out.println("DIM=" + dim + " days=" + days + " changes=" + changes + " keyframe every " + every
+                + " directory=" + dir);
+
+        // a history begins with a keyframe of the board when it is opened, so the days come after that
+        long start = System.currentTimeMillis() + 60_000;
+        long span = days * 24 * HOUR;
+        HistoryStore keyed = build(dir.resolve("keyed"), dim, changes, every, start, span);
+        HistoryStore flat = build(dir.resolve("flat"), dim, changes, Long.MAX_VALUE, start, span);
+        System.out.printf("keyed: %d keyframes, %,d MB   flat: %d keyframe, %,d MB%n",
+                keyed.getKeyframes(), size(dir.resolve("keyed")) >> 20,
+                flat.getKeyframes(), size(dir.resolve("flat")) >> 20);
+
+        Random random = new Random(42);
+        long[] times = new long[queries];
+        for (int q = 0; q < queries; q++)
+            times[q] = start + (long) (random.nextDouble() * span);
+        long[] keyedNs = boards(keyed, times);
+        long[] flatNs = boards(flat, times);
+        System.out.printf("board at a random moment: keyed %,7.1f ms (slowest %,7.1f)   flat %,8.1f ms (slowest %,8.1f)%n",
+                keyedNs[0] / 1e6 / queries, keyedNs[1] / 1e6, flatNs[0] / 1e6 / queries, flatNs[1] / 1e6);
+        int mismatches = 0;
+        for (int q = 0; q < Math.min(queries, 5); q++) {
+            PlaceBoard a = keyed.boardAt(times[q]);
+            PlaceBoard b = flat.boardAt(times[q]);
+            for (int row = 0; row < dim; row++)
+                for (int col = 0; col < dim; col++)
+                    if (a.getColor(row, col) != b.getColor(row, col) || a.getTime(row, col) != b.getTime(row, col)
+                            || !a.getOwner(row, col).equals(b.getOwner(row, col)))
+                        mismatches++;
+        }
+        if (mismatches > 0)
+            System.out.println(mismatches + " tiles differ between the two!");
+
+        for (long window : new long[]{HOUR, 24 * HOUR}) {
+            long ns = 0, found = 0;
+            for (int q = 0; q < queries; q++) {
+                long from = start + (long) (random.nextDouble() * (span - window));
+                long t0 = System.nanoTime();
+                found += keyed.tileHistory(random.nextInt(dim), random.nextInt(dim), from, from + window).length - 1;
+                ns += System.nanoTime() - t0;
+            }
+            System.out.printf("one tile over %2d hours: %,7.1f ms, %.1f changes%n",
+                    window / HOUR, ns / 1e6 / queries, found / (double) queries);
+        }
+    }
+
+    /**
+     * Rebuilds the board at moments, after a few to warm up
+     * @param history the history
+     * @param times the moments
+     * @return the total and the slowest nanoseconds
+     * @throws IOException if the history can not be read
+     */
+    private static long[] boards(HistoryStore history, long[] times) throws IOException {
+        for (int q = 0; q < Math.min(times.length, 3); q++)
+            history.boardAt(times[q]);
+        long[] ns = {0, 0};
+        for (long time : times) {
+            long start = System.nanoTime();
+            history.boardAt(time);
+            long took = System.nanoTime() - start;
+            ns[0] += took;
+            ns[1] = Math.max(ns[1], took);
+        }
+        return ns;
+    }
+
+    /**
+     * Writes a history of changes spread evenly over a stretch of time
+     * @param dir the directory
+     * @param dim the square dimension of the board
+     * @param changes the number of changes
+     * @param every the changes between keyframes
+     * @param start the time of the first change
+     * @param span the time the changes are spread over
+     * @return the history, opened again to be read
+     * @throws IOException if the history can not be written
+     */
+    static HistoryStore build(Path dir, int dim, int changes, long every, long start, long span)
+            throws IOException {
+        PlaceBoard board = new PlaceBoard(dim);
+        HistoryStore history = HistoryStore.open(dir, board, 0, every);
+        Random random = new Random(7);
+        for (int i = 1; i <= changes; i++) {
+            PlaceTile t = new PlaceTile(random.nextInt(dim), random.nextInt(dim), "user" + random.nextInt(5000),
+                    PlaceColor.fromNumber(random.nextInt(PlaceColor.TOTAL_COLORS)), start + span * i / changes);
+            t.setSeq(i);
+            history.append(t, board.getOwners().idOf(t.getOwner()));
+        }
+        history.close();
+        return HistoryStore.read(dir);
+    }
+
+    /**
+     * Get the bytes the files in a directory take
+     * @param dir the directory
+     * @return the bytes
+     * @throws IOException if the directory can not be listed
+     */
+    private static long size(Path dir) throws IOException {
+        long bytes = 0;
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path p : (Iterable<Path>) files::iterator)
+                bytes += Files.size(p);
+        }
+        return bytes;
+    }
+}
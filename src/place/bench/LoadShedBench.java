@@ -0,0 +1,223 @@
+package place.bench;
+
+import place.PlaceColor;
+import place.PlaceTile;
+import place.network.BinaryCodec;
+import place.network.PlaceExchange;
+import place.network.PlaceRequest;
+import place.server.LoadShedder;
+import place.server.PlaceServer;
+import place.server.ServerOptions;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Shows the LoadShedder at work.  It starts a server in this JVM with
+ * objectives, logs in viewers that read every frame, and places tiles in
+ * three phases: a calm one, a storm of as many tiles as one thread can place
+ * while the viewers read a frame only every PAUSE ms, as if their networks
+ * were congested, and a calm one again.  Every half second it prints the server's health
+ * level, the 99th percentile commit to send latency of the last window and
+ * the bytes queued, and the server's own log of every change of level is let
+ * through.  Once the server sheds load one more user logs in, which should
+ * be made a spectator and have its tile refused with a COOLDOWN, and be told
+ * with a COOLDOWN of 0 once the server is back to NORMAL; once it rejects,
+ * another tries to connect, which should be turned away.
+ *
+ * $ java place.bench.LoadShedBench mode [viewers] [storm seconds] [options]
+ *
+ * Options are passed to the server; by default -tick 10 -slo-latency 200
+ * -slo-queue 4000000 -shed-ms 500 -shed-recover 4 -shed-tick 250.
+ *
+ * @author Cameron Myron
+ */
+public class LoadShedBench {
+
+    /**
+     * The square dimension of the board
+     */
+    private static final int DIM = 50;
+
+    /**
+     * How long a viewer waits after every frame in the storm, as if its
+     * network were congested, in milliseconds
+     */
+    private static final int PAUSE = 20;
+
+    /**
+     * Runs the benchmark
+     * @param args mode [viewers] [storm seconds] [options]
+     * @throws Exception if the benchmark can not run
+     */
+    public static void main(String[] args) throws Exception {
+        String[] pos = ServerOptions.positional(args);
+        if (pos.length < 1) {
+            System.out.println("Usage: java place.bench.LoadShedBench mode [viewers] [storm seconds] [options]");
+            return;
+        }
+        int viewers = pos.length > 1 ? Integer.parseInt(pos[1]) : 100;
+        int storm = pos.length > 2 ? Integer.parseInt(pos[2]) : 8;
+        ServerOptions options = new ServerOptions(args).set("mode", pos[0]).set("cooldown", "0");
+        String[][] defaults = {{"tick", "10"}, {"slo-latency", "200"}, {"slo-queue", "4000000"},
+                {"shed-ms", "500"},
+                {"shed-recover", "4"}, {"shed-tick", "250"}, {"queue-high", String.valueOf(256 << 20)}};
+        for (String[] d : defaults)
+            if (options.get(d[0], null) == null)
+                options.set(d[0], d[1]);
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()) {
+            @Override
+            public void println(String x) {
+                if (x != null && x.startsWith("Health"))
+                    console.println(String.format("%6s   ", "") + x);
+            }
+        });
+        PlaceServer server = new PlaceServer(DIM, port, viewers + 10, options);
+        Thread serverThread = new Thread(server::run, "PlaceServer");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(500);
+
+        AtomicReference<String> phase = new AtomicReference<>("calm");
+        List<Socket> sockets = new ArrayList<>();
+        for (int i = 0; i < viewers; i++) {
+            Socket s = new Socket("127.0.0.1", port);
+            PlaceExchange e = new PlaceExchange(s);
+            e.setCodec(new BinaryCodec());
+            e.send(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN, "viewer" + i));
+            sockets.add(s);
+            Thread reader = new Thread(() -> {
+                try {
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 1 << 16));
+                    while (true) {
+                        in.skipNBytes(in.readInt());
+                        if (phase.get().equals("storm"))
+                            Thread.sleep(PAUSE);
+                    }
+                } catch (Exception ex) {
+                    // closed
+                }
+            }, "Viewer-" + i);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        AtomicBoolean done = new AtomicBoolean();
+        Thread placer = new Thread(() -> {
+            Random random = new Random(1);
+            PlaceColor[] colors = PlaceColor.values();
+            while (!done.get()) {
+                server.changeTile(new PlaceTile(random.nextInt(DIM), random.nextInt(DIM), "placer",
+                        colors[random.nextInt(colors.length)]));
+                if (!phase.get().equals("storm")) {
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "Placer");
+        placer.setDaemon(true);
+        placer.start();
+
+        console.println("     t  phase  health     p99  queued");
+        long start = System.currentTimeMillis();
+        PlaceExchange spectator = null;
+        ConcurrentLinkedQueue<Long> cooldowns = new ConcurrentLinkedQueue<>();
+        String spectated = "not tried", rejected = "not tried";
+        LoadShedder shedder = server.getShedder();
+        int calm = 3, after = 15;
+        for (int half = 0; half < (calm + storm + after) * 2; half++) {
+            double t = half / 2.0;
+            phase.set(t < calm ? "calm" : t < calm + storm ? "storm" : "calm");
+            Thread.sleep(Math.max(0, start + half * 500L - System.currentTimeMillis()));
+            console.printf("%6.1f  %-5s  %-8s  %4dms  %s%n", (System.currentTimeMillis() - start) / 1000.0, phase.get(),
+                    shedder.getLevel(), shedder.getLatency(), server.stats().replaceAll(".*windowQueuedBytes=(\\d+).*", "$1"));
+            if (spectator == null && shedder.getLevel() != LoadShedder.Level.NORMAL) {
+                spectator = login(port, "latecomer");
+                if (spectator == null) {
+                    spectated = "could not log in";
+                } else {
+                    listen(spectator, cooldowns);
+                    spectator.send(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE,
+                            new PlaceTile(0, 0, "latecomer", PlaceColor.RED)));
+                    spectated = "logged in at " + shedder.getLevel();
+                }
+            }
+            if (rejected.equals("not tried") && shedder.getLevel() == LoadShedder.Level.REJECT)
+                rejected = login(port, "rejected") == null ? "turned away" : "let in";
+        }
+        done.set(true);
+        String stats = server.stats();
+        System.setOut(console);
+        System.out.println("latecomer: " + spectated + ", got COOLDOWNs " + cooldowns
+                + "; connect while rejecting: " + rejected);
+        System.out.println(stats);
+        for (Socket s : sockets)
+            s.close();
+    }
+
+    /**
+     * Logs in a user that reads what it is sent
+     * @param port the port of the server
+     * @param name the username
+     * @return the connection once it has its board, null if it did not get one
+     */
+    private static PlaceExchange login(int port, String name) {
+        try {
+            Socket s = new Socket();
+            s.connect(new InetSocketAddress("127.0.0.1", port), 2000);
+            s.setSoTimeout(10_000);
+            PlaceExchange e = new PlaceExchange(s);
+            e.setCodec(new BinaryCodec());
+            e.send(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN, name));
+            PlaceRequest.RequestType type;
+            do {
+                type = e.receive().getType();
+            } while (type != PlaceRequest.RequestType.BOARD && type != PlaceRequest.RequestType.ERROR);
+            return type == PlaceRequest.RequestType.BOARD ? e : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads everything a connection is sent, on a thread of its own, and
+     * keeps the COOLDOWNs
+     * @param e the connection
+     * @param cooldowns where the COOLDOWNs go
+     */
+    private static void listen(PlaceExchange e, ConcurrentLinkedQueue<Long> cooldowns) {
+        Thread t = new Thread(() -> {
+            try {
+                while (true) {
+                    PlaceRequest<?> req = e.receive();
+                    if (req.getType() == PlaceRequest.RequestType.COOLDOWN)
+                        cooldowns.add((Long) req.getData());
+                }
+            } catch (Exception ex) {
+                // closed
+            }
+        }, "Latecomer");
+        t.setDaemon(true);
+        t.start();
+    }
+}
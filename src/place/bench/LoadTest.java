@@ -0,0 +1,448 @@
+package place.bench;
+
+import place.PlaceColor;
+import place.PlaceTile;
+import place.network.BinaryCodec;
+import place.network.Codec;
+import place.network.PlaceExchange;
+import place.network.PlaceRequest;
+import place.network.SerialCodec;
+import place.server.PlaceServer;
+import place.server.ServerOptions;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A load test for the PlaceServer.  It starts a server in this JVM, logs in
+ * many connections, places tiles and measures how long each tile takes to
+ * reach every connection.  It reports the threads the server needed, the
+ * broadcast latency percentiles and how many frames and bytes it took.
+ *
+ * $ java place.bench.LoadTest mode[,mode...] connections [tiles] [DIM] [options]
+ *
+ * Options:<br>
+ *      -rate n: place n tiles a second without waiting for them to arrive
+ *          (the default places one at a time); keep connections/rate above
+ *          the half second cooldown<br>
+ *      -codec serial|binary: the protocol the connections speak (binary)<br>
+ *      -stalled n: also log in n connections with tiny receive buffers that
+ *          never read, to show they do not slow the others down<br>
+ *      anything else is passed to the server, for example -tick 20<br>
+ *
+ * Given several modes (for example "thread,virtual") it runs each one in a
+ * fresh JVM and prints the results side by side.  The connections are driven
+ * by a couple of selector threads, so the client side does not add a thread
+ * per connection to the count.  Tile t is placed at row t/DIM, column t%DIM,
+ * so DIM grows until every tile has its own cell.
+ *
+ * @author Cameron Myron
+ */
+public class LoadTest {
+
+    /**
+     * The number of selector threads driving the connections
+     */
+    private static final int READERS = 2;
+
+    /**
+     * The board dimension
+     */
+    private final int dim;
+
+    /**
+     * Whether the connections speak the binary protocol
+     */
+    private final boolean binary;
+
+    /**
+     * The time each tile was sent, in nanoseconds
+     */
+    private final long[] sentAt;
+
+    /**
+     * The measured latencies, in nanoseconds
+     */
+    private final long[] latencies;
+
+    /**
+     * The number of latencies measured so far
+     */
+    private final AtomicInteger received = new AtomicInteger();
+
+    /**
+     * The number of connections that got their board
+     */
+    private final AtomicInteger loggedIn = new AtomicInteger();
+
+    /**
+     * The number of connections the server refused or dropped
+     */
+    private final AtomicInteger refused = new AtomicInteger();
+
+    /**
+     * The frames received after login
+     */
+    private final AtomicLong frames = new AtomicLong();
+
+    /**
+     * The bytes received after login
+     */
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * Creates the test
+     * @param connections the number of connections
+     * @param tiles the number of tiles to place
+     * @param dim the board dimension
+     * @param binary whether to speak the binary protocol
+     */
+    private LoadTest(int connections, int tiles, int dim, boolean binary) {
+        this.dim = dim;
+        this.binary = binary;
+        sentAt = new long[tiles];
+        latencies = new long[connections * tiles];
+    }
+
+    /**
+     * One connection of the test, with its partly read frame
+     */
+    private class Conn {
+        /** The channel */
+        final SocketChannel channel;
+        /** The codec of the connection */
+        final Codec codec = binary ? new BinaryCodec() : SerialCodec.INSTANCE;
+        /** The frame header */
+        final ByteBuffer header = ByteBuffer.allocate(PlaceExchange.HEADER);
+        /** The frame payload */
+        ByteBuffer payload;
+        /** Whether the board has arrived */
+        boolean ready;
+
+        /**
+         * Creates the connection
+         * @param channel the channel
+         */
+        Conn(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Reads whatever arrived
+         * @throws IOException if the connection fails
+         */
+        void read() throws IOException {
+            while (true) {
+                if (payload == null) {
+                    if (channel.read(header) < 0)
+                        throw new IOException("closed");
+                    if (header.hasRemaining())
+                        return;
+                    header.flip();
+                    int len = header.getInt();
+                    header.clear();
+                    if (len == PlaceExchange.GREETING)
+                        continue;
+                    payload = ByteBuffer.allocate(len);
+                }
+                if (channel.read(payload) < 0)
+                    throw new IOException("closed");
+                if (payload.hasRemaining())
+                    return;
+                frame(payload);
+                payload = null;
+            }
+        }
+
+        /**
+         * Handles a whole frame
+         * @param frame the payload
+         * @throws IOException if the frame is bad
+         */
+        void frame(ByteBuffer frame) throws IOException {
+            long now = System.nanoTime();
+            PlaceRequest<?> req;
+            try {
+                req = codec.decode(frame.array(), 0, frame.capacity());
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+            if (ready) {
+                frames.incrementAndGet();
+                bytes.addAndGet(PlaceExchange.HEADER + frame.capacity());
+            }
+            switch (req.getType()) {
+                case BOARD:
+                    ready = true;
+                    loggedIn.incrementAndGet();
+                    break;
+                case ERROR:
+                    refused.incrementAndGet();
+                    break;
+                case TILE_CHANGED:
+                    arrived((PlaceTile) req.getData(), now);
+                    break;
+                case TILES_CHANGED:
+                    for (PlaceTile t : (PlaceTile[]) req.getData())
+                        arrived(t, now);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        /**
+         * Records the latency of a tile
+         * @param t the tile
+         * @param now when it arrived
+         */
+        void arrived(PlaceTile t, long now) {
+            int i = t.getRow() * dim + t.getCol();
+            if (i < sentAt.length)
+                latencies[received.getAndIncrement()] = now - sentAt[i];
+        }
+    }
+
+    /**
+     * Runs the test
+     * @param mode the server mode
+     * @param connections the number of connections
+     * @param rate the tiles placed a second, 0 to place one at a time
+     * @param options the server options
+     * @throws Exception if the test can not run
+     */
+    private void run(String mode, int connections, int rate, int stalled, ServerOptions options) throws Exception {
+        int tiles = sentAt.length;
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        int baseline = ManagementFactory.getThreadMXBean().getThreadCount();
+        PlaceServer server = new PlaceServer(dim, port, connections + stalled, options.set("mode", mode));
+        Thread serverThread = new Thread(server::run, "PlaceServer");
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(500);
+
+        Selector[] selectors = new Selector[READERS];
+        @SuppressWarnings("unchecked")
+        ConcurrentLinkedQueue<Conn>[] pending = (ConcurrentLinkedQueue<Conn>[]) new ConcurrentLinkedQueue<?>[READERS];
+        for (int i = 0; i < READERS; i++) {
+            selectors[i] = Selector.open();
+            pending[i] = new ConcurrentLinkedQueue<>();
+        }
+        for (int i = 0; i < READERS; i++) {
+            int r = i;
+            Thread reader = new Thread(() -> read(selectors[r], pending[r]), "LoadTest-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+        Conn[] conns = new Conn[connections];
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            SocketChannel ch = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+            ch.socket().setTcpNoDelay(true);
+            conns[i] = new Conn(ch);
+            ch.write(ByteBuffer.wrap(conns[i].codec.encode(
+                    new PlaceRequest<>(PlaceRequest.RequestType.LOGIN, "load" + i))));
+            ch.configureBlocking(false);
+            pending[i % READERS].add(conns[i]);
+            selectors[i % READERS].wakeup();
+        }
+        while (loggedIn.get() + refused.get() < connections)
+            Thread.sleep(10);
+        long loginMillis = (System.nanoTime() - start) / 1_000_000;
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount() - baseline - READERS;
+        List<Socket> stalls = new ArrayList<>();
+        for (int i = 0; i < stalled; i++) {
+            Socket sock = new Socket();
+            sock.setReceiveBufferSize(1024);
+            sock.connect(new InetSocketAddress("127.0.0.1", port));
+            sock.getOutputStream().write(new BinaryCodec().encode(
+                    new PlaceRequest<>(PlaceRequest.RequestType.LOGIN, "stalled" + i)));
+            stalls.add(sock);
+        }
+        System.gc();
+        long heapMb = (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) >> 20;
+
+        long begin = System.nanoTime();
+        for (int t = 0; t < tiles; t++) {
+            if (rate > 0) {
+                long due = begin + t * 1_000_000_000L / rate;
+                while (System.nanoTime() < due)
+                    Thread.sleep(0, 100_000);
+            }
+            Conn c = conns[t % connections];
+            PlaceTile tile = new PlaceTile(t / dim, t % dim, "", PlaceColor.fromNumber(t % PlaceColor.TOTAL_COLORS));
+            ByteBuffer frame = ByteBuffer.wrap(c.codec.encode(
+                    new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE, tile)));
+            sentAt[t] = System.nanoTime();
+            while (frame.hasRemaining())
+                c.channel.write(frame);
+            if (rate == 0)
+                await((long) loggedIn.get() * (t + 1));
+        }
+        await((long) loggedIn.get() * tiles);
+        double seconds = (System.nanoTime() - begin) / 1e9;
+
+        long[] measured = Arrays.copyOf(latencies, received.get());
+        Arrays.sort(measured);
+        System.out.printf("mode=%s connections=%d loggedIn=%d refused=%d loginMs=%d serverThreads=%d heapMb=%d rssMb=%d%n",
+                mode, connections, loggedIn.get(), refused.get(), loginMillis, threads, heapMb, rssMegabytes());
+        System.out.printf("tiles=%d deliveries=%d frames=%d bytes=%d in %.1fs p50=%.2fms p99=%.2fms max=%.2fms%n",
+                tiles, measured.length, frames.get(), bytes.get(), seconds, percentile(measured, 50),
+                percentile(measured, 99), percentile(measured, 100));
+        System.out.println("server " + server.stats());
+        for (Conn c : conns)
+            c.channel.close();
+        for (Socket sock : stalls)
+            sock.close();
+    }
+
+    /**
+     * Waits until a number of deliveries have arrived, or 30 seconds pass
+     * without progress
+     * @param expected the number of deliveries
+     * @throws InterruptedException if interrupted
+     */
+    private void await(long expected) throws InterruptedException {
+        int last = -1;
+        long deadline = 0;
+        while (received.get() < expected) {
+            int now = received.get();
+            if (now != last) {
+                last = now;
+                deadline = System.currentTimeMillis() + 30_000;
+            } else if (System.currentTimeMillis() > deadline) {
+                return;
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Reads every connection of a selector forever
+     * @param sel the selector
+     * @param pending connections to register with the selector
+     */
+    private void read(Selector sel, ConcurrentLinkedQueue<Conn> pending) {
+        while (true) {
+            try {
+                sel.select();
+                Conn added;
+                while ((added = pending.poll()) != null)
+                    added.channel.register(sel, SelectionKey.OP_READ, added);
+                Iterator<SelectionKey> keys = sel.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Conn c = (Conn) key.attachment();
+                    try {
+                        c.read();
+                    } catch (IOException e) {
+                        key.cancel();
+                    }
+                }
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Get the resident size of this JVM, which includes the thread stacks
+     * @return the size in megabytes, -1 where /proc is not available
+     */
+    private static long rssMegabytes() {
+        try {
+            for (String ln : Files.readAllLines(Paths.get("/proc/self/status")))
+                if (ln.startsWith("VmRSS:"))
+                    return Long.parseLong(ln.replaceAll("[^0-9]", "")) >> 10;
+        } catch (IOException | NumberFormatException e) {
+        }
+        return -1;
+    }
+
+    /**
+     * Runs each mode in its own JVM and prints the results one after another
+     * @param modes the comma separated modes
+     * @param args the command line arguments
+     * @throws Exception if a child JVM can not run
+     */
+    private static void compare(String modes, String[] args) throws Exception {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        for (String mode : modes.split(",")) {
+            List<String> cmd = new ArrayList<>(Arrays.asList(java, "-cp",
+                    System.getProperty("java.class.path"), LoadTest.class.getName()));
+            for (String arg : args)
+                cmd.add(arg.equals(modes) ? mode : arg);
+            Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+                String ln;
+                while ((ln = in.readLine()) != null)
+                    if (ln.startsWith("mode=") || ln.startsWith("tiles=") || ln.startsWith("server ")
+                            || ln.startsWith("Exception"))
+                        System.out.println(ln);
+            }
+            p.waitFor();
+        }
+    }
+
+    /**
+     * Get a percentile of sorted values
+     * @param sorted the sorted latencies in nanoseconds
+     * @param p the percentile, 0-100
+     * @return the latency in milliseconds
+     */
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0)
+            return 0;
+        int i = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, i))] / 1e6;
+    }
+
+    /**
+     * Runs the load test
+     * @param args mode connections [tiles] [DIM] [options]
+     * @throws Exception if the test can not run
+     */
+    public static void main(String[] args) throws Exception {
+        String[] pos = ServerOptions.positional(args);
+        if (pos.length < 2) {
+            System.out.println("Usage: java LoadTest thread|virtual|nio[,...] connections [tiles] [DIM] [options]");
+            return;
+        }
+        if (pos[0].contains(",")) {
+            compare(pos[0], args);
+            return;
+        }
+        ServerOptions options = new ServerOptions(args);
+        int connections = Integer.parseInt(pos[1]);
+        int tiles = pos.length > 2 ? Integer.parseInt(pos[2]) : 50;
+        int dim = pos.length > 3 ? Integer.parseInt(pos[3]) : 10;
+        dim = Math.max(dim, (int) Math.ceil(Math.sqrt(tiles)));
+        boolean binary = !options.get("codec", "binary").equalsIgnoreCase("serial");
+        int rate = options.getInt("rate", 0);
+        int stalled = options.getInt("stalled", 0);
+        new LoadTest(connections, tiles, dim, binary).run(pos[0], connections, rate, stalled, options);
+        System.exit(0);
+    }
+}
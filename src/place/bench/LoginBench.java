@@ -0,0 +1,181 @@
+package place.bench;
+
+import place.PlaceColor;
+import place.PlaceTile;
+import place.network.BinaryCodec;
+import place.network.Codec;
+import place.server.BoardSnapshot;
+import place.server.Broadcast;
+import place.server.PlaceServer;
+import place.server.ServerOptions;
+import place.server.Session;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures a storm of logins against a painted board while tiles keep being
+ * placed, with no network in the way.  Each login is registered, handed its
+ * board and the changes made since, and logged out again.  It is run once
+ * with every login encoding its own board, the way the server used to, and
+ * once with the snapshot cache, and reports the logins per second and how
+ * many boards were encoded.
+ *
+ * $ java place.bench.LoginBench [logins] [threads] [DIM] [painted percent] [tiles per second]
+ *
+ * @author Cameron Myron
+ */
+public class LoginBench {
+
+    /**
+     * A client that takes its board and lets go of it
+     */
+    private static class LoginSession implements Session {
+
+        /**
+         * The username
+         */
+        private final String USERNAME;
+
+        /**
+         * The codec of the client
+         */
+        private final BinaryCodec CODEC = new BinaryCodec(BinaryCodec.VERSION);
+
+        /**
+         * Creates a session
+         * @param username the username
+         */
+        LoginSession(String username) {
+            USERNAME = username;
+        }
+
+        @Override
+        public String getUSERNAME() {
+            return USERNAME;
+        }
+
+        @Override
+        public Codec getCodec() {
+            return CODEC;
+        }
+
+        @Override
+        public void start(BoardSnapshot board, PlaceTile[] missed) {
+            sendBoard(board, missed);
+        }
+
+        @Override
+        public void broadcast(Broadcast b) {
+            b.frame(CODEC).release();
+        }
+
+        @Override
+        public void sendBoard(BoardSnapshot board, PlaceTile[] missed) {
+            board.announceTo(CODEC);
+            board.frame().release();
+        }
+
+        @Override
+        public long getQueuedBytes() {
+            return 0;
+        }
+
+        @Override
+        public void cooldown(long wait) {
+        }
+    }
+
+    /**
+     * Runs the benchmark
+     * @param args [logins] [threads] [DIM] [painted percent] [tiles per second]
+     * @throws InterruptedException if interrupted
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int logins = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int dim = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int painted = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+        int rate = args.length > 4 ? Integer.parseInt(args[4]) : 1000;
+        System.out.println("cores=" + Runtime.getRuntime().availableProcessors() + " logins=" + logins
+                + " threads=" + threads + " DIM=" + dim + " painted=" + painted + "% tiles/s=" + rate);
+
+        run("no cache", new ServerOptions().set("snapshot-ms", "0"), logins, threads, dim, painted, rate);
+        run("cached", new ServerOptions(), logins, threads, dim, painted, rate);
+    }
+
+    /**
+     * Logs in clients from a number of threads while a painter places tiles
+     * @param name the name of the run
+     * @param options the server options
+     * @param logins the number of logins
+     * @param threads the number of threads logging in
+     * @param dim the square dimension of the board
+     * @param painted the percent of the board painted up front
+     * @param rate the tiles placed per second during the storm
+     * @throws InterruptedException if interrupted
+     */
+    private static void run(String name, ServerOptions options, int logins, int threads, int dim, int painted,
+                            int rate) throws InterruptedException {
+        PlaceServer server = new PlaceServer(dim, 0, threads, options);
+        Random random = new Random(42);
+        for (long i = (long) dim * dim * painted / 100; i > 0; i--)
+            server.changeTile(tile(random, dim));
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Thread painter = new Thread(() -> {
+            Random r = new Random(7);
+            long next = System.nanoTime();
+            while (!Thread.currentThread().isInterrupted()) {
+                server.changeTile(tile(r, dim));
+                next += 1_000_000_000L / rate;
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    try {
+                        Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        painter.setDaemon(true);
+        painter.start();
+
+        long encoded = server.getMetrics().getSnapshotsEncoded();
+        long start = System.nanoTime();
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            int first = t;
+            new Thread(() -> {
+                for (int i = first; i < logins; i += threads) {
+                    LoginSession c = new LoginSession("login" + i);
+                    if (server.register(c) == null)
+                        server.logout(c);
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        painter.interrupt();
+        painter.join();
+        System.setOut(out);
+        System.out.printf("%-8s  %,.0f logins/s  %d boards encoded for %d logins%n",
+                name, logins / seconds, server.getMetrics().getSnapshotsEncoded() - encoded, logins);
+    }
+
+    /**
+     * Makes a random tile
+     * @param random the random numbers
+     * @param dim the square dimension of the board
+     * @return the tile
+     */
+    private static PlaceTile tile(Random random, int dim) {
+        return new PlaceTile(random.nextInt(dim), random.nextInt(dim), "user" + random.nextInt(1000),
+                PlaceColor.fromNumber(random.nextInt(PlaceColor.TOTAL_COLORS)));
+    }
+}
@@ -0,0 +1,92 @@
+package place.bench;
+
+import place.OwnerDictionary;
+import place.PlaceBoard;
+import place.PlaceColor;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Opens a board kept in a file, the way the server does with -board: how long
+ * making and reopening the file takes, the heap the board takes (which should
+ * not depend on DIM), how many cells a second it takes and that the cells are
+ * still there after it is reopened.
+ *
+ * $ java place.bench.MappedBoardBench [DIM] [changes] [file]
+ *
+ * The file is deleted at the end unless one is given.
+ *
+ * @author Cameron Myron
+ */
+public class MappedBoardBench {
+
+    /**
+     * Runs the benchmark
+     * @param args [DIM] [changes] [file]
+     * @throws IOException if the board file can not be made
+     */
+    public static void main(String[] args) throws IOException {
+        int dim = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int changes = args.length > 1 ? Integer.parseInt(args[1]) : 10_000_000;
+        Path file = args.length > 2 ? Path.of(args[2]) : Files.createTempFile("place", ".board");
+        if (args.length <= 2)
+            Files.delete(file);
+        System.out.println("DIM=" + dim + " changes=" + changes + " file=" + file);
+
+        long base = heap();
+        long start = System.nanoTime();
+        OwnerDictionary names = new OwnerDictionary();
+        PlaceBoard board = PlaceBoard.open(file, dim, names);
+        double open = (System.nanoTime() - start) / 1e6;
+        long boardHeap = heap() - base;
+
+        Random random = new Random(42);
+        int[] ids = new int[1000];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = names.idOf("user" + i);
+        long time = System.currentTimeMillis();
+        long sum = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < changes; i++) {
+            int row = random.nextInt(dim), col = random.nextInt(dim);
+            board.set(row, col, PlaceColor.fromNumber(random.nextInt(PlaceColor.TOTAL_COLORS)),
+                    ids[random.nextInt(ids.length)], time + i);
+        }
+        double writes = changes / ((System.nanoTime() - start) / 1e9);
+        start = System.nanoTime();
+        board.flush();
+        double flush = (System.nanoTime() - start) / 1e6;
+        for (int row = 0; row < dim; row += 97)
+            for (int col = 0; col < dim; col += 89)
+                sum += board.getColor(row, col).getNumber() + board.getTime(row, col);
+        board = null;
+
+        start = System.nanoTime();
+        PlaceBoard reopened = PlaceBoard.open(file, dim, names);
+        double reopen = (System.nanoTime() - start) / 1e6;
+        for (int row = 0; row < dim; row += 97)
+            for (int col = 0; col < dim; col += 89)
+                sum -= reopened.getColor(row, col).getNumber() + reopened.getTime(row, col);
+
+        System.out.printf("open %8.1f ms  heap %,6d KB  set %,12.0f cells/s  flush %8.1f ms  reopen %8.1f ms  file %,d MB%n",
+                open, boardHeap >> 10, writes, flush, reopen, Files.size(file) >> 20);
+        if (sum != 0)
+            System.out.println("The reopened board does not match!");
+        if (args.length <= 2)
+            Files.delete(file);
+    }
+
+    /**
+     * Get the heap in use after a collection
+     * @return the bytes
+     */
+    private static long heap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
@@ -0,0 +1,84 @@
+package place.bench;
+
+import place.server.RateLimiter;
+
+/**
+ * Measures what asking the RateLimiter costs, which the server does for
+ * every tile placed.  A few threads ask for placements by users picked from
+ * a pool, as fast as they can, with the users and their addresses limited;
+ * most of them come too soon and are refused or held back, which is the
+ * same work as letting them through.  The time is per ask over all the
+ * threads.  Run with a small pool and big ones to see what the number of
+ * users costs, in time and in heap, and then the sweep of the address
+ * buckets that are full again.
+ *
+ * $ java place.bench.RateLimitBench [users,...] [asks per thread] [threads]
+ *
+ * @author Cameron Myron
+ */
+public class RateLimitBench {
+
+    /**
+     * Runs the benchmark
+     * @param args [users,...] [asks per thread] [threads]
+     * @throws InterruptedException if interrupted
+     */
+    public static void main(String[] args) throws InterruptedException {
+        String pools = args.length > 0 ? args[0] : "1000,1000000,10000000";
+        int asks = args.length > 1 ? Integer.parseInt(args[1]) : 5_000_000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        System.out.println("asks=" + asks + " per thread, threads=" + threads);
+
+        for (String pool : pools.split(",")) {
+            int users = Integer.parseInt(pool);
+            String[] addresses = new String[Math.min(users, 1 << 16)];
+            for (int i = 0; i < addresses.length; i++)
+                addresses[i] = "10." + (i >> 8 & 0xff) + "." + (i & 0xff) + ".1";
+            Runtime runtime = Runtime.getRuntime();
+            System.gc();
+            long heap = runtime.totalMemory() - runtime.freeMemory();
+            RateLimiter limiter = new RateLimiter(500, 4, 100, 16, 1000);
+            long[] outcomes = new long[3];
+            Thread[] askers = new Thread[threads];
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                int seed = t;
+                askers[t] = new Thread(() -> {
+                    long placed = 0, delayed = 0, refused = 0;
+                    int i = seed * 7919;
+                    for (int n = 0; n < asks; n++) {
+                        i = (i * 1103515245 + 12345) & 0x7fffffff;
+                        int u = i % users;
+                        long wait = limiter.admit(u + 1, addresses[u % addresses.length]);
+                        if (wait == 0)
+                            placed++;
+                        else if (wait > 0)
+                            delayed++;
+                        else
+                            refused++;
+                    }
+                    synchronized (outcomes) {
+                        outcomes[0] += placed;
+                        outcomes[1] += delayed;
+                        outcomes[2] += refused;
+                    }
+                });
+                askers[t].start();
+            }
+            for (Thread t : askers)
+                t.join();
+            long ns = System.nanoTime() - start;
+            long total = (long) asks * threads;
+            System.gc();
+            System.out.printf("%,10d users: %,6.0f ns/ask, %,11.0f asks/s (placed %,d, held back %,d, refused %,d), "
+                            + "%,d MB of buckets%n", users, ns / (double) total, total / (ns / 1e9),
+                    outcomes[0], outcomes[1], outcomes[2],
+                    (runtime.totalMemory() - runtime.freeMemory() - heap) >> 20);
+
+            Thread.sleep(3000);
+            start = System.nanoTime();
+            limiter.sweep();
+            System.out.printf("%,10d users: sweep %,.1f ms, %s left%n", users, (System.nanoTime() - start) / 1e6, limiter);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package place.bench;
+
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+import place.network.BinaryCodec;
+import place.network.PlaceExchange;
+import place.network.PlaceRequest;
+import place.server.PlaceServer;
+import place.server.ServerOptions;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.util.Random;
+
+/**
+ * Measures what a client that lost its connection costs to bring back, over a
+ * real socket to a server in the same JVM.  The client logs in and takes the
+ * board, goes away while some tiles are placed, and logs in again: once as a
+ * new client, which gets the whole board, and once resuming from the last
+ * change it had, which gets the changes it missed (or, past the ring of recent
+ * changes, the chunks changed since).  It reports the bytes received and the
+ * time until the client is up to date.
+ *
+ * $ java place.bench.ReconnectBench [DIM] [painted percent] [missed,...] [server options]
+ *
+ * @author Cameron Myron
+ */
+public class ReconnectBench {
+
+    /**
+     * Runs the benchmark
+     * @param args [DIM] [painted percent] [missed,...] [server options]
+     * @throws Exception if the server can not be reached
+     */
+    public static void main(String[] args) throws Exception {
+        String[] pos = ServerOptions.positional(args);
+        int dim = pos.length > 0 ? Integer.parseInt(pos[0]) : 1000;
+        int painted = pos.length > 1 ? Integer.parseInt(pos[1]) : 30;
+        String missed = pos.length > 2 ? pos[2] : "10,100,1000,5000,50000";
+        int port = 20000 + new Random().nextInt(10000);
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        PlaceServer server = new PlaceServer(dim, port, 100, new ServerOptions(args));
+        Thread run = new Thread(server::run);
+        run.setDaemon(true);
+        run.start();
+        Thread.sleep(300);
+        Random random = new Random(42);
+        place(server, random, dim, (int) ((long) dim * dim * painted / 100));
+        out.println("DIM=" + dim + " painted=" + painted + "%");
+
+        int client = 0;
+        for (int i = 0; i < 3; i++)
+            login(port, "warmup" + client++, 0);
+        for (String m : missed.split(",")) {
+            int n = Integer.parseInt(m);
+            long[] fresh = null, resumed = null;
+            for (int round = 0; round < 3; round++) {
+                long seq = login(port, "client" + client, 0)[2];
+                place(server, random, dim, n);
+                fresh = login(port, "client" + client + "n", 0);
+                resumed = login(port, "client" + client + "r", seq);
+                client++;
+            }
+            out.printf("missed %,7d  new login %,11d bytes %7.1f ms   resume %,11d bytes %7.1f ms%n",
+                    n, fresh[0], fresh[1] / 1e6, resumed[0], resumed[1] / 1e6);
+        }
+        System.setOut(out);
+        System.exit(0);
+    }
+
+    /**
+     * Places tiles at random
+     * @param server the server
+     * @param random where the tiles go
+     * @param dim the square dimension of the board
+     * @param tiles the number of tiles
+     */
+    private static void place(PlaceServer server, Random random, int dim, int tiles) {
+        for (int i = 0; i < tiles; i++)
+            server.changeTile(new PlaceTile(random.nextInt(dim), random.nextInt(dim), "placer" + (i % 500),
+                    PlaceColor.fromNumber(random.nextInt(PlaceColor.TOTAL_COLORS))));
+    }
+
+    /**
+     * Logs in and reads until the client is up to date, then leaves
+     * @param port the port of the server
+     * @param username the username
+     * @param resumeFrom the sequence number to resume from, 0 for a new board
+     * @return the bytes received, the nanoseconds it took and the sequence
+     *         number the client is up to
+     * @throws Exception if the login fails
+     */
+    private static long[] login(int port, String username, long resumeFrom) throws Exception {
+        long start = System.nanoTime();
+        try (Socket sock = new Socket("localhost", port); PlaceExchange e = new PlaceExchange(sock)) {
+            BinaryCodec codec = new BinaryCodec();
+            codec.setResumeFrom(resumeFrom);
+            e.setCodec(codec);
+            e.send(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN, username));
+            PlaceRequest<?> req;
+            while ((req = e.receive()).getType() == PlaceRequest.RequestType.LOGIN_SUCCESS
+                    || req.getType() == PlaceRequest.RequestType.OWNER)
+                ;
+            long seq;
+            if (req.getType() == PlaceRequest.RequestType.BOARD) {
+                seq = ((PlaceBoard) req.getData()).getSeq();
+            } else if (req.getType() == PlaceRequest.RequestType.TILES_CHANGED) {
+                seq = resumeFrom;
+                for (PlaceTile t : (PlaceTile[]) req.getData())
+                    seq = Math.max(seq, t.getSeq());
+            } else {
+                throw new IllegalStateException("Login Failed: " + req.getData());
+            }
+            return new long[]{e.getReceived(), System.nanoTime() - start, seq};
+        }
+    }
+}
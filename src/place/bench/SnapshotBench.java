@@ -0,0 +1,97 @@
+package place.bench;
+
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+import place.network.BinaryCodec;
+import place.network.Codec;
+import place.network.PlaceExchange;
+import place.network.PlaceRequest;
+import place.network.SerialCodec;
+
+import java.util.Random;
+
+/**
+ * Compares the BOARD a client gets at login in every format: its size, the
+ * time the server takes to encode it and the time the client takes to turn
+ * it back into a board it can draw.  The board is partly painted by a number
+ * of owners, the way a board looks after a while.
+ *
+ * $ java place.bench.SnapshotBench [DIM] [painted percent] [owners]
+ *
+ * @author Cameron Myron
+ */
+public class SnapshotBench {
+
+    /**
+     * Runs the benchmark
+     * @param args [DIM] [painted percent] [owners]
+     * @throws Exception if a codec fails
+     */
+    public static void main(String[] args) throws Exception {
+        int dim = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int painted = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        int owners = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        PlaceBoard board = new PlaceBoard(dim);
+        Random random = new Random(42);
+        long time = System.currentTimeMillis();
+        for (long i = (long) dim * dim * painted / 100; i > 0; i--) {
+            time += random.nextInt(50);
+            board.setTile(new PlaceTile(random.nextInt(dim), random.nextInt(dim), "user" + random.nextInt(owners),
+                    PlaceColor.fromNumber(random.nextInt(PlaceColor.TOTAL_COLORS)), time));
+        }
+        System.out.println("DIM=" + dim + " painted=" + painted + "% owners=" + owners);
+
+        for (int round = 0; round < 2; round++) {
+            boolean print = round == 1;
+            run("serial", () -> SerialCodec.INSTANCE, board, print);
+            run("binary v1", () -> new BinaryCodec(1), board, print);
+            run("binary v2", () -> new BinaryCodec(2), board, print);
+            run("binary v2 colors", () -> {
+                BinaryCodec c = new BinaryCodec(2);
+                c.setBoardFields(0);
+                return c;
+            }, board, print);
+        }
+    }
+
+    /**
+     * Makes a fresh codec, one per side of a connection
+     */
+    private interface CodecFactory {
+        /**
+         * Makes a codec
+         * @return the codec
+         */
+        Codec make();
+    }
+
+    /**
+     * Measures one format
+     * @param name the format name
+     * @param codecs makes the codecs
+     * @param board the board to send
+     * @param print whether to print (the first round only warms up)
+     * @throws Exception if the codec fails
+     */
+    private static void run(String name, CodecFactory codecs, PlaceBoard board, boolean print) throws Exception {
+        long start = System.nanoTime();
+        byte[] frames = codecs.make().encode(new PlaceRequest<>(PlaceRequest.RequestType.BOARD, board));
+        long encodeNs = System.nanoTime() - start;
+
+        Codec decoder = codecs.make();
+        start = System.nanoTime();
+        int off = 0;
+        while (off < frames.length) {
+            int len = ((frames[off] & 0xFF) << 24) | ((frames[off + 1] & 0xFF) << 16)
+                    | ((frames[off + 2] & 0xFF) << 8) | (frames[off + 3] & 0xFF);
+            decoder.decode(frames, off + PlaceExchange.HEADER, len);
+            off += PlaceExchange.HEADER + len;
+        }
+        long decodeNs = System.nanoTime() - start;
+
+        if (print)
+            System.out.printf("%-17s %,13d bytes  encode %,7.1f ms  decode %,7.1f ms  first render %,7.1f ms%n",
+                    name, frames.length, encodeNs / 1e6, decodeNs / 1e6, (encodeNs + decodeNs) / 1e6);
+    }
+}
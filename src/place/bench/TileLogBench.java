@@ -0,0 +1,141 @@
+package place.bench;
+
+import place.OwnerDictionary;
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+import place.server.PlaceServer;
+import place.server.ServerOptions;
+import place.server.TileLog;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Measures what the tile log costs and how fast it comes back.  First tiles
+ * are placed on a server by a few threads at once, without a log and with
+ * one for every fsync policy, to show what the log adds to placing a tile;
+ * with COMMIT the threads wait for the disk, sharing the forces.  Then a log
+ * of many changes is written and replayed into a new board, which must match
+ * the board it was written from.
+ *
+ * $ java place.bench.TileLogBench [tiles] [replay changes] [DIM] [threads] [directory]
+ *
+ * @author Cameron Myron
+ */
+public class TileLogBench {
+
+    /**
+     * Runs the benchmark
+     * @param args [tiles] [replay changes] [DIM] [threads] [directory]
+     * @throws Exception if a log can not be written or read
+     */
+    public static void main(String[] args) throws Exception {
+        int tiles = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int changes = args.length > 1 ? Integer.parseInt(args[1]) : 20_000_000;
+        int dim = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+        Path dir = args.length > 4 ? Path.of(args[4]) : Path.of(System.getProperty("java.io.tmpdir"));
+        System.out.println("tiles=" + tiles + " replay=" + changes + " DIM=" + dim + " threads=" + threads);
+
+        place(tiles / 10, dim, threads, null, dir);
+        place(tiles, dim, threads, null, dir);
+        for (TileLog.Sync sync : TileLog.Sync.values())
+            place(tiles, dim, threads, sync, dir);
+        replay(changes, dim, dir);
+        System.exit(0);
+    }
+
+    /**
+     * Places tiles on a new server from a few threads
+     * @param tiles the number of tiles
+     * @param dim the square dimension of the board
+     * @param threads the placing threads
+     * @param sync the fsync policy of the log, null for no log
+     * @param dir where the log goes
+     * @throws Exception if the log can not be made
+     */
+    private static void place(int tiles, int dim, int threads, TileLog.Sync sync, Path dir) throws Exception {
+        Path file = Files.createTempFile(dir, "place", ".log");
+        Files.delete(file);
+        ServerOptions options = new ServerOptions();
+        if (sync != null)
+            options.set("log", file.toString()).set("log-sync", sync.name());
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        PlaceServer server = new PlaceServer(dim, 0, 1, options);
+        System.setOut(out);
+
+        Thread[] placers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            int n = i;
+            placers[i] = new Thread(() -> {
+                Random random = new Random(n);
+                for (int j = n; j < tiles; j += threads)
+                    server.changeTile(new PlaceTile(random.nextInt(dim), random.nextInt(dim), "placer" + (j % 500),
+                            PlaceColor.fromNumber(j % PlaceColor.TOTAL_COLORS)));
+            });
+            placers[i].start();
+        }
+        for (Thread t : placers)
+            t.join();
+        long ns = System.nanoTime() - start;
+        String stats = server.stats();
+        System.out.printf("%-9s %,9.0f ns/tile  %,11.0f tiles/s  %s%n", sync == null ? "no log" : sync,
+                ns / (double) tiles, tiles / (ns / 1e9),
+                sync == null ? "" : stats.substring(stats.indexOf("logFrames")));
+        file.toFile().deleteOnExit();
+    }
+
+    /**
+     * Writes a log of many changes and replays it into a new board
+     * @param changes the number of changes
+     * @param dim the square dimension of the board
+     * @param dir where the log goes
+     * @throws IOException if the log can not be written or read
+     */
+    private static void replay(int changes, int dim, Path dir) throws IOException {
+        Path file = Files.createTempFile(dir, "place", ".log");
+        Files.delete(file);
+        PlaceBoard board = new PlaceBoard(dim, new OwnerDictionary());
+        TileLog log = TileLog.open(file, board, TileLog.Sync.NONE, 0);
+        Random random = new Random(42);
+        long time = System.currentTimeMillis();
+        long start = System.nanoTime();
+        for (int i = 1; i <= changes; i++) {
+            PlaceTile t = new PlaceTile(random.nextInt(dim), random.nextInt(dim), "user" + random.nextInt(1000),
+                    PlaceColor.fromNumber(random.nextInt(PlaceColor.TOTAL_COLORS)), time + i);
+            t.setSeq(i);
+            int owner = board.getOwners().idOf(t.getOwner());
+            board.set(t.getRow(), t.getCol(), t.getColor(), owner, t.getTime());
+            log.append(t, owner);
+        }
+        log.close();
+        double write = (System.nanoTime() - start) / 1e9;
+
+        PlaceBoard replayed = new PlaceBoard(dim, new OwnerDictionary());
+        start = System.nanoTime();
+        log = TileLog.open(file, replayed, TileLog.Sync.NONE, 0);
+        double read = (System.nanoTime() - start) / 1e9;
+        log.close();
+        System.out.printf("replay %,d changes (%,d MB): written in %.2f s, replayed in %.2f s (%,.0f changes/s)%n",
+                log.getReplayed(), Files.size(file) >> 20, write, read, log.getReplayed() / read);
+        for (int row = 0; row < dim; row++)
+            for (int col = 0; col < dim; col++)
+                if (board.getColor(row, col) != replayed.getColor(row, col)
+                        || board.getTime(row, col) != replayed.getTime(row, col)
+                        || !board.getOwner(row, col).equals(replayed.getOwner(row, col))) {
+                    System.out.println("The replayed board does not match at " + row + "," + col + "!");
+                    row = dim;
+                    break;
+                }
+        if (log.getLastSeq() != changes)
+            System.out.println("The last sequence number is " + log.getLastSeq() + ", not " + changes + "!");
+        Files.delete(file);
+    }
+}
@@ -0,0 +1,88 @@
+package place.bench;
+
+import place.server.HistoryStore;
+import place.server.Timelapse;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Measures making a timelapse of a long history.  A day of changes is kept in
+ * a history, as HistoryBench does, and made into an animated PNG with one
+ * compressing thread and then with more, and into a directory of PNGs.  It
+ * reports the frames made a second and the most heap used, which should be
+ * about a board and a few frames however long the history is.
+ *
+ * $ java place.bench.TimelapseBench [DIM] [changes] [frames] [threads,...] [directory]
+ *
+ * @author Cameron Myron
+ */
+public class TimelapseBench {
+
+    /**
+     * Milliseconds in a day
+     */
+    private static final long DAY = 24 * 3_600_000L;
+
+    /**
+     * Runs the benchmark
+     * @param args [DIM] [changes] [frames] [threads,...] [directory]
+     * @throws IOException if a history or timelapse can not be written
+     */
+    public static void main(String[] args) throws IOException {
+        int dim = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int changes = args.length > 1 ? Integer.parseInt(args[1]) : 5_000_000;
+        int frames = args.length > 2 ? Integer.parseInt(args[2]) : 480;
+        String threads = args.length > 3 ? args[3]
+                : "1," + Runtime.getRuntime().availableProcessors() * 2;
+        Path dir = Files.createTempDirectory(args.length > 4 ? Path.of(args[4])
+                : Path.of(System.getProperty("java.io.tmpdir")), "timelapse");
+        System.out.println("DIM=" + dim + " changes=" + changes + " over a day, frames=" + frames
+                + " directory=" + dir);
+
+        long start = System.currentTimeMillis() + 60_000;
+        HistoryStore history = HistoryBench.build(dir.resolve("history"), dim, changes, 250_000, start, DAY);
+        long every = DAY / (frames - 1);
+        for (String n : threads.split(",")) {
+            run(history, Integer.parseInt(n), start, every, dir.resolve("timelapse" + n + ".png"));
+            run(history, Integer.parseInt(n), start, every, dir.resolve("frames" + n));
+        }
+    }
+
+    /**
+     * Makes a timelapse and reports how it went
+     * @param history the history
+     * @param threads the compressing threads
+     * @param start the moment of the first frame
+     * @param every the milliseconds between frames
+     * @param out where it goes
+     * @throws IOException if it can not be written
+     */
+    private static void run(HistoryStore history, int threads, long start, long every, Path out)
+            throws IOException {
+        Runtime runtime = Runtime.getRuntime();
+        long[] heap = {0};
+        boolean[] done = {false};
+        Thread watcher = new Thread(() -> {
+            while (!done[0]) {
+                heap[0] = Math.max(heap[0], runtime.totalMemory() - runtime.freeMemory());
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        System.gc();
+        watcher.start();
+        Timelapse timelapse = new Timelapse(history, 1, threads);
+        long begin = System.nanoTime();
+        int frames = timelapse.export(start, start + DAY, every, out, 30);
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        done[0] = true;
+        System.out.printf("%-18s %2d threads: %4d frames, %,10d changes in %6.2f s = %6.1f frames/s, "
+                        + "%,6d KB written, most heap %,5d MB%n", out.getFileName(), threads, frames,
+                timelapse.getChanges(), seconds, frames / seconds, timelapse.getBytes() >> 10, heap[0] >> 20);
+    }
+}
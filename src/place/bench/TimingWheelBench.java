@@ -0,0 +1,86 @@
+package place.bench;
+
+import place.server.TimingWheel;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures the TimingWheel with as many timers as a busy event has users
+ * cooling down.  A few threads add timers with delays spread over a stretch
+ * of time, as fast as they can, and every timer notes how late it ran.  It
+ * reports the cost of adding a timer, how late they ran and the heap the
+ * waiting timers took.  Adding them and measuring the heap stop the world for
+ * collections, which makes the timers due meanwhile late, so how late the
+ * rest ran is reported on its own.
+ *
+ * $ java place.bench.TimingWheelBench [timers] [longest delay ms] [threads]
+ *
+ * @author Cameron Myron
+ */
+public class TimingWheelBench {
+
+    /**
+     * Runs the benchmark
+     * @param args [timers] [longest delay ms] [threads]
+     * @throws InterruptedException if interrupted
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int timers = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int longest = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        System.out.println("timers=" + timers + " delays up to " + longest + " ms, threads=" + threads);
+
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long heap = runtime.totalMemory() - runtime.freeMemory();
+        TimingWheel wheel = new TimingWheel("Bench");
+        long[] late = new long[timers];
+        long[] dueAt = new long[timers];
+        CountDownLatch done = new CountDownLatch(timers);
+        Thread[] adders = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int first = t;
+            adders[t] = new Thread(() -> {
+                Random random = new Random(first);
+                for (int i = first; i < timers; i += threads) {
+                    int n = i;
+                    long delay = random.nextInt(longest) + 1;
+                    long due = System.nanoTime() + delay * 1_000_000;
+                    dueAt[n] = due;
+                    wheel.schedule(() -> {
+                        late[n] = System.nanoTime() - due;
+                        done.countDown();
+                    }, delay);
+                }
+            });
+            adders[t].start();
+        }
+        for (Thread t : adders)
+            t.join();
+        long added = System.nanoTime() - start;
+        System.gc();
+        long waiting = runtime.totalMemory() - runtime.freeMemory() - heap - late.length * 16L;
+        long measured = System.nanoTime();
+        done.await();
+        long all = System.nanoTime() - start;
+
+        long[] after = new long[timers];
+        int a = 0;
+        for (int i = 0; i < timers; i++)
+            if (dueAt[i] > measured)
+                after[a++] = late[i];
+        after = Arrays.copyOf(after, a);
+        Arrays.sort(after);
+        Arrays.sort(late);
+        System.out.printf("added in %,.0f ms (%,.0f ns a timer), %,d MB while waiting (%,d bytes a timer)%n",
+                added / 1e6, added / (double) timers, waiting >> 20, waiting / timers);
+        System.out.printf("all ran in %,.0f ms; late p50 %.2f ms, p99 %.2f ms, max %.2f ms, early %d%n",
+                all / 1e6, late[timers / 2] / 1e6, late[(int) (timers * 0.99)] / 1e6, late[timers - 1] / 1e6,
+                Arrays.stream(late).filter(l -> l < -1_000_000).count());
+        System.out.printf("due after adding and measuring: late p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                after[a / 2] / 1e6, after[(int) (a * 0.99)] / 1e6, after[a - 1] / 1e6);
+    }
+}
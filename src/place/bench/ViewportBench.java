@@ -0,0 +1,159 @@
+package place.bench;
+
+import place.PlaceColor;
+import place.PlaceTile;
+import place.network.BinaryCodec;
+import place.network.Codec;
+import place.server.BoardSnapshot;
+import place.server.Broadcast;
+import place.server.PlaceServer;
+import place.server.ServerOptions;
+import place.server.Session;
+import place.server.SharedFrame;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+/**
+ * Measures what viewport subscriptions save when the board is big and every
+ * viewer is zoomed in: the same tile changes are placed at random over the
+ * board with every viewer seeing the whole board, then with every viewer
+ * subscribed to one screen of it somewhere.  The stand in clients count the
+ * frames and bytes they are handed and let go of them right away, with no
+ * network in the way.
+ *
+ * $ java place.bench.ViewportBench [tiles] [viewers] [DIM] [view] [server options]
+ *
+ * @author Cameron Myron
+ */
+public class ViewportBench {
+
+    /**
+     * A client that counts what it is sent
+     */
+    private static class CountingSession implements Session {
+
+        /**
+         * The username
+         */
+        private final String USERNAME;
+
+        /**
+         * The codec of the connection
+         */
+        private final BinaryCodec CODEC = new BinaryCodec();
+
+        /**
+         * The frames sent
+         */
+        private long frames;
+
+        /**
+         * The bytes sent
+         */
+        private long bytes;
+
+        /**
+         * Creates a session
+         * @param server the server
+         * @param username the username
+         */
+        CountingSession(PlaceServer server, String username) {
+            USERNAME = username;
+            CODEC.shareOwners(server.getOwners());
+        }
+
+        @Override
+        public String getUSERNAME() {
+            return USERNAME;
+        }
+
+        @Override
+        public Codec getCodec() {
+            return CODEC;
+        }
+
+        @Override
+        public void start(BoardSnapshot board, PlaceTile[] missed) {
+        }
+
+        @Override
+        public synchronized void broadcast(Broadcast b) {
+            byte[] names = CODEC.announce(b.getOwnerIds());
+            if (names != null)
+                bytes += names.length;
+            SharedFrame f = b.frame(CODEC);
+            bytes += f.view().remaining();
+            frames++;
+            f.release();
+        }
+
+        @Override
+        public void sendBoard(BoardSnapshot board, PlaceTile[] missed) {
+        }
+
+        @Override
+        public long getQueuedBytes() {
+            return 0;
+        }
+
+        @Override
+        public void cooldown(long wait) {
+        }
+    }
+
+    /**
+     * Runs the benchmark
+     * @param args [tiles] [viewers] [DIM] [view] [server options]
+     */
+    public static void main(String[] args) {
+        String[] pos = ServerOptions.positional(args);
+        int tiles = pos.length > 0 ? Integer.parseInt(pos[0]) : 100_000;
+        int viewers = pos.length > 1 ? Integer.parseInt(pos[1]) : 1000;
+        int dim = pos.length > 2 ? Integer.parseInt(pos[2]) : 2000;
+        int view = pos.length > 3 ? Integer.parseInt(pos[3]) : 200;
+        ServerOptions options = new ServerOptions(args);
+        System.out.println("tiles=" + tiles + " viewers=" + viewers + " DIM=" + dim + " view=" + view);
+
+        run(tiles / 10, viewers, dim, 0, options);
+        run(tiles, viewers, dim, 0, options);
+        run(tiles / 10, viewers, dim, view, options);
+        run(tiles, viewers, dim, view, options);
+    }
+
+    /**
+     * Places tiles with a number of viewers online
+     * @param tiles the number of tiles
+     * @param viewers the number of viewers
+     * @param dim the square dimension of the board
+     * @param view the side of every viewer's viewport, 0 for the whole board
+     * @param options the server options
+     */
+    private static void run(int tiles, int viewers, int dim, int view, ServerOptions options) {
+        PlaceServer server = new PlaceServer(dim, 0, viewers, options);
+        CountingSession[] sessions = new CountingSession[viewers];
+        Random random = new Random(42);
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        for (int i = 0; i < viewers; i++) {
+            server.register(sessions[i] = new CountingSession(server, "viewer" + i));
+            if (view > 0)
+                server.subscribe(sessions[i], new int[]{random.nextInt(dim - view), random.nextInt(dim - view), view, view});
+        }
+        System.setOut(out);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < tiles; i++)
+            server.changeTile(new PlaceTile(random.nextInt(dim), random.nextInt(dim), "placer" + (i % 500),
+                    PlaceColor.fromNumber(i % PlaceColor.TOTAL_COLORS)));
+        double ns = (System.nanoTime() - start) / (double) tiles;
+        long frames = 0, bytes = 0;
+        for (CountingSession s : sessions) {
+            frames += s.frames;
+            bytes += s.bytes;
+        }
+        System.out.printf("%-14s %,9.0f ns/tile  %,10.1f frames/tile  %,12.0f bytes/tile%n",
+                view > 0 ? view + "x" + view : "whole board", ns, frames / (double) tiles, bytes / (double) tiles);
+    }
+}
@@ -5,14 +5,27 @@ import place.PlaceColor;
 import place.PlaceException;
 import place.PlaceTile;
 import place.model.ClientModel;
+import place.network.BinaryCodec;
+import place.network.PlaceExchange;
 import place.network.PlaceRequest;
 import java.io.*;
 import java.net.Socket;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * The client side network interface to a Place Server.
  *
+ * The client keeps track of which tile changes it has applied by their
+ * sequence numbers, which also lets it drop a change it already has.  When
+ * the connection is lost it connects again on its own, waiting longer after
+ * every failed try, and logs in with the last sequence number it has so the
+ * server only sends what it missed instead of the whole board.  The server
+ * decides how often tiles may be placed; it answers a tile placed too soon
+ * with a COOLDOWN, which the client remembers so the UI can tell the user.
+ *
  * @author Cameron Myron
  */
 public class NetworkClient {
@@ -33,20 +46,68 @@ public class NetworkClient {
         }
     }
 
+    /**
+     * The most times to try connecting again after the connection is lost
+     */
+    private static final int RECONNECT_TRIES = 10;
+
+    /**
+     * The wait before the first try to connect again, in milliseconds
+     */
+    private static final long FIRST_BACKOFF = 250;
+
+    /**
+     * The longest wait between tries to connect again, in milliseconds
+     */
+    private static final long MAX_BACKOFF = 8000;
+
+    /**
+     * The most changes kept past a gap in the sequence numbers before the gap
+     * is taken as one that will not fill, as for a client that subscribed to
+     * part of the board and never gets the changes elsewhere
+     */
+    private static final int MAX_AHEAD = 4096;
+
     /**
      * The Socket used to communicate with the Place server.
      */
-    private Socket sock;
+    private volatile Socket sock;
+
+    /**
+     * The framed connection used to communicate with the Place server.
+     */
+    private volatile PlaceExchange exchange;
+
+    /**
+     * The host of the server
+     */
+    private final String hostname;
+
+    /**
+     * The port of the server
+     */
+    private final int port;
+
+    /**
+     * Whether the board only needs its colors
+     */
+    private final boolean colorsOnly;
+
+    /**
+     * The rectangles of the last SUBSCRIBE, sent again after connecting
+     * again, null for the whole board
+     */
+    private volatile int[] viewport;
 
     /**
-     * The inputstream used to communicate with the Place server.
+     * The sequence number up to which every change has been applied
      */
-    private ObjectInputStream networkIn;
+    private long applied;
 
     /**
-     * The outputstream used to communicate with the Place server.
+     * The sequence numbers of the changes applied past a gap, in order
      */
-    private ObjectOutputStream networkOut;
+    private final TreeSet<Long> ahead = new TreeSet<>();
 
     /**
      * The ClientModel
@@ -63,6 +124,11 @@ public class NetworkClient {
      */
     private PlaceColor selectedColor = PlaceColor.WHITE;
 
+    /**
+     * When the server said a tile may be placed again, in milliseconds
+     */
+    private volatile long placeAt;
+
     /**
      * Sentinel used to control the main game loop.
      */
@@ -93,17 +159,50 @@ public class NetworkClient {
      */
     public NetworkClient(String hostname, int port, String username, ClientModel model)
             throws PlaceException, IOException {
+        this(hostname, port, username, model, false);
+    }
+
+    /**
+     * The Constructor for the netWork Client
+     * @param hostname the name of the host running the server program
+     * @param port the port of the server socket on which the server is listening
+     * @param model the local object holding the state of the game that must be updated upon receiving server messages
+     * @param colorsOnly whether the board at login only needs its colors, not who placed each tile or when
+     * @throws PlaceException If there is a problem opening the connection
+     */
+    public NetworkClient(String hostname, int port, String username, ClientModel model, boolean colorsOnly)
+            throws PlaceException, IOException {
+        this.username = username;
+        this.model=model;
+        this.hostname = hostname;
+        this.port = port;
+        this.colorsOnly = colorsOnly;
+        this.go = true;
+        connect();
+    }
+
+    /**
+     * Connects and logs in.  A client that already has a board asks to resume
+     * from the last change it applied, and gets either the changes it missed
+     * or a new board.
+     * @throws PlaceException If there is a problem opening the connection
+     */
+    private void connect() throws PlaceException {
+        Socket s = null;
         try {
-            this.username = username;
-            this.model=model;
-            sock = new Socket(hostname, port);
-            networkIn  = new ObjectInputStream(sock.getInputStream());
-            networkOut = new ObjectOutputStream(sock.getOutputStream());
-            this.go = true;
-
-            networkOut.writeObject(new PlaceRequest(PlaceRequest.RequestType.LOGIN,this.username));
+            s = new Socket(hostname, port);
+            PlaceExchange e = new PlaceExchange(s);
+            BinaryCodec codec = new BinaryCodec();
+            if (colorsOnly)
+                codec.setBoardFields(0);
+            boolean resume = model.getBoard() != null && applied > 0;
+            if (resume)
+                codec.setResumeFrom(applied);
+            e.setCodec(codec);
+
+            e.send(new PlaceRequest(PlaceRequest.RequestType.LOGIN,this.username));
             PlaceRequest ln;
-            if((ln=(PlaceRequest)networkIn.readObject()).getType().equals(PlaceRequest.RequestType.LOGIN_SUCCESS))
+            if((ln=e.receive()).getType().equals(PlaceRequest.RequestType.LOGIN_SUCCESS))
                 System.out.println("Login Successful As: "+ln.getData());
             else
                 if(ln.getType().equals(PlaceRequest.RequestType.ERROR))
@@ -111,16 +210,129 @@ public class NetworkClient {
                 else
                     throw new PlaceException("Error: Unable To Login");
 
-            if((ln=(PlaceRequest) networkIn.readObject()).getType().equals(PlaceRequest.RequestType.BOARD))
-                model.setBoard((PlaceBoard)ln.getData());
+            while((ln=e.receive()).getType().equals(PlaceRequest.RequestType.OWNER))
+                ; // the codec keeps the owner names of the board
+            if(ln.getType().equals(PlaceRequest.RequestType.BOARD))
+                boardReceived((PlaceBoard)ln.getData(), resume);
+            else if(resume && ln.getType().equals(PlaceRequest.RequestType.TILES_CHANGED))
+                resumed((PlaceTile[])ln.getData());
             else
                 throw new PlaceException("Error: Unable To Get Board");
 
+            sock = s;
+            exchange = e;
             NetworkClient.dPrint( "Connected to server " + this.sock );
         }
         catch(IOException | ClassNotFoundException e ) {
+            closeQuietly(s);
             throw new PlaceException( e );
         }
+        catch(PlaceException e) {
+            closeQuietly(s);
+            throw e;
+        }
+    }
+
+    /**
+     * Tries to connect again after the connection was lost, waiting twice as
+     * long after every try that fails, give or take a little so a crowd of
+     * clients does not come back all at once.
+     * @return whether the client is connected again
+     */
+    private boolean reconnect() {
+        long backoff = FIRST_BACKOFF;
+        for (int tries = 0; tries < RECONNECT_TRIES && goodToGo(); tries++) {
+            try {
+                Thread.sleep(backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+            } catch (InterruptedException ie) {
+                return false;
+            }
+            try {
+                connect();
+                int[] rects = viewport;
+                if (rects != null)
+                    exchange.send(new PlaceRequest<>(PlaceRequest.RequestType.SUBSCRIBE, rects));
+                System.out.println("Reconnected To Server");
+                return true;
+            } catch (PlaceException | IOException e) {
+                NetworkClient.dPrint( "Reconnect failed: " + e.getMessage() );
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        }
+        return false;
+    }
+
+    /**
+     * Takes a whole board, at login or when the server resyncs a client
+     * @param board the board
+     * @param notify whether the observers have to redraw it
+     */
+    private void boardReceived(PlaceBoard board, boolean notify) {
+        applied = board.getSeq();
+        ahead.clear();
+        if (notify)
+            model.replaceBoard(board);
+        else
+            model.setBoard(board);
+    }
+
+    /**
+     * Applies what the server says was missed while the connection was down.
+     * It brings the client up to the last sequence number in it.
+     * @param tiles the tiles, in order
+     */
+    private void resumed(PlaceTile[] tiles) {
+        PlaceTile[] missed = unseen(tiles);
+        for (PlaceTile t : tiles)
+            applied = Math.max(applied, t.getSeq());
+        ahead.headSet(applied, true).clear();
+        NetworkClient.dPrint( "! Resumed with " + missed.length + " tiles");
+        model.setTiles(missed);
+    }
+
+    /**
+     * Notes a change as applied
+     * @param t the tile
+     * @return false if the change was applied before (or is older than every
+     *         change applied), true if it is new or has no sequence number
+     */
+    private boolean unseen(PlaceTile t) {
+        long seq = t.getSeq();
+        if (seq == 0)
+            return true;
+        if (seq <= applied || !ahead.add(seq))
+            return false;
+        while (!ahead.isEmpty() && (ahead.first() == applied + 1 || ahead.size() > MAX_AHEAD))
+            applied = ahead.pollFirst();
+        return true;
+    }
+
+    /**
+     * Notes a batch of changes as applied
+     * @param tiles the tiles, in order
+     * @return the tiles that were not applied before
+     */
+    private PlaceTile[] unseen(PlaceTile[] tiles) {
+        int n = 0;
+        PlaceTile[] fresh = new PlaceTile[tiles.length];
+        for (PlaceTile t : tiles)
+            if (unseen(t))
+                fresh[n++] = t;
+        return n == tiles.length ? tiles : Arrays.copyOf(fresh, n);
+    }
+
+    /**
+     * Closes a socket, if there is one
+     * @param s the socket
+     */
+    private static void closeQuietly(Socket s) {
+        try {
+            if (s != null)
+                s.close();
+        }
+        catch( IOException ioe ) {
+            // squash
+        }
     }
 
     /**
@@ -142,27 +354,47 @@ public class NetworkClient {
         model.setTile(t);
     }
 
+    /**
+     * Applies a batch of tile changes
+     * @param tiles the tiles, in order
+     */
+    public void tilesChanged(PlaceTile[] tiles) {
+        NetworkClient.dPrint( "! TILES_CHANGED, " + tiles.length + " tiles");
+
+        // Update the board model once for the whole batch.
+        model.setTiles(tiles);
+    }
+
     /**
      * This method should be called at the end of the game to
      * close the client connection.
      */
     public void close() {
-        try {
-            this.sock.close();
-        }
-        catch( IOException ioe ) {
-            // squash
-        }
+        this.stop();
+        closeQuietly(this.sock);
     }
 
     /**
-     * UI wants to send a new move to the server.
+     * UI wants to send a new move to the server.  The owner is left out;
+     * the server knows who sent it.
      *
      * @param row the row
      * @param col the column
      */
     public void changeTile( int row, int col ) throws IOException {
-        this.networkOut.writeObject(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE,new PlaceTile(row,col,username,selectedColor)));
+        this.exchange.send(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE,new PlaceTile(row,col,"",selectedColor)));
+    }
+
+    /**
+     * UI tells the server which parts of the board it shows, so only the
+     * changes near them are sent.  Rectangles that cover the whole board
+     * go back to getting every change.
+     *
+     * @param rects row, column, rows and columns of every rectangle
+     */
+    public void subscribe( int... rects ) throws IOException {
+        this.viewport = rects;
+        this.exchange.send(new PlaceRequest<>(PlaceRequest.RequestType.SUBSCRIBE, rects));
     }
 
     public void setSelectedColor(PlaceColor c){
@@ -177,6 +409,30 @@ public class NetworkClient {
         return username;
     }
 
+    /**
+     * Get how long until the server takes another tile, as far as it said
+     * @return the milliseconds, 0 if a tile may be placed now
+     */
+    public long getCooldown(){
+        return Math.max(0, placeAt - System.currentTimeMillis());
+    }
+
+    /**
+     * The server says a tile came too soon, or that the wait is over
+     * @param wait the milliseconds until the tile goes in if more than 0,
+     *             or until another may be placed if less; 0 once one may
+     */
+    private void cooldown(long wait) {
+        NetworkClient.dPrint( "! COOLDOWN, " + wait);
+        placeAt = System.currentTimeMillis() + Math.abs(wait);
+        if (wait == 0)
+            System.out.println("You May Place A Tile Again");
+        else if (wait > 0)
+            System.out.println("Too Fast: Your Tile Goes In In " + wait + " ms");
+        else
+            System.out.println("Too Fast: Tile Not Placed, Wait " + -wait + " ms");
+    }
+
     /**
      * Run the main client loop. Intended to be started as a separate
      * thread internally. This method is made private so that no one
@@ -186,7 +442,7 @@ public class NetworkClient {
         PlaceRequest ln;
         while (this.goodToGo()) {
             try {
-                ln=(PlaceRequest)networkIn.readObject();
+                ln=exchange.receive();
                 NetworkClient.dPrint( "Net message in = \"" + ln.getType() + '"' );
 
                 switch (ln.getType()) {
@@ -194,11 +450,21 @@ public class NetworkClient {
                         assert false : "LOGIN_SUCCESS already happened?";
                         break;
                     case BOARD:
-                        assert false : "BOARD already happened?";
-                        model.setBoard((PlaceBoard)ln.getData());
+                        // the server resyncs a client that fell behind
+                        boardReceived((PlaceBoard)ln.getData(), true);
                         break;
                     case TILE_CHANGED:
-                        tileChanged((PlaceTile)ln.getData());
+                        if (unseen((PlaceTile)ln.getData()))
+                            tileChanged((PlaceTile)ln.getData());
+                        break;
+                    case TILES_CHANGED:
+                        tilesChanged(unseen((PlaceTile[])ln.getData()));
+                        break;
+                    case OWNER:
+                        // the codec keeps the owner names
+                        break;
+                    case COOLDOWN:
+                        cooldown((Long)ln.getData());
                         break;
                     case ERROR:
                         System.out.println(ln.getData());
@@ -210,10 +476,14 @@ public class NetworkClient {
                         break;
                 }
             }
-            catch( NoSuchElementException nse ) {
+            catch( NoSuchElementException | IOException e ) {
                 // Looks like the connection shut down.
+                if (!this.goodToGo())
+                    break;
                 System.err.println("Lost connection to server.");
-                this.stop();
+                closeQuietly(this.sock);
+                if (!reconnect())
+                    this.stop();
             }
             catch( Exception e ) {
                 System.err.println(e.getMessage() + '?');
@@ -38,7 +38,7 @@ public class bot1 extends ConsoleApplication implements Observer<ClientModel, Pl
     @Override
     public void init() {
         try {
-            model = new ClientModel(super.getArguments());
+            model = new ClientModel(super.getArguments(), true);
         }
         catch( PlaceException |
                 ArrayIndexOutOfBoundsException |
@@ -47,8 +47,7 @@ public class BoardRect extends ColorRect{
     public void event(Event e){
         try {
             client.getModel().getServerConn().changeTile(row, col);
-            Thread.sleep(500);
-        }catch(IOException | InterruptedException ioe){
+        }catch(IOException ioe){
 
         }
     }
@@ -41,7 +41,7 @@ public class PlacePTUI extends ConsoleApplication implements Observer<ClientMode
     @Override
     public void init() {
         try {
-            model = new ClientModel(super.getArguments());
+            model = new ClientModel(super.getArguments(), true);
         }
         catch( PlaceException |
                 ArrayIndexOutOfBoundsException |
@@ -98,10 +98,6 @@ public class PlacePTUI extends ConsoleApplication implements Observer<ClientMode
 
                 }
             } while (!done);
-            try {
-                Thread.sleep(500);
-            }catch(InterruptedException e){
-            }
         }
     }
 
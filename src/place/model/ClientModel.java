@@ -30,13 +30,23 @@ public class ClientModel{
     private List<Observer<ClientModel, PlaceTile>> observers = new LinkedList<>();
 
     public ClientModel(List<String> args) throws PlaceException, IOException {
+        this(args, false);
+    }
+
+    /**
+     * Connects to the server
+     * @param args the host, the port and the username
+     * @param colorsOnly whether the board only needs its colors, for views
+     *                   that never show who placed a tile or when
+     */
+    public ClientModel(List<String> args, boolean colorsOnly) throws PlaceException, IOException {
         // Get host info from command line
         String host = args.get( 0 );
         int port = Integer.parseInt( args.get( 1 ) );
         String username = args.get(2);
 
         // Create the network connection.
-        this.serverConn = new NetworkClient(host, port, username, this);
+        this.serverConn = new NetworkClient(host, port, username, this, colorsOnly);
     }
 
     public void close(){
@@ -78,8 +88,31 @@ public class ClientModel{
         this.board=board;
     }
 
+    /**
+     * Replaces the whole board and notifies the observers, with null as the
+     * tile since every tile may have changed.
+     *
+     * @param board the new board
+     */
+    public void replaceBoard(PlaceBoard board) {
+        this.board=board;
+        notifyObservers(null);
+    }
+
     public void setTile(PlaceTile t) {
         board.setTile(t);
         notifyObservers(t);
     }
+
+    /**
+     * Changes several tiles and notifies the observers once.  The observers
+     * get null as the tile, since more than one changed.
+     *
+     * @param tiles the tiles, in order
+     */
+    public void setTiles(PlaceTile[] tiles) {
+        for (PlaceTile t : tiles)
+            board.setTile(t);
+        notifyObservers(null);
+    }
 }
@@ -0,0 +1,935 @@
+package place.network;
+
+import place.OwnerDictionary;
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The compact binary protocol.  Every payload starts with the protocol version
+ * and the request type, followed by a body that depends on the type:<br>
+ *      BOARD: DIM, the board fields, the sequence number of the board (version
+ *          3), then a deflated snapshot (version 1: DIM, the colors packed two
+ *          to a byte, DIM*DIM owner ids, DIM*DIM times)<br>
+ *      CHANGE_TILE: a tile record (owner id 0, the server knows who sent it)<br>
+ *      ERROR: string<br>
+ *      LOGIN: string, the board fields the client wants (version 2), the
+ *          sequence number to resume from, 0 for a new board (version 3)<br>
+ *      LOGIN_SUCCESS: string<br>
+ *      OWNER: owner id, string<br>
+ *      TILE_CHANGED: a tile record<br>
+ *      TILES_CHANGED: a count, then that many tile records<br>
+ *      SUBSCRIBE: a count of rectangles, then row, column, rows and columns of each (ints)<br>
+ *      COOLDOWN: milliseconds (long, version 4)<br>
+ *
+ * A tile record is fixed width: row (int), column (int), color number (byte),
+ * owner id (int), time (long) and from version 3 the sequence number of the
+ * change (long).  Owner ids belong to the connection: the
+ * encoder sends an OWNER the first time it uses a name, and id 0 is the empty
+ * owner of a fresh tile.  A server shares one OwnerDictionary between all its
+ * connections instead, so tile frames can be encoded once for everyone; the
+ * codec then only remembers which ids it has announced.  The LOGIN layout only ever grows at the end, so a
+ * server can always read it and answer in the version both sides know.  The
+ * server's end only takes LOGIN, CHANGE_TILE and SUBSCRIBE, so a client can
+ * not make it keep owners or boards.
+ *
+ * The snapshot holds the colors packed two to a byte and, if the client asked
+ * for them, the owners and the times.  Owners are the ids and names announced
+ * for the first time (the snapshot is their OWNER) followed by an id per tile, times
+ * are the change from the tile before.  Both are written as varints and the
+ * whole snapshot is deflated, so a board that is mostly untouched costs next
+ * to nothing.
+ *
+ * @author Cameron Myron
+ */
+public class BinaryCodec implements Codec {
+
+    /**
+     * The newest protocol version
+     */
+    public static final byte VERSION = 4;
+
+    /**
+     * Board field: the owner of every tile
+     */
+    public static final int BOARD_OWNERS = 1;
+
+    /**
+     * Board field: the time of every tile
+     */
+    public static final int BOARD_TIMES = 2;
+
+    /**
+     * Every board field
+     */
+    public static final int BOARD_FULL = BOARD_OWNERS | BOARD_TIMES;
+
+    /**
+     * The size of a tile record in bytes, before version 3
+     */
+    public static final int TILE_BYTES = 21;
+
+    /**
+     * The size of a tile record in bytes from version 3, which adds the
+     * sequence number
+     */
+    public static final int SEQ_TILE_BYTES = TILE_BYTES + 8;
+
+    /**
+     * The most bytes an owner's name takes in UTF-8, since it arrived in a
+     * LOGIN written with writeUTF
+     */
+    private static final int MAX_NAME = 0xFFFF;
+
+    /**
+     * The most bytes an array can hold
+     */
+    private static final int MAX_ARRAY = Integer.MAX_VALUE - 8;
+
+    /**
+     * The version this connection speaks, lowered if the other side turns out
+     * to be older
+     */
+    private volatile byte version;
+
+    /**
+     * Whether a binary frame has been decoded.  The first one settles the
+     * version and ends the time a serialized refusal may come instead.
+     */
+    private volatile boolean spoken;
+
+    /**
+     * The fields a board holds besides the colors. A client sets the fields it
+     * wants, a server learns them from the LOGIN.
+     */
+    private volatile int boardFields = BOARD_FULL;
+
+    /**
+     * The sequence number a client resumes from, 0 for a new board. A client
+     * sets it, a server learns it from the LOGIN.
+     */
+    private volatile long resumeFrom;
+
+    /**
+     * The ids of the owners this side has announced
+     */
+    private final HashMap<String,Integer> announced = new HashMap<>();
+
+    /**
+     * The ids every connection shares, null if this connection has its own
+     */
+    private OwnerDictionary shared;
+
+    /**
+     * The shared ids this side has announced
+     */
+    private final BitSet sent = new BitSet();
+
+    /**
+     * The owner names the other side has announced, by id. A server that
+     * shares its ids announces them in any order, so only the ones announced
+     * are kept.
+     */
+    private final HashMap<Integer,String> owners = new HashMap<>();
+
+    /**
+     * Whether this is the server's end of the connection, which only takes
+     * what a client sends
+     */
+    private final boolean server;
+
+    /**
+     * Creates a codec for the newest version
+     */
+    public BinaryCodec() {
+        this(VERSION);
+    }
+
+    /**
+     * Creates a codec for a version
+     * @param version the protocol version
+     */
+    public BinaryCodec(int version) {
+        this(version, false);
+    }
+
+    /**
+     * Creates a codec for a version, for either end of a connection
+     * @param version the protocol version
+     * @param server whether it is the server's end, which refuses what only
+     *               a server sends
+     */
+    BinaryCodec(int version, boolean server) {
+        if (version < 1 || version > VERSION)
+            throw new IllegalArgumentException("Unknown Protocol Version: " + version);
+        this.version = (byte) version;
+        this.server = server;
+        owners.put(0, "");
+    }
+
+    /**
+     * Get the protocol version of this codec.
+     * @return the version
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Whether the other side knows a request type: COOLDOWN came in version 4.
+     * @param type the request type
+     * @return whether it may be sent
+     */
+    @Override
+    public boolean knows(PlaceRequest.RequestType type) {
+        return type != PlaceRequest.RequestType.COOLDOWN || version >= 4;
+    }
+
+    /**
+     * Get the fields a board holds besides the colors.
+     * @return BOARD_OWNERS and BOARD_TIMES or'ed together
+     */
+    public int getBoardFields() {
+        return boardFields;
+    }
+
+    /**
+     * Sets the fields a board holds besides the colors. A client that only
+     * draws the colors sets none before it logs in.
+     * @param boardFields BOARD_OWNERS and BOARD_TIMES or'ed together
+     */
+    public void setBoardFields(int boardFields) {
+        this.boardFields = boardFields & BOARD_FULL;
+    }
+
+    /**
+     * Get the sequence number the client resumes from.
+     * @return the sequence number of the last change the client has, 0 for none
+     */
+    public long getResumeFrom() {
+        return resumeFrom;
+    }
+
+    /**
+     * Sets the sequence number to resume from. A client that already has a
+     * board sets it before it logs in again, and gets the changes made since
+     * instead of a new board.
+     * @param seq the sequence number of the last change the client has, 0 for none
+     */
+    public void setResumeFrom(long seq) {
+        this.resumeFrom = Math.max(0, seq);
+    }
+
+    /**
+     * Takes owner ids from a dictionary shared by every connection, so frames
+     * made by encodeShared can be sent on this one. Set it before anything is
+     * encoded.
+     * @param owners the dictionary
+     */
+    public synchronized void shareOwners(OwnerDictionary owners) {
+        this.shared = owners;
+    }
+
+    /**
+     * Get the shared ids this side has announced
+     * @return a copy of the ids
+     */
+    public synchronized BitSet getAnnounced() {
+        return (BitSet) sent.clone();
+    }
+
+    /**
+     * Notes shared ids as announced, when frames encoded by another codec
+     * (a cached board) announced them on this connection
+     * @param ids the ids
+     */
+    public synchronized void markAnnounced(BitSet ids) {
+        sent.or(ids);
+    }
+
+    /**
+     * Makes the OWNER frames for the ids the other side has not been told
+     * about yet, to go right before a frame made by encodeShared.
+     * @param ids the shared ids of the owners in the frame
+     * @return the frames, null if there is nothing to announce
+     */
+    public synchronized byte[] announce(int[] ids) {
+        Frames out = null;
+        try {
+            for (int id : ids) {
+                if (id == 0 || sent.get(id))
+                    continue;
+                sent.set(id);
+                if (out == null)
+                    out = new Frames();
+                out.begin(PlaceRequest.RequestType.OWNER);
+                out.data.writeInt(id);
+                out.data.writeUTF(shared.nameOf(id));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out == null ? null : out.toByteArray();
+    }
+
+    /**
+     * Encodes a tile change or a batch of them once for every connection of
+     * a version that shares the owner ids. Each connection has to announce
+     * the owners first.
+     * @param version the protocol version
+     * @param owners the shared owner ids
+     * @param req a TILE_CHANGED or TILES_CHANGED
+     * @return the frame, header included
+     */
+    public static byte[] encodeShared(int version, OwnerDictionary owners, PlaceRequest<?> req) {
+        if (req.getType() == PlaceRequest.RequestType.TILE_CHANGED) {
+            PlaceTile t = (PlaceTile) req.getData();
+            return tileFrame((byte) version, req.getType(), t, owners.idOf(t.getOwner()));
+        }
+        if (req.getType() != PlaceRequest.RequestType.TILES_CHANGED)
+            throw new IllegalArgumentException("Not A Broadcast: " + req.getType());
+        PlaceTile[] tiles = (PlaceTile[]) req.getData();
+        byte[] frame = new byte[PlaceExchange.HEADER + 2 + 4 + tiles.length * tileBytes(version)];
+        ByteBuffer b = ByteBuffer.wrap(frame)
+                .putInt(frame.length - PlaceExchange.HEADER)
+                .put((byte) version)
+                .put((byte) req.getType().ordinal())
+                .putInt(tiles.length);
+        for (PlaceTile t : tiles)
+            putTile(b, t, owners.idOf(t.getOwner()), version);
+        return frame;
+    }
+
+    /**
+     * Encodes a request, announcing any owner the other side has not seen yet.
+     * @param req the request
+     * @return whole frames, headers included
+     */
+    @Override
+    public synchronized byte[] encode(PlaceRequest<?> req) {
+        if (req.getType() == PlaceRequest.RequestType.CHANGE_TILE)
+            return tileFrame(version, req.getType(), (PlaceTile) req.getData(), 0);
+        if (req.getType() == PlaceRequest.RequestType.TILE_CHANGED) {
+            PlaceTile t = (PlaceTile) req.getData();
+            int id = knownId(t.getOwner());
+            if (id >= 0)
+                return tileFrame(version, req.getType(), t, id);
+        }
+        try {
+            Frames out = new Frames();
+            switch (req.getType()) {
+                case BOARD:
+                    PlaceBoard board = (PlaceBoard) req.getData();
+                    if (version >= 2) {
+                        writeSnapshot(out, board);
+                        break;
+                    }
+                    int[] ids = new int[board.DIM * board.DIM];
+                    for (int row = 0; row < board.DIM; row++)
+                        for (int col = 0; col < board.DIM; col++)
+                            ids[row * board.DIM + col] = ownerId(board.getOwner(row, col), out);
+                    out.begin(req.getType());
+                    out.data.writeInt(board.DIM);
+                    int packed = 0;
+                    for (int i = 0; i < ids.length; i++) {
+                        int color = board.getColor(i / board.DIM, i % board.DIM).getNumber();
+                        if (i % 2 == 0)
+                            packed = color << 4;
+                        else
+                            out.data.writeByte(packed | color);
+                    }
+                    if (ids.length % 2 == 1)
+                        out.data.writeByte(packed);
+                    for (int id : ids)
+                        out.data.writeInt(id);
+                    for (int i = 0; i < ids.length; i++)
+                        out.data.writeLong(board.getTime(i / board.DIM, i % board.DIM));
+                    break;
+                case TILE_CHANGED:
+                    PlaceTile tile = (PlaceTile) req.getData();
+                    int id = ownerId(tile.getOwner(), out);
+                    out.begin(req.getType());
+                    writeTile(out.data, tile, id, version);
+                    break;
+                case TILES_CHANGED:
+                    PlaceTile[] tiles = (PlaceTile[]) req.getData();
+                    int[] owners = new int[tiles.length];
+                    for (int i = 0; i < tiles.length; i++)
+                        owners[i] = ownerId(tiles[i].getOwner(), out);
+                    out.begin(req.getType());
+                    out.data.writeInt(tiles.length);
+                    for (int i = 0; i < tiles.length; i++)
+                        writeTile(out.data, tiles[i], owners[i], version);
+                    break;
+                case COOLDOWN:
+                    out.begin(req.getType());
+                    out.data.writeLong((Long) req.getData());
+                    break;
+                case SUBSCRIBE:
+                    int[] rects = (int[]) req.getData();
+                    out.begin(req.getType());
+                    out.data.writeInt(rects.length / 4);
+                    for (int i = 0; i < rects.length / 4 * 4; i++)
+                        out.data.writeInt(rects[i]);
+                    break;
+                default:
+                    out.begin(req.getType());
+                    out.data.writeUTF(String.valueOf(req.getData()));
+                    if (req.getType() == PlaceRequest.RequestType.LOGIN && version >= 2)
+                        out.data.writeByte(boardFields);
+                    if (req.getType() == PlaceRequest.RequestType.LOGIN && version >= 3)
+                        out.data.writeLong(resumeFrom);
+                    break;
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Decodes the payload of one frame.  A client passes a serialized frame
+     * that comes before any binary one to the strict SerialCodec, since a
+     * server may refuse a connection before it has seen the LOGIN.  The
+     * first binary frame, the server's LOGIN or the client's answer to it,
+     * may lower the version to the other side's; every frame after it has to
+     * be in that version.
+     * @param payload the bytes
+     * @param off where the payload starts
+     * @param len the payload length
+     * @return the request
+     * @throws IOException if the payload is not a request
+     * @throws ClassNotFoundException if a serialized payload holds an unknown class
+     */
+    @Override
+    public PlaceRequest<?> decode(byte[] payload, int off, int len) throws IOException, ClassNotFoundException {
+        if (SerialCodec.isSerial(payload, off, len)) {
+            if (server || spoken)
+                throw new IOException("Unexpected Serialized Request");
+            return SerialCodec.STRICT.decode(payload, off, len);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload, off, len));
+        int v = in.readByte();
+        int t = in.readByte();
+        if (t < 0 || t >= PlaceRequest.RequestType.values().length)
+            throw new IOException("Unknown Request Type: " + t);
+        PlaceRequest.RequestType type = PlaceRequest.RequestType.values()[t];
+        if (v < 1 || (v > version && (spoken || type != PlaceRequest.RequestType.LOGIN))
+                || (v < version && spoken))
+            throw new IOException("Unknown Protocol Version: " + v);
+        if (server && (type != PlaceRequest.RequestType.LOGIN || spoken)
+                && type != PlaceRequest.RequestType.CHANGE_TILE && type != PlaceRequest.RequestType.SUBSCRIBE)
+            throw new IOException("Unexpected Request: " + type);
+        if (v < version)
+            version = (byte) v;
+        spoken = true;
+        switch (type) {
+            case BOARD:
+                if (v >= 2)
+                    return new PlaceRequest<>(type, readSnapshot(in, v));
+                int dim = in.readInt();
+                if (dim < 0 || dim > 46340 || (dim * dim + 1) / 2 + 12L * dim * dim > len)
+                    throw new IOException("Bad Board Dimension: " + dim);
+                byte[] colors = new byte[(dim * dim + 1) / 2];
+                in.readFully(colors);
+                int[] ids = new int[dim * dim];
+                for (int i = 0; i < ids.length; i++)
+                    ids[i] = in.readInt();
+                PlaceBoard board = new PlaceBoard(dim);
+                for (int i = 0; i < ids.length; i++) {
+                    int color = i % 2 == 0 ? (colors[i / 2] >> 4) & 0xF : colors[i / 2] & 0xF;
+                    board.set(i / dim, i % dim, PlaceColor.fromNumber(color), owner(ids[i]), in.readLong());
+                }
+                return new PlaceRequest<>(type, board);
+            case CHANGE_TILE:
+            case TILE_CHANGED:
+                return new PlaceRequest<>(type, readTile(in, v));
+            case TILES_CHANGED:
+                int count = in.readInt();
+                if (count < 0 || count > len / TILE_BYTES)
+                    throw new IOException("Bad Tile Count: " + count);
+                PlaceTile[] tiles = new PlaceTile[count];
+                for (int i = 0; i < count; i++)
+                    tiles[i] = readTile(in, v);
+                return new PlaceRequest<>(type, tiles);
+            case SUBSCRIBE:
+                int rectCount = in.readInt();
+                if (rectCount < 0 || rectCount > len / 16)
+                    throw new IOException("Bad Rectangle Count: " + rectCount);
+                int[] rects = new int[rectCount * 4];
+                for (int i = 0; i < rects.length; i++)
+                    rects[i] = in.readInt();
+                return new PlaceRequest<>(type, rects);
+            case COOLDOWN:
+                return new PlaceRequest<>(type, in.readLong());
+            case OWNER:
+                int id = in.readInt();
+                String name = in.readUTF();
+                if (id <= 0)
+                    throw new IOException("Bad Owner: " + id);
+                synchronized (owners) {
+                    owners.put(id, name);
+                }
+                return new PlaceRequest<>(type, name);
+            case LOGIN:
+                String username = in.readUTF();
+                if (in.available() > 0)
+                    boardFields = in.readByte() & BOARD_FULL;
+                if (in.available() >= 8)
+                    resumeFrom = Math.max(0, in.readLong());
+                return new PlaceRequest<>(type, username);
+            default:
+                return new PlaceRequest<>(type, in.readUTF());
+        }
+    }
+
+    /**
+     * Writes a board as a version 2 snapshot with the fields this connection
+     * asked for. Owners that are new to the other side are announced inside
+     * the snapshot instead of in OWNER frames of their own.
+     * @param out where the frame goes
+     * @param board the board
+     * @throws IOException never, the frames are in memory
+     */
+    private void writeSnapshot(Frames out, PlaceBoard board) throws IOException {
+        int dim = board.DIM;
+        int n = dim * dim;
+        int fields = boardFields;
+        Snapshot z = new Snapshot(n / 2 + 64);
+        int packed = 0;
+        for (int i = 0; i < n; i++) {
+            int color = board.getColor(i / dim, i % dim).getNumber();
+            if (i % 2 == 0)
+                packed = color << 4;
+            else
+                z.put(packed | color);
+        }
+        if (n % 2 == 1)
+            z.put(packed);
+        if ((fields & BOARD_OWNERS) != 0) {
+            int[] ids = new int[n];
+            ArrayList<String> fresh = new ArrayList<>();
+            boolean byId = shared != null && board.getOwners() == shared;
+            for (int i = 0; i < n; i++) {
+                int id;
+                if (byId) {
+                    id = board.getOwnerId(i / dim, i % dim);
+                    if (id != 0 && !sent.get(id)) {
+                        sent.set(id);
+                        fresh.add(shared.nameOf(id));
+                    }
+                } else {
+                    String name = board.getOwner(i / dim, i % dim);
+                    id = knownId(name);
+                    if (id < 0) {
+                        id = assign(name);
+                        fresh.add(name);
+                    }
+                }
+                ids[i] = id;
+            }
+            z.putVarint(fresh.size());
+            for (String name : fresh) {
+                z.putVarint(knownId(name));
+                z.putString(name);
+            }
+            for (int id : ids)
+                z.putVarint(id);
+        }
+        if ((fields & BOARD_TIMES) != 0) {
+            long prev = 0;
+            for (int i = 0; i < n; i++) {
+                long time = board.getTime(i / dim, i % dim);
+                long delta = time - prev;
+                z.putVarint((delta << 1) ^ (delta >> 63));
+                prev = time;
+            }
+        }
+
+        out.begin(PlaceRequest.RequestType.BOARD);
+        out.data.writeInt(dim);
+        out.data.writeByte(fields);
+        if (version >= 3)
+            out.data.writeLong(board.getSeq());
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(z.bytes, 0, z.size);
+            deflater.finish();
+            byte[] chunk = new byte[1 << 16];
+            while (!deflater.finished())
+                out.data.write(chunk, 0, deflater.deflate(chunk));
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Reads a version 2 or later snapshot. The fields that were left out come
+     * back as the empty owner and time 0.  The snapshot is inflated only up
+     * to the most a board of its dimension and fields can take, so a frame
+     * that inflates past that is refused instead of read into memory.
+     * @param in where it comes from, just past the request type
+     * @param v the version of the frame
+     * @return the board
+     * @throws IOException if the snapshot is damaged
+     */
+    private PlaceBoard readSnapshot(DataInputStream in, int v) throws IOException {
+        int dim = in.readInt();
+        int fields = in.readByte();
+        long seq = v >= 3 ? in.readLong() : 0;
+        if (dim < 0 || dim > 46340)
+            throw new IOException("Bad Board Dimension: " + dim);
+        int n = dim * dim;
+        long most = (n + 1) / 2;
+        if ((fields & BOARD_OWNERS) != 0)
+            most += 5 + n * (5L + 3 + MAX_NAME) + n * 5L;
+        if ((fields & BOARD_TIMES) != 0)
+            most += n * 10L;
+        Snapshot z;
+        try (InflaterInputStream inflater = new InflaterInputStream(in)) {
+            z = new Snapshot(inflater.readNBytes((int) Math.min(most, MAX_ARRAY)));
+            if (inflater.read() >= 0)
+                throw new IOException("Snapshot Too Big: " + dim);
+        }
+        if ((n + 1) / 2 > z.size)
+            throw new EOFException();
+        z.pos = (n + 1) / 2;
+        PlaceBoard board = new PlaceBoard(dim);
+        int[] ids = null;
+        if ((fields & BOARD_OWNERS) != 0) {
+            long count = z.getVarint();
+            if (count < 0 || count > n)
+                throw new IOException("Bad Owner Count: " + count);
+            for (long i = 0; i < count; i++) {
+                long id = z.getVarint();
+                if (id <= 0 || id > Integer.MAX_VALUE - 8)
+                    throw new IOException("Bad Owner: " + id);
+                String name = z.getString();
+                synchronized (owners) {
+                    owners.put((int) id, name);
+                }
+            }
+            HashMap<Long,Integer> local = new HashMap<>();
+            long last = -1;
+            int lastLocal = 0;
+            ids = new int[n];
+            for (int i = 0; i < n; i++) {
+                long id = z.getVarint();
+                if (id != last) {
+                    if (id > Integer.MAX_VALUE)
+                        throw new IOException("Unknown Owner: " + id);
+                    Integer known = local.get(id);
+                    if (known == null) {
+                        known = board.getOwners().idOf(owner((int) id));
+                        local.put(id, known);
+                    }
+                    last = id;
+                    lastLocal = known;
+                }
+                ids[i] = lastLocal;
+            }
+        }
+        long time = 0;
+        for (int i = 0; i < n; i++) {
+            int b = z.bytes[i / 2];
+            int color = i % 2 == 0 ? (b >> 4) & 0xF : b & 0xF;
+            if ((fields & BOARD_TIMES) != 0) {
+                long zigzag = z.getVarint();
+                time += (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+            board.set(i / dim, i % dim, PlaceColor.fromNumber(color), ids == null ? 0 : ids[i], time);
+        }
+        board.setSeq(seq);
+        return board;
+    }
+
+    /**
+     * Get the id of an owner, announcing it first if it is new
+     * @param name the owner
+     * @param out where the announcement goes
+     * @return the id
+     * @throws IOException never, the frames are in memory
+     */
+    private int ownerId(String name, Frames out) throws IOException {
+        int id = knownId(name);
+        if (id < 0) {
+            id = assign(name);
+            out.begin(PlaceRequest.RequestType.OWNER);
+            out.data.writeInt(id);
+            out.data.writeUTF(name);
+        }
+        return id;
+    }
+
+    /**
+     * Get the id of an owner the other side already knows
+     * @param name the owner
+     * @return the id, 0 for the empty owner, -1 if it has not been announced
+     */
+    private int knownId(String name) {
+        if (name == null || name.isEmpty())
+            return 0;
+        if (shared != null) {
+            int id = shared.idOf(name);
+            return sent.get(id) ? id : -1;
+        }
+        Integer id = announced.get(name);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Gives an owner an id and notes it as announced. The caller announces it.
+     * @param name the owner, not yet announced
+     * @return the id
+     */
+    private int assign(String name) {
+        if (shared != null) {
+            int id = shared.idOf(name);
+            sent.set(id);
+            return id;
+        }
+        int id = announced.size() + 1;
+        announced.put(name, id);
+        return id;
+    }
+
+    /**
+     * Get the name of an owner id
+     * @param id the id
+     * @return the name
+     * @throws IOException if the id was never announced
+     */
+    private String owner(int id) throws IOException {
+        String name;
+        synchronized (owners) {
+            name = owners.get(id);
+        }
+        if (name == null)
+            throw new IOException("Unknown Owner: " + id);
+        return name;
+    }
+
+    /**
+     * Encodes a tile straight into a frame of known size
+     * @param version the protocol version
+     * @param type CHANGE_TILE or TILE_CHANGED
+     * @param t the tile
+     * @param ownerId the id of the tile's owner
+     * @return the frame, header included
+     */
+    private static byte[] tileFrame(byte version, PlaceRequest.RequestType type, PlaceTile t, int ownerId) {
+        byte[] frame = new byte[PlaceExchange.HEADER + 2 + tileBytes(version)];
+        putTile(ByteBuffer.wrap(frame)
+                .putInt(frame.length - PlaceExchange.HEADER)
+                .put(version)
+                .put((byte) type.ordinal()), t, ownerId, version);
+        return frame;
+    }
+
+    /**
+     * Get the size of a tile record
+     * @param version the protocol version
+     * @return the bytes
+     */
+    private static int tileBytes(int version) {
+        return version >= 3 ? SEQ_TILE_BYTES : TILE_BYTES;
+    }
+
+    /**
+     * Puts a tile record
+     * @param b where it goes
+     * @param t the tile
+     * @param ownerId the id of the tile's owner
+     * @param version the protocol version
+     */
+    private static void putTile(ByteBuffer b, PlaceTile t, int ownerId, int version) {
+        b.putInt(t.getRow())
+                .putInt(t.getCol())
+                .put((byte) t.getColor().getNumber())
+                .putInt(ownerId)
+                .putLong(t.getTime());
+        if (version >= 3)
+            b.putLong(t.getSeq());
+    }
+
+    /**
+     * Writes a tile record
+     * @param out where it goes
+     * @param t the tile
+     * @param ownerId the id of the tile's owner
+     * @param version the protocol version
+     * @throws IOException never, the frames are in memory
+     */
+    private static void writeTile(DataOutputStream out, PlaceTile t, int ownerId, int version) throws IOException {
+        out.writeInt(t.getRow());
+        out.writeInt(t.getCol());
+        out.writeByte(t.getColor().getNumber());
+        out.writeInt(ownerId);
+        out.writeLong(t.getTime());
+        if (version >= 3)
+            out.writeLong(t.getSeq());
+    }
+
+    /**
+     * Reads a tile record
+     * @param in where it comes from
+     * @param v the version of the frame
+     * @return the tile
+     * @throws IOException if the record is short or the owner unknown
+     */
+    private PlaceTile readTile(DataInputStream in, int v) throws IOException {
+        int row = in.readInt();
+        int col = in.readInt();
+        int color = in.readByte();
+        if (color < 0 || color >= PlaceColor.TOTAL_COLORS)
+            throw new IOException("Bad Color: " + color);
+        String owner = owner(in.readInt());
+        PlaceTile t = new PlaceTile(row, col, owner, PlaceColor.fromNumber(color), in.readLong());
+        if (v >= 3)
+            t.setSeq(in.readLong());
+        return t;
+    }
+
+    /**
+     * A run of frames being written, with their lengths filled in at the end
+     */
+    private class Frames {
+        /** The bytes so far */
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        /** Writes into the bytes */
+        final DataOutputStream data = new DataOutputStream(bytes);
+        /** Where each frame starts */
+        final ArrayList<Integer> starts = new ArrayList<>(2);
+
+        /**
+         * Starts a new frame
+         * @param type the request type
+         * @throws IOException never, the frames are in memory
+         */
+        void begin(PlaceRequest.RequestType type) throws IOException {
+            starts.add(bytes.size());
+            data.writeInt(0);
+            data.writeByte(version);
+            data.writeByte(type.ordinal());
+        }
+
+        /**
+         * Finishes the frames
+         * @return the bytes with every header filled in
+         */
+        byte[] toByteArray() {
+            byte[] rtrn = bytes.toByteArray();
+            ByteBuffer buf = ByteBuffer.wrap(rtrn);
+            for (int i = 0; i < starts.size(); i++) {
+                int end = i + 1 < starts.size() ? starts.get(i + 1) : rtrn.length;
+                buf.putInt(starts.get(i), end - starts.get(i) - PlaceExchange.HEADER);
+            }
+            return rtrn;
+        }
+    }
+
+    /**
+     * The uncompressed bytes of a snapshot, written and read in place since
+     * a big board holds millions of varints
+     */
+    private static final class Snapshot {
+        /** The bytes */
+        byte[] bytes;
+        /** The number of bytes written */
+        int size;
+        /** Where the next read starts */
+        int pos;
+
+        /**
+         * Starts an empty snapshot
+         * @param capacity the bytes to make room for
+         */
+        Snapshot(int capacity) {
+            this.bytes = new byte[Math.max(64, capacity)];
+        }
+
+        /**
+         * Wraps the bytes of a snapshot for reading
+         * @param bytes the bytes
+         */
+        Snapshot(byte[] bytes) {
+            this.bytes = bytes;
+            this.size = bytes.length;
+        }
+
+        /**
+         * Writes a byte
+         * @param b the byte
+         */
+        void put(int b) {
+            if (size == bytes.length)
+                bytes = Arrays.copyOf(bytes, size * 2);
+            bytes[size++] = (byte) b;
+        }
+
+        /**
+         * Writes a number seven bits at a time, low bits first
+         * @param value the number, treated as unsigned
+         */
+        void putVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                put((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            put((int) value);
+        }
+
+        /**
+         * Writes a string as its UTF-8 length and bytes
+         * @param s the string
+         */
+        void putString(String s) {
+            byte[] utf = s.getBytes(StandardCharsets.UTF_8);
+            putVarint(utf.length);
+            for (byte b : utf)
+                put(b);
+        }
+
+        /**
+         * Reads a number written by putVarint
+         * @return the number
+         * @throws IOException if the snapshot ends or the number is too long
+         */
+        long getVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= size)
+                    throw new EOFException();
+                int b = bytes[pos++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IOException("Bad Varint");
+        }
+
+        /**
+         * Reads a string written by putString
+         * @return the string
+         * @throws IOException if the snapshot ends
+         */
+        String getString() throws IOException {
+            int len = (int) getVarint();
+            if (len < 0 || len > size - pos)
+                throw new EOFException();
+            String s = new String(bytes, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return s;
+        }
+    }
+}
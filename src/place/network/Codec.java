@@ -0,0 +1,63 @@
+package place.network;
+
+import java.io.IOException;
+
+/**
+ * Turns PlaceRequests into frames and back.  A connection starts out speaking
+ * Java serialization; a client that wants the compact binary protocol sends
+ * its LOGIN in binary and the server answers in kind.
+ *
+ * @author Cameron Myron
+ */
+public interface Codec {
+
+    /**
+     * Encodes a request.  The result can hold more than one frame when the
+     * codec has to tell the other side something first (a new owner name).
+     * @param req the request
+     * @return whole frames, headers included
+     */
+    byte[] encode(PlaceRequest<?> req);
+
+    /**
+     * Decodes the payload of one frame.
+     * @param payload the bytes
+     * @param off where the payload starts
+     * @param len the payload length
+     * @return the request
+     * @throws IOException if the payload is not a request
+     * @throws ClassNotFoundException if a serialized payload holds an unknown class
+     */
+    PlaceRequest<?> decode(byte[] payload, int off, int len) throws IOException, ClassNotFoundException;
+
+    /**
+     * Whether the other side knows a request type.  Types added to the
+     * protocol later are only sent to a side that speaks a version with them.
+     * @param type the request type
+     * @return whether it may be sent
+     */
+    default boolean knows(PlaceRequest.RequestType type) {
+        return true;
+    }
+
+    /**
+     * Picks the codec for a connection from its first frame, which is the
+     * LOGIN.  A binary LOGIN gets answered in the newest version both sides
+     * know, and either kind by a codec that only takes what a client sends.
+     * @param payload the bytes
+     * @param off where the payload starts
+     * @param len the payload length
+     * @return the codec to use from now on
+     * @throws IOException if the frame is in no known format
+     */
+    static Codec negotiate(byte[] payload, int off, int len) throws IOException {
+        if (len == 0)
+            throw new IOException("Empty Frame");
+        if (SerialCodec.isSerial(payload, off, len))
+            return SerialCodec.STRICT;
+        int version = payload[off];
+        if (version < 1)
+            throw new IOException("Unknown Protocol Version: " + version);
+        return new BinaryCodec(Math.min(version, BinaryCodec.VERSION), true);
+    }
+}
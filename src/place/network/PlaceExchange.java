@@ -0,0 +1,430 @@
+package place.network;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sends and receives PlaceRequests over a socket.  Every request travels as a
+ * frame: a 4 byte length followed by that many bytes of payload.  Framing lets
+ * a reader pull whole requests out of a non-blocking channel without ever
+ * blocking half way through an object, and lets the server encode a frame
+ * once and hand the same bytes to many connections.
+ *
+ * What is inside a frame depends on the Codec.  A client picks its codec
+ * before it sends the LOGIN; a server leaves it unset and adopts whatever
+ * the LOGIN arrived in.
+ *
+ * A client from before framing writes bare object streams and opens its
+ * ObjectInputStream before it sends anything, so it waits for the stream
+ * header.  A server that greets() sends that header first, and one whose
+ * first frame length turns out to be the client's own header goes on with
+ * the connection unframed: requests are read off one object stream, and
+ * every serialized frame sent is written as a reset and the object in it.
+ * A framed client skips the greeting.
+ *
+ * @author Cameron Myron
+ */
+public class PlaceExchange implements Closeable {
+
+    /**
+     * The number of bytes in a frame header
+     */
+    public static final int HEADER = 4;
+
+    /**
+     * The largest frame a client will accept (a whole board can be big)
+     */
+    public static final int MAX_FRAME = Integer.MAX_VALUE - HEADER;
+
+    /**
+     * The largest frame a server will accept from a client
+     */
+    public static final int MAX_REQUEST = 64 * 1024;
+
+    /**
+     * The header of a Java serialization stream, read as a frame length
+     */
+    public static final int GREETING = ObjectStreamConstants.STREAM_MAGIC << 16 | ObjectStreamConstants.STREAM_VERSION;
+
+    /**
+     * The socket
+     */
+    private final Socket SOCK;
+
+    /**
+     * The inputstream
+     */
+    private final DataInputStream IN;
+
+    /**
+     * The outputstream
+     */
+    private final DataOutputStream OUT;
+
+    /**
+     * Keeps frames from different writers whole. A lock rather than a monitor,
+     * so a virtual thread blocked in a write does not pin its carrier.
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    /**
+     * The largest frame this side will read
+     */
+    private int maxFrame = MAX_FRAME;
+
+    /**
+     * The codec, null until it is negotiated
+     */
+    private volatile Codec codec;
+
+    /**
+     * The bytes received, headers included
+     */
+    private volatile long received;
+
+    /**
+     * Run when the exchange is closed, null for nothing
+     */
+    private volatile Runnable onClose;
+
+    /**
+     * Whether this side sent the greeting, which makes it the server
+     */
+    private volatile boolean greeted;
+
+    /**
+     * Whether the other side writes bare object streams instead of frames
+     */
+    private volatile boolean raw;
+
+    /**
+     * The object stream requests are read from once the exchange is raw
+     */
+    private ObjectInputStream rawIn;
+
+    /**
+     * Counts and bounds what rawIn reads for each request
+     */
+    private Budget budget;
+
+    /**
+     * Counts what a bare object stream reads and stops it past the most one
+     * request may take, since the stream has no lengths of its own
+     */
+    private static final class Budget extends FilterInputStream {
+        /** The bytes read since the count was last reset */
+        long count;
+        /** The most that may be read before the count is reset */
+        long limit;
+
+        /**
+         * Counts a stream
+         * @param in the stream
+         */
+        Budget(InputStream in) {
+            super(in);
+        }
+
+        /**
+         * Reads a byte
+         * @return the byte, or -1 at the end
+         * @throws IOException if the stream fails or the budget is spent
+         */
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0 && ++count > limit)
+                throw new IOException("Bad Frame Length: " + count);
+            return b;
+        }
+
+        /**
+         * Reads bytes, no more than one past the budget
+         * @param b where they go
+         * @param off where in b
+         * @param len the most to read
+         * @return the bytes read, or -1 at the end
+         * @throws IOException if the stream fails or the budget is spent
+         */
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, (int) Math.min(len, Math.max(1, limit - count + 1)));
+            if (n > 0 && (count += n) > limit)
+                throw new IOException("Bad Frame Length: " + count);
+            return n;
+        }
+
+        /**
+         * Skips bytes, counting them
+         * @param n the most to skip
+         * @return the bytes skipped
+         * @throws IOException if the stream fails or the budget is spent
+         */
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, Math.max(1, limit - count + 1)));
+            if ((count += skipped) > limit)
+                throw new IOException("Bad Frame Length: " + count);
+            return skipped;
+        }
+    }
+
+    /**
+     * Creates an exchange over a connected socket.
+     * @param sock the socket
+     * @throws IOException if the streams can not be opened
+     */
+    public PlaceExchange(Socket sock) throws IOException {
+        SOCK = sock;
+        IN = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+        OUT = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+    }
+
+    /**
+     * Sets what to run when the exchange is closed. It runs every time close
+     * is called, so it has to be safe to run more than once.
+     * @param onClose the task
+     */
+    public void onClose(Runnable onClose) {
+        this.onClose = onClose;
+    }
+
+    /**
+     * Sets the largest frame this side is willing to read.
+     * @param maxFrame the limit in bytes
+     */
+    public void setMaxFrame(int maxFrame) {
+        this.maxFrame = maxFrame;
+    }
+
+    /**
+     * Sets the codec (clients do this before sending the LOGIN).
+     * @param codec the codec
+     */
+    public void setCodec(Codec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Get the codec, which is Java serialization until one is negotiated.
+     * @return the codec
+     */
+    public Codec getCodec() {
+        Codec c = codec;
+        return c == null ? SerialCodec.INSTANCE : c;
+    }
+
+    /**
+     * Get the socket of the exchange.
+     * @return the socket
+     */
+    public Socket getSocket() {
+        return SOCK;
+    }
+
+    /**
+     * Sends the header of a Java serialization stream before anything else,
+     * so a client on bare object streams can open its ObjectInputStream.
+     * @throws IOException if the socket fails
+     */
+    public void greet() throws IOException {
+        writeLock.lock();
+        try {
+            OUT.writeInt(GREETING);
+            OUT.flush();
+            greeted = true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Whether the other side writes bare object streams, which the first
+     * request tells
+     * @return is it?
+     */
+    public boolean isRaw() {
+        return raw;
+    }
+
+    /**
+     * Encodes and sends a request.
+     * @param req the request
+     * @throws IOException if the socket fails
+     */
+    public void send(PlaceRequest<?> req) throws IOException {
+        writeLock.lock();
+        try {
+            write(getCodec().encode(req));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Sends an already encoded frame.
+     * @param frame the frame, header included
+     * @throws IOException if the socket fails
+     */
+    public void write(byte[] frame) throws IOException {
+        writeLock.lock();
+        try {
+            if (raw)
+                writeRaw(frame, 0, frame.length);
+            else
+                OUT.write(frame);
+            OUT.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Writes an already encoded frame, flushing it if asked to.  The buffer
+     * is used up.
+     * @param frame the frame, header included, from its position to its limit
+     * @param flush whether to push it out now
+     * @throws IOException if the socket fails
+     */
+    public void write(ByteBuffer frame, boolean flush) throws IOException {
+        writeLock.lock();
+        try {
+            if (frame.hasArray()) {
+                if (raw)
+                    writeRaw(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                else
+                    OUT.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                frame.position(frame.limit());
+            } else {
+                byte[] copy = new byte[frame.remaining()];
+                frame.get(copy);
+                if (raw)
+                    writeRaw(copy, 0, copy.length);
+                else
+                    OUT.write(copy);
+            }
+            if (flush)
+                OUT.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Writes serialized frames into the one object stream of a raw exchange.
+     * Each frame's payload is a stream of its own, so its header is left out
+     * and a reset goes first, which starts the other side's handles over as
+     * a new stream would.
+     * @param frames whole frames, headers included
+     * @param off where they start
+     * @param len their length
+     * @throws IOException if the socket fails or a frame is not serialized
+     */
+    private void writeRaw(byte[] frames, int off, int len) throws IOException {
+        int end = off + len;
+        while (off < end) {
+            int n = ByteBuffer.wrap(frames, off, HEADER).getInt();
+            if (n < HEADER || !SerialCodec.isSerial(frames, off + HEADER, n))
+                throw new IOException("Not A Serialized Frame");
+            OUT.writeByte(ObjectStreamConstants.TC_RESET);
+            OUT.write(frames, off + 2 * HEADER, n - HEADER);
+            off += HEADER + n;
+        }
+    }
+
+    /**
+     * Pushes out everything written so far.
+     * @throws IOException if the socket fails
+     */
+    public void flush() throws IOException {
+        writeLock.lock();
+        try {
+            OUT.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Get the bytes received so far.  Only the thread that receives may
+     * count on it being exact.
+     * @return the bytes, headers included
+     */
+    public long getReceived() {
+        return received;
+    }
+
+    /**
+     * Waits for the next request.  The first request picks the codec if none
+     * was set, and a greeting before it is skipped.
+     * @return the request
+     * @throws IOException if the socket fails or the frame is too big
+     * @throws ClassNotFoundException if the frame does not hold a PlaceRequest
+     */
+    public PlaceRequest<?> receive() throws IOException, ClassNotFoundException {
+        if (raw)
+            return receiveRaw();
+        int len = IN.readInt();
+        if (len == GREETING && received == 0) {
+            received = HEADER;
+            if (greeted && codec == null) {
+                codec = SerialCodec.STRICT;
+                budget = new Budget(IN);
+                rawIn = new ObjectInputStream(budget) {
+                    @Override
+                    protected void readStreamHeader() {
+                    }
+                };
+                rawIn.setObjectInputFilter(SerialCodec::fromClient);
+                raw = true;
+                return receiveRaw();
+            }
+            len = IN.readInt();
+        }
+        if (len < 0 || len > maxFrame)
+            throw new IOException("Bad Frame Length: " + len);
+        byte[] payload = new byte[len];
+        IN.readFully(payload);
+        received += HEADER + len;
+        if (codec == null)
+            codec = Codec.negotiate(payload, 0, len);
+        return codec.decode(payload, 0, len);
+    }
+
+    /**
+     * Reads the next request off the object stream of a raw exchange
+     * @return the request
+     * @throws IOException if the socket fails or the request is too big
+     * @throws ClassNotFoundException if the stream does not hold a PlaceRequest
+     */
+    private PlaceRequest<?> receiveRaw() throws IOException, ClassNotFoundException {
+        budget.count = 0;
+        budget.limit = maxFrame;
+        Object o;
+        try {
+            o = rawIn.readObject();
+        } finally {
+            received += budget.count;
+        }
+        if (!(o instanceof PlaceRequest))
+            throw new IOException("Not A PlaceRequest: " + o);
+        return (PlaceRequest<?>) o;
+    }
+
+    /**
+     * Closes the streams and the socket.
+     */
+    @Override
+    public void close() {
+        try {
+            SOCK.close();
+        } catch (IOException e) {
+            // squash
+        }
+        Runnable r = onClose;
+        if (r != null)
+            r.run();
+    }
+}
@@ -14,6 +14,10 @@ import java.io.Serializable;
  *      LOGIN: String<br>
  *      LOGIN_SUCCESS: String<br>
  *      TILE_CHANGED: PlaceTile object<br>
+ *      OWNER: String<br>
+ *      TILES_CHANGED: PlaceTile array<br>
+ *      SUBSCRIBE: int array<br>
+ *      COOLDOWN: Long<br>
  *
  * @author Sean Strout @ RIT CS
  */
@@ -61,7 +65,37 @@ public class PlaceRequest<E extends Serializable> implements Serializable {
          * The clients should update their view of the board each time
          * a tile change arrives.
          */
-        TILE_CHANGED
+        TILE_CHANGED,
+
+        /**
+         * Only used by the binary protocol.  The server tells the client the
+         * username behind an owner id before the first tile that uses it.
+         */
+        OWNER,
+
+        /**
+         * Used by the server to send every tile changed during one broadcast
+         * tick at once.  It will contain an array of the new Tile objects, at
+         * most one per board coordinate, and the clients apply them in order.
+         */
+        TILES_CHANGED,
+
+        /**
+         * Used by a client to say which parts of the board it shows.  It will
+         * contain an int array of rectangles, four ints each: row, column,
+         * rows and columns.  From then on the server only sends the changes
+         * near those rectangles, and first sends the tiles in them that the
+         * client may have missed.  Rectangles that cover the whole board go
+         * back to getting every change, which is where every client starts.
+         */
+        SUBSCRIBE,
+        /**
+         * Used by the server to tell a client it placed a tile too soon.  It
+         * will contain a Long: more than 0 if the tile is held back and goes
+         * in that many milliseconds from now, less than 0 if it was refused
+         * and the client may place again in minus that many milliseconds.
+         */
+        COOLDOWN
     }
 
     /** The request type */
@@ -0,0 +1,119 @@
+package place.network;
+
+import place.PlaceColor;
+import place.PlaceTile;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+/**
+ * The original protocol: every frame is a PlaceRequest written with Java
+ * serialization.  It keeps no state, so one instance serves everyone, and a
+ * strict one serves every server's end, which reads only the classes a
+ * client's request can hold.
+ *
+ * @author Cameron Myron
+ */
+public class SerialCodec implements Codec {
+
+    /**
+     * The shared instance
+     */
+    public static final SerialCodec INSTANCE = new SerialCodec(null);
+
+    /**
+     * The shared instance that only reads what a client's request can hold,
+     * for the server's end and for a refusal sent before the LOGIN
+     */
+    static final SerialCodec STRICT = new SerialCodec(SerialCodec::fromClient);
+
+    /**
+     * The classes a request from a client may hold
+     */
+    private static final Set<Class<?>> FROM_CLIENT = Set.of(PlaceRequest.class, PlaceRequest.RequestType.class,
+            PlaceTile.class, PlaceColor.class, String.class, Enum.class, int[].class);
+
+    /**
+     * What the decoder lets through, null for everything
+     */
+    private final ObjectInputFilter filter;
+
+    /**
+     * Use the shared instances
+     * @param filter what the decoder lets through, null for everything
+     */
+    private SerialCodec(ObjectInputFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Tells whether a payload is a Java serialization stream
+     * @param payload the bytes
+     * @param off where the payload starts
+     * @param len the payload length
+     * @return does it start with the serialization magic number?
+     */
+    public static boolean isSerial(byte[] payload, int off, int len) {
+        return len >= 2 && payload[off] == (byte) 0xAC && payload[off + 1] == (byte) 0xED;
+    }
+
+    /**
+     * Lets through only what a client's request can hold: a PlaceRequest of a
+     * String, PlaceTile or int array, nested no deeper and no longer than one
+     * request can be.
+     * @param info what is about to be read
+     * @return whether it may be read
+     */
+    static ObjectInputFilter.Status fromClient(ObjectInputFilter.FilterInfo info) {
+        if (info.depth() > 4 || info.arrayLength() > PlaceExchange.MAX_REQUEST / 4)
+            return ObjectInputFilter.Status.REJECTED;
+        Class<?> c = info.serialClass();
+        if (c == null || FROM_CLIENT.contains(c))
+            return ObjectInputFilter.Status.ALLOWED;
+        return ObjectInputFilter.Status.REJECTED;
+    }
+
+    /**
+     * Encodes a request into a frame.
+     * @param req the request
+     * @return the frame, header included
+     */
+    @Override
+    public byte[] encode(PlaceRequest<?> req) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            bytes.write(new byte[PlaceExchange.HEADER]);
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(req);
+            out.close();
+            byte[] frame = bytes.toByteArray();
+            ByteBuffer.wrap(frame).putInt(0, frame.length - PlaceExchange.HEADER);
+            return frame;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Decodes the payload of a frame.
+     * @param payload the bytes
+     * @param off where the payload starts
+     * @param len the payload length
+     * @return the request
+     * @throws IOException if the payload is not a request
+     * @throws ClassNotFoundException if the payload is not a request
+     */
+    @Override
+    public PlaceRequest<?> decode(byte[] payload, int off, int len)
+            throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload, off, len))) {
+            if (filter != null)
+                in.setObjectInputFilter(filter);
+            Object o = in.readObject();
+            if (!(o instanceof PlaceRequest))
+                throw new IOException("Not A PlaceRequest: " + o);
+            return (PlaceRequest<?>) o;
+        }
+    }
+}
@@ -1,38 +1,266 @@
 package place.server;
 
 import java.io.*;
-import java.util.HashSet;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The AccessList of the PlaceServer
  * Represents Blacklists and Whitelists
  *
+ * An entry is an IPv4 or IPv6 address, or a range of them in CIDR notation
+ * (10.0.0.0/8, 2001:db8::/32); blank lines and lines starting with # are
+ * skipped.  The entries are turned into sorted arrays of the first and last
+ * address of every range, overlapping ones merged, so checking an address is
+ * a binary search over a few primitive arrays however many hundreds of
+ * thousands of entries there are, and allocates nothing for raw bytes or an
+ * IPv4 InetAddress.  The arrays are
+ * never changed once made: adding or removing an entry, or reloading the
+ * file, makes new ones and swaps them in, so a check never waits for a
+ * change.  With watch() the file is reloaded whenever it changes on disk.
+ *
  * @author Cameron Myron
  */
 
 public class AccessList {
 
-    private HashSet<String> list = new HashSet<String>();
+    /**
+     * How long to let a file settle after it changes before reading it, in
+     * milliseconds, since editors write in more than one go
+     */
+    private static final long SETTLE = 100;
+
+    /**
+     * The entries as written, in order
+     */
+    private LinkedHashSet<String> list = new LinkedHashSet<String>();
     private String file;
     private Type type;
 
+    /**
+     * The ranges of the entries, swapped whole when they change
+     */
+    private volatile Ranges ranges = new Ranges(new ArrayList<>());
+
+    /**
+     * The thread that reloads the file when it changes, null if not watching
+     */
+    private Thread watcher;
+
     public enum Type{
         BLACKLIST,
         WHITELIST
     }
 
+    /**
+     * The ranges of addresses on the list, sorted and merged, IPv4 ones as
+     * unsigned ints in longs and IPv6 ones as their high and low longs
+     */
+    private static final class Ranges {
+        /** The first address of every IPv4 range */
+        final long[] v4From;
+        /** The last address of every IPv4 range */
+        final long[] v4To;
+        /** The high half of the first address of every IPv6 range */
+        final long[] v6FromHigh;
+        /** The low half of the first address of every IPv6 range */
+        final long[] v6FromLow;
+        /** The high half of the last address of every IPv6 range */
+        final long[] v6ToHigh;
+        /** The low half of the last address of every IPv6 range */
+        final long[] v6ToLow;
+
+        /**
+         * Sorts and merges ranges
+         * @param parsed the ranges, as from parse
+         */
+        Ranges(ArrayList<long[]> parsed) {
+            ArrayList<long[]> v4 = new ArrayList<>();
+            ArrayList<long[]> v6 = new ArrayList<>();
+            for (long[] r : parsed)
+                (r.length == 2 ? v4 : v6).add(r);
+            v4.sort((a, b) -> Long.compare(a[0], b[0]));
+            ArrayList<long[]> merged = new ArrayList<>();
+            for (long[] r : v4) {
+                long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+                if (last != null && r[0] <= last[1] + 1)
+                    last[1] = Math.max(last[1], r[1]);
+                else
+                    merged.add(r.clone());
+            }
+            v4From = new long[merged.size()];
+            v4To = new long[merged.size()];
+            for (int i = 0; i < merged.size(); i++) {
+                v4From[i] = merged.get(i)[0];
+                v4To[i] = merged.get(i)[1];
+            }
+
+            v6.sort((a, b) -> compare(a[0], a[1], b[0], b[1]));
+            merged.clear();
+            for (long[] r : v6) {
+                long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+                if (last != null && follows(last[2], last[3], r[0], r[1])) {
+                    if (compare(r[2], r[3], last[2], last[3]) > 0) {
+                        last[2] = r[2];
+                        last[3] = r[3];
+                    }
+                } else {
+                    merged.add(r.clone());
+                }
+            }
+            v6FromHigh = new long[merged.size()];
+            v6FromLow = new long[merged.size()];
+            v6ToHigh = new long[merged.size()];
+            v6ToLow = new long[merged.size()];
+            for (int i = 0; i < merged.size(); i++) {
+                long[] r = merged.get(i);
+                v6FromHigh[i] = r[0];
+                v6FromLow[i] = r[1];
+                v6ToHigh[i] = r[2];
+                v6ToLow[i] = r[3];
+            }
+        }
+
+        /**
+         * Whether an IPv4 address is in a range
+         * @param address the address as an unsigned int
+         * @return is it?
+         */
+        boolean contains(long address) {
+            int lo = 0, hi = v4From.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (v4From[mid] <= address)
+                    lo = mid + 1;
+                else
+                    hi = mid - 1;
+            }
+            return hi >= 0 && address <= v4To[hi];
+        }
+
+        /**
+         * Whether an IPv6 address is in a range
+         * @param high the high half of the address
+         * @param low the low half
+         * @return is it?
+         */
+        boolean contains(long high, long low) {
+            int lo = 0, hi = v6FromHigh.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (compare(v6FromHigh[mid], v6FromLow[mid], high, low) <= 0)
+                    lo = mid + 1;
+                else
+                    hi = mid - 1;
+            }
+            return hi >= 0 && compare(high, low, v6ToHigh[hi], v6ToLow[hi]) <= 0;
+        }
+
+        /**
+         * Get the number of ranges after merging
+         * @return the count
+         */
+        int size() {
+            return v4From.length + v6FromHigh.length;
+        }
+    }
+
     public AccessList(String file, Type type){
         this.type=type;
         this.file=file;
+        reload();
+    }
+
+    /**
+     * Reads the file again and swaps in its entries. Entries that can not be
+     * read are skipped and left off the list.
+     *
+     * @return If the file could be read
+     */
+    public boolean reload(){
+        LinkedHashSet<String> read = new LinkedHashSet<String>();
         try(
             BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(this.file)));
         ){
             String ln;
-            while((ln=in.readLine())!=null)
-                list.add(ln);
+            while((ln=in.readLine())!=null) {
+                ln = ln.trim();
+                if (!ln.isEmpty() && !ln.startsWith("#"))
+                    read.add(ln);
+            }
         }catch(IOException e){
             System.err.println(e);
+            return false;
+        }
+        ArrayList<long[]> parsed = new ArrayList<>();
+        for (Iterator<String> it = read.iterator(); it.hasNext();) {
+            String entry = it.next();
+            long[] r = parse(entry);
+            if (r == null) {
+                System.err.println("Bad Access List Entry: " + entry);
+                it.remove();
+            } else {
+                parsed.add(r);
+            }
+        }
+        Ranges made = new Ranges(parsed);
+        synchronized (this) {
+            list = read;
+            ranges = made;
+        }
+        return true;
+    }
+
+    /**
+     * Starts reloading the file whenever it changes, on a thread of its own.
+     * A reload only swaps in the new entries once they are read, so checks go
+     * on with the old ones meanwhile.
+     *
+     * @return If the file's directory can be watched
+     */
+    public synchronized boolean watch(){
+        if (watcher != null)
+            return true;
+        Path path = Paths.get(file).toAbsolutePath();
+        WatchService service;
+        try {
+            service = path.getFileSystem().newWatchService();
+            path.getParent().register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            System.err.println(e);
+            return false;
         }
+        watcher = new Thread(() -> {
+            while (true) {
+                try {
+                    WatchKey key = service.take();
+                    boolean changed = false;
+                    do {
+                        for (WatchEvent<?> event : key.pollEvents())
+                            changed |= path.getFileName().equals(event.context());
+                        key.reset();
+                    } while ((key = service.poll(SETTLE, TimeUnit.MILLISECONDS)) != null);
+                    if (changed && Paths.get(file).toAbsolutePath().equals(path)) {
+                        long start = System.nanoTime();
+                        if (reload())
+                            System.out.println("Reloaded " + file + ": " + size() + " Entries, " + getRanges()
+                                    + " Ranges In " + (System.nanoTime() - start) / 1_000_000 + " ms");
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "AccessList");
+        watcher.setDaemon(true);
+        watcher.start();
+        return true;
     }
 
     /**
@@ -41,15 +269,19 @@ public class AccessList {
      * @return Successfully writes the updated list in the current directory
      */
     public boolean printList(){
+        String[] entries;
+        synchronized (this) {
+            entries = list.toArray(new String[0]);
+        }
         try(
-            PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(this.file)),true);
+            PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(this.file))));
         ){
-            for(String i:list)
+            for(String i:entries)
                 out.println(i);
+            return !out.checkError();
         }catch(IOException e){
             return false;
         }
-        return true;
     }
 
     /**
@@ -63,6 +295,17 @@ public class AccessList {
         return onList(ip);
     }
 
+    /**
+     *
+     * @param address the address you are checking the permissions of
+     * @return If the given address is allowed on the server
+     */
+    public boolean allowed(InetAddress address){
+        if(type==Type.BLACKLIST)
+            return !onList(address);
+        return onList(address);
+    }
+
     /**
      *
      * @return String representation of the current file directory (where it will print updated lists)
@@ -82,47 +325,221 @@ public class AccessList {
     /**
      *
      * @param ip String that represents the IP you want to check for on the list
-     * @return If the IP is on the list
+     * @return If the IP is on the list (an IP that is not one is not)
      */
     public boolean onList(String ip){
-        return list.contains(ip);
+        long[] r = parse(ip);
+        return r != null && (r.length == 2 ? ranges.contains(r[0]) : ranges.contains(r[0], r[1]));
+    }
+
+    /**
+     * Checks an IPv4 address by the int its hashCode is, without copying it
+     * out as getAddress does; an IPv6 one is copied out to its 16 bytes
+     *
+     * @param address the address you want to check for on the list
+     * @return If the address is in a range on the list
+     */
+    public boolean onList(InetAddress address){
+        if (address instanceof Inet4Address)
+            return ranges.contains(address.hashCode() & 0xffffffffL);
+        return onList(address.getAddress());
     }
 
     /**
+     * Checks raw address bytes without allocating anything
      *
-     * @param ip String that represents the IP you want to add to the list
+     * @param address 4 bytes for IPv4, 16 for IPv6, most significant first
+     * @return If the address is in a range on the list
+     */
+    public boolean onList(byte[] address){
+        Ranges r = ranges;
+        if (address.length == 4)
+            return r.contains(bytes(address, 0, 4));
+        if (address.length == 16)
+            return r.contains(bytes(address, 0, 8), bytes(address, 8, 8));
+        return false;
+    }
+
+    /**
+     *
+     * @param ip String that represents the IP or range you want to add to the list
      * @return If the IP was added (meaning it wasn't there and now it is)
      */
-    public boolean add(String ip){
-        return list.add(ip);
+    public synchronized boolean add(String ip){
+        if (parse(ip) == null || list.contains(ip))
+            return false;
+        LinkedHashSet<String> changed = new LinkedHashSet<String>(list);
+        changed.add(ip);
+        swap(changed);
+        return true;
     }
 
     /**
      *
-     * @param ip String that represents the IP you want to remove from the list
+     * @param ip String that represents the IP or range you want to remove from the list
      * @return If the IP was removed (meaning it was there and now it isn't)
      */
-    public boolean remove(String ip){
-        return list.remove(ip);
+    public synchronized boolean remove(String ip){
+        if (!list.contains(ip))
+            return false;
+        LinkedHashSet<String> changed = new LinkedHashSet<String>(list);
+        changed.remove(ip);
+        swap(changed);
+        return true;
+    }
+
+    /**
+     * Makes the ranges of a changed list and swaps both in
+     * @param changed the entries, all of which parse
+     */
+    private synchronized void swap(LinkedHashSet<String> changed){
+        ArrayList<long[]> parsed = new ArrayList<>();
+        for (String entry : changed)
+            parsed.add(parse(entry));
+        ranges = new Ranges(parsed);
+        list = changed;
     }
 
     /**
      *
      * @return Number of IPs currently on the list
      */
-    public int size(){
+    public synchronized int size(){
         return list.size();
     }
 
+    /**
+     *
+     * @return Number of ranges the entries make once overlapping ones are merged
+     */
+    public int getRanges(){
+        return ranges.size();
+    }
+
     /**
      *
      * @return String representation of IPs currently on the list
      */
-    public String toString(){
-        String rtrn="";
+    public synchronized String toString(){
+        StringBuilder rtrn = new StringBuilder();
         for(String i:list)
-            rtrn+=i+"\n";
-        return rtrn;
+            rtrn.append(i).append('\n');
+        return rtrn.toString();
+    }
+
+    /**
+     * Reads an address or a CIDR range. Only literal addresses are taken, so
+     * nothing is ever looked up in DNS.
+     * @param entry the entry
+     * @return the first and last address, as two longs for IPv4 and four for
+     *         IPv6, or null if it is not an entry
+     */
+    private static long[] parse(String entry){
+        String ip = entry.trim();
+        int slash = ip.indexOf('/');
+        String prefix = slash < 0 ? null : ip.substring(slash + 1);
+        if (slash >= 0)
+            ip = ip.substring(0, slash);
+        byte[] b = v4(ip);
+        if (b == null) {
+            if (ip.indexOf(':') < 0 || !ip.matches("[0-9a-fA-F:.]+"))
+                return null;
+            try {
+                b = InetAddress.getByName(ip).getAddress();
+            } catch (UnknownHostException e) {
+                return null;
+            }
+        }
+        int bits = b.length * 8;
+        int length = bits;
+        if (prefix != null) {
+            try {
+                length = Integer.parseInt(prefix);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (length < 0 || length > bits)
+                return null;
+        }
+        if (b.length == 4) {
+            long a = bytes(b, 0, 4);
+            long mask = length == 0 ? 0 : (0xFFFFFFFFL << (32 - length)) & 0xFFFFFFFFL;
+            return new long[]{a & mask, (a & mask) | (~mask & 0xFFFFFFFFL)};
+        }
+        long high = bytes(b, 0, 8), low = bytes(b, 8, 8);
+        long highMask = length >= 64 ? -1L : length == 0 ? 0 : -1L << (64 - length);
+        long lowMask = length <= 64 ? 0 : length == 128 ? -1L : -1L << (128 - length);
+        return new long[]{high & highMask, low & lowMask, high | ~highMask, low | ~lowMask};
+    }
+
+    /**
+     * Reads a dotted IPv4 address
+     * @param ip the address
+     * @return its bytes, or null if it is not one
+     */
+    private static byte[] v4(String ip){
+        byte[] b = new byte[4];
+        int part = 0, value = 0, digits = 0;
+        for (int i = 0; i <= ip.length(); i++) {
+            char c = i < ip.length() ? ip.charAt(i) : '.';
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                if (++digits > 3 || value > 255)
+                    return null;
+            } else if (c == '.' && digits > 0 && part < 4) {
+                b[part++] = (byte) value;
+                value = 0;
+                digits = 0;
+            } else {
+                return null;
+            }
+        }
+        return part == 4 ? b : null;
+    }
+
+    /**
+     * Reads bytes as an unsigned number, most significant first
+     * @param b the bytes
+     * @param off where to start
+     * @param n how many, at most 8
+     * @return the number
+     */
+    private static long bytes(byte[] b, int off, int n){
+        long v = 0;
+        for (int i = off; i < off + n; i++)
+            v = v << 8 | (b[i] & 0xFF);
+        return v;
+    }
+
+    /**
+     * Compares two IPv6 addresses as unsigned 128 bit numbers
+     * @param aHigh the high half of the first
+     * @param aLow the low half of the first
+     * @param bHigh the high half of the second
+     * @param bLow the low half of the second
+     * @return less than, equal to or more than 0
+     */
+    private static int compare(long aHigh, long aLow, long bHigh, long bLow){
+        int c = Long.compareUnsigned(aHigh, bHigh);
+        return c != 0 ? c : Long.compareUnsigned(aLow, bLow);
+    }
+
+    /**
+     * Whether an IPv6 range starting at an address touches one ending at
+     * another, so they make one range
+     * @param endHigh the high half of where the first range ends
+     * @param endLow the low half
+     * @param high the high half of where the second range starts, which is
+     *             not before the first one starts
+     * @param low the low half
+     * @return does it start at most one address after the first one ends?
+     */
+    private static boolean follows(long endHigh, long endLow, long high, long low){
+        if (endHigh == -1L && endLow == -1L)
+            return true;
+        long nextLow = endLow + 1;
+        long nextHigh = nextLow == 0 ? endHigh + 1 : endHigh;
+        return compare(high, low, nextHigh, nextLow) <= 0;
     }
 
     /**
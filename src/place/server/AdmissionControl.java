@@ -0,0 +1,323 @@
+package place.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides, right after the accept and before anything is read or written,
+ * whether a connection is worth a login at all.  It is turned away if the
+ * server already has pending connections waiting on their LOGIN or their
+ * join, if its address already has open of them, if its address opened more
+ * than rate a second lately (with bursts of burst), or if the LoadShedder
+ * has the server turning every new one away.  A connection turned
+ * away is closed with a reset, so it costs the server a socket for a moment
+ * and nothing else: no streams, no thread, no stage of the LoginPipeline.
+ *
+ * An address's connections per second are a token bucket kept as the time it
+ * is full again, as in the RateLimiter.  The open connections of an address
+ * and the pending ones of the server are counts that a connection takes when
+ * it is admitted and gives back through its Ticket: the pending one once it
+ * is online, both once it is closed.  An address with nothing open and a full
+ * bucket is the same as no address, so sweep drops those; one being dropped
+ * is marked first, so a connection that comes in meanwhile makes it anew
+ * rather than counting on the dropped one.
+ *
+ * @author Cameron Myron
+ */
+class AdmissionControl {
+
+    /**
+     * Nanoseconds in a second
+     */
+    private static final long SECOND = 1_000_000_000;
+
+    /**
+     * When the times in the buckets start, from System.nanoTime
+     */
+    private final long START = System.nanoTime() - 1;
+
+    /**
+     * The most connections waiting on their LOGIN or join, 0 for no limit
+     */
+    private final int MAX_PENDING;
+
+    /**
+     * The most connections open from one address, 0 for no limit
+     */
+    private final int MAX_OPEN;
+
+    /**
+     * Nanoseconds before an address's bucket gets a connection back, 0 if
+     * new connections are not limited
+     */
+    private final long INTERVAL;
+
+    /**
+     * Nanoseconds an address may be ahead of its bucket
+     */
+    private final long TOLERANCE;
+
+    /**
+     * What is known about an address
+     */
+    private static final class Host {
+        /**
+         * The connections open from it, -1 once it is swept
+         */
+        final AtomicInteger open = new AtomicInteger();
+        /**
+         * When its bucket is full again
+         */
+        final AtomicLong full;
+
+        /**
+         * Create an address with nothing open
+         * @param now the time, so its bucket is full
+         */
+        Host(long now) {
+            full = new AtomicLong(now);
+        }
+    }
+
+    /**
+     * The addresses with open connections or recent ones
+     */
+    private final ConcurrentHashMap<InetAddress, Host> hosts = new ConcurrentHashMap<>();
+
+    /**
+     * The connections admitted and not yet online or closed
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /**
+     * Whether every new connection is turned away, to shed load
+     */
+    private volatile boolean shedding;
+
+    /**
+     * Connections admitted
+     */
+    private final LongAdder admitted = new LongAdder();
+
+    /**
+     * Connections turned away to shed load
+     */
+    private final LongAdder refusedShed = new LongAdder();
+
+    /**
+     * Connections turned away because too many were pending
+     */
+    private final LongAdder refusedPending = new LongAdder();
+
+    /**
+     * Connections turned away because their address had too many open
+     */
+    private final LongAdder refusedOpen = new LongAdder();
+
+    /**
+     * Connections turned away because their address opened too many lately
+     */
+    private final LongAdder refusedRate = new LongAdder();
+
+    /**
+     * The counts an admitted connection gives back
+     */
+    final class Ticket {
+        /**
+         * Its address, null if addresses are not limited
+         */
+        private final Host HOST;
+        /**
+         * 0 while pending, 1 once online, 2 once closed
+         */
+        private final AtomicInteger state = new AtomicInteger();
+
+        /**
+         * Create a ticket
+         * @param host its address, null if addresses are not limited
+         */
+        private Ticket(Host host) {
+            HOST = host;
+        }
+
+        /**
+         * The connection is online, so it is no longer pending. Can be called
+         * more than once, from any thread.
+         */
+        void joined() {
+            if (state.compareAndSet(0, 1))
+                pending.decrementAndGet();
+        }
+
+        /**
+         * The connection is closed, so it is no longer pending or open. Can be
+         * called more than once, from any thread.
+         */
+        void closed() {
+            int was = state.getAndSet(2);
+            if (was == 0)
+                pending.decrementAndGet();
+            if (was != 2 && HOST != null)
+                HOST.open.decrementAndGet();
+        }
+    }
+
+    /**
+     * Create the admission control.
+     * @param maxPending the most connections waiting on their LOGIN or join, 0 for no limit
+     * @param maxOpen the most connections open from one address, 0 for no limit
+     * @param rate the new connections an address may open a second, 0 for no limit
+     * @param burst the new connections an address may open at once
+     */
+    AdmissionControl(int maxPending, int maxOpen, int rate, int burst) {
+        MAX_PENDING = maxPending;
+        MAX_OPEN = maxOpen;
+        INTERVAL = rate > 0 ? SECOND / rate : 0;
+        TOLERANCE = (Math.max(1, burst) - 1) * INTERVAL;
+    }
+
+    /**
+     * Admits a connection that was just accepted, if there is room for it.
+     * Only called from the accept thread.
+     * @param address the address it came from
+     * @return its ticket, or null if it is turned away
+     */
+    Ticket admit(InetAddress address) {
+        if (shedding) {
+            refusedShed.increment();
+            return null;
+        }
+        if (MAX_PENDING > 0 && pending.get() >= MAX_PENDING) {
+            refusedPending.increment();
+            return null;
+        }
+        Host host = null;
+        if (MAX_OPEN > 0 || INTERVAL > 0) {
+            long now = System.nanoTime() - START;
+            while (true) {
+                host = hosts.get(address);
+                if (host == null)
+                    host = hosts.computeIfAbsent(address, k -> new Host(now));
+                int open = host.open.get();
+                if (open < 0) {
+                    hosts.remove(address, host);
+                    continue;
+                }
+                if (MAX_OPEN > 0 && open >= MAX_OPEN) {
+                    refusedOpen.increment();
+                    return null;
+                }
+                if (host.open.compareAndSet(open, open + 1))
+                    break;
+            }
+            if (INTERVAL > 0) {
+                while (true) {
+                    long full = host.full.get();
+                    if (Math.max(full, now) - TOLERANCE - now > 0) {
+                        host.open.decrementAndGet();
+                        refusedRate.increment();
+                        return null;
+                    }
+                    if (host.full.compareAndSet(full, Math.max(full, now) + INTERVAL))
+                        break;
+                }
+            }
+        }
+        pending.incrementAndGet();
+        admitted.increment();
+        return new Ticket(host);
+    }
+
+    /**
+     * Turns every new connection away, or stops
+     * @param shedding whether to
+     */
+    void setShedding(boolean shedding) {
+        this.shedding = shedding;
+    }
+
+    /**
+     * Drops the addresses with nothing open and a full bucket
+     */
+    void sweep() {
+        long now = System.nanoTime() - START;
+        hosts.forEach((address, host) -> {
+            if (host.full.get() <= now && host.open.compareAndSet(0, -1))
+                hosts.remove(address, host);
+        });
+    }
+
+    /**
+     * Closes a connection that was turned away, with a reset so it does not
+     * linger
+     * @param s the connection
+     */
+    static void refuse(Socket s) {
+        try {
+            s.setSoLinger(true, 0);
+        } catch (IOException e) {
+            // squash
+        }
+        try {
+            s.close();
+        } catch (IOException e) {
+            // squash
+        }
+    }
+
+    /**
+     * Closes a connection that was turned away, with a reset so it does not
+     * linger
+     * @param s the connection
+     */
+    static void refuse(SocketChannel s) {
+        try {
+            s.setOption(StandardSocketOptions.SO_LINGER, 0);
+        } catch (IOException e) {
+            // squash
+        }
+        try {
+            s.close();
+        } catch (IOException e) {
+            // squash
+        }
+    }
+
+    /**
+     * Get the connections admitted and not yet online or closed
+     * @return the count
+     */
+    int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * Get the connections turned away, for any reason
+     * @return the count
+     */
+    long getRefused() {
+        return refusedShed.sum() + refusedPending.sum() + refusedOpen.sum() + refusedRate.sum();
+    }
+
+    /**
+     * The counts as part of a line for the log
+     *
+     * @return the connections admitted and pending, those turned away to shed
+     *         load, for too many pending, too many open and too many lately,
+     *         and the addresses known
+     */
+    @Override
+    public String toString() {
+        return "admitted=" + admitted.sum() + " pending=" + getPending() + " refusedShed=" + refusedShed.sum()
+                + " refusedPending=" + refusedPending.sum()
+                + " refusedOpen=" + refusedOpen.sum() + " refusedRate=" + refusedRate.sum()
+                + " admissionHosts=" + hosts.size();
+    }
+}
@@ -0,0 +1,86 @@
+package place.server;
+
+import place.network.BinaryCodec;
+import place.network.Codec;
+
+import java.util.BitSet;
+
+/**
+ * A board encoded for one wire format, as it was after a given tile change.
+ * Every client logging in while it is fresh gets the same bytes, followed by
+ * the changes made since.
+ *
+ * @author Cameron Myron
+ */
+public final class BoardSnapshot {
+
+    /**
+     * The encoded board, with the names of its owners first
+     */
+    private final SharedFrame FRAME;
+
+    /**
+     * The sequence number of the last change in the board
+     */
+    private final long SEQ;
+
+    /**
+     * The shared owner ids the frame announces, null for Java serialization
+     */
+    private final BitSet OWNERS;
+
+    /**
+     * Creates a snapshot held by the cache
+     * @param frame the encoded board
+     * @param seq the sequence number of the last change in the board
+     * @param owners the shared owner ids the frame announces, or null
+     */
+    BoardSnapshot(SharedFrame frame, long seq, BitSet owners) {
+        FRAME = frame;
+        SEQ = seq;
+        OWNERS = owners;
+    }
+
+    /**
+     * Get the sequence number of the last change in the board
+     * @return the sequence number
+     */
+    public long getSeq() {
+        return SEQ;
+    }
+
+    /**
+     * Get the encoded board for a client
+     * @return the frame, with one hold that now belongs to the caller
+     */
+    public SharedFrame frame() {
+        return FRAME.retain();
+    }
+
+    /**
+     * Tells a client's codec which owners the board announces, so they are
+     * not announced again. Call it when the board is queued.
+     * @param codec the codec of the client
+     */
+    public void announceTo(Codec codec) {
+        if (OWNERS != null && codec instanceof BinaryCodec)
+            ((BinaryCodec) codec).markAnnounced(OWNERS);
+    }
+
+    /**
+     * Adds a holder, for a login that is about to send the board
+     * @return this snapshot
+     */
+    BoardSnapshot hold() {
+        FRAME.retain();
+        return this;
+    }
+
+    /**
+     * Gives up a hold, once a login has sent the board or the cache has
+     * replaced it with a newer one
+     */
+    void release() {
+        FRAME.release();
+    }
+}
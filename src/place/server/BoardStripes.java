@@ -0,0 +1,79 @@
+package place.server;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The locks that guard the board, one per stripe.  The board is cut into
+ * square regions and every region belongs to one stripe, so changes to tiles
+ * far apart commit in parallel while the changes to any one tile still happen
+ * one at a time.  Anything that has to see the whole board at one instant,
+ * like a client getting its first board, takes every stripe.
+ *
+ * @author Cameron Myron
+ */
+class BoardStripes {
+
+    /**
+     * The side of a region, in tiles
+     */
+    static final int REGION = 8;
+
+    /**
+     * The locks, a power of two of them
+     */
+    private final ReentrantLock[] LOCKS;
+
+    /**
+     * The number of regions across a row of the board
+     */
+    private final int ACROSS;
+
+    /**
+     * Creates the stripes
+     * @param DIM the square dimension of the board
+     * @param count how many stripes, rounded up to a power of two
+     */
+    BoardStripes(int DIM, int count) {
+        int n = Integer.highestOneBit(Math.max(1, count - 1)) << 1;
+        LOCKS = new ReentrantLock[count <= 1 ? 1 : n];
+        for (int i = 0; i < LOCKS.length; i++)
+            LOCKS[i] = new ReentrantLock();
+        ACROSS = (DIM + REGION - 1) / REGION;
+    }
+
+    /**
+     * Get the lock of the region a tile is in. Neighbouring regions land on
+     * different stripes.
+     * @param row the row
+     * @param col the column
+     * @return the lock
+     */
+    ReentrantLock of(int row, int col) {
+        int region = (row / REGION) * ACROSS + col / REGION;
+        return LOCKS[(region ^ (region >>> 7)) & (LOCKS.length - 1)];
+    }
+
+    /**
+     * Takes every stripe, always in the same order
+     */
+    void lockAll() {
+        for (ReentrantLock l : LOCKS)
+            l.lock();
+    }
+
+    /**
+     * Releases every stripe
+     */
+    void unlockAll() {
+        for (int i = LOCKS.length - 1; i >= 0; i--)
+            LOCKS[i].unlock();
+    }
+
+    /**
+     * Get the number of stripes
+     * @return the count
+     */
+    int size() {
+        return LOCKS.length;
+    }
+}
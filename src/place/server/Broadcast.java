@@ -0,0 +1,168 @@
+package place.server;
+
+import place.OwnerDictionary;
+import place.PlaceTile;
+import place.network.BinaryCodec;
+import place.network.Codec;
+import place.network.PlaceRequest;
+import place.network.SerialCodec;
+
+import java.util.Arrays;
+
+/**
+ * One tile change, or one batch of them, on its way to every client.  It is
+ * encoded at most once per wire format, the first time a client speaking that
+ * format asks for it, and every other client of that format is handed the same
+ * SharedFrame.  Owners are named by their server-wide ids, so the frame is the
+ * same for everyone; each session announces the names its client has not seen.
+ *
+ * @author Cameron Myron
+ */
+public final class Broadcast {
+
+    /**
+     * The holds a broadcast takes on each frame, more than it can hand out
+     */
+    private static final int HOLDS = 1 << 30;
+
+    /**
+     * The request being broadcast
+     */
+    private final PlaceRequest<?> REQUEST;
+
+    /**
+     * The ids of the owners in the request, without repeats
+     */
+    private final int[] OWNER_IDS;
+
+    /**
+     * When the first of the changes was committed, in milliseconds
+     */
+    private final long COMMITTED;
+
+    /**
+     * The server's owner dictionary
+     */
+    private final OwnerDictionary OWNERS;
+
+    /**
+     * Makes the buffers of the frames
+     */
+    private final FramePool POOL;
+
+    /**
+     * Counts the encodings
+     */
+    private final ServerMetrics METRICS;
+
+    /**
+     * The frame of each format: Java serialization, then each binary version
+     */
+    private final SharedFrame[] frames = new SharedFrame[BinaryCodec.VERSION + 1];
+
+    /**
+     * The holds handed out on each frame
+     */
+    private final int[] handed = new int[frames.length];
+
+    /**
+     * Creates a broadcast of one tile change
+     * @param t the tile
+     * @param owners the server's owner dictionary
+     * @param pool makes the buffers of the frames
+     * @param metrics counts the encodings
+     */
+    Broadcast(PlaceTile t, OwnerDictionary owners, FramePool pool, ServerMetrics metrics) {
+        this(new PlaceRequest<>(PlaceRequest.RequestType.TILE_CHANGED, t), new PlaceTile[]{t}, owners, pool, metrics);
+    }
+
+    /**
+     * Creates a broadcast of a batch of tile changes
+     * @param tiles the tiles, in the order they are applied
+     * @param owners the server's owner dictionary
+     * @param pool makes the buffers of the frames
+     * @param metrics counts the encodings
+     */
+    Broadcast(PlaceTile[] tiles, OwnerDictionary owners, FramePool pool, ServerMetrics metrics) {
+        this(new PlaceRequest<>(PlaceRequest.RequestType.TILES_CHANGED, tiles), tiles, owners, pool, metrics);
+    }
+
+    /**
+     * Creates a broadcast
+     * @param req the request
+     * @param tiles the tiles in the request
+     * @param owners the server's owner dictionary
+     * @param pool makes the buffers of the frames
+     * @param metrics counts the encodings
+     */
+    private Broadcast(PlaceRequest<?> req, PlaceTile[] tiles, OwnerDictionary owners, FramePool pool,
+                      ServerMetrics metrics) {
+        REQUEST = req;
+        OWNERS = owners;
+        POOL = pool;
+        METRICS = metrics;
+        int[] ids = new int[tiles.length];
+        long committed = Long.MAX_VALUE;
+        for (int i = 0; i < tiles.length; i++) {
+            ids[i] = owners.idOf(tiles[i].getOwner());
+            committed = Math.min(committed, tiles[i].getTime());
+        }
+        COMMITTED = tiles.length == 0 ? 0 : committed;
+        OWNER_IDS = tiles.length == 1 ? ids : Arrays.stream(ids).distinct().toArray();
+    }
+
+    /**
+     * Get the request being broadcast
+     * @return the request
+     */
+    public PlaceRequest<?> getRequest() {
+        return REQUEST;
+    }
+
+    /**
+     * Get the ids of the owners a client has to know to read the frame
+     * @return the ids, without repeats
+     */
+    public int[] getOwnerIds() {
+        return OWNER_IDS;
+    }
+
+    /**
+     * Get when the first of the changes was committed
+     * @return the time in milliseconds
+     */
+    public long getCommitted() {
+        return COMMITTED;
+    }
+
+    /**
+     * Get the frame for a client, encoding it if it is the first client of
+     * its format. Only the thread doing the broadcast calls this.
+     * @param codec the codec of the client
+     * @return the frame, with one hold that now belongs to the caller
+     */
+    public SharedFrame frame(Codec codec) {
+        int format = codec instanceof BinaryCodec ? ((BinaryCodec) codec).getVersion() : 0;
+        SharedFrame f = frames[format];
+        if (f == null) {
+            byte[] bytes = format == 0 ? SerialCodec.INSTANCE.encode(REQUEST)
+                    : BinaryCodec.encodeShared(format, OWNERS, REQUEST);
+            f = frames[format] = POOL.copy(bytes).retain(HOLDS - 1);
+            METRICS.framesEncoded.increment();
+        }
+        handed[format]++;
+        return f;
+    }
+
+    /**
+     * Gives back the holds that were not handed out, once every client has
+     * had its frame
+     */
+    void release() {
+        for (int i = 0; i < frames.length; i++) {
+            if (frames[i] != null)
+                frames[i].release(HOLDS - handed[i]);
+            frames[i] = null;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package place.server;
+
+import place.PlaceTile;
+
+import java.util.LinkedHashMap;
+
+/**
+ * Collects the tile changes the server accepts and broadcasts them once per
+ * tick, as one TILES_CHANGED per client instead of one TILE_CHANGED per tile
+ * per client.  When a tile changes more than once during a tick only its last
+ * change is sent.  Changes arrive from many stripes at once, so the pending
+ * changes are guarded by the scheduler itself; batches only go out from the
+ * scheduler thread, so every client receives the same batches in the same
+ * order.
+ *
+ * @author Cameron Myron
+ */
+class BroadcastScheduler extends Thread {
+
+    /**
+     * The server
+     */
+    private final PlaceServer SERVER;
+
+    /**
+     * The square dimension of the board
+     */
+    private final int DIM;
+
+    /**
+     * The time between broadcasts, in milliseconds
+     */
+    private volatile long tick;
+
+    /**
+     * The last change of each tile changed during this tick, by board index,
+     * in the order of those last changes
+     */
+    private LinkedHashMap<Integer,PlaceTile> pending = new LinkedHashMap<>();
+
+    /**
+     * Creates the scheduler
+     * @param server the server
+     * @param DIM the square dimension of the board
+     * @param tick the time between broadcasts, in milliseconds
+     */
+    BroadcastScheduler(PlaceServer server, int DIM, long tick) {
+        super("BroadcastScheduler");
+        setDaemon(true);
+        SERVER = server;
+        this.DIM = DIM;
+        this.tick = tick;
+    }
+
+    /**
+     * Get the time between broadcasts
+     * @return the tick in milliseconds
+     */
+    long getTick() {
+        return tick;
+    }
+
+    /**
+     * Changes the time between broadcasts, from the next tick on
+     * @param tick the tick in milliseconds
+     */
+    void setTick(long tick) {
+        this.tick = tick;
+    }
+
+    /**
+     * Adds an accepted change to the current tick. Called under the stripe
+     * of the tile, so the changes of one tile arrive in order.
+     * @param t the tile
+     */
+    synchronized void add(PlaceTile t) {
+        Integer key = t.getRow() * DIM + t.getCol();
+        pending.remove(key);
+        pending.put(key, t);
+    }
+
+    /**
+     * Takes the changes of the current tick
+     * @return the changes, possibly none
+     */
+    synchronized PlaceTile[] drain() {
+        if (pending.isEmpty())
+            return new PlaceTile[0];
+        PlaceTile[] batch = pending.values().toArray(new PlaceTile[0]);
+        pending = new LinkedHashMap<>();
+        return batch;
+    }
+
+    /**
+     * Asks the server to broadcast once per tick, forever
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(tick);
+                SERVER.broadcastTick();
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                System.out.println(e);
+            }
+        }
+    }
+}
@@ -1,19 +1,28 @@
-
 package place.server;
 
 import place.PlaceException;
 import place.PlaceTile;
+import place.network.BinaryCodec;
+import place.network.Codec;
+import place.network.PlaceExchange;
 import place.network.PlaceRequest;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 
 /**
- * The Client class that represents a client as a thread
+ * The Client class that represents a client as a blocking session.  The
+ * server decides what runs it: a platform thread of its own or a virtual
+ * thread.  Requests are read by the session itself, while everything sent to
+ * the client goes through an OutboundQueue drained by a separate writer, so a
+ * client that stops reading only ever holds up itself.
  * @author Cameron Myron
  */
-public class Client extends Thread{
+public class Client implements Runnable, Session{
+    /**
+     * Marks the end of the outbound queue
+     */
+    private static final SharedFrame CLOSE = SharedFrame.wrap(new byte[0]);
+
     /**
      * The server
      */
@@ -25,35 +34,66 @@ public class Client extends Thread{
     private final String USERNAME;
 
     /**
-     * The inputstream
+     * The connection to the client
      */
-    private final ObjectInputStream IN;
+    private final PlaceExchange EXCHANGE;
 
     /**
-     * The outputstream
+     * The frames waiting to be written
      */
-    private final ObjectOutputStream OUT;
+    private final OutboundQueue OUT;
 
     /**
-     * The Constructor that takes in a PlayerServer, OutputStream, and an InputSteam
+     * The address the client connected from
+     */
+    private final String ADDRESS;
+
+    /**
+     * Whether the client fell too far behind and is being dropped
+     */
+    private volatile boolean overflowed;
+
+    /**
+     * The Constructor that takes in a PlayerServer, the connection and the
+     * username from the LOGIN that came over it
      * @param s The PlaceServer
-     * @param out The OutputStream
-     * @param in The InputStream
-     * @throws IOException
-     * @throws ClassNotFoundException
+     * @param exchange The connection
+     * @param username The username
      */
-    public Client(PlaceServer s, ObjectOutputStream out,ObjectInputStream in) throws IOException,ClassNotFoundException{
+    public Client(PlaceServer s, PlaceExchange exchange, String username){
         SERVER=s;
-        IN = in;
-        OUT = out;
-        PlaceRequest ln;
-        if((ln=(PlaceRequest)IN.readObject()).getType().equals(PlaceRequest.RequestType.LOGIN)) {
-            USERNAME = (String) ln.getData();
-        }
-        else{
-            System.err.println("Invalid Protocol");
-            USERNAME=null;
-        }
+        EXCHANGE = exchange;
+        OUT = s.newQueue();
+        USERNAME = username;
+        ADDRESS = exchange.getSocket().getInetAddress().getHostAddress();
+        if (EXCHANGE.getCodec() instanceof BinaryCodec)
+            ((BinaryCodec) EXCHANGE.getCodec()).shareOwners(s.getOwners());
+    }
+
+    /**
+     * Queues the login success and the board, then hands the reader and the
+     * writer to the server's session executor. Called while the server holds
+     * every stripe and before the client is online, so no tile change can
+     * come before the board.
+     * @param board the board
+     * @param missed the changes made since the board was taken
+     */
+    public void start(BoardSnapshot board, PlaceTile[] missed){
+        send(new PlaceRequest(PlaceRequest.RequestType.LOGIN_SUCCESS, USERNAME), false);
+        if (board != null)
+            sendBoard(board, missed);
+        else
+            catchUp(missed);
+        SERVER.execute(this);
+        SERVER.execute(this::write);
+    }
+
+    /**
+     * The getter for the codec
+     * @return the codec
+     */
+    public Codec getCodec(){
+        return EXCHANGE.getCodec();
     }
 
     /**
@@ -65,46 +105,166 @@ public class Client extends Thread{
     }
 
     /**
-     * Prints out when a tile changed
-     * @param t The PlaceTile
+     * Queues the shared frame of a tile change, after the names of any owners
+     * the client has not seen yet
+     * @param b the broadcast
+     */
+    public synchronized void broadcast(Broadcast b){
+        Codec codec = EXCHANGE.getCodec();
+        if (codec instanceof BinaryCodec) {
+            byte[] names = ((BinaryCodec) codec).announce(b.getOwnerIds());
+            if (names != null)
+                send(names, false);
+        }
+        queue(b.frame(codec), b.getCommitted());
+    }
+
+    /**
+     * Sends the whole board, and the changes made since it was taken
+     * @param board the board
+     * @param missed the changes made since
+     */
+    public synchronized void sendBoard(BoardSnapshot board, PlaceTile[] missed){
+        board.announceTo(EXCHANGE.getCodec());
+        offered(OUT.offerBoard(board.frame()));
+        if (missed.length > 0)
+            catchUp(missed);
+        OUT.resynced();
+    }
+
+    /**
+     * Queues the changes that bring the client up to date after a board or
+     * a resume, which like the board are never dropped
+     * @param missed the changes
+     */
+    private synchronized void catchUp(PlaceTile[] missed){
+        offered(OUT.offerBoard(SharedFrame.wrap(EXCHANGE.getCodec().encode(
+                new PlaceRequest(PlaceRequest.RequestType.TILES_CHANGED, missed)))));
+    }
+
+    /**
+     * Get the bytes waiting to be written
+     * @return the queue depth in bytes
+     */
+    public long getQueuedBytes(){
+        return OUT.getBytes();
+    }
+
+    /**
+     * Queues a COOLDOWN, if the client speaks a protocol that has it, in
+     * place of one that is still waiting
+     * @param wait the milliseconds, as the server says them
+     */
+    public synchronized void cooldown(long wait){
+        Codec codec = EXCHANGE.getCodec();
+        if (codec.knows(PlaceRequest.RequestType.COOLDOWN))
+            offered(OUT.offerCooldown(SharedFrame.wrap(codec.encode(
+                    new PlaceRequest<>(PlaceRequest.RequestType.COOLDOWN, wait)))));
+    }
+
+    /**
+     * Encodes a request and queues it for the writer. Encoding and queueing
+     * happen together, so frames that announce owners stay in order.
+     * @param req the request
+     * @param tiles whether the request only holds tile changes (and may be dropped)
+     */
+    private synchronized void send(PlaceRequest req, boolean tiles){
+        send(EXCHANGE.getCodec().encode(req), tiles);
+    }
+
+    /**
+     * Queues frames only this client gets
+     * @param frames the frames
+     * @param tiles whether they only hold tile changes (and may be dropped)
+     */
+    private void send(byte[] frames, boolean tiles){
+        queue(SharedFrame.wrap(frames), tiles);
+    }
+
+    /**
+     * Queues a frame for the writer, dropping the client if it is too far behind
+     * @param f the frame, with a hold the queue takes over
+     * @param tiles whether the frame only holds tile changes (and may be dropped)
+     */
+    private void queue(SharedFrame f, boolean tiles){
+        offered(OUT.offer(f, tiles));
+    }
+
+    /**
+     * Queues a frame of tile changes for the writer
+     * @param f the frame, with a hold the queue takes over
+     * @param committed when the first change in it was committed
      */
-    public void tileChanged(PlaceTile t){
+    private void queue(SharedFrame f, long committed){
+        offered(OUT.offer(f, true, committed));
+    }
+
+    /**
+     * Drops the client if a frame just queued left it too far behind
+     * @param result what became of the frame
+     */
+    private void offered(OutboundQueue.Result result){
+        if (result == OutboundQueue.Result.OVERFLOW && !overflowed) {
+            overflowed = true;
+            SERVER.dropped(this);
+            EXCHANGE.close();
+        }
+    }
+
+    /**
+     * Writes the queued frames until the connection closes. Whatever is
+     * queued goes out together and is flushed once.
+     */
+    private void write(){
         try {
-            OUT.writeObject(new PlaceRequest(PlaceRequest.RequestType.TILE_CHANGED, t));
-        }catch(IOException e){
+            while (true) {
+                OutboundQueue.Entry e = OUT.take();
+                boolean resync = false;
+                do {
+                    if (e.frame == CLOSE) {
+                        EXCHANGE.close();
+                        return;
+                    }
+                    EXCHANGE.write(e.buffer, false);
+                    resync |= OUT.sent(e);
+                } while ((e = OUT.poll()) != null);
+                EXCHANGE.flush();
+                if (resync)
+                    SERVER.resync(this);
+            }
+        } catch (IOException|InterruptedException e) {
         }
+        EXCHANGE.close();
     }
 
     /**
-     * Runs the thread. If the tile needs to change, it waits .5 seconds. Once it finishes, the server closes.
-     *
+     * Runs the session. A tile change goes to the server, which says whether
+     * it came too soon; the client is told, and the session reads on. Once it
+     * finishes, however it does, the server closes and logs the client out.
      */
     @Override
     public void run() {
         try{
-            OUT.writeObject(new PlaceRequest(PlaceRequest.RequestType.LOGIN_SUCCESS, USERNAME));
-            OUT.writeObject(new PlaceRequest(PlaceRequest.RequestType.BOARD, SERVER.getModel()));
             while(true){
                 PlaceRequest ln;
-                if ((ln = (PlaceRequest) IN.readObject()).getType().equals(PlaceRequest.RequestType.CHANGE_TILE)) {
-                    SERVER.changeTile((PlaceTile) ln.getData());
-                    try {
-                        sleep(500);
-                    }catch(InterruptedException ie){
-                    }
+                if ((ln = EXCHANGE.receive()).getType().equals(PlaceRequest.RequestType.CHANGE_TILE)
+                        && ln.getData() instanceof PlaceTile) {
+                    PlaceTile t = (PlaceTile) ln.getData();
+                    t.setOwner(USERNAME);
+                    SERVER.place(this, t, ADDRESS);
+                }
+                else if (ln.getType().equals(PlaceRequest.RequestType.SUBSCRIBE) && ln.getData() instanceof int[]) {
+                    SERVER.subscribe(this, (int[]) ln.getData());
                 }
                 else {
-                    OUT.writeObject(new PlaceRequest(PlaceRequest.RequestType.ERROR, "Invalid Command: Terminating Connection"));
+                    send(new PlaceRequest(PlaceRequest.RequestType.ERROR, "Invalid Command: Terminating Connection"), false);
                     throw new PlaceException("");
                 }
             }
         }catch(IOException|ClassNotFoundException|PlaceException e){
-            try {
-                OUT.close();
-                IN.close();
-            } catch (IOException ex){
-
-            }
+            // the connection is done
+        }finally{
+            OUT.offer(CLOSE, false);
             SERVER.logout(this);
         }
     }
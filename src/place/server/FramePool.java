@@ -0,0 +1,106 @@
+package place.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Makes the buffers of shared frames.  In NIO mode they are direct buffers,
+ * which a channel writes without copying them first; direct buffers are slow
+ * to allocate, so small ones are kept for reuse once their frame is released.
+ * Blocking sessions write from heap arrays, so there the encoded bytes are
+ * used as they are.
+ *
+ * @author Cameron Myron
+ */
+class FramePool {
+
+    /**
+     * The smallest buffer, in bytes
+     */
+    private static final int SMALLEST = 64;
+
+    /**
+     * The number of sizes kept, each twice the one before (64 bytes to 64KB)
+     */
+    private static final int SIZES = 11;
+
+    /**
+     * The most free buffers kept of each size
+     */
+    private static final int KEEP = 1024;
+
+    /**
+     * Whether frames live in direct buffers
+     */
+    private final boolean DIRECT;
+
+    /**
+     * The free buffers of each size
+     */
+    private final ConcurrentLinkedQueue<ByteBuffer>[] FREE;
+
+    /**
+     * The number of free buffers of each size
+     */
+    private final AtomicInteger[] COUNT;
+
+    /**
+     * Creates a pool
+     * @param direct whether frames live in direct buffers
+     */
+    @SuppressWarnings("unchecked")
+    FramePool(boolean direct) {
+        DIRECT = direct;
+        FREE = (ConcurrentLinkedQueue<ByteBuffer>[]) new ConcurrentLinkedQueue<?>[SIZES];
+        COUNT = new AtomicInteger[SIZES];
+        for (int i = 0; i < SIZES; i++) {
+            FREE[i] = new ConcurrentLinkedQueue<>();
+            COUNT[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Makes a shared frame holding encoded bytes
+     * @param frame the bytes, header included
+     * @return the frame, held by the caller
+     */
+    SharedFrame copy(byte[] frame) {
+        int size = sizeOf(frame.length);
+        if (!DIRECT || size >= SIZES)
+            return DIRECT ? new SharedFrame(ByteBuffer.allocateDirect(frame.length).put(frame).flip(), null)
+                    : SharedFrame.wrap(frame);
+        ByteBuffer b = FREE[size].poll();
+        if (b == null)
+            b = ByteBuffer.allocateDirect(SMALLEST << size);
+        else
+            COUNT[size].decrementAndGet();
+        b.clear();
+        b.put(frame).flip();
+        return new SharedFrame(b, this);
+    }
+
+    /**
+     * Takes back the buffer of a frame nobody holds any more
+     * @param b the buffer
+     */
+    void recycle(ByteBuffer b) {
+        int size = sizeOf(b.capacity());
+        if (size < SIZES && COUNT[size].incrementAndGet() <= KEEP)
+            FREE[size].add(b);
+        else if (size < SIZES)
+            COUNT[size].decrementAndGet();
+    }
+
+    /**
+     * Get the size a buffer of some length comes in
+     * @param length the length in bytes
+     * @return the index of the size, SIZES or more if it is too big to keep
+     */
+    private static int sizeOf(int length) {
+        int size = 0;
+        while ((SMALLEST << size) < length && size < SIZES)
+            size++;
+        return size;
+    }
+}
@@ -0,0 +1,854 @@
+package place.server;
+
+import place.OwnerDictionary;
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Every change ever made to the board, kept so the board can be rebuilt as
+ * it was at any moment, or the changes to one tile looked up, without going
+ * through the whole history.
+ *
+ * The history is a series of keyframes, each a checkpoint of the board (see
+ * PlaceBoard.writeCheckpoint), with a segment after each of the changes made
+ * until the next one, as fixed size records in the order they were made.  A
+ * new keyframe is taken every so many changes, and one when the store is
+ * opened, from the board the server starts with.  An index holds the time of
+ * every keyframe and the first and last time in its segment, so the board at
+ * a moment is the last keyframe before it plus the changes up to the moment
+ * in the segments after it; that reads one keyframe and about one segment,
+ * however long the history.  Changes are made in time order only about, so
+ * every later segment that starts before the moment is read too.
+ *
+ * The keyframes are built from a board of the store's own, kept up to date
+ * by the writer thread from the changes it writes, so a keyframe is the board
+ * exactly between two records and the live board is never locked for one.
+ * Appending only copies the change into a buffer, as TileLog does, under
+ * a ReentrantLock rather than the store's monitor, for the same reasons.  The
+ * history is not forced to disk; it is for looking back, the TileLog is for
+ * recovery.
+ *
+ * The directory holds "owners" (the names of the owner ids in the records),
+ * "index", "shadow" (the writer's board) and numbered ".key" and ".delta"
+ * files.  The index is "PHIX", the version, DIM and an unused int, then per
+ * keyframe its sequence number, its time, the first and last time in its
+ * segment and the number of records, as longs.  A record is the sequence
+ * number, the time, the row, the column and the owner id (ints) and the color
+ * (a byte).
+ *
+ * @author Cameron Myron
+ */
+public class HistoryStore implements Closeable {
+
+    /**
+     * The first int of the index, "PHIX"
+     */
+    private static final int MAGIC = 0x50484958;
+
+    /**
+     * The version of the layout
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The bytes of the index header
+     */
+    private static final int INDEX_HEADER_BYTES = 16;
+
+    /**
+     * The bytes of an index entry
+     */
+    private static final int ENTRY_BYTES = 40;
+
+    /**
+     * The bytes of a change record
+     */
+    private static final int RECORD_BYTES = 8 + 8 + 4 + 4 + 4 + 1;
+
+    /**
+     * The most bytes that may wait for the writer before appending waits too
+     */
+    private static final int MAX_PENDING = 16 << 20;
+
+    /**
+     * A keyframe and the segment of changes after it
+     */
+    private static final class Segment {
+        /** The number of the keyframe, which names its files */
+        final int number;
+        /** The sequence number of the last change in the keyframe */
+        final long seq;
+        /** The time of the keyframe: no change in it is later */
+        final long time;
+        /** The earliest time in the segment */
+        long first = Long.MAX_VALUE;
+        /** The latest time in the segment */
+        long last = Long.MIN_VALUE;
+        /** The number of records in the segment */
+        long records;
+
+        /**
+         * Creates a keyframe with an empty segment
+         * @param number the number of the keyframe
+         * @param seq the sequence number of its last change
+         * @param time its time
+         */
+        Segment(int number, long seq, long time) {
+            this.number = number;
+            this.seq = seq;
+            this.time = time;
+        }
+
+        /**
+         * Copies the segment as it is now
+         * @return the copy
+         */
+        Segment copy() {
+            Segment s = new Segment(number, seq, time);
+            s.first = first;
+            s.last = last;
+            s.records = records;
+            return s;
+        }
+    }
+
+    /**
+     * The directory of the history
+     */
+    private final Path DIR;
+
+    /**
+     * The square dimension of the board
+     */
+    private final int DIM;
+
+    /**
+     * The changes between keyframes
+     */
+    private final long KEYFRAME_EVERY;
+
+    /**
+     * The owner names of the ids in the records
+     */
+    private final OwnerDictionary OWNERS;
+
+    /**
+     * The owners of the board the changes are appended from, null if the
+     * store is only read
+     */
+    private final OwnerDictionary LIVE;
+
+    /**
+     * Guards the buffers, the keyframes and closed
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Signalled when there are changes for the writer or the store closes
+     */
+    private final Condition work = lock.newCondition();
+
+    /**
+     * Signalled when the writer takes the changes, so appending may go on
+     */
+    private final Condition room = lock.newCondition();
+
+    /**
+     * The keyframes, guarded by the lock
+     */
+    private final ArrayList<Segment> segments = new ArrayList<>();
+
+    /**
+     * The index file, null if the store is only read
+     */
+    private final FileChannel index;
+
+    /**
+     * The board as of the last record written, only used by the writer
+     */
+    private final PlaceBoard shadow;
+
+    /**
+     * The thread that writes the records, null if the store is only read
+     */
+    private final Thread WRITER;
+
+    /**
+     * The segment being written, only used by the writer
+     */
+    private FileChannel delta;
+
+    /**
+     * The store id of every owner id of the live board, 0 if not looked up
+     * yet, only used by the writer
+     */
+    private int[] ids = new int[64];
+
+    /**
+     * The changes appended since the writer last took them
+     */
+    private ByteBuffer pending = ByteBuffer.allocate(1 << 16);
+
+    /**
+     * The changes the writer is writing, empty otherwise
+     */
+    private ByteBuffer writing = ByteBuffer.allocate(1 << 16);
+
+    /**
+     * Whether the store takes no more changes
+     */
+    private boolean closed;
+
+    /**
+     * Opens the history in a directory, making it if there is none, and
+     * starts a keyframe from the board the server starts with.
+     * @param dir the directory
+     * @param board the live board, whose changes are appended
+     * @param seq the sequence number of the last change in the board
+     * @param keyframeEvery the changes between keyframes
+     * @return the store
+     * @throws IOException if the history can not be read or written, or is for
+     *                     another size of board
+     */
+    public static HistoryStore open(Path dir, PlaceBoard board, long seq, long keyframeEvery) throws IOException {
+        Files.createDirectories(dir);
+        return new HistoryStore(dir, board, seq, keyframeEvery);
+    }
+
+    /**
+     * Opens the history in a directory to look things up, for a tool.  A
+     * server may be writing to it at the same time.
+     * @param dir the directory
+     * @return the store
+     * @throws IOException if the history can not be read
+     */
+    public static HistoryStore read(Path dir) throws IOException {
+        return new HistoryStore(dir, null, 0, 0);
+    }
+
+    /**
+     * Opens a history
+     * @param dir the directory
+     * @param board the live board, null to only read
+     * @param seq the sequence number of the last change in the board
+     * @param keyframeEvery the changes between keyframes
+     * @throws IOException if the history can not be read or written
+     */
+    private HistoryStore(Path dir, PlaceBoard board, long seq, long keyframeEvery) throws IOException {
+        DIR = dir;
+        KEYFRAME_EVERY = keyframeEvery;
+        LIVE = board == null ? null : board.getOwners();
+        FileChannel ch = FileChannel.open(dir.resolve("index"), board == null
+                ? new StandardOpenOption[]{StandardOpenOption.READ}
+                : new StandardOpenOption[]{StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE});
+        try {
+            ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_BYTES);
+            if (ch.size() < INDEX_HEADER_BYTES) {
+                if (board == null)
+                    throw new IOException("No History In " + dir);
+                DIM = board.DIM;
+                header.putInt(MAGIC).putInt(VERSION).putInt(DIM).putInt(0).flip();
+                ch.truncate(0);
+                write(ch, header, 0);
+            } else {
+                read(ch, header, 0);
+                header.flip();
+                if (header.getInt() != MAGIC || header.getInt() != VERSION)
+                    throw new IOException("Not A History: " + dir);
+                DIM = header.getInt();
+                if (board != null && board.DIM != DIM)
+                    throw new IOException("History Is For A " + DIM + "x" + DIM + " Board: " + dir);
+            }
+            long entries = (ch.size() - INDEX_HEADER_BYTES) / ENTRY_BYTES;
+            ByteBuffer entry = ByteBuffer.allocate(ENTRY_BYTES);
+            for (int n = 0; n < entries; n++) {
+                entry.clear();
+                read(ch, entry, INDEX_HEADER_BYTES + (long) n * ENTRY_BYTES);
+                entry.flip();
+                Segment s = new Segment(n, entry.getLong(), entry.getLong());
+                s.first = entry.getLong();
+                s.last = entry.getLong();
+                s.records = entry.getLong();
+                segments.add(s);
+            }
+            if (!segments.isEmpty())
+                rescan(segments.get(segments.size() - 1), board != null);
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+        if (board == null) {
+            ch.close();
+            index = null;
+            OWNERS = OwnerDictionary.read(dir.resolve("owners"));
+            shadow = null;
+            WRITER = null;
+            return;
+        }
+        index = ch;
+        OWNERS = OwnerDictionary.open(dir.resolve("owners"));
+        ch.truncate(INDEX_HEADER_BYTES + (long) segments.size() * ENTRY_BYTES);
+        if (!segments.isEmpty())
+            writeEntry(segments.get(segments.size() - 1));
+
+        Files.deleteIfExists(dir.resolve("shadow"));
+        shadow = PlaceBoard.open(dir.resolve("shadow"), DIM, OWNERS);
+        long time = System.currentTimeMillis();
+        if (!segments.isEmpty())
+            time = Math.max(time, segments.get(segments.size() - 1).last);
+        keyframe(board, seq, time);
+        shadow.loadCheckpoint(keyPath(segments.size() - 1));
+
+        WRITER = new Thread(this::write, "History");
+        WRITER.setDaemon(true);
+        WRITER.start();
+    }
+
+    /**
+     * Counts the records of a segment that were written after its index entry
+     * was, and drops a record cut short at the end
+     * @param s the segment
+     * @param truncate whether the file may be cut, which a reader may not do
+     * @throws IOException if the segment can not be read
+     */
+    private void rescan(Segment s, boolean truncate) throws IOException {
+        Path path = deltaPath(s.number);
+        if (!Files.exists(path))
+            return;
+        s.records = 0;
+        s.first = Long.MAX_VALUE;
+        s.last = Long.MIN_VALUE;
+        scan(s, Long.MAX_VALUE, (seq, time, row, col, owner, color) -> {
+            s.first = Math.min(s.first, time);
+            s.last = Math.max(s.last, time);
+            s.records++;
+        }, Files.size(path) / RECORD_BYTES);
+        if (truncate) {
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                ch.truncate(s.records * RECORD_BYTES);
+            }
+        }
+    }
+
+    /**
+     * Reads fully from a channel
+     * @param ch the channel
+     * @param buf where to read to
+     * @param at where to read from
+     * @throws IOException if the channel ends first
+     */
+    private static void read(FileChannel ch, ByteBuffer buf, long at) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, at);
+            if (n < 0)
+                throw new IOException("History Cut Short");
+            at += n;
+        }
+    }
+
+    /**
+     * Writes fully to a channel
+     * @param ch the channel
+     * @param buf what to write
+     * @param at where to write it
+     * @throws IOException if the channel can not be written
+     */
+    private static void write(FileChannel ch, ByteBuffer buf, long at) throws IOException {
+        while (buf.hasRemaining())
+            at += ch.write(buf, at);
+    }
+
+    /**
+     * Get the path of a keyframe
+     * @param number the number of the keyframe
+     * @return the path
+     */
+    private Path keyPath(int number) {
+        return DIR.resolve(String.format("%08d.key", number));
+    }
+
+    /**
+     * Get the path of the segment after a keyframe
+     * @param number the number of the keyframe
+     * @return the path
+     */
+    private Path deltaPath(int number) {
+        return DIR.resolve(String.format("%08d.delta", number));
+    }
+
+    /**
+     * Writes the index entry of a keyframe
+     * @param s the keyframe
+     * @throws IOException if the index can not be written
+     */
+    private void writeEntry(Segment s) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_BYTES);
+        lock.lock();
+        try {
+            entry.putLong(s.seq).putLong(s.time).putLong(s.first).putLong(s.last).putLong(s.records).flip();
+        } finally {
+            lock.unlock();
+        }
+        write(index, entry, INDEX_HEADER_BYTES + (long) s.number * ENTRY_BYTES);
+    }
+
+    /**
+     * Takes a keyframe and starts its segment
+     * @param board the board to take it from
+     * @param seq the sequence number of the last change in the board
+     * @param time no change in the board is later
+     * @throws IOException if the keyframe can not be written
+     */
+    private void keyframe(PlaceBoard board, long seq, long time) throws IOException {
+        Segment s = new Segment(segments.size(), seq, time);
+        board.writeCheckpoint(keyPath(s.number), seq);
+        FileChannel ch = FileChannel.open(deltaPath(s.number), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        writeEntry(s);
+        index.force(false);
+        if (delta != null)
+            delta.close();
+        delta = ch;
+        lock.lock();
+        try {
+            segments.add(s);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a committed change to the history.  Call it under the stripe of
+     * the tile, so the changes to one tile are in the order of their sequence
+     * numbers.  It only waits if the writer has fallen MAX_PENDING bytes behind.
+     * @param t the change, with its sequence number and time set
+     * @param owner the id of its owner in the live board's owners
+     */
+    public void append(PlaceTile t, int owner) {
+        lock.lock();
+        try {
+            while (pending.position() >= MAX_PENDING && !closed) {
+                try {
+                    room.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (closed || WRITER == null)
+                return;
+            if (pending.remaining() < RECORD_BYTES) {
+                ByteBuffer bigger = ByteBuffer.allocate(pending.capacity() * 2);
+                pending.flip();
+                pending = bigger.put(pending);
+            }
+            boolean wasEmpty = pending.position() == 0;
+            pending.putLong(t.getSeq()).putLong(t.getTime()).putInt(t.getRow()).putInt(t.getCol()).putInt(owner)
+                    .put((byte) t.getColor().getNumber());
+            if (wasEmpty)
+                work.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs the writer: takes the appended changes, gives them store owner
+     * ids, applies them to the shadow board and writes them to the segment,
+     * taking a keyframe whenever a segment is full.  If the history can not
+     * be written the error is printed and the store stops taking changes.
+     */
+    private void write() {
+        Segment current;
+        lock.lock();
+        try {
+            current = segments.get(segments.size() - 1);
+        } finally {
+            lock.unlock();
+        }
+        long lastSeq = current.seq;
+        long lastTime = current.time;
+        try {
+            while (true) {
+                ByteBuffer batch;
+                boolean last;
+                lock.lock();
+                try {
+                    while (pending.position() == 0 && !closed)
+                        work.await();
+                    batch = pending;
+                    pending = writing;
+                    writing = batch;
+                    last = closed;
+                    room.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                batch.flip();
+                int start = 0;
+                long first = Long.MAX_VALUE, latest = Long.MIN_VALUE, records = 0;
+                for (int at = 0; at < batch.limit(); at += RECORD_BYTES) {
+                    long seq = batch.getLong(at), time = batch.getLong(at + 8);
+                    int row = batch.getInt(at + 16), col = batch.getInt(at + 20);
+                    int owner = storeId(batch.getInt(at + 24));
+                    batch.putInt(at + 24, owner);
+                    shadow.set(row, col, PlaceColor.fromNumber(batch.get(at + 28)), owner, time);
+                    first = Math.min(first, time);
+                    latest = Math.max(latest, time);
+                    records++;
+                    lastSeq = seq;
+                    lastTime = Math.max(lastTime, time);
+                    if (current.records + records >= KEYFRAME_EVERY) {
+                        flush(batch, start, at + RECORD_BYTES, current, first, latest, records);
+                        writeEntry(current);
+                        keyframe(shadow, lastSeq, lastTime);
+                        lock.lock();
+                        try {
+                            current = segments.get(segments.size() - 1);
+                        } finally {
+                            lock.unlock();
+                        }
+                        start = at + RECORD_BYTES;
+                        first = Long.MAX_VALUE;
+                        latest = Long.MIN_VALUE;
+                        records = 0;
+                    }
+                }
+                flush(batch, start, batch.limit(), current, first, latest, records);
+                batch.clear();
+                if (last) {
+                    writeEntry(current);
+                    delta.force(false);
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("History Failed, Changes Are No Longer Kept: " + e);
+        } catch (InterruptedException e) {
+            // closing
+        }
+        lock.lock();
+        try {
+            closed = true;
+            room.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            delta.close();
+            index.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+    }
+
+    /**
+     * Writes a run of records to the segment and counts them in it
+     * @param batch the records
+     * @param from where the run starts in the batch
+     * @param to where it ends
+     * @param s the segment
+     * @param first the earliest time in the run
+     * @param latest the latest time in the run
+     * @param records the records in the run
+     * @throws IOException if the segment can not be written
+     */
+    private void flush(ByteBuffer batch, int from, int to, Segment s, long first, long latest, long records)
+            throws IOException {
+        if (from == to)
+            return;
+        ByteBuffer run = batch.duplicate();
+        run.position(from).limit(to);
+        while (run.hasRemaining())
+            delta.write(run);
+        lock.lock();
+        try {
+            s.first = Math.min(s.first, first);
+            s.last = Math.max(s.last, latest);
+            s.records += records;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the store id of an owner of the live board
+     * @param live the id in the live board's owners
+     * @return the id in the store's owners
+     */
+    private int storeId(int live) {
+        if (live >= ids.length)
+            ids = Arrays.copyOf(ids, Math.max(ids.length * 2, live + 1));
+        if (ids[live] == 0 && live != 0)
+            ids[live] = OWNERS.idOf(LIVE.nameOf(live));
+        return ids[live];
+    }
+
+    /**
+     * What is done with every record read from a segment
+     */
+    public interface RecordVisitor {
+        /**
+         * Visits a record
+         * @param seq the sequence number
+         * @param time the time
+         * @param row the row
+         * @param col the column
+         * @param owner the store owner id
+         * @param color the color number
+         */
+        void visit(long seq, long time, int row, int col, int owner, int color);
+    }
+
+    /**
+     * Reads the records of a segment in order
+     * @param s the segment
+     * @param upTo the latest time wanted; records after it are skipped
+     * @param visitor what to do with every record
+     * @param records the records to read
+     * @throws IOException if the segment can not be read
+     */
+    private void scan(Segment s, long upTo, RecordVisitor visitor, long records) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_BYTES * 32768);
+        try (FileChannel ch = FileChannel.open(deltaPath(s.number), StandardOpenOption.READ)) {
+            long end = records * RECORD_BYTES;
+            for (long at = 0; at < end; ) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), end - at));
+                read(ch, buf, at);
+                at += buf.limit();
+                for (int i = 0; i < buf.limit(); i += RECORD_BYTES) {
+                    long time = buf.getLong(i + 8);
+                    if (time <= upTo)
+                        visitor.visit(buf.getLong(i), time, buf.getInt(i + 16), buf.getInt(i + 20),
+                                buf.getInt(i + 24), buf.get(i + 28));
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the keyframes as they are now
+     * @return copies of them
+     */
+    private Segment[] segments() {
+        lock.lock();
+        try {
+            Segment[] copy = new Segment[segments.size()];
+            for (int i = 0; i < copy.length; i++)
+                copy[i] = segments.get(i).copy();
+            return copy;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Finds the keyframe to start from for a moment
+     * @param segs the keyframes
+     * @param time the moment
+     * @return the last keyframe no later than it, the first if there is none
+     */
+    private static int keyframeFor(Segment[] segs, long time) {
+        int lo = 0, hi = segs.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (segs[mid].time <= time)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return lo;
+    }
+
+    /**
+     * Rebuilds the board as it was at a moment: the changes made at or
+     * before it are in, the later ones are not.  A moment before the history
+     * begins gives the board it began with.
+     * @param time the moment, in milliseconds since the epoch
+     * @return a new board on the heap, named with the store's owners and
+     *         stamped with the sequence number of its last change
+     * @throws IOException if the history can not be read
+     */
+    public PlaceBoard boardAt(long time) throws IOException {
+        Segment[] segs = segments();
+        if (segs.length == 0)
+            return new PlaceBoard(DIM, OWNERS);
+        int k = keyframeFor(segs, time);
+        PlaceBoard board = new PlaceBoard(DIM, OWNERS);
+        board.loadCheckpoint(keyPath(k));
+        long[] seq = {segs[k].seq};
+        for (int j = k; j < segs.length; j++)
+            if (segs[j].first <= time)
+                scan(segs[j], time, (s, t, row, col, owner, color) -> {
+                    board.set(row, col, PlaceColor.fromNumber(color), owner, t);
+                    seq[0] = Math.max(seq[0], s);
+                }, segs[j].records);
+        board.setSeq(seq[0]);
+        return board;
+    }
+
+    /**
+     * Looks up the changes to one tile over a stretch of time.
+     * @param row the row of the tile
+     * @param col the column of the tile
+     * @param from the start of the stretch, in milliseconds since the epoch
+     * @param to the end of the stretch
+     * @return the tile as it was at the start, then every change to it after
+     *         the start up to the end, in order
+     * @throws IOException if the history can not be read
+     */
+    public PlaceTile[] tileHistory(int row, int col, long from, long to) throws IOException {
+        Segment[] segs = segments();
+        ArrayList<PlaceTile> changes = new ArrayList<>();
+        if (segs.length == 0)
+            return new PlaceTile[]{new PlaceTile(row, col, "", PlaceColor.WHITE, 0)};
+        int k = keyframeFor(segs, from);
+        PlaceTile[] first = {PlaceBoard.openCheckpoint(keyPath(k), DIM).getTile(row, col)};
+        for (int j = k; j < segs.length; j++)
+            if (segs[j].first <= to)
+                scan(segs[j], to, (seq, time, r, c, owner, color) -> {
+                    if (r != row || c != col)
+                        return;
+                    PlaceTile t = new PlaceTile(row, col, OWNERS.nameOf(owner), PlaceColor.fromNumber(color), time);
+                    t.setSeq(seq);
+                    if (time <= from)
+                        first[0] = t;
+                    else
+                        changes.add(t);
+                }, segs[j].records);
+        changes.add(0, first[0]);
+        return changes.toArray(new PlaceTile[0]);
+    }
+
+    /**
+     * Goes through the changes made over a stretch of time, in the order they
+     * were made, reading them a block at a time.  Put on boardAt(from), they
+     * give the board at every moment up to the end.
+     * @param from the start of the stretch; changes at or before it are left out
+     * @param to the end of the stretch
+     * @param visitor what to do with every change; owner ids are the store's
+     * @throws IOException if the history can not be read
+     */
+    public void changes(long from, long to, RecordVisitor visitor) throws IOException {
+        Segment[] segs = segments();
+        if (segs.length == 0)
+            return;
+        for (int j = keyframeFor(segs, from); j < segs.length; j++)
+            if (segs[j].first <= to)
+                scan(segs[j], to, (seq, time, row, col, owner, color) -> {
+                    if (time > from)
+                        visitor.visit(seq, time, row, col, owner, color);
+                }, segs[j].records);
+    }
+
+    /**
+     * Get the square dimension of the board
+     * @return DIM
+     */
+    public int getDIM() {
+        return DIM;
+    }
+
+    /**
+     * Get the number of keyframes
+     * @return the keyframes
+     */
+    public int getKeyframes() {
+        lock.lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of changes in the history
+     * @return the changes
+     */
+    public long getChanges() {
+        lock.lock();
+        try {
+            long n = 0;
+            for (Segment s : segments)
+                n += s.records;
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the time the history begins
+     * @return the time of the first keyframe, 0 if there is none
+     */
+    public long getStart() {
+        lock.lock();
+        try {
+            return segments.isEmpty() ? 0 : segments.get(0).time;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the time of the last change in the history
+     * @return the time, the time of the last keyframe if it is later
+     */
+    public long getEnd() {
+        lock.lock();
+        try {
+            long end = 0;
+            for (Segment s : segments)
+                end = Math.max(end, Math.max(s.time, s.last));
+            return end;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops taking changes, and waits until everything appended is written
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            work.signal();
+            room.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (WRITER != null) {
+            try {
+                WRITER.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * The size of the history, for the stats line
+     * @return the keyframes and changes
+     */
+    @Override
+    public String toString() {
+        return "historyKeyframes=" + getKeyframes() + " historyChanges=" + getChanges();
+    }
+}
@@ -0,0 +1,130 @@
+package place.server;
+
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Instant;
+
+/**
+ * Looks back at the history a server keeps with -history.  It is run on the
+ * command line as one of:
+ *
+ * $ java place.server.HistoryTool dir info
+ * $ java place.server.HistoryTool dir board time
+ * $ java place.server.HistoryTool dir tile row col [from] [to]
+ *
+ * info tells what the history holds.  board rebuilds the board as it was at
+ * a moment and prints it (if it is small enough to read) and how many tiles
+ * had every color.  tile prints a tile as it was at from and every change to
+ * it up to to (the start and end of the history if they are left out).  A
+ * time is milliseconds since the epoch or an instant like
+ * 2017-04-03T12:00:00Z.  The history may be read while the server writes it.
+ *
+ * @author Cameron Myron
+ */
+public class HistoryTool {
+
+    /**
+     * The largest board printed in full
+     */
+    private static final int MAX_PRINTED = 64;
+
+    /**
+     * Runs the tool
+     * @param args the directory, the command and its arguments
+     */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            usage();
+            return;
+        }
+        try {
+            HistoryStore history = HistoryStore.read(Paths.get(args[0]));
+            switch (args[1]) {
+                case "info":
+                    System.out.println("DIM=" + history.getDIM() + " keyframes=" + history.getKeyframes()
+                            + " changes=" + history.getChanges());
+                    System.out.println("from " + Instant.ofEpochMilli(history.getStart())
+                            + " to " + Instant.ofEpochMilli(history.getEnd()));
+                    break;
+                case "board":
+                    if (args.length < 3) {
+                        usage();
+                        return;
+                    }
+                    board(history, parseTime(args[2]));
+                    break;
+                case "tile":
+                    if (args.length < 4) {
+                        usage();
+                        return;
+                    }
+                    tile(history, Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+                            args.length > 4 ? parseTime(args[4]) : history.getStart(),
+                            args.length > 5 ? parseTime(args[5]) : history.getEnd());
+                    break;
+                default:
+                    usage();
+            }
+        } catch (IOException e) {
+            System.out.println("Can Not Read History: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Prints the board as it was at a moment
+     * @param history the history
+     * @param time the moment
+     * @throws IOException if the history can not be read
+     */
+    private static void board(HistoryStore history, long time) throws IOException {
+        long start = System.nanoTime();
+        PlaceBoard board = history.boardAt(time);
+        long ms = (System.nanoTime() - start) / 1_000_000;
+        System.out.println("Board at " + Instant.ofEpochMilli(time) + " (change " + board.getSeq()
+                + ", rebuilt in " + ms + " ms)");
+        if (board.DIM <= MAX_PRINTED)
+            System.out.println(board);
+        long[] counts = new long[PlaceColor.TOTAL_COLORS];
+        for (int row = 0; row < board.DIM; row++)
+            for (int col = 0; col < board.DIM; col++)
+                counts[board.getColor(row, col).getNumber()]++;
+        for (PlaceColor c : PlaceColor.values())
+            if (counts[c.getNumber()] > 0)
+                System.out.println(c + "\t" + counts[c.getNumber()]);
+    }
+
+    /**
+     * Prints the changes to a tile over a stretch of time
+     * @param history the history
+     * @param row the row
+     * @param col the column
+     * @param from the start of the stretch
+     * @param to the end of the stretch
+     * @throws IOException if the history can not be read
+     */
+    private static void tile(HistoryStore history, int row, int col, long from, long to) throws IOException {
+        for (PlaceTile t : history.tileHistory(row, col, from, to))
+            System.out.println((t.getTime() == 0 ? "never changed" : Instant.ofEpochMilli(t.getTime()).toString())
+                    + "\t" + t.getColor() + "\t" + t.getOwner());
+    }
+
+    /**
+     * Reads a time from the command line
+     * @param s milliseconds since the epoch or an ISO-8601 instant
+     * @return the milliseconds since the epoch
+     */
+    static long parseTime(String s) {
+        return s.matches("\\d+") ? Long.parseLong(s) : Instant.parse(s).toEpochMilli();
+    }
+
+    /**
+     * Prints how the tool is run
+     */
+    private static void usage() {
+        System.out.println("Usage: java place.server.HistoryTool dir info | board time | tile row col [from] [to]");
+    }
+}
@@ -0,0 +1,232 @@
+package place.server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * One I/O thread of the NioServer.  It owns a Selector and every NioClient
+ * registered with it, so only this thread ever reads from or writes to those
+ * channels.  Other threads talk to it through queues and wake it up.  A
+ * client that throws while it is handled is closed on its own, so the loop
+ * keeps serving the rest.
+ *
+ * The loop never blocks on the board: a request that has to wait, for every
+ * stripe or for its tile to be forced to disk, is handed to the NioServer's
+ * worker or left with the log, and the client's reads are parked until the
+ * answer comes back through the resumes.
+ *
+ * @author Cameron Myron
+ */
+class IoLoop extends Thread {
+
+    /**
+     * The server
+     */
+    private final PlaceServer SERVER;
+
+    /**
+     * The selector of all the connections of this loop
+     */
+    private final Selector SELECTOR;
+
+    /**
+     * Connections accepted but not yet registered with the selector
+     */
+    private final ConcurrentLinkedQueue<NioClient> accepted = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Clients the join stage has answered
+     */
+    private final ConcurrentLinkedQueue<NioClient> joins = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Connections in the order they arrived, until their LOGIN is due
+     */
+    private final ArrayDeque<NioClient> arriving = new ArrayDeque<>();
+
+    /**
+     * Clients whose parked request is done
+     */
+    private final ConcurrentLinkedQueue<NioClient> resumes = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Does the work that waits for every stripe
+     */
+    private final Executor WORKER;
+
+    /**
+     * Clients that have new outbound frames
+     */
+    private final ConcurrentLinkedQueue<NioClient> flushes = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Creates the loop
+     * @param server the server
+     * @param id the number of the loop
+     * @param worker does the work that waits for every stripe
+     * @throws IOException if the selector can not be opened
+     */
+    IoLoop(PlaceServer server, int id, Executor worker) throws IOException {
+        super("IoLoop-" + id);
+        SERVER = server;
+        WORKER = worker;
+        SELECTOR = Selector.open();
+    }
+
+    /**
+     * Hands a new connection to this loop. Can be called from any thread.
+     * @param s the connection
+     * @param ticket what it took from the admission control
+     */
+    void add(SocketChannel s, AdmissionControl.Ticket ticket) {
+        accepted.add(new NioClient(SERVER, this, s,
+                System.currentTimeMillis() + SERVER.getLogins().getTimeout(), ticket));
+        SELECTOR.wakeup();
+    }
+
+    /**
+     * Hands back a client the join stage has answered. Can be called from any thread.
+     * @param c the client
+     */
+    void joined(NioClient c) {
+        joins.add(c);
+        SELECTOR.wakeup();
+    }
+
+    /**
+     * Hands back a client whose parked request is done. Can be called from any thread.
+     * @param c the client
+     */
+    void resume(NioClient c) {
+        resumes.add(c);
+        SELECTOR.wakeup();
+    }
+
+    /**
+     * Runs work that waits for every stripe off the loop
+     * @param task the work
+     */
+    void offload(Runnable task) {
+        WORKER.execute(task);
+    }
+
+    /**
+     * Asks the loop to write a client's pending frames. Can be called from any thread.
+     * @param c the client
+     */
+    void flush(NioClient c) {
+        flushes.add(c);
+        SELECTOR.wakeup();
+    }
+
+    /**
+     * Runs the selector forever
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                long wake = Long.MAX_VALUE;
+                NioClient first = arriving.peek();
+                if (first != null)
+                    wake = first.getLoginBy();
+                if (wake == Long.MAX_VALUE)
+                    SELECTOR.select();
+                else
+                    SELECTOR.select(Math.max(1, wake - System.currentTimeMillis()));
+
+                NioClient c;
+                while ((c = accepted.poll()) != null)
+                    register(c);
+
+                while ((c = joins.poll()) != null) {
+                    try {
+                        c.joined();
+                    } catch (RuntimeException e) {
+                        crashed(c, e);
+                    }
+                }
+
+                while ((c = resumes.poll()) != null) {
+                    try {
+                        c.unpark();
+                    } catch (RuntimeException e) {
+                        crashed(c, e);
+                    }
+                }
+
+                while ((c = flushes.poll()) != null) {
+                    try {
+                        c.flush();
+                    } catch (RuntimeException e) {
+                        crashed(c, e);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = SELECTOR.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    c = (NioClient) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable())
+                            c.flush();
+                        if (key.isValid() && key.isReadable())
+                            c.read();
+                    } catch (RuntimeException e) {
+                        crashed(c, e);
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                while ((c = arriving.peek()) != null && c.getLoginBy() <= now) {
+                    arriving.poll();
+                    try {
+                        c.expire();
+                    } catch (RuntimeException e) {
+                        crashed(c, e);
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println(e);
+            }
+        }
+    }
+
+    /**
+     * Registers a new connection with the selector, starts the clock on its
+     * LOGIN and checks the access list
+     * @param c the connection
+     */
+    private void register(NioClient c) {
+        try {
+            c.register(SELECTOR);
+            arriving.add(c);
+            if (!SERVER.allowed(c.getInetAddress()))
+                c.reject("You Are Not Allowed On This Server!");
+        } catch (IOException | RuntimeException e) {
+            c.close();
+        }
+    }
+
+    /**
+     * Closes a client whose handling failed, so the loop and every other
+     * client on it carry on
+     * @param c the client
+     * @param e what went wrong
+     */
+    private void crashed(NioClient c, RuntimeException e) {
+        System.out.println(getName() + ": " + e);
+        try {
+            c.close();
+        } catch (RuntimeException again) {
+            // squash
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package place.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts latencies in milliseconds, from any number of threads at once, for
+ * a window at a time.  A latency goes in a bucket: exact ones up to 3 ms, and
+ * after that four buckets for every power of two, so a percentile read back
+ * is at most a quarter too high.  Recording is one add to a striped counter,
+ * cheap enough for every frame sent.
+ *
+ * @author Cameron Myron
+ */
+class LatencyHistogram {
+
+    /**
+     * The buckets, enough for latencies of days
+     */
+    private static final int BUCKETS = 128;
+
+    /**
+     * The latencies in every bucket since the last drain
+     */
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+
+    /**
+     * Create an empty histogram
+     */
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts[i] = new LongAdder();
+    }
+
+    /**
+     * Counts a latency
+     * @param ms the latency in milliseconds, taken as 0 if less
+     */
+    void record(long ms) {
+        counts[bucket(Math.max(0, ms))].increment();
+    }
+
+    /**
+     * Get the bucket of a latency
+     * @param ms the latency, not less than 0
+     * @return the bucket
+     */
+    private static int bucket(long ms) {
+        if (ms < 4)
+            return (int) ms;
+        int power = 63 - Long.numberOfLeadingZeros(ms);
+        return Math.min(BUCKETS - 1, (power - 1) * 4 + (int) (ms >>> (power - 2) & 3));
+    }
+
+    /**
+     * Get the most a latency in a bucket can be
+     * @param bucket the bucket
+     * @return the milliseconds
+     */
+    private static long top(int bucket) {
+        if (bucket < 4)
+            return bucket;
+        int power = bucket / 4 + 1;
+        return ((4L + bucket % 4 + 1) << (power - 2)) - 1;
+    }
+
+    /**
+     * Reads a percentile of the latencies counted since the last drain and
+     * starts the next window
+     * @param percentile the percentile, from 0 to 100
+     * @return the latency at or under which that many of them were, in
+     *         milliseconds, 0 if there were none
+     */
+    long drain(double percentile) {
+        long[] taken = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            total += taken[i] = counts[i].sumThenReset();
+        if (total == 0)
+            return 0;
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += taken[i];
+            if (seen >= Math.max(1, rank))
+                return top(i);
+        }
+        return top(BUCKETS - 1);
+    }
+}
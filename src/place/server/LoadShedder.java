@@ -0,0 +1,321 @@
+package place.server;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps an eye on how the server is holding up and sheds load when it is
+ * not, instead of a fixed number of clients deciding it.  Every window (a
+ * second unless given) it looks at three things: how long tile changes took
+ * from their commit to being written to the clients, at the 99th percentile;
+ * the bytes waiting in all the outbound queues; and the connections waiting
+ * on their LOGIN or join.  Each has an objective, and one left at 0 is not
+ * looked at.
+ *
+ * When any of them is over its objective two windows in a row the server
+ * goes one level down, each level keeping what the ones before it do:
+ *
+ *      SPECTATE: new logins are spectators, who see the board but whose tiles
+ *          are refused with a COOLDOWN until the server is back to NORMAL<br>
+ *      SLOW: the broadcast tick is made longer, so the same changes go out in
+ *          fewer, bigger batches (only with a tick; without one this level is
+ *          skipped), and the latency objective is as much longer<br>
+ *      REJECT: new connections are turned away at the accept<br>
+ *
+ * Once all of them are under half their objectives for recover windows in a
+ * row it goes one level back up, and the window count starts again, so it
+ * never flaps between two levels every window.  On the way back to NORMAL
+ * the spectators become players and are told with a COOLDOWN of 0.  Every
+ * change of level is logged, with what caused it, and the level and the
+ * measurements of the last window are in the stats.
+ *
+ * @author Cameron Myron
+ */
+public class LoadShedder {
+
+    /**
+     * How the server is doing, from best to worst
+     */
+    public enum Level {
+        /** Nothing is shed */
+        NORMAL,
+        /** New logins are spectators */
+        SPECTATE,
+        /** And the broadcast tick is longer */
+        SLOW,
+        /** And new connections are turned away */
+        REJECT
+    }
+
+    /**
+     * Windows in a row over an objective before going a level down
+     */
+    private static final int ESCALATE = 2;
+
+    /**
+     * The server
+     */
+    private final PlaceServer SERVER;
+
+    /**
+     * The commit to send latencies, counted by the outbound queues
+     */
+    private final LatencyHistogram LATENCY;
+
+    /**
+     * Milliseconds in a window
+     */
+    private final long WINDOW;
+
+    /**
+     * The objective of the 99th percentile commit to send latency in
+     * milliseconds, 0 for none
+     */
+    private final long MAX_LATENCY;
+
+    /**
+     * The objective of the bytes in all the outbound queues, 0 for none
+     */
+    private final long MAX_QUEUED;
+
+    /**
+     * The objective of the connections waiting on their LOGIN, 0 for none
+     */
+    private final int MAX_PENDING;
+
+    /**
+     * Healthy windows in a row before going a level up
+     */
+    private final int RECOVER;
+
+    /**
+     * The broadcast tick at SLOW and worse, in milliseconds
+     */
+    private final long SLOW_TICK;
+
+    /**
+     * The sessions that logged in as spectators
+     */
+    private final Set<Session> spectators = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The level the server is at
+     */
+    private volatile Level level = Level.NORMAL;
+
+    /**
+     * The windows in a row over an objective
+     */
+    private int bad;
+
+    /**
+     * The windows in a row under half of every objective
+     */
+    private int good;
+
+    /**
+     * The changes of level
+     */
+    private volatile long changes;
+
+    /**
+     * The 99th percentile latency of the last window
+     */
+    private volatile long lastLatency;
+
+    /**
+     * The queued bytes at the end of the last window
+     */
+    private volatile long lastQueued;
+
+    /**
+     * The waiting connections at the end of the last window
+     */
+    private volatile int lastPending;
+
+    /**
+     * Create a load shedder.
+     * @param server the server
+     * @param latency the commit to send latencies
+     * @param window the milliseconds in a window
+     * @param maxLatency the objective of the 99th percentile latency in milliseconds, 0 for none
+     * @param maxQueued the objective of the bytes in all the outbound queues, 0 for none
+     * @param maxPending the objective of the connections waiting on their LOGIN, 0 for none
+     * @param recover the healthy windows in a row before going a level up
+     * @param slowTick the broadcast tick at SLOW, in milliseconds
+     */
+    LoadShedder(PlaceServer server, LatencyHistogram latency, long window, long maxLatency, long maxQueued,
+                int maxPending, int recover, long slowTick) {
+        SERVER = server;
+        LATENCY = latency;
+        WINDOW = Math.max(1, window);
+        MAX_LATENCY = maxLatency;
+        MAX_QUEUED = maxQueued;
+        MAX_PENDING = maxPending;
+        RECOVER = Math.max(1, recover);
+        SLOW_TICK = slowTick;
+    }
+
+    /**
+     * Get the milliseconds in a window
+     * @return the window
+     */
+    long getWindow() {
+        return WINDOW;
+    }
+
+    /**
+     * Ends a window: takes the measurements, and goes a level down or up if
+     * they call for it. Only called from the timers thread.
+     */
+    void check() {
+        long latency = LATENCY.drain(99);
+        long queued = SERVER.getQueuedBytes();
+        int pending = SERVER.getAdmission().getPending();
+        lastLatency = latency;
+        lastQueued = queued;
+        lastPending = pending;
+
+        long slowing = slowing();
+        String over = null;
+        if (MAX_LATENCY > 0 && latency - slowing > MAX_LATENCY)
+            over = "commit to send p99 " + latency + " ms over " + (MAX_LATENCY + slowing) + " ms";
+        else if (MAX_QUEUED > 0 && queued > MAX_QUEUED)
+            over = "queued " + queued + " bytes over " + MAX_QUEUED;
+        else if (MAX_PENDING > 0 && pending > MAX_PENDING)
+            over = pending + " pending logins over " + MAX_PENDING;
+        boolean healthy = (MAX_LATENCY == 0 || latency - slowing <= MAX_LATENCY / 2)
+                && (MAX_QUEUED == 0 || queued <= MAX_QUEUED / 2)
+                && (MAX_PENDING == 0 || pending <= MAX_PENDING / 2);
+
+        if (over != null) {
+            good = 0;
+            if (++bad >= ESCALATE && level != Level.REJECT) {
+                bad = 0;
+                Level next = Level.values()[level.ordinal() + 1];
+                if (next == Level.SLOW && SERVER.getScheduler() == null)
+                    next = Level.REJECT;
+                change(next, over);
+            }
+        } else {
+            bad = 0;
+            if (healthy && level != Level.NORMAL && ++good >= RECOVER) {
+                good = 0;
+                Level next = Level.values()[level.ordinal() - 1];
+                if (next == Level.SLOW && SERVER.getScheduler() == null)
+                    next = Level.SPECTATE;
+                change(next, "commit to send p99 " + latency + " ms, queued " + queued + " bytes, "
+                        + pending + " pending logins");
+            } else if (!healthy) {
+                good = 0;
+            }
+        }
+    }
+
+    /**
+     * Get how much longer the broadcast tick is than it would be at NORMAL,
+     * which tiles wait on purpose and so is allowed on top of the latency
+     * objective
+     * @return the milliseconds, 0 if the tick is as given
+     */
+    private long slowing() {
+        if (level.compareTo(Level.SLOW) < 0 || SERVER.getScheduler() == null)
+            return 0;
+        return Math.max(0, SLOW_TICK - SERVER.getTick());
+    }
+
+    /**
+     * Goes to another level and does what it takes
+     * @param next the level
+     * @param why what caused it, for the log
+     */
+    private void change(Level next, String why) {
+        Level was = level;
+        level = next;
+        changes++;
+        BroadcastScheduler scheduler = SERVER.getScheduler();
+        if (scheduler != null)
+            scheduler.setTick(next.compareTo(Level.SLOW) >= 0 ? Math.max(SLOW_TICK, SERVER.getTick()) : SERVER.getTick());
+        SERVER.getAdmission().setShedding(next == Level.REJECT);
+        System.out.println("Health: " + was + " -> " + next + " (" + why + ")");
+        if (next == Level.NORMAL) {
+            synchronized (this) {
+                for (Session s : spectators) {
+                    spectators.remove(s);
+                    s.cooldown(0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts a session that just joined, as a spectator if the server is
+     * shedding load.  It is a spectator before it is started, so not one of
+     * its tiles gets in; and the spectators are not promoted while it starts,
+     * so it is never told it may place ahead of its LOGIN_SUCCESS.
+     * @param s the session
+     * @param start starts the session
+     * @return whether it is a spectator
+     */
+    synchronized boolean join(Session s, Runnable start) {
+        boolean spectator = level != Level.NORMAL;
+        if (spectator)
+            spectators.add(s);
+        start.run();
+        return spectator;
+    }
+
+    /**
+     * Forgets a session that left
+     * @param s the session
+     */
+    void left(Session s) {
+        spectators.remove(s);
+    }
+
+    /**
+     * Whether a session is a spectator, whose tiles are refused
+     * @param s the session
+     * @return is it?
+     */
+    boolean isSpectator(Session s) {
+        return !spectators.isEmpty() && spectators.contains(s);
+    }
+
+    /**
+     * Get the level the server is at
+     * @return the level
+     */
+    public Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Get the changes of level so far
+     * @return the count
+     */
+    public long getChanges() {
+        return changes;
+    }
+
+    /**
+     * Get the 99th percentile commit to send latency of the last window
+     * @return the latency in milliseconds
+     */
+    public long getLatency() {
+        return lastLatency;
+    }
+
+    /**
+     * The level and the last window as part of a line for the log
+     *
+     * @return the level, the changes of level, the spectators, and the
+     *         latency, queued bytes and pending logins of the last window
+     */
+    @Override
+    public String toString() {
+        return "health=" + level + " healthChanges=" + changes + " spectators=" + spectators.size()
+                + " commitToSendP99=" + lastLatency + " windowQueuedBytes=" + lastQueued
+                + " windowPending=" + lastPending;
+    }
+}
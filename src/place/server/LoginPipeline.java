@@ -0,0 +1,410 @@
+package place.server;
+
+import place.network.PlaceExchange;
+import place.network.PlaceRequest;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * The stages a new connection goes through before it is a client, once the
+ * AdmissionControl has let it in.  The accept thread only hands the socket
+ * on, so a slow or silent connection never holds up the next accept:
+ *
+ *      check: the access list and room on the server, then the greeting a
+ *          client on bare object streams waits for<br>
+ *      read: waits for the LOGIN, until login-timeout milliseconds after the
+ *          accept (5000)<br>
+ *      join: takes the board snapshot, reserves the username and starts the
+ *          client<br>
+ *
+ * Each stage has threads of its own and a bounded queue (login-queue, 1024).
+ * A connection that finds a queue full is told the server is busy and closed
+ * rather than left waiting.  The read stage blocks, so it has the most
+ * threads (login-threads, 64); in virtual mode it runs a virtual thread per
+ * connection instead, up to login-queue of them at once.  In NIO mode the
+ * IoLoops read the LOGIN themselves and only the join stage is used.
+ *
+ * @author Cameron Myron
+ */
+class LoginPipeline {
+
+    /**
+     * The error sent when a stage has no room
+     */
+    static final String BUSY = "Server Is Busy!";
+
+    /**
+     * One stage: its threads, its queue and how long connections spend in it
+     */
+    static final class Stage {
+
+        /**
+         * The name of the stage
+         */
+        private final String NAME;
+
+        /**
+         * The threads and the queue, or the virtual threads
+         */
+        private final Executor EXECUTOR;
+
+        /**
+         * The connections a virtual stage may still take, null for a pool
+         */
+        private final Semaphore SLOTS;
+
+        /**
+         * Connections that went through the stage
+         */
+        private final LongAdder done = new LongAdder();
+
+        /**
+         * Connections turned away because the queue was full
+         */
+        private final LongAdder rejected = new LongAdder();
+
+        /**
+         * Nanoseconds spent waiting in the queue
+         */
+        private final LongAdder waited = new LongAdder();
+
+        /**
+         * Nanoseconds spent being handled
+         */
+        private final LongAdder busy = new LongAdder();
+
+        /**
+         * The longest a connection spent in the stage, in nanoseconds
+         */
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * Creates a stage
+         * @param name the name of the stage
+         * @param threads the number of threads
+         * @param queue the most connections that may wait
+         */
+        Stage(String name, int threads, int queue) {
+            NAME = name;
+            AtomicInteger count = new AtomicInteger();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(Math.max(1, queue)), r -> {
+                        Thread t = new Thread(r, "Login-" + name + "-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            EXECUTOR = pool;
+            SLOTS = null;
+        }
+
+        /**
+         * Creates a stage that starts a thread per connection, such as a
+         * virtual thread, so nothing waits for a thread to be free
+         * @param name the name of the stage
+         * @param threads starts a thread per task
+         * @param queue the most connections that may be in the stage at once
+         */
+        Stage(String name, Executor threads, int queue) {
+            NAME = name;
+            EXECUTOR = threads;
+            SLOTS = new Semaphore(Math.max(1, queue));
+        }
+
+        /**
+         * Queues a connection for the stage
+         * @param task what the stage does with it
+         * @return false if the queue is full
+         */
+        boolean submit(Runnable task) {
+            long queued = System.nanoTime();
+            if (SLOTS != null && !SLOTS.tryAcquire()) {
+                rejected.increment();
+                return false;
+            }
+            try {
+                EXECUTOR.execute(() -> {
+                    long start = System.nanoTime();
+                    try {
+                        task.run();
+                    } finally {
+                        long end = System.nanoTime();
+                        done.increment();
+                        waited.add(start - queued);
+                        busy.add(end - start);
+                        max.accumulateAndGet(end - queued, Math::max);
+                        if (SLOTS != null)
+                            SLOTS.release();
+                    }
+                });
+                return true;
+            } catch (RejectedExecutionException e) {
+                if (SLOTS != null)
+                    SLOTS.release();
+                rejected.increment();
+                return false;
+            }
+        }
+
+        /**
+         * The stage as part of a line for the log
+         * @return the counts, the average wait and run and the longest time in milliseconds
+         */
+        @Override
+        public String toString() {
+            long n = Math.max(1, done.sum());
+            return String.format("%s=%d/%d/%.1f/%.1f/%.1f", NAME, done.sum(), rejected.sum(),
+                    waited.sum() / n / 1e6, busy.sum() / n / 1e6, max.get() / 1e6);
+        }
+    }
+
+    /**
+     * The server
+     */
+    private final PlaceServer SERVER;
+
+    /**
+     * The server metrics
+     */
+    private final ServerMetrics METRICS;
+
+    /**
+     * How long a connection has to send its LOGIN, in milliseconds
+     */
+    private final long TIMEOUT;
+
+    /**
+     * The access list and room check
+     */
+    private final Stage CHECK;
+
+    /**
+     * The LOGIN read
+     */
+    private final Stage READ;
+
+    /**
+     * The snapshot and the registration
+     */
+    private final Stage JOIN;
+
+    /**
+     * Closes the connections whose LOGIN is late
+     */
+    private final ScheduledThreadPoolExecutor DEADLINES;
+
+    /**
+     * Logins that made it online
+     */
+    private final LongAdder online = new LongAdder();
+
+    /**
+     * Nanoseconds from accept to online, summed over the logins
+     */
+    private final LongAdder onlineNanos = new LongAdder();
+
+    /**
+     * The longest a login took from accept to online, in nanoseconds
+     */
+    private final AtomicLong onlineMax = new AtomicLong();
+
+    /**
+     * Creates the pipeline
+     * @param server the server
+     * @param metrics the server metrics
+     * @param timeout how long a connection has to send its LOGIN, in milliseconds
+     * @param readThreads the threads waiting for LOGINs
+     * @param virtual starts a virtual thread per LOGIN to wait for in place
+     *                of the read threads, null for none
+     * @param queue the most connections waiting for each stage
+     */
+    LoginPipeline(PlaceServer server, ServerMetrics metrics, long timeout, int readThreads, Executor virtual,
+                  int queue) {
+        SERVER = server;
+        METRICS = metrics;
+        TIMEOUT = timeout;
+        CHECK = new Stage("check", 1, queue);
+        READ = virtual != null ? new Stage("read", virtual, queue)
+                : new Stage("read", Math.max(1, readThreads), queue);
+        JOIN = new Stage("join", 1, queue);
+        DEADLINES = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "Login-deadline");
+            t.setDaemon(true);
+            return t;
+        });
+        DEADLINES.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Get how long a connection has to send its LOGIN
+     * @return the timeout in milliseconds
+     */
+    long getTimeout() {
+        return TIMEOUT;
+    }
+
+    /**
+     * Hands on a socket the accept thread just accepted and admitted
+     * @param s the socket
+     * @param ticket what it took from the admission control, given back once
+     *               it is online or closed
+     */
+    void accepted(Socket s, AdmissionControl.Ticket ticket) {
+        long at = System.nanoTime();
+        if (!CHECK.submit(() -> check(s, at, ticket))) {
+            try {
+                refuse(new PlaceExchange(s), BUSY);
+            } catch (IOException e) {
+                close(s);
+            }
+            ticket.closed();
+        }
+    }
+
+    /**
+     * The check stage: the access list and room on the server
+     * @param s the socket
+     * @param at when it was accepted
+     * @param ticket what it took from the admission control
+     */
+    private void check(Socket s, long at, AdmissionControl.Ticket ticket) {
+        PlaceExchange e;
+        try {
+            e = new PlaceExchange(s);
+        } catch (IOException ex) {
+            close(s);
+            ticket.closed();
+            return;
+        }
+        e.onClose(ticket::closed);
+        e.setMaxFrame(PlaceExchange.MAX_REQUEST);
+        if (!SERVER.allowed(s.getInetAddress()))
+            refuse(e, "You Are Not Allowed On This Server!");
+        else if (SERVER.isFull())
+            refuse(e, "Server Is Full!");
+        else {
+            try {
+                e.greet();
+            } catch (IOException ex) {
+                e.close();
+                return;
+            }
+            long left = TIMEOUT - (System.nanoTime() - at) / 1_000_000;
+            Future<?> deadline = DEADLINES.schedule(() -> {
+                METRICS.loginTimeouts.increment();
+                e.close();
+            }, Math.max(0, left), TimeUnit.MILLISECONDS);
+            if (!READ.submit(() -> read(e, deadline, at, ticket))) {
+                deadline.cancel(false);
+                refuse(e, BUSY);
+            }
+        }
+    }
+
+    /**
+     * The read stage: waits for the LOGIN. The deadline closes the socket if
+     * it is late, which ends the wait.
+     * @param e the connection
+     * @param deadline closes the connection when the time is up
+     * @param at when it was accepted
+     * @param ticket what it took from the admission control
+     */
+    private void read(PlaceExchange e, Future<?> deadline, long at, AdmissionControl.Ticket ticket) {
+        PlaceRequest<?> req;
+        try {
+            req = e.receive();
+        } catch (IOException | ClassNotFoundException ex) {
+            deadline.cancel(false);
+            e.close();
+            return;
+        }
+        if (!deadline.cancel(false))
+            return;
+        if (req.getType() != PlaceRequest.RequestType.LOGIN || !(req.getData() instanceof String)) {
+            System.err.println("Invalid Protocol");
+            refuse(e, "Invalid Command: Terminating Connection");
+            return;
+        }
+        Client c = new Client(SERVER, e, (String) req.getData());
+        boolean queued = join(c, at, error -> {
+            if (error != null)
+                refuse(e, error);
+            else
+                ticket.joined();
+        });
+        if (!queued)
+            refuse(e, BUSY);
+    }
+
+    /**
+     * Queues a client that sent its LOGIN for the join stage
+     * @param c the client
+     * @param at when it was accepted, from System.nanoTime
+     * @param joined told null once the client is online, or why it was refused
+     * @return false if the join queue is full
+     */
+    boolean join(Session c, long at, Consumer<String> joined) {
+        return JOIN.submit(() -> {
+            String error = SERVER.register(c);
+            if (error == null) {
+                long took = System.nanoTime() - at;
+                online.increment();
+                onlineNanos.add(took);
+                onlineMax.accumulateAndGet(took, Math::max);
+            }
+            joined.accept(error);
+        });
+    }
+
+    /**
+     * Sends an error to a connection that did not make it and closes it
+     * @param e the connection
+     * @param error the error message
+     */
+    private static void refuse(PlaceExchange e, String error) {
+        try {
+            e.send(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, error));
+        } catch (IOException ex) {
+            // squash
+        }
+        e.close();
+    }
+
+    /**
+     * Closes a socket
+     * @param s the socket
+     */
+    private static void close(Socket s) {
+        try {
+            s.close();
+        } catch (IOException e) {
+            // squash
+        }
+    }
+
+    /**
+     * The stages as part of a line for the log. Each stage shows the
+     * connections it handled and rejected, the average milliseconds waited
+     * and spent in it and the longest it held one.
+     * @return the stages, then the logins and their average and longest time from accept to online
+     */
+    @Override
+    public String toString() {
+        long n = Math.max(1, online.sum());
+        return CHECK + " " + READ + " " + JOIN + String.format(" online=%d/%.1f/%.1f",
+                online.sum(), onlineNanos.sum() / n / 1e6, onlineMax.get() / 1e6);
+    }
+}
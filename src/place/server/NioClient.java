@@ -0,0 +1,606 @@
+package place.server;
+
+import place.PlaceTile;
+import place.network.BinaryCodec;
+import place.network.Codec;
+import place.network.PlaceExchange;
+import place.network.PlaceRequest;
+import place.network.SerialCodec;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A client connection run by an IoLoop.  Reads and writes only ever happen on
+ * the loop's thread; other threads (tile changes made by clients of other
+ * loops) just add frames to its OutboundQueue and ask the loop to flush them.
+ *
+ * The loop thread never waits on the board either.  A tile placed while the
+ * log forces every commit parks the client's reads until the log's writer
+ * says it is on disk, so the next request is handled after the tile is
+ * acknowledged, as a Client's thread would be; a subscribe parks them until
+ * the IoLoop's worker has taken every stripe and sent the chunks, and a
+ * resync goes to the worker without holding up the reads.
+ *
+ * @author Cameron Myron
+ */
+class NioClient implements Session {
+
+    /**
+     * The most buffers handed to one gathering write
+     */
+    private static final int GATHER = 64;
+
+    /**
+     * No COOLDOWN is waiting for the loop
+     */
+    private static final long NO_COOLDOWN = Long.MIN_VALUE;
+
+    /**
+     * The server
+     */
+    private final PlaceServer SERVER;
+
+    /**
+     * The I/O thread that owns this client
+     */
+    private final IoLoop LOOP;
+
+    /**
+     * The connection
+     */
+    private final SocketChannel CHANNEL;
+
+    /**
+     * The selection key of the connection
+     */
+    private SelectionKey key;
+
+    /**
+     * Bytes read but not yet decoded
+     */
+    private ByteBuffer in = ByteBuffer.allocate(1024);
+
+    /**
+     * Frames waiting to be written
+     */
+    private final OutboundQueue out;
+
+    /**
+     * The buffers of the current gathering write
+     */
+    private final ByteBuffer[] gather = new ByteBuffer[GATHER];
+
+    /**
+     * Whether a flush has already been asked of the loop
+     */
+    private final AtomicBoolean flushing = new AtomicBoolean();
+
+    /**
+     * Whether a resync is with the IoLoop's worker, so the frames written
+     * meanwhile do not ask for another
+     */
+    private final AtomicBoolean resyncing = new AtomicBoolean();
+
+    /**
+     * A COOLDOWN another thread left for the loop to queue, NO_COOLDOWN if none
+     */
+    private final AtomicLong nextCooldown = new AtomicLong(NO_COOLDOWN);
+
+    /**
+     * When the connection was accepted, from System.nanoTime
+     */
+    private final long ACCEPTED_AT = System.nanoTime();
+
+    /**
+     * When the LOGIN has to have arrived, in milliseconds
+     */
+    private final long LOGIN_BY;
+
+    /**
+     * The codec, null until the LOGIN arrives
+     */
+    private Codec codec;
+
+    /**
+     * The username, null until the LOGIN arrives
+     */
+    private volatile String username;
+
+    /**
+     * Whether the server has accepted the login (set by the join stage)
+     */
+    private volatile boolean loggedIn;
+
+    /**
+     * Whether the LOGIN is with the join stage. Loop thread only.
+     */
+    private boolean joining;
+
+    /**
+     * Why the join stage refused the login, null if it did not
+     */
+    private volatile String joinError;
+
+    /**
+     * Whether reading waits for a placed tile to reach the disk or for a
+     * subscribe to be handled. Loop thread only.
+     */
+    private boolean parked;
+
+    /**
+     * Whether the connection closes once the pending frames are written
+     */
+    private boolean closing;
+
+    /**
+     * Whether the connection is closed
+     */
+    private boolean closed;
+
+    /**
+     * Whether the client fell too far behind and has to be dropped
+     */
+    private volatile boolean overflow;
+
+    /**
+     * The address the client connected from
+     */
+    private final String ADDRESS;
+
+    /**
+     * What the connection took from the admission control
+     */
+    private final AdmissionControl.Ticket TICKET;
+
+    /**
+     * Creates the client
+     * @param s the server
+     * @param loop the I/O thread
+     * @param channel the connection
+     * @param loginBy when the LOGIN has to have arrived, in milliseconds
+     * @param ticket what the connection took from the admission control,
+     *               given back once it is online or closed
+     */
+    NioClient(PlaceServer s, IoLoop loop, SocketChannel channel, long loginBy, AdmissionControl.Ticket ticket) {
+        SERVER = s;
+        LOOP = loop;
+        CHANNEL = channel;
+        LOGIN_BY = loginBy;
+        TICKET = ticket;
+        ADDRESS = channel.socket().getInetAddress().getHostAddress();
+        out = s.newQueue();
+    }
+
+    /**
+     * Makes the connection non-blocking and registers it for reading
+     * @param selector the selector of the loop
+     * @throws IOException if the channel is closed
+     */
+    void register(Selector selector) throws IOException {
+        CHANNEL.configureBlocking(false);
+        CHANNEL.socket().setTcpNoDelay(true);
+        key = CHANNEL.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    /**
+     * Get the address the client connected from
+     * @return the address
+     */
+    InetAddress getInetAddress() {
+        return CHANNEL.socket().getInetAddress();
+    }
+
+    /**
+     * The getter for the username
+     * @return the username
+     */
+    @Override
+    public String getUSERNAME() {
+        return username;
+    }
+
+    /**
+     * The getter for the codec
+     * @return the codec, Java serialization until the LOGIN arrives
+     */
+    @Override
+    public Codec getCodec() {
+        return codec == null ? SerialCodec.INSTANCE : codec;
+    }
+
+    /**
+     * Sends the login success and the board. Called by the server while it
+     * holds every stripe and before the client is online, so no tile change
+     * can come before the board.
+     * @param board the board
+     * @param missed the changes made since the board was taken
+     */
+    @Override
+    public void start(BoardSnapshot board, PlaceTile[] missed) {
+        loggedIn = true;
+        send(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN_SUCCESS, username), false);
+        if (board != null)
+            sendBoard(board, missed);
+        else
+            catchUp(missed);
+    }
+
+    /**
+     * Queues the shared frame of a tile change, after the names of any owners
+     * the client has not seen yet
+     * @param b the broadcast
+     */
+    @Override
+    public synchronized void broadcast(Broadcast b) {
+        if (codec instanceof BinaryCodec) {
+            byte[] names = ((BinaryCodec) codec).announce(b.getOwnerIds());
+            if (names != null)
+                send(names, false);
+        }
+        queue(b.frame(codec), b.getCommitted());
+    }
+
+    /**
+     * Queues the whole board, and the changes made since it was taken
+     * @param board the board
+     * @param missed the changes made since
+     */
+    @Override
+    public synchronized void sendBoard(BoardSnapshot board, PlaceTile[] missed) {
+        board.announceTo(getCodec());
+        offered(out.offerBoard(board.frame()));
+        if (missed.length > 0)
+            catchUp(missed);
+        out.resynced();
+    }
+
+    /**
+     * Queues the changes that bring the client up to date after a board or
+     * a resume, which like the board are never dropped
+     * @param missed the changes
+     */
+    private synchronized void catchUp(PlaceTile[] missed) {
+        offered(out.offerBoard(SharedFrame.wrap(getCodec().encode(
+                new PlaceRequest<>(PlaceRequest.RequestType.TILES_CHANGED, missed)))));
+    }
+
+    /**
+     * Get the bytes waiting to be written
+     * @return the queue depth in bytes
+     */
+    @Override
+    public long getQueuedBytes() {
+        return out.getBytes();
+    }
+
+    /**
+     * Queues a COOLDOWN, if the client speaks a protocol that has it, in
+     * place of one that is still waiting. Only the loop thread queues it,
+     * since the loop writes frames while they are still queued; from any
+     * other thread it is left for the loop's next flush, where the last one
+     * left wins.
+     * @param wait the milliseconds, as the server says them
+     */
+    @Override
+    public void cooldown(long wait) {
+        if (!getCodec().knows(PlaceRequest.RequestType.COOLDOWN))
+            return;
+        if (Thread.currentThread() == LOOP) {
+            nextCooldown.set(NO_COOLDOWN);
+            queueCooldown(wait);
+        } else {
+            nextCooldown.set(wait);
+            if (flushing.compareAndSet(false, true))
+                LOOP.flush(this);
+        }
+    }
+
+    /**
+     * Encodes a COOLDOWN and queues it in place of one still waiting. Loop thread only.
+     * @param wait the milliseconds
+     */
+    private synchronized void queueCooldown(long wait) {
+        offered(out.offerCooldown(SharedFrame.wrap(getCodec().encode(
+                new PlaceRequest<>(PlaceRequest.RequestType.COOLDOWN, wait)))));
+    }
+
+    /**
+     * Queues a request and asks the loop to flush it. Encoding and queueing
+     * happen together, so frames that announce owners stay in order.
+     * @param req the request
+     * @param tiles whether the request only holds tile changes (and may be dropped)
+     */
+    private synchronized void send(PlaceRequest<?> req, boolean tiles) {
+        send(getCodec().encode(req), tiles);
+    }
+
+    /**
+     * Queues frames only this client gets
+     * @param frames the frames
+     * @param tiles whether they only hold tile changes (and may be dropped)
+     */
+    private void send(byte[] frames, boolean tiles) {
+        queue(SharedFrame.wrap(frames), tiles);
+    }
+
+    /**
+     * Queues a frame and asks the loop to flush it
+     * @param f the frame, with a hold the queue takes over
+     * @param tiles whether the frame only holds tile changes (and may be dropped)
+     */
+    private void queue(SharedFrame f, boolean tiles) {
+        offered(out.offer(f, tiles));
+    }
+
+    /**
+     * Queues a frame of tile changes and asks the loop to flush it
+     * @param f the frame, with a hold the queue takes over
+     * @param committed when the first change in it was committed
+     */
+    private void queue(SharedFrame f, long committed) {
+        offered(out.offer(f, true, committed));
+    }
+
+    /**
+     * Asks the loop to flush a frame just queued, unless it was dropped
+     * @param result what became of the frame
+     */
+    private void offered(OutboundQueue.Result result) {
+        if (result == OutboundQueue.Result.OVERFLOW)
+            overflow = true;
+        if (result != OutboundQueue.Result.DROPPED && flushing.compareAndSet(false, true))
+            LOOP.flush(this);
+    }
+
+    /**
+     * Sends an error and closes the connection once it is written
+     * @param msg the error message
+     */
+    void reject(String msg) {
+        send(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, msg), false);
+        closing = true;
+        if (key.isValid())
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    /**
+     * Get when the LOGIN has to have arrived
+     * @return the time in milliseconds
+     */
+    long getLoginBy() {
+        return LOGIN_BY;
+    }
+
+    /**
+     * Closes the connection if its LOGIN has not arrived. Loop thread only.
+     */
+    void expire() {
+        if (username == null && !closed) {
+            SERVER.getMetrics().loginTimeouts.increment();
+            close();
+        }
+    }
+
+    /**
+     * Picks up the answer of the join stage. Loop thread only.
+     */
+    void joined() {
+        joining = false;
+        if (closed) {
+            if (joinError == null)
+                SERVER.logout(this);
+            return;
+        }
+        if (joinError != null) {
+            reject(joinError);
+        } else {
+            TICKET.joined();
+            resume();
+        }
+    }
+
+    /**
+     * Reads what has arrived and handles every whole frame. Loop thread only.
+     */
+    void read() {
+        try {
+            if (CHANNEL.read(in) < 0) {
+                close();
+                return;
+            }
+            process();
+        } catch (IOException | ClassNotFoundException e) {
+            close();
+        }
+    }
+
+    /**
+     * Handles the buffered frames until the buffer runs dry or the client
+     * waits on the join stage, the log or the worker
+     * @throws IOException if a frame is bad
+     * @throws ClassNotFoundException if a frame is not a request
+     */
+    private void process() throws IOException, ClassNotFoundException {
+        in.flip();
+        while (!closed && !closing && !joining && !parked && in.remaining() >= PlaceExchange.HEADER) {
+            int len = in.getInt(in.position());
+            if (len < 0 || len > PlaceExchange.MAX_REQUEST)
+                throw new IOException("Bad Frame Length: " + len);
+            if (in.remaining() < PlaceExchange.HEADER + len) {
+                if (in.capacity() < PlaceExchange.HEADER + len) {
+                    ByteBuffer bigger = ByteBuffer.allocate(PlaceExchange.HEADER + len);
+                    bigger.put(in);
+                    in = bigger;
+                    return;
+                }
+                break;
+            }
+            int off = in.position() + PlaceExchange.HEADER;
+            if (codec == null)
+                codec = Codec.negotiate(in.array(), off, len);
+            PlaceRequest<?> req = codec.decode(in.array(), off, len);
+            in.position(in.position() + PlaceExchange.HEADER + len);
+            handle(req);
+        }
+        in.compact();
+    }
+
+    /**
+     * Handles one request. The LOGIN goes to the join stage of the server's
+     * LoginPipeline, and reading stops until it answers.
+     * @param req the request
+     */
+    private void handle(PlaceRequest<?> req) {
+        if (username == null) {
+            if (req.getType() == PlaceRequest.RequestType.LOGIN && req.getData() instanceof String) {
+                username = (String) req.getData();
+                if (codec instanceof BinaryCodec)
+                    ((BinaryCodec) codec).shareOwners(SERVER.getOwners());
+                joining = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                if (!SERVER.getLogins().join(this, ACCEPTED_AT, error -> {
+                    joinError = error;
+                    LOOP.joined(this);
+                })) {
+                    joining = false;
+                    reject(LoginPipeline.BUSY);
+                }
+            } else {
+                reject("Invalid Command: Terminating Connection");
+            }
+        } else if (req.getType() == PlaceRequest.RequestType.CHANGE_TILE && req.getData() instanceof PlaceTile) {
+            PlaceTile t = (PlaceTile) req.getData();
+            t.setOwner(username);
+            parked = true;
+            SERVER.place(this, t, ADDRESS, this::durable);
+            if (parked)
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        } else if (req.getType() == PlaceRequest.RequestType.SUBSCRIBE && req.getData() instanceof int[]) {
+            int[] rects = (int[]) req.getData();
+            parked = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            LOOP.offload(() -> {
+                try {
+                    SERVER.subscribe(this, rects);
+                } finally {
+                    LOOP.resume(this);
+                }
+            });
+        } else {
+            reject("Invalid Command: Terminating Connection");
+        }
+    }
+
+    /**
+     * Lets the client read again once the tile it placed is on disk, right
+     * away if the placing loop itself is told. Can be called from any thread.
+     */
+    private void durable() {
+        if (Thread.currentThread() == LOOP)
+            parked = false;
+        else
+            LOOP.resume(this);
+    }
+
+    /**
+     * Starts reading again once a parked request is done. Loop thread only.
+     */
+    void unpark() {
+        parked = false;
+        resume();
+    }
+
+    /**
+     * Starts reading again after the join stage answers or a parked request
+     * is done. Loop thread only.
+     */
+    private void resume() {
+        if (closed || closing)
+            return;
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        try {
+            process();
+        } catch (IOException | ClassNotFoundException e) {
+            close();
+        }
+    }
+
+    /**
+     * Writes as many pending frames as the socket takes. Loop thread only.
+     */
+    void flush() {
+        flushing.set(false);
+        if (closed)
+            return;
+        long wait = nextCooldown.getAndSet(NO_COOLDOWN);
+        if (wait != NO_COOLDOWN)
+            queueCooldown(wait);
+        if (overflow) {
+            SERVER.dropped(this);
+            close();
+            return;
+        }
+        try {
+            while (true) {
+                int n = 0;
+                Iterator<OutboundQueue.Entry> frames = out.iterator();
+                while (n < GATHER && frames.hasNext())
+                    gather[n++] = frames.next().buffer;
+                if (n == 0)
+                    break;
+                CHANNEL.write(gather, 0, n);
+                OutboundQueue.Entry e;
+                boolean resync = false;
+                while ((e = out.peek()) != null && !e.buffer.hasRemaining())
+                    resync |= out.remove();
+                if (resync && resyncing.compareAndSet(false, true))
+                    LOOP.offload(() -> {
+                        try {
+                            SERVER.resync(this);
+                        } finally {
+                            resyncing.set(false);
+                        }
+                    });
+                if (gather[n - 1].hasRemaining()) {
+                    Arrays.fill(gather, 0, n, null);
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                Arrays.fill(gather, 0, n, null);
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (closing)
+                close();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Closes the connection and logs the client out. Loop thread only.
+     */
+    void close() {
+        if (closed)
+            return;
+        closed = true;
+        if (key != null)
+            key.cancel();
+        try {
+            CHANNEL.close();
+        } catch (IOException e) {
+        }
+        TICKET.closed();
+        out.clear();
+        if (loggedIn && !joining)
+            SERVER.logout(this);
+    }
+}
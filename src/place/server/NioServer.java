@@ -0,0 +1,93 @@
+package place.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * The NIO engine of the PlaceServer.  Instead of a thread per client, the
+ * accept thread hands every new connection to one of a small, fixed number
+ * of IoLoops, once the AdmissionControl has let it in, and each IoLoop runs
+ * the logins, tile changes and broadcasts of all of its connections on a
+ * single Selector.
+ *
+ * @author Cameron Myron
+ */
+public class NioServer {
+
+    /**
+     * The number of connections the OS may queue before we accept them
+     */
+    private static final int BACKLOG = 1024;
+
+    /**
+     * The server
+     */
+    private final PlaceServer SERVER;
+
+    /**
+     * The port number
+     */
+    private final int PORT;
+
+    /**
+     * The I/O threads
+     */
+    private final IoLoop[] LOOPS;
+
+    /**
+     * Does the subscribes and resyncs of every loop, as they wait for every
+     * stripe; one thread is enough, since they would wait for each other
+     */
+    private final Executor WORKER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "IoWorker");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Creates the engine
+     * @param server the server
+     * @param port the port number
+     * @param ioThreads the number of I/O threads
+     * @throws IOException if a selector can not be opened
+     */
+    public NioServer(PlaceServer server, int port, int ioThreads) throws IOException {
+        SERVER = server;
+        PORT = port;
+        LOOPS = new IoLoop[Math.max(1, ioThreads)];
+        for (int i = 0; i < LOOPS.length; i++)
+            LOOPS[i] = new IoLoop(server, i, WORKER);
+    }
+
+    /**
+     * Starts the I/O threads and accepts connections forever
+     */
+    public void run() {
+        try(
+                ServerSocketChannel server = ServerSocketChannel.open()
+        ){
+            server.bind(new InetSocketAddress(PORT), BACKLOG);
+            for (IoLoop loop : LOOPS)
+                loop.start();
+            int next = 0;
+            while(true){
+                try{
+                    SocketChannel s = server.accept();
+                    AdmissionControl.Ticket ticket = SERVER.getAdmission().admit(s.socket().getInetAddress());
+                    if (ticket == null)
+                        AdmissionControl.refuse(s);
+                    else
+                        LOOPS[next++ % LOOPS.length].add(s, ticket);
+                }catch(IOException e){
+                    System.out.println("ERROR");
+                }
+            }
+        }catch(IOException e){
+            System.out.println(e);
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package place.server;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The frames waiting to be written to one client.  Broadcasts only ever add
+ * to the queue, so a slow or stalled reader never holds up the server; the
+ * session's own writer drains it.  Frames are shared with the other clients:
+ * the queue holds each one until it is written or thrown away, and writes it
+ * through a view of its own.
+ *
+ * The queue watches how many bytes it holds, leaving out the board and the
+ * changes that come with it, which are as big as the board is and are only
+ * queued at the login and at a resync.  When a tile frame takes it over
+ * the high watermark the client has fallen too far behind: with the RESYNC
+ * policy further tile frames are dropped until the writer has brought the
+ * queue under the low watermark, and then the client is sent a fresh board;
+ * with the DISCONNECT policy the client is dropped.  Whatever the policy, a
+ * frame of any kind that takes it over the hard limit drops the client, so
+ * one that never reads can not pile up owner names or COOLDOWNs either.  A
+ * COOLDOWN only matters until the next one, so a new one takes the place of
+ * one still waiting, and a client that keeps placing too soon has at most one
+ * queued.
+ *
+ * @author Cameron Myron
+ */
+class OutboundQueue {
+
+    /**
+     * What happens to a client that falls too far behind
+     */
+    enum Policy {
+        /** Skip tile changes, then send the whole board once it catches up */
+        RESYNC,
+        /** Close the connection */
+        DISCONNECT
+    }
+
+    /**
+     * What became of an offered frame
+     */
+    enum Result {
+        /** The frame was queued */
+        QUEUED,
+        /** The client is behind and the frame was skipped */
+        DROPPED,
+        /** The client is too far behind and has to be disconnected */
+        OVERFLOW
+    }
+
+    /**
+     * A queued frame and this client's position in it
+     */
+    static final class Entry {
+        /** The frame */
+        final SharedFrame frame;
+        /** The view the writer writes, and how far it got */
+        final ByteBuffer buffer;
+        /** When the first tile change in it was committed, 0 if it has none */
+        final long committed;
+        /** Whether it is a board or the changes that came with one */
+        final boolean board;
+
+        /**
+         * Creates an entry
+         * @param frame the frame, held for the queue
+         * @param committed when the first tile change in it was committed, 0 if it has none
+         * @param board whether it is a board or the changes that came with one
+         */
+        Entry(SharedFrame frame, long committed, boolean board) {
+            this.frame = frame;
+            this.buffer = frame.view();
+            this.committed = committed;
+            this.board = board;
+        }
+    }
+
+    /**
+     * The frames, oldest first
+     */
+    private final LinkedBlockingQueue<Entry> frames = new LinkedBlockingQueue<>();
+
+    /**
+     * The bytes of the queued frames
+     */
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * The bytes of the queued boards and the changes that came with them
+     */
+    private final AtomicLong boards = new AtomicLong();
+
+    /**
+     * The server metrics
+     */
+    private final ServerMetrics METRICS;
+
+    /**
+     * The high watermark in bytes
+     */
+    private final long HIGH;
+
+    /**
+     * The low watermark in bytes
+     */
+    private final long LOW;
+
+    /**
+     * The hard limit in bytes, 0 for none
+     */
+    private final long MAX;
+
+    /**
+     * What to do with a client over the high watermark
+     */
+    private final Policy POLICY;
+
+    /**
+     * The last COOLDOWN queued, which may still be waiting
+     */
+    private volatile Entry cooldown;
+
+    /**
+     * Whether tile frames are being skipped until a resync
+     */
+    private volatile boolean lagging;
+
+    /**
+     * Creates a queue
+     * @param metrics the server metrics
+     * @param high the high watermark in bytes
+     * @param low the low watermark in bytes
+     * @param max the hard limit in bytes, 0 for none
+     * @param policy what to do with a client over the high watermark
+     */
+    OutboundQueue(ServerMetrics metrics, long high, long low, long max, Policy policy) {
+        METRICS = metrics;
+        HIGH = high;
+        LOW = Math.min(low, high);
+        MAX = max > 0 ? Math.max(max, high) : 0;
+        POLICY = policy;
+    }
+
+    /**
+     * Adds a frame.  The queue takes over one hold on it, and lets go of it
+     * right away if the frame is dropped.  Only tile frames can be dropped;
+     * logins, owner names and errors are always queued, and count toward
+     * the hard limit.
+     * @param frame the frame
+     * @param tiles whether the frame only holds tile changes
+     * @return what became of the frame
+     */
+    Result offer(SharedFrame frame, boolean tiles) {
+        return offer(frame, tiles, 0);
+    }
+
+    /**
+     * Adds a frame of tile changes, so the time from their commit to their
+     * send is counted once it is written
+     * @param frame the frame
+     * @param tiles whether the frame only holds tile changes
+     * @param committed when the first change in it was committed, in
+     *                  milliseconds, 0 if it is not to be counted
+     * @return what became of the frame
+     */
+    Result offer(SharedFrame frame, boolean tiles, long committed) {
+        if (tiles && lagging) {
+            frame.release();
+            METRICS.framesDropped.increment();
+            return Result.DROPPED;
+        }
+        return add(new Entry(frame, committed, false), tiles);
+    }
+
+    /**
+     * Adds a COOLDOWN in place of the last one, if that one is still waiting
+     * and the writer has not started on it.  Only one thread at a time may
+     * call this: the session's own lock, or the loop thread of an NIO client,
+     * whose writer writes frames while they are still queued.
+     * @param frame the frame, with a hold the queue takes over
+     * @return what became of the frame
+     */
+    Result offerCooldown(SharedFrame frame) {
+        Entry last = cooldown;
+        if (last != null && last.buffer.position() == 0 && frames.remove(last)) {
+            drop(last);
+            METRICS.cooldownsMerged.increment();
+        }
+        Entry e = new Entry(frame, 0, false);
+        cooldown = e;
+        return add(e, false);
+    }
+
+    /**
+     * Adds an entry, and tells what the bytes queued make of it
+     * @param e the entry
+     * @param tiles whether the frame only holds tile changes
+     * @return what became of the frame
+     */
+    private Result add(Entry e, boolean tiles) {
+        long queued = bytes.addAndGet(e.frame.size()) - boards.get();
+        frames.add(e);
+        if (MAX > 0 && queued > MAX)
+            return Result.OVERFLOW;
+        if (tiles && queued > HIGH) {
+            if (POLICY == Policy.DISCONNECT)
+                return Result.OVERFLOW;
+            lagging = true;
+            METRICS.lagging.increment();
+        }
+        return Result.QUEUED;
+    }
+
+    /**
+     * Adds a board, or the changes that bring a client up to date, which are
+     * never dropped and left out of the watermarks
+     * @param frame the frame, with a hold the queue takes over
+     * @return QUEUED
+     */
+    Result offerBoard(SharedFrame frame) {
+        boards.addAndGet(frame.size());
+        bytes.addAndGet(frame.size());
+        frames.add(new Entry(frame, 0, true));
+        return Result.QUEUED;
+    }
+
+    /**
+     * Get the oldest frame without removing it
+     * @return the frame, null if the queue is empty
+     */
+    Entry peek() {
+        return frames.peek();
+    }
+
+    /**
+     * Removes the oldest frame once it has been written
+     * @return whether the client has caught up and needs a resync
+     */
+    boolean remove() {
+        Entry e = frames.poll();
+        return e != null && sent(e);
+    }
+
+    /**
+     * Removes the oldest frame if there is one.  Call sent once it is written.
+     * @return the frame, null if the queue is empty
+     */
+    Entry poll() {
+        return frames.poll();
+    }
+
+    /**
+     * Waits for and removes the oldest frame.  Call sent once it is written.
+     * @return the frame
+     * @throws InterruptedException if interrupted while waiting
+     */
+    Entry take() throws InterruptedException {
+        return frames.take();
+    }
+
+    /**
+     * Accounts for a frame that has been written and lets go of it
+     * @param e the frame
+     * @return whether the client has caught up and needs a resync
+     */
+    boolean sent(Entry e) {
+        if (e.committed > 0)
+            METRICS.commitToSend.record(System.currentTimeMillis() - e.committed);
+        return drop(e);
+    }
+
+    /**
+     * Accounts for a frame that is gone and lets go of it
+     * @param e the frame
+     * @return whether the client has caught up and needs a resync
+     */
+    private boolean drop(Entry e) {
+        if (e.board)
+            boards.addAndGet(-e.frame.size());
+        long queued = bytes.addAndGet(-e.frame.size()) - boards.get();
+        e.frame.release();
+        return lagging && queued <= LOW;
+    }
+
+    /**
+     * Ends a lag. Called once the fresh board has been queued.
+     */
+    void resynced() {
+        lagging = false;
+    }
+
+    /**
+     * Iterates over the frames, oldest first (used for gathering writes)
+     * @return the iterator
+     */
+    Iterator<Entry> iterator() {
+        return frames.iterator();
+    }
+
+    /**
+     * Get the bytes waiting to be written
+     * @return the queue depth in bytes
+     */
+    long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Whether the client is being skipped until a resync
+     * @return is it lagging?
+     */
+    boolean isLagging() {
+        return lagging;
+    }
+
+    /**
+     * Throws away every frame, when the connection closes
+     */
+    void clear() {
+        Entry e;
+        while ((e = frames.poll()) != null)
+            drop(e);
+    }
+}
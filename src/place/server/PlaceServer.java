@@ -1,24 +1,42 @@
 package place.server;
 
+import place.OwnerDictionary;
 import place.PlaceBoard;
 import place.PlaceTile;
-import place.network.PlaceRequest;
+import place.network.BinaryCodec;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.Hashtable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * The Place server is run on the command line as:
  *
- * $ java PlaceServer port DIM
+ * $ java PlaceServer port DIM <maxClients> [-option value]...
  *
  * Where port is the port number of the host and DIM is the square dimension
- * of the board.
+ * of the board.  The options (see ServerOptions for all of them and their
+ * defaults) pick the engine that runs the connections, a thread or a virtual
+ * thread per client or a few NIO selector threads, and tune the pieces the
+ * server is made of: the outbound queues and the broadcast tick, the board
+ * stripes and snapshots, the LoginPipeline, the AccessList and the
+ * AdmissionControl at the door, the RateLimiter, the TileLog with its
+ * checkpoints, the HistoryStore and the LoadShedder.
  *
  * @author Sean Strout @ RIT CS
  * @author Cameron Myron
@@ -26,15 +44,197 @@ import java.util.Hashtable;
  */
 public class PlaceServer {
 
+    /**
+     * The engines that can run the client connections
+     */
+    public enum Mode {
+        /** One thread per client, blocking on its socket */
+        THREAD,
+        /** One virtual thread per client, blocking on its socket */
+        VIRTUAL,
+        /** A few selector threads shared by every client */
+        NIO
+    }
+
+    /**
+     * Milliseconds between sweeps of the limiter
+     */
+    private static final long SWEEP_MS = 10000;
+
+    /**
+     * The engine that runs the connections
+     */
+    private final Mode MODE;
+
+    /**
+     * The number of selector threads in NIO mode
+     */
+    private final int IO_THREADS;
+
+    /**
+     * Runs the blocking sessions in thread and virtual mode
+     */
+    private final Executor SESSIONS;
+
+    /**
+     * Batches the broadcasts, null when every change is sent right away
+     */
+    private final BroadcastScheduler scheduler;
+
+    /**
+     * The time between broadcasts asked for, in milliseconds, 0 for none
+     */
+    private final long TICK;
+
+    /**
+     * The ids of the owners, the same on every connection
+     */
+    private final OwnerDictionary owners;
+
+    /**
+     * Makes the buffers of the broadcast frames
+     */
+    private final FramePool frames;
+
+    /**
+     * The counters the server keeps about itself
+     */
+    private final ServerMetrics metrics = new ServerMetrics();
+
+    /**
+     * The high watermark of the outbound queues, in bytes
+     */
+    private final long QUEUE_HIGH;
+
+    /**
+     * The low watermark of the outbound queues, in bytes
+     */
+    private final long QUEUE_LOW;
+
+    /**
+     * The hard limit of the outbound queues, in bytes, 0 for none
+     */
+    private final long QUEUE_MAX;
+
+    /**
+     * What happens to a client over the high watermark
+     */
+    private final OutboundQueue.Policy SLOW_POLICY;
+
+    /**
+     * Seconds between metric reports, 0 for none
+     */
+    private final int STATS;
+
+    /**
+     * Guards logins, so two clients can not take the same name or the last
+     * place. A lock rather than synchronized, so a virtual thread that blocks
+     * while holding it does not pin its carrier.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Guards the board, one lock per region
+     */
+    private final BoardStripes stripes;
+
+    /**
+     * Held while a tick's batch is drained and handed out, and around taking
+     * what a client is sent when it joins, subscribes or resyncs, so a batch
+     * drained before that can not reach the client after it.  It is taken
+     * before the stripes, and placing never takes it.
+     */
+    private final ReentrantLock tick = new ReentrantLock();
+
+    /**
+     * The sequence number of the last committed tile change. It starts at the
+     * time the server started times 1024, so the numbers of one run come after
+     * those of any run before it and a client with an older number can tell
+     * it needs a new board.
+     */
+    private final AtomicLong sequence = new AtomicLong(System.currentTimeMillis() << 10);
+
+    /**
+     * The board as clients get it at login
+     */
+    private final SnapshotCache snapshots;
+
+    /**
+     * Which clients see which parts of the board
+     */
+    private final ViewportIndex viewports;
+
+    /**
+     * Takes new connections from the accept to online
+     */
+    private final LoginPipeline logins;
+
+    /**
+     * The log of the tile changes, null if there is none
+     */
+    private final TileLog log;
+
+    /**
+     * Every change ever made, null if it is not kept
+     */
+    private final HistoryStore history;
+
+    /**
+     * How often tiles may be placed
+     */
+    private final RateLimiter limiter;
+
+    /**
+     * Which new connections are worth a login
+     */
+    private final AdmissionControl admission;
+
+    /**
+     * Sheds load when the server falls behind its objectives
+     */
+    private final LoadShedder shedder;
+
+    /**
+     * Hands the tiles that were held back to the committer, tells clients
+     * when their cooldown is over and sweeps the limiter
+     */
+    private final TimingWheel timers;
+
+    /**
+     * Places the tiles that were held back once their time comes, so a
+     * stripe or the log never holds up the timers
+     */
+    private final Executor committer;
+
+    /**
+     * The sessions that will be told when their cooldown is over
+     */
+    private final Set<Session> cooling = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Where the checkpoints of the board go, null without a log
+     */
+    private final Path checkpoint;
+
+    /**
+     * Milliseconds between checkpoints, 0 for none
+     */
+    private final long CHECKPOINT_MS;
+
+    /**
+     * The sequence number of the last checkpoint
+     */
+    private long checkpointed;
+
     /**
      * The PlaceBoard model
      */
     private PlaceBoard model;
 
     /**
-     * A Hashtable of clients and their names
+     * A map of clients and their names
      */
-    private Hashtable<String,Client> clients;
+    private ConcurrentHashMap<String,Session> clients;
     /**
      *
      */
@@ -49,7 +249,7 @@ public class PlaceServer {
      * The number of the maximum clients
      */
 
-    AccessList accessList = new AccessList("src/place/server/whitelist.txt", AccessList.Type.WHITELIST);
+    final AccessList accessList;
 
     /**
      * An access list. Blacklist means anything on the list is not allowed to join, while whitelist means anything
@@ -64,59 +264,367 @@ public class PlaceServer {
      * @param maxClients the number of maximum clients
      */
     public PlaceServer(int DIM, int port, int maxClients){
-        model = new PlaceBoard(DIM);
-        clients = new Hashtable<String,Client>();
+        this(DIM, port, maxClients, new ServerOptions());
+    }
+
+    /**
+     * Constructor for Place Server
+     * @param DIM the dimension of the board
+     * @param port the port number
+     * @param maxClients the number of maximum clients
+     * @param options the optional settings
+     */
+    public PlaceServer(int DIM, int port, int maxClients, ServerOptions options){
+        String file = options.get("board", null);
+        if (file == null) {
+            owners = new OwnerDictionary();
+            model = new PlaceBoard(DIM, owners);
+        } else {
+            try {
+                owners = OwnerDictionary.open(Paths.get(file + ".owners"));
+                model = PlaceBoard.open(Paths.get(file), DIM, owners);
+            } catch (IOException e) {
+                throw new IllegalStateException("Can Not Open Board: " + e.getMessage(), e);
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(model::flush));
+        }
+        String logFile = options.get("log", null);
+        if (logFile == null) {
+            log = null;
+            checkpoint = null;
+            CHECKPOINT_MS = 0;
+        } else {
+            long start = System.nanoTime();
+            checkpoint = Paths.get(options.get("checkpoint", logFile + ".checkpoint"));
+            CHECKPOINT_MS = options.getLong("checkpoint-ms", 60000);
+            try {
+                if (Files.exists(checkpoint)) {
+                    checkpointed = model.loadCheckpoint(checkpoint);
+                    System.out.println("Loaded Checkpoint " + checkpoint + " In "
+                            + (System.nanoTime() - start) / 1_000_000 + " ms");
+                }
+                log = TileLog.open(Paths.get(logFile), model,
+                        TileLog.Sync.valueOf(options.get("log-sync", "interval").toUpperCase()),
+                        options.getLong("log-sync-ms", 100), checkpointed);
+            } catch (IOException e) {
+                throw new IllegalStateException("Can Not Open Tile Log: " + e.getMessage(), e);
+            }
+            sequence.set(Math.max(sequence.get(), Math.max(checkpointed, log.getLastSeq())));
+            Runtime.getRuntime().addShutdownHook(new Thread(log::close));
+            System.out.println("Replayed " + log.getReplayed() + " Tile Changes From " + logFile + " In "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+        }
+        String historyDir = options.get("history", null);
+        if (historyDir == null) {
+            history = null;
+        } else {
+            try {
+                history = HistoryStore.open(Paths.get(historyDir), model, sequence.get(),
+                        options.getLong("history-keyframe", 100000));
+            } catch (IOException e) {
+                throw new IllegalStateException("Can Not Open History: " + e.getMessage(), e);
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(history::close));
+        }
+        clients = new ConcurrentHashMap<String,Session>();
         PORT = port;
         MAX_CLIENTS = maxClients;
+        MODE = Mode.valueOf(options.get("mode", "thread").toUpperCase());
+        IO_THREADS = options.getInt("io", Runtime.getRuntime().availableProcessors());
+        SESSIONS = sessionExecutor(MODE);
+        frames = new FramePool(MODE == Mode.NIO);
+        long tick = options.getLong("tick", 0);
+        scheduler = tick > 0 ? new BroadcastScheduler(this, DIM, tick) : null;
+        TICK = tick;
+        QUEUE_HIGH = options.getLong("queue-high", 4 << 20);
+        QUEUE_LOW = options.getLong("queue-low", 1 << 20);
+        QUEUE_MAX = options.getLong("queue-max", QUEUE_HIGH * 2);
+        SLOW_POLICY = OutboundQueue.Policy.valueOf(options.get("slow", "resync").toUpperCase());
+        STATS = options.getInt("stats", 0);
+        stripes = new BoardStripes(DIM, options.getInt("stripes", 64));
+        viewports = new ViewportIndex(model);
+        snapshots = new SnapshotCache(model, stripes, sequence, owners, metrics,
+                options.getLong("snapshot-ms", 1000), options.getInt("snapshot-changes", 10000));
+        logins = new LoginPipeline(this, metrics, options.getLong("login-timeout", 5000),
+                options.getInt("login-threads", 64), MODE == Mode.VIRTUAL ? SESSIONS : null,
+                options.getInt("login-queue", 1024));
+        limiter = new RateLimiter(options.getLong("cooldown", 500), options.getInt("burst", 1),
+                options.getLong("ip-cooldown", 0), options.getInt("ip-burst", 1),
+                options.getLong("rate-delay", 1000));
+        timers = new TimingWheel("Timers");
+        timers.schedule(this::sweep, SWEEP_MS);
+        committer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "Committer");
+            t.setDaemon(true);
+            return t;
+        });
+        accessList = new AccessList(options.get("access", "src/place/server/whitelist.txt"),
+                AccessList.Type.valueOf(options.get("access-type", "whitelist").toUpperCase()));
+        accessList.watch();
+        int rate = options.getInt("ip-connect-rate", 0);
+        admission = new AdmissionControl(options.getInt("pending", 4096), options.getInt("ip-connections", 0),
+                rate, options.getInt("ip-connect-burst", Math.max(1, rate)));
+        shedder = new LoadShedder(this, metrics.commitToSend, options.getLong("shed-ms", 1000),
+                options.getLong("slo-latency", 0), options.getLong("slo-queue", 0), options.getInt("slo-pending", 0),
+                options.getInt("shed-recover", 5), options.getLong("shed-tick", tick * 4));
+        timers.schedule(this::checkHealth, shedder.getWindow());
+    }
+
+    /**
+     * Ends a window of the load shedder, and starts the next
+     */
+    private void checkHealth(){
+        shedder.check();
+        timers.schedule(this::checkHealth, shedder.getWindow());
+    }
+
+    /**
+     * Sweeps the limiter and the admission control, and again in a while
+     */
+    private void sweep(){
+        limiter.sweep();
+        admission.sweep();
+        timers.schedule(this::sweep, SWEEP_MS);
+    }
+
+    /**
+     * Makes the executor that runs blocking sessions for a mode. Virtual
+     * threads are looked up reflectively so the server still builds and runs
+     * its other modes on JDKs that do not have them.
+     * @param mode the mode
+     * @return the executor
+     */
+    private static Executor sessionExecutor(Mode mode){
+        if (mode != Mode.VIRTUAL)
+            return r -> new Thread(r).start();
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual Mode Needs Java 21 Or Newer", e);
+        }
+    }
+
+    /**
+     * Makes the outbound queue of a new session
+     * @return the queue
+     */
+    OutboundQueue newQueue(){
+        return new OutboundQueue(metrics, QUEUE_HIGH, QUEUE_LOW, QUEUE_MAX, SLOW_POLICY);
+    }
+
+    /**
+     * Runs a session on the session executor
+     * @param r the session
+     */
+    void execute(Runnable r){
+        SESSIONS.execute(r);
+    }
+
+    /**
+     * Get the pipeline new connections go through
+     * @return the pipeline
+     */
+    LoginPipeline getLogins(){
+        return logins;
+    }
+
+    /**
+     * Get what decides which new connections are worth a login
+     * @return the admission control
+     */
+    AdmissionControl getAdmission(){
+        return admission;
+    }
+
+    /**
+     * Get what sheds load when the server falls behind
+     * @return the load shedder
+     */
+    public LoadShedder getShedder(){
+        return shedder;
     }
 
     /**
-     * The function that creates a new client
-     * @param s the socket
-     * @throws IOException
-     * @throws ClassNotFoundException
-     */
-    public synchronized void login(Socket s) throws IOException,ClassNotFoundException{
-        ObjectOutputStream o = new ObjectOutputStream(s.getOutputStream());
-        ObjectInputStream i = new ObjectInputStream(s.getInputStream());
-        if(!accessList.allowed(s.getLocalAddress().toString().substring(1))){
-            o.writeObject(new PlaceRequest(PlaceRequest.RequestType.ERROR, "You Are Not Allowed On This Server!"));
-            o.close();
-            i.close();
-            s.close();
-        }
-        else if (clients.size() < MAX_CLIENTS) {
-            Client temp = new Client(this, o, i);
-            if (!(temp.getUSERNAME() == null || clients.containsKey(temp.getUSERNAME()))) {
-                clients.put(temp.getUSERNAME(), temp);
-                System.out.println(s.getLocalAddress() + " Joined As " + temp.getUSERNAME()+": "+clients.size()+" Online");
-                temp.start();
-            } else {
-                o.writeObject(new PlaceRequest(PlaceRequest.RequestType.ERROR, "Username Already In Use!"));
-                o.close();
-                i.close();
-                s.close();
+     * Get the broadcast scheduler
+     * @return the scheduler, null when every change is sent right away
+     */
+    BroadcastScheduler getScheduler(){
+        return scheduler;
+    }
+
+    /**
+     * Get the time between broadcasts asked for, which the scheduler may be
+     * made to stretch
+     * @return the tick in milliseconds, 0 for none
+     */
+    long getTick(){
+        return TICK;
+    }
+
+    /**
+     * Get the bytes waiting in the outbound queues of all the clients
+     * @return the bytes
+     */
+    long getQueuedBytes(){
+        long total = 0;
+        for (Session c : clients.values())
+            total += c.getQueuedBytes();
+        return total;
+    }
+
+    /**
+     * Whether the server has no room for another client
+     * @return is it full?
+     */
+    boolean isFull(){
+        return clients.size() >= MAX_CLIENTS;
+    }
+
+    /**
+     * Adds a client that has sent its LOGIN and starts it. The client gets the
+     * cached board, then the changes made since it was taken, and is added
+     * while every stripe and the tick are held, so each change lands either
+     * in what it was sent or in the changes broadcast after it.  A client that logs in again
+     * after losing its connection says which change it has up to, and only
+     * gets what it missed since, if the server can tell.  Whether it is a
+     * spectator is settled before it is started, so it can not place a tile
+     * the LoadShedder would have refused.
+     * @param c the client
+     * @return null if the client joined, otherwise why it was refused
+     */
+    public String register(Session c){
+        int online;
+        boolean spectator = false;
+        long from = c.getCodec() instanceof BinaryCodec ? ((BinaryCodec) c.getCodec()).getResumeFrom() : 0;
+        BoardSnapshot board = from > 0 ? null : snapshots.get(c.getCodec());
+        lock.lock();
+        try {
+            if (clients.size() >= MAX_CLIENTS)
+                return "Server Is Full!";
+            if (clients.containsKey(c.getUSERNAME()))
+                return "Username Already In Use!";
+            boolean joined = false;
+            if (board == null) {
+                tick.lock();
+                stripes.lockAll();
+                try {
+                    PlaceTile[] missed = snapshots.resume(from);
+                    if (missed != null) {
+                        spectator = shedder.join(c, () -> c.start(null, missed));
+                        clients.put(c.getUSERNAME(), c);
+                        viewports.add(c);
+                        metrics.resumes.increment();
+                        joined = true;
+                    }
+                } finally {
+                    stripes.unlockAll();
+                    tick.unlock();
+                }
+                if (!joined)
+                    board = snapshots.get(c.getCodec());
             }
-        } else {
-            o.writeObject(new PlaceRequest(PlaceRequest.RequestType.ERROR, "Server Is Full!"));
-            o.close();
-            i.close();
-            s.close();
+            if (!joined) {
+                tick.lock();
+                stripes.lockAll();
+                try {
+                    PlaceTile[] missed = snapshots.since(board);
+                    if (missed == null) {
+                        board.release();
+                        board = snapshots.live(c.getCodec());
+                        missed = new PlaceTile[0];
+                    }
+                    BoardSnapshot sent = board;
+                    PlaceTile[] since = missed;
+                    spectator = shedder.join(c, () -> c.start(sent, since));
+                    clients.put(c.getUSERNAME(), c);
+                    viewports.add(c);
+                } finally {
+                    stripes.unlockAll();
+                    tick.unlock();
+                }
+            }
+            online = clients.size();
+        } finally {
+            lock.unlock();
+            if (board != null)
+                board.release();
         }
+        System.out.println(c.getUSERNAME() + (spectator ? " Joined As A Spectator: " : " Joined: ") + online + " Online");
+        return null;
+    }
+
+    /**
+     * Checks the access list
+     * @param ip the address of the client
+     * @return whether the client may join
+     */
+    public boolean allowed(String ip){
+        return accessList.allowed(ip);
+    }
+
+    /**
+     * Checks the access list without making a string of the address
+     * @param address the address of the client
+     * @return whether the client may join
+     */
+    public boolean allowed(InetAddress address){
+        return accessList.allowed(address);
     }
 
     /**
      * The function that runs the server
      */
     public void run(){
+        if (scheduler != null)
+            scheduler.start();
+        if (STATS > 0) {
+            Thread stats = new Thread(() -> {
+                while (true) {
+                    try {
+                        Thread.sleep(STATS * 1000L);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    System.out.println(stats());
+                }
+            }, "Stats");
+            stats.setDaemon(true);
+            stats.start();
+        }
+        if (log != null && CHECKPOINT_MS > 0) {
+            Thread checkpoints = new Thread(() -> {
+                while (true) {
+                    try {
+                        Thread.sleep(CHECKPOINT_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    checkpoint();
+                }
+            }, "Checkpoint");
+            checkpoints.setDaemon(true);
+            checkpoints.start();
+        }
+        if (MODE == Mode.NIO) {
+            try {
+                new NioServer(this, PORT, IO_THREADS).run();
+            } catch (IOException e) {
+                System.out.println(e);
+            }
+            return;
+        }
         try(
                 ServerSocket server = new ServerSocket(PORT)
         ){
             while(true){
                 try{
                     Socket s = server.accept();
-                    login(s);
-                }catch(IOException|ClassNotFoundException e){
+                    AdmissionControl.Ticket ticket = admission.admit(s.getInetAddress());
+                    if (ticket == null)
+                        AdmissionControl.refuse(s);
+                    else
+                        logins.accepted(s, ticket);
+                }catch(IOException e){
                     System.out.println("ERROR");
                 }
             }
@@ -126,25 +634,352 @@ public class PlaceServer {
     }
 
     /**
-     * The changeTile function than changes a Tile on the board
+     * Places a tile for a client, now or once the limiter lets it, and tells
+     * the client if it came too soon.  A tile that is held back is placed by
+     * the committer, so no client waits for it; a client whose tile was
+     * refused is told again once it may place one, just the once however
+     * many it sent meanwhile.
+     * @param s the client
+     * @param t the tile, owned by the client
+     * @param address the address of the client
+     * @return 0 if the tile was placed; more than 0 if it is held back and
+     *         goes in that many milliseconds from now; less than 0 if it was
+     *         refused, and the client may place again in minus that many
+     */
+    long place(Session s, PlaceTile t, String address){
+        return place(s, t, address, null);
+    }
+
+    /**
+     * Places a tile for a client like place(s, t, address), but if the log
+     * forces every commit the call does not wait for the tile to be on disk:
+     * the log's writer runs a task once it is.  For a thread that must not
+     * block, such as an IoLoop.
+     * @param s the client
+     * @param t the tile, owned by the client
+     * @param address the address of the client
+     * @param durable run once the tile is on disk, or on this thread before
+     *                the call returns if there is nothing to wait for; null to
+     *                wait here instead
+     * @return as place(s, t, address)
+     */
+    long place(Session s, PlaceTile t, String address, Runnable durable){
+        long wait = admit(s, t, address);
+        if (wait == 0 && commit(t) && log != null) {
+            if (durable == null)
+                log.awaitDurable(t.getSeq());
+            else if (log.whenDurable(t.getSeq(), durable))
+                return 0;
+        }
+        if (durable != null)
+            durable.run();
+        return wait;
+    }
+
+    /**
+     * Asks the shedder and the limiter whether a tile may go now, holds it
+     * back or refuses it, and tells the client if it came too soon
+     * @param s the client
+     * @param t the tile, owned by the client
+     * @param address the address of the client
+     * @return as place(s, t, address); 0 for a tile that is not on the board
+     */
+    private long admit(Session s, PlaceTile t, String address){
+        if(t==null||!model.isValid(t))
+            return 0;
+        if (shedder.isSpectator(s)) {
+            metrics.placementsShed.increment();
+            s.cooldown(-shedder.getWindow());
+            return -shedder.getWindow();
+        }
+        long wait = limiter.admit(owners.idOf(t.getOwner()), address);
+        if (wait == 0)
+            return 0;
+        if (wait > 0) {
+            metrics.placementsDelayed.increment();
+            timers.schedule(() -> committer.execute(() -> commit(t)), wait);
+        } else {
+            metrics.placementsRefused.increment();
+            if (cooling.add(s))
+                timers.schedule(() -> {
+                    cooling.remove(s);
+                    s.cooldown(0);
+                }, -wait);
+        }
+        s.cooldown(wait);
+        return wait;
+    }
+
+    /**
+     * The changeTile function than changes a Tile on the board. Only the
+     * stripe of the tile is held, and the change is handed to the clients
+     * before it is let go, so every client sees the changes to one tile in
+     * the order of their sequence numbers.  With a log the change is appended
+     * to it under the stripe too; if the log forces every commit, the call
+     * returns once the change is on disk.
      * @param t a PlaceTile tile
      */
-    public synchronized void changeTile(PlaceTile t){
+    public void changeTile(PlaceTile t){
+        if (commit(t) && log != null)
+            log.awaitDurable(t.getSeq());
+    }
+
+    /**
+     * Commits a change to the board, the log and the clients, without
+     * waiting for the log to force it.  A tile that was held back is placed
+     * this way, as no client is waiting to hear it is on disk.
+     * @param t a PlaceTile tile
+     * @return false if the tile is not on the board
+     */
+    private boolean commit(PlaceTile t){
         if(t==null||!model.isValid(t))
-            return;
-        t.setTime(new Date().getTime());
-        model.setTile(t);
-        for(Client i:clients.values())
-            i.tileChanged(t);
+            return false;
+        ReentrantLock stripe = stripes.of(t.getRow(), t.getCol());
+        stripe.lock();
+        try {
+            t.setTime(new Date().getTime());
+            t.setSeq(sequence.incrementAndGet());
+            int owner = owners.idOf(t.getOwner());
+            model.set(t.getRow(), t.getCol(), t.getColor(), owner, t.getTime());
+            if (log != null)
+                log.append(t, owner);
+            if (history != null)
+                history.append(t, owner);
+            snapshots.committed(t);
+            if (scheduler != null)
+                scheduler.add(t);
+            else
+                broadcast(new Broadcast(t, owners, frames, metrics), viewports.at(model.chunkOf(t.getRow(), t.getCol())));
+        } finally {
+            stripe.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Writes a checkpoint of the board and compacts the log to it, if there
+     * were changes since the last one.  The stripes are only held long enough
+     * to take the sequence number and mark the log, so every change up to it
+     * is in the board and ahead of the mark; the board is then copied out
+     * while tiles keep changing, and the changes that make it in anyway are
+     * behind the mark, so replaying them over the checkpoint is harmless.
+     * @return the sequence number of the checkpoint, 0 without a log, -1 if
+     *         it could not be written
+     */
+    public synchronized long checkpoint(){
+        if (log == null)
+            return 0;
+        if (sequence.get() == checkpointed)
+            return checkpointed;
+        long seq;
+        stripes.lockAll();
+        try {
+            seq = sequence.get();
+            log.mark(seq);
+        } finally {
+            stripes.unlockAll();
+        }
+        long start = System.nanoTime();
+        try {
+            model.writeCheckpoint(checkpoint, seq);
+        } catch (IOException e) {
+            System.out.println("Checkpoint Failed: " + e);
+            return -1;
+        }
+        log.compact(seq);
+        checkpointed = seq;
+        metrics.checkpoints.increment();
+        System.out.println("Checkpoint " + checkpoint + " Written In " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return seq;
+    }
+
+    /**
+     * Changes the parts of the board a client sees, and sends it the tiles in
+     * the chunks it did not see before, since it missed their changes.  Every
+     * stripe is held, so no change to those chunks goes out before them, and
+     * so is the tick, so no batch drained before them goes out after them.
+     * @param c the client
+     * @param rects row, column, rows and columns of every rectangle, see
+     *              PlaceRequest.RequestType.SUBSCRIBE
+     */
+    public void subscribe(Session c, int[] rects){
+        tick.lock();
+        stripes.lockAll();
+        try {
+            int[] fresh = viewports.subscribe(c, rects);
+            if (fresh == null)
+                return;
+            metrics.subscribes.increment();
+            ArrayList<PlaceTile> tiles = new ArrayList<>();
+            for (int chunk : fresh) {
+                if (model.getVersion(chunk) == 0)
+                    continue;
+                tiles.addAll(Arrays.asList(model.getChunk(chunk).getChangedTiles()));
+                metrics.chunksSent.increment();
+            }
+            if (!tiles.isEmpty()) {
+                Broadcast b = new Broadcast(tiles.toArray(new PlaceTile[0]), owners, frames, metrics);
+                c.broadcast(b);
+                b.release();
+            }
+        } finally {
+            stripes.unlockAll();
+            tick.unlock();
+        }
+    }
+
+    /**
+     * Sends the changes collected during the last tick to every client. Only
+     * the scheduler thread sends batches, so they go out in the same order
+     * to everyone.  The tick is held from the drain to the last hand-off, so
+     * a client that joins or subscribes meanwhile waits and then has every
+     * change of the batch in what it is sent; the stripes are not, so tiles
+     * keep committing into the next batch.
+     */
+    void broadcastTick(){
+        tick.lock();
+        try {
+            PlaceTile[] batch = scheduler.drain();
+            if (batch.length == 0)
+                return;
+            broadcast(new Broadcast(batch, owners, frames, metrics), null);
+            if (!viewports.hasViews())
+                return;
+            HashMap<Integer,ArrayList<PlaceTile>> byChunk = new HashMap<>();
+            for (PlaceTile t : batch) {
+                int chunk = model.chunkOf(t.getRow(), t.getCol());
+                if (viewports.at(chunk) != null)
+                    byChunk.computeIfAbsent(chunk, k -> new ArrayList<>()).add(t);
+            }
+            for (Map.Entry<Integer,ArrayList<PlaceTile>> e : byChunk.entrySet()) {
+                Set<Session> seen = viewports.at(e.getKey());
+                Broadcast b = new Broadcast(e.getValue().toArray(new PlaceTile[0]), owners, frames, metrics);
+                if (seen != null)
+                    for (Session s : seen)
+                        s.broadcast(b);
+                b.release();
+            }
+        } finally {
+            tick.unlock();
+        }
+    }
+
+    /**
+     * Hands a broadcast to every client that sees the whole board and to the
+     * clients that see the chunk it is in, then lets go of its frames
+     * @param b the broadcast
+     * @param chunk the clients of the chunk, null for none
+     */
+    private void broadcast(Broadcast b, Set<Session> chunk){
+        for(Session i:viewports.everywhere())
+            i.broadcast(b);
+        if (chunk != null)
+            for(Session i:chunk)
+                i.broadcast(b);
+        b.release();
+    }
+
+    /**
+     * Sends a fresh board to a client that skipped tile changes and has
+     * caught up again
+     * @param c the client
+     */
+    void resync(Session c){
+        BoardSnapshot board = snapshots.get(c.getCodec());
+        tick.lock();
+        stripes.lockAll();
+        try {
+            if (clients.get(c.getUSERNAME()) == c) {
+                PlaceTile[] missed = snapshots.since(board);
+                if (missed == null) {
+                    board.release();
+                    board = snapshots.live(c.getCodec());
+                    missed = new PlaceTile[0];
+                }
+                c.sendBoard(board, missed);
+                metrics.resyncs.increment();
+            }
+        } finally {
+            stripes.unlockAll();
+            tick.unlock();
+            board.release();
+        }
+    }
+
+    /**
+     * Notes that a client is being disconnected for falling too far behind
+     * @param c the client
+     */
+    void dropped(Session c){
+        metrics.clientsDropped.increment();
+        System.out.println(c.getUSERNAME()+" Dropped: Too Far Behind");
     }
 
     /**
      * The logout function that remove a client and prints out a logout message
      * @param c the client that logs out
      */
-    public synchronized void logout(Client c){
-        clients.remove(c.getUSERNAME());
-        System.out.println(c.getUSERNAME()+" Logged Out: "+clients.size()+" Online");
+    public void logout(Session c){
+        int online;
+        lock.lock();
+        try {
+            clients.remove(c.getUSERNAME(), c);
+            viewports.remove(c);
+            shedder.left(c);
+            online = clients.size();
+        } finally {
+            lock.unlock();
+        }
+        System.out.println(c.getUSERNAME()+" Logged Out: "+online+" Online");
+    }
+
+    /**
+     * Get the sequence number of the last committed tile change
+     * @return the sequence number, where the server started before the first change
+     */
+    public long getSequence(){
+        return sequence.get();
+    }
+
+    /**
+     * Get the history of the board, to look back at it
+     * @return the history, null if the server does not keep one
+     */
+    public HistoryStore getHistory(){
+        return history;
+    }
+
+    /**
+     * Get the owner ids every connection shares
+     * @return the dictionary
+     */
+    public OwnerDictionary getOwners(){
+        return owners;
+    }
+
+    /**
+     * A getter method for the metrics
+     * @return the metrics
+     */
+    public ServerMetrics getMetrics(){
+        return metrics;
+    }
+
+    /**
+     * The metrics together with the outbound queue depths, as a line for the log
+     * @return the line
+     */
+    public String stats(){
+        Session[] online = clients.values().toArray(new Session[0]);
+        long total = 0;
+        long max = 0;
+        for (Session c : online) {
+            long q = c.getQueuedBytes();
+            total += q;
+            max = Math.max(max, q);
+        }
+        return "online=" + online.length + " queuedBytes=" + total + " maxQueuedBytes=" + max + " " + metrics
+                + " " + logins + " " + admission + " " + shedder + " " + limiter + " " + timers + (log != null ? " " + log : "") + (history != null ? " " + history : "");
     }
 
     /**
@@ -157,23 +992,34 @@ public class PlaceServer {
 
     /**
      * The main method starts the server and spawns client threads each time a new
-     * client connects.
+     * client connects (virtual threads in virtual mode, or the selector threads
+     * in NIO mode).
      *
      * @param args the command line arguments
      *
      * Note: If the max number of clients isn't specified (third argument) 100 is the default
      */
     public static void main(String[] args) {
-        if (args.length == 2) {
-            PlaceServer srvr = new PlaceServer(Integer.parseInt(args[1]), Integer.parseInt(args[0]), 100);
+        String[] pos = ServerOptions.positional(args);
+        if (pos.length == 2) {
+            PlaceServer srvr = new PlaceServer(Integer.parseInt(pos[1]), Integer.parseInt(pos[0]), 100, new ServerOptions(args));
             srvr.run();
         }
-        else if(args.length == 3){
-            PlaceServer srvr = new PlaceServer(Integer.parseInt(args[1]), Integer.parseInt(args[0]), Integer.parseInt(args[2]));
+        else if(pos.length == 3){
+            PlaceServer srvr = new PlaceServer(Integer.parseInt(pos[1]), Integer.parseInt(pos[0]), Integer.parseInt(pos[2]), new ServerOptions(args));
             srvr.run();
         }
         else {
-            System.out.println("Usage: java PlaceServer port DIM <maxClients>");
+            System.out.println("Usage: java PlaceServer port DIM <maxClients> [-mode thread|virtual|nio] [-io n] [-tick ms] "
+                    + "[-queue-high bytes] [-queue-low bytes] [-queue-max bytes] [-slow resync|disconnect] "
+                    + "[-stats seconds] [-stripes n] "
+                    + "[-snapshot-ms ms] [-snapshot-changes n] [-login-timeout ms] [-login-threads n] "
+                    + "[-login-queue n] [-board file] [-log file] [-log-sync commit|interval|none] [-log-sync-ms ms] "
+                    + "[-checkpoint file] [-checkpoint-ms ms] [-history dir] [-history-keyframe n] "
+                    + "[-cooldown ms] [-burst n] [-ip-cooldown ms] [-ip-burst n] [-rate-delay ms] "
+                    + "[-access file] [-access-type whitelist|blacklist] [-pending n] [-ip-connections n] "
+                    + "[-ip-connect-rate n] [-ip-connect-burst n] [-slo-latency ms] [-slo-queue bytes] "
+                    + "[-slo-pending n] [-shed-ms ms] [-shed-recover n] [-shed-tick ms]");
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,236 @@
+package place.server;
+
+import place.PlaceColor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes boards as PNG images, one by one or as the frames of an animated
+ * PNG.  A board comes packed two tiles to a byte, the color number of the
+ * left one in the high four bits, rows one after another, which is how a PNG
+ * with a 4 bit palette of the PlaceColors keeps its pixels; so all there is
+ * to encoding a frame is deflating its rows (every tile made a square of
+ * pixels if the board is scaled).  That is the slow part, and it needs
+ * nothing but the frame, so frames can be compressed on as many threads as
+ * there are; writing them out is left to one thread, in order.
+ *
+ * @author Cameron Myron
+ */
+class PngEncoder {
+
+    /**
+     * The bytes every PNG starts with
+     */
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+
+    /**
+     * The square dimension of the board
+     */
+    private final int DIM;
+
+    /**
+     * The pixels a side of every tile
+     */
+    private final int SCALE;
+
+    /**
+     * The bytes of a packed row of the board
+     */
+    private final int STRIDE;
+
+    /**
+     * The number of the next fcTL or fdAT chunk of an animated PNG
+     */
+    private int sequence;
+
+    /**
+     * Create an encoder for boards of a size.
+     * @param DIM the square dimension of the board
+     * @param scale the pixels a side of every tile
+     */
+    PngEncoder(int DIM, int scale) {
+        this.DIM = DIM;
+        this.SCALE = scale;
+        this.STRIDE = stride(DIM);
+    }
+
+    /**
+     * Get the bytes of a packed row
+     * @param width the tiles in the row
+     * @return the bytes, two tiles to a byte
+     */
+    static int stride(int width) {
+        return (width + 1) / 2;
+    }
+
+    /**
+     * Get the pixels a side of an image
+     * @return DIM times the scale
+     */
+    int getSize() {
+        return DIM * SCALE;
+    }
+
+    /**
+     * Compresses the pixels of a frame.  Safe to call from many threads.
+     * @param packed the board, DIM rows of STRIDE bytes
+     * @return the zlib stream of its scanlines, for an IDAT or fdAT chunk
+     */
+    byte[] compress(byte[] packed) {
+        int size = getSize();
+        int line = stride(size);
+        byte[] raw = new byte[(line + 1) * size];
+        int at = 0;
+        for (int row = 0; row < DIM; row++) {
+            int start = at;
+            raw[at++] = 0;
+            if (SCALE == 1) {
+                System.arraycopy(packed, row * STRIDE, raw, at, STRIDE);
+            } else {
+                for (int col = 0; col < DIM; col++) {
+                    int b = packed[row * STRIDE + col / 2];
+                    int color = (col & 1) == 0 ? (b >> 4) & 0xf : b & 0xf;
+                    for (int x = col * SCALE, end = x + SCALE; x < end; x++)
+                        raw[at + x / 2] |= (x & 1) == 0 ? color << 4 : color;
+                }
+            }
+            at += line;
+            for (int copy = 1; copy < SCALE; copy++, at += line + 1)
+                System.arraycopy(raw, start, raw, at, line + 1);
+        }
+
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 8 + 64);
+        byte[] buf = new byte[64 * 1024];
+        while (!deflater.finished())
+            out.write(buf, 0, deflater.deflate(buf));
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes a frame as a PNG of its own
+     * @param out where it goes
+     * @param data the frame, compressed
+     * @throws IOException if it can not be written
+     */
+    void writeImage(OutputStream out, byte[] data) throws IOException {
+        out.write(SIGNATURE);
+        header(out);
+        chunk(out, "IDAT", data);
+        chunk(out, "IEND", new byte[0]);
+    }
+
+    /**
+     * Starts an animated PNG
+     * @param out where it goes
+     * @param frames the number of frames that will follow
+     * @throws IOException if it can not be written
+     */
+    void startAnimation(OutputStream out, int frames) throws IOException {
+        out.write(SIGNATURE);
+        header(out);
+        ByteArrayOutputStream actl = new ByteArrayOutputStream();
+        DataOutputStream d = new DataOutputStream(actl);
+        d.writeInt(frames);
+        d.writeInt(0);
+        chunk(out, "acTL", actl.toByteArray());
+        sequence = 0;
+    }
+
+    /**
+     * Writes the next frame of an animated PNG; the first one is also the
+     * image shown by anything that does not animate
+     * @param out where it goes
+     * @param data the frame, compressed
+     * @param fps the frames shown a second
+     * @throws IOException if it can not be written
+     */
+    void writeFrame(OutputStream out, byte[] data, int fps) throws IOException {
+        ByteArrayOutputStream fctl = new ByteArrayOutputStream();
+        DataOutputStream d = new DataOutputStream(fctl);
+        d.writeInt(sequence++);
+        d.writeInt(getSize());
+        d.writeInt(getSize());
+        d.writeInt(0);
+        d.writeInt(0);
+        d.writeShort(1);
+        d.writeShort(fps);
+        d.writeByte(0);
+        d.writeByte(0);
+        chunk(out, "fcTL", fctl.toByteArray());
+        if (sequence == 1) {
+            chunk(out, "IDAT", data);
+        } else {
+            byte[] fdat = new byte[4 + data.length];
+            int seq = sequence++;
+            fdat[0] = (byte) (seq >>> 24);
+            fdat[1] = (byte) (seq >>> 16);
+            fdat[2] = (byte) (seq >>> 8);
+            fdat[3] = (byte) seq;
+            System.arraycopy(data, 0, fdat, 4, data.length);
+            chunk(out, "fdAT", fdat);
+        }
+    }
+
+    /**
+     * Ends an animated PNG
+     * @param out where it goes
+     * @throws IOException if it can not be written
+     */
+    void endAnimation(OutputStream out) throws IOException {
+        chunk(out, "IEND", new byte[0]);
+    }
+
+    /**
+     * Writes the IHDR and PLTE chunks: a 4 bit palette of the PlaceColors
+     * @param out where they go
+     * @throws IOException if they can not be written
+     */
+    private void header(OutputStream out) throws IOException {
+        ByteArrayOutputStream ihdr = new ByteArrayOutputStream();
+        DataOutputStream d = new DataOutputStream(ihdr);
+        d.writeInt(getSize());
+        d.writeInt(getSize());
+        d.writeByte(4);
+        d.writeByte(3);
+        d.writeByte(0);
+        d.writeByte(0);
+        d.writeByte(0);
+        chunk(out, "IHDR", ihdr.toByteArray());
+        byte[] palette = new byte[PlaceColor.TOTAL_COLORS * 3];
+        for (PlaceColor c : PlaceColor.values()) {
+            palette[c.getNumber() * 3] = (byte) c.getRed();
+            palette[c.getNumber() * 3 + 1] = (byte) c.getGreen();
+            palette[c.getNumber() * 3 + 2] = (byte) c.getBlue();
+        }
+        chunk(out, "PLTE", palette);
+    }
+
+    /**
+     * Writes a chunk: its length, type, data and the CRC of the type and data
+     * @param out where it goes
+     * @param type the four letter type
+     * @param data the data
+     * @throws IOException if it can not be written
+     */
+    private static void chunk(OutputStream out, String type, byte[] data) throws IOException {
+        byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(name);
+        crc.update(data);
+        DataOutputStream d = new DataOutputStream(out);
+        d.writeInt(data.length);
+        d.write(name);
+        d.write(data);
+        d.writeInt((int) crc.getValue());
+    }
+}
@@ -0,0 +1,237 @@
+package place.server;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides how soon a tile placement may go ahead, with a token bucket for
+ * every user and one for every address, so opening more connections does not
+ * get a user more tiles.  A bucket holds burst tokens and gets one back every
+ * cooldown; a placement takes one from the user's bucket and one from the
+ * address's.
+ *
+ * A bucket is kept as one long, the time it will be full again (as in the
+ * generic cell rate algorithm): it has a token to spare if that is less than
+ * burst - 1 cooldowns away, and taking one moves it a cooldown later.  That is
+ * a get and a compare-and-set per bucket, with nothing locked, so it can be
+ * asked on every tile.  A placement that comes early is not made to wait by
+ * parking a thread: it may take a token ahead of time, at most maxDelay
+ * milliseconds ahead, and the caller places it when that time comes; if it is
+ * even earlier than that it is refused.  With a maxDelay of 0 every early
+ * placement is refused.
+ *
+ * Users are known by their owner id, which the server hands out once per
+ * name for good, so their buckets are a plain array of longs indexed by it,
+ * in pages of PAGE ids that are made as the ids get that high: eight bytes a
+ * user who ever placed a tile, nothing to look up or sweep, and the same on
+ * the last day of an event as on the first.  Addresses come and go, so they
+ * are kept in a map instead, and a bucket that is full is the same as no
+ * bucket, so sweep drops those; a placement racing with the sweep may find
+ * its bucket gone and get a new, full one, which is at most one tile more than
+ * it should have had.
+ *
+ * @author Cameron Myron
+ */
+public class RateLimiter {
+
+    /**
+     * Nanoseconds in a millisecond
+     */
+    private static final long MS = 1_000_000;
+
+    /**
+     * When the times in the buckets start, from System.nanoTime, so a time
+     * of 0 is in the past
+     */
+    private final long START = System.nanoTime() - 1;
+
+    /**
+     * Nanoseconds before a user's bucket gets a token back
+     */
+    private final long USER_INTERVAL;
+
+    /**
+     * Nanoseconds a user may be ahead of its bucket, burst - 1 intervals
+     */
+    private final long USER_TOLERANCE;
+
+    /**
+     * Nanoseconds before an address's bucket gets a token back, 0 if
+     * addresses are not limited
+     */
+    private final long ADDRESS_INTERVAL;
+
+    /**
+     * Nanoseconds an address may be ahead of its bucket
+     */
+    private final long ADDRESS_TOLERANCE;
+
+    /**
+     * The most nanoseconds a placement may take a token ahead of time
+     */
+    private final long MAX_DELAY;
+
+    /**
+     * The bits of the ids in a page of user buckets
+     */
+    private static final int PAGE_BITS = 16;
+
+    /**
+     * The user buckets in a page
+     */
+    private static final int PAGE = 1 << PAGE_BITS;
+
+    /**
+     * The buckets of the users, by owner id, a page at a time; a bucket that
+     * was never used is 0, which is long past, so it is full
+     */
+    private volatile AtomicLongArray[] users = new AtomicLongArray[0];
+
+    /**
+     * The buckets of the addresses
+     */
+    private final ConcurrentHashMap<String, AtomicLong> addresses = new ConcurrentHashMap<>();
+
+    /**
+     * Create a limiter.
+     * @param cooldown milliseconds before a user gets a token back, 0 for no limit
+     * @param burst the tokens a user's bucket holds
+     * @param addressCooldown milliseconds before an address gets a token back, 0 for no limit
+     * @param addressBurst the tokens an address's bucket holds
+     * @param maxDelay the most milliseconds a placement may be held back instead of refused
+     */
+    public RateLimiter(long cooldown, int burst, long addressCooldown, int addressBurst, long maxDelay) {
+        USER_INTERVAL = cooldown * MS;
+        USER_TOLERANCE = (Math.max(1, burst) - 1) * USER_INTERVAL;
+        ADDRESS_INTERVAL = addressCooldown * MS;
+        ADDRESS_TOLERANCE = (Math.max(1, addressBurst) - 1) * ADDRESS_INTERVAL;
+        MAX_DELAY = maxDelay * MS;
+    }
+
+    /**
+     * Takes the tokens for a placement, if it may go ahead now or soon.
+     * @param user the owner id of the user
+     * @param address the address the user is connected from
+     * @return 0 if the placement may go ahead now; more than 0 if it took its
+     *         tokens ahead of time and goes ahead in that many milliseconds;
+     *         less than 0 if it is refused, and the user may place again in
+     *         minus that many milliseconds
+     */
+    public long admit(int user, String address) {
+        long now = System.nanoTime() - START;
+        long wait = 0;
+        AtomicLongArray page = null;
+        int slot = user & (PAGE - 1);
+        if (USER_INTERVAL > 0) {
+            page = page(user);
+            while (true) {
+                long full = page.get(slot);
+                wait = wait(full, USER_TOLERANCE, now);
+                if (wait > MAX_DELAY)
+                    return -millis(Math.max(1, wait - MAX_DELAY));
+                if (page.compareAndSet(slot, full, Math.max(full, now) + USER_INTERVAL))
+                    break;
+            }
+        }
+        if (ADDRESS_INTERVAL > 0) {
+            AtomicLong bucket = addresses.get(address);
+            if (bucket == null)
+                bucket = addresses.computeIfAbsent(address, k -> new AtomicLong(now));
+            while (true) {
+                long full = bucket.get();
+                long waitAddress = wait(full, ADDRESS_TOLERANCE, now);
+                if (waitAddress > MAX_DELAY) {
+                    if (page != null)
+                        page.addAndGet(slot, -USER_INTERVAL);
+                    return -millis(Math.max(1, waitAddress - MAX_DELAY));
+                }
+                if (bucket.compareAndSet(full, Math.max(full, now) + ADDRESS_INTERVAL)) {
+                    wait = Math.max(wait, waitAddress);
+                    break;
+                }
+            }
+        }
+        return millis(Math.max(0, wait));
+    }
+
+    /**
+     * Get how long until a bucket has a token
+     * @param full when the bucket is full again
+     * @param tolerance the nanoseconds the bucket may be ahead
+     * @param now the time
+     * @return the nanoseconds, 0 or less if it has one now
+     */
+    private static long wait(long full, long tolerance, long now) {
+        return Math.max(full, now) - tolerance - now;
+    }
+
+    /**
+     * Get the page of a user's bucket, making the pages up to it if they are
+     * not there yet
+     * @param user the owner id
+     * @return the page
+     */
+    private AtomicLongArray page(int user) {
+        int p = user >>> PAGE_BITS;
+        AtomicLongArray[] pages = users;
+        if (p < pages.length)
+            return pages[p];
+        synchronized (this) {
+            pages = users;
+            if (p >= pages.length) {
+                int had = pages.length;
+                pages = Arrays.copyOf(pages, p + 1);
+                for (int i = had; i <= p; i++)
+                    pages[i] = new AtomicLongArray(PAGE);
+                users = pages;
+            }
+            return pages[p];
+        }
+    }
+
+    /**
+     * Rounds nanoseconds up to milliseconds
+     * @param nanos the nanoseconds
+     * @return the milliseconds
+     */
+    private static long millis(long nanos) {
+        return (nanos + MS - 1) / MS;
+    }
+
+    /**
+     * Drops the address buckets that are full again, which is every bucket of
+     * an address that has not placed for a while
+     */
+    public void sweep() {
+        long now = System.nanoTime() - START;
+        addresses.values().removeIf(b -> b.get() <= now);
+    }
+
+    /**
+     * Get the users there are buckets for, used or not
+     * @return the count, a whole number of pages
+     */
+    public int getUsers() {
+        return users.length * PAGE;
+    }
+
+    /**
+     * Get the addresses with a bucket
+     * @return the count
+     */
+    public int getAddresses() {
+        return addresses.size();
+    }
+
+    /**
+     * The buckets as a line for the log
+     *
+     * @return the counts
+     */
+    @Override
+    public String toString() {
+        return "rateUsers=" + getUsers() + " rateAddresses=" + getAddresses();
+    }
+}
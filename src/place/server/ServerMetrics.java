@@ -0,0 +1,237 @@
+package place.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters the server keeps about itself.  They only ever go up; the server
+ * adds the gauges (like the queue depths) when it reports them.
+ *
+ * @author Cameron Myron
+ */
+public class ServerMetrics {
+
+    /**
+     * Tile frames skipped for clients that fell behind
+     */
+    final LongAdder framesDropped = new LongAdder();
+
+    /**
+     * Times a client went over its high watermark and started lagging
+     */
+    final LongAdder lagging = new LongAdder();
+
+    /**
+     * Fresh boards sent to clients that caught up after lagging
+     */
+    final LongAdder resyncs = new LongAdder();
+
+    /**
+     * Clients disconnected for falling too far behind
+     */
+    final LongAdder clientsDropped = new LongAdder();
+
+    /**
+     * Broadcast frames encoded, at most one per wire format per broadcast
+     */
+    final LongAdder framesEncoded = new LongAdder();
+
+    /**
+     * Boards encoded for clients that logged in or resynced
+     */
+    final LongAdder snapshotsEncoded = new LongAdder();
+
+    /**
+     * Connections closed for not sending their LOGIN in time
+     */
+    final LongAdder loginTimeouts = new LongAdder();
+
+    /**
+     * Clients that logged in again and only got what they missed
+     */
+    final LongAdder resumes = new LongAdder();
+
+    /**
+     * Viewport changes clients asked for
+     */
+    final LongAdder subscribes = new LongAdder();
+
+    /**
+     * Chunks sent to clients that started seeing them
+     */
+    final LongAdder chunksSent = new LongAdder();
+
+    /**
+     * Checkpoints of the board written
+     */
+    final LongAdder checkpoints = new LongAdder();
+
+    /**
+     * Tile placements held back until their user could place again
+     */
+    final LongAdder placementsDelayed = new LongAdder();
+
+    /**
+     * Tile placements refused for coming too soon
+     */
+    final LongAdder placementsRefused = new LongAdder();
+
+    /**
+     * How long tile changes took from their commit to being written to a
+     * client, for the LoadShedder
+     */
+    final LatencyHistogram commitToSend = new LatencyHistogram();
+
+    /**
+     * Tiles refused because their client is a spectator
+     */
+    final LongAdder placementsShed = new LongAdder();
+
+    /**
+     * COOLDOWNs that replaced one still waiting to be written
+     */
+    final LongAdder cooldownsMerged = new LongAdder();
+
+    /**
+     * Get the COOLDOWNs that replaced one still waiting to be written
+     * @return the count
+     */
+    public long getCooldownsMerged() {
+        return cooldownsMerged.sum();
+    }
+
+    /**
+     * Get the tile placements held back until their user could place again
+     * @return the count
+     */
+    public long getPlacementsDelayed() {
+        return placementsDelayed.sum();
+    }
+
+    /**
+     * Get the tile placements refused for coming too soon
+     * @return the count
+     */
+    public long getPlacementsRefused() {
+        return placementsRefused.sum();
+    }
+
+    /**
+     * Get the tiles refused because their client is a spectator
+     * @return the count
+     */
+    public long getPlacementsShed() {
+        return placementsShed.sum();
+    }
+
+    /**
+     * Get the checkpoints of the board written
+     * @return the count
+     */
+    public long getCheckpoints() {
+        return checkpoints.sum();
+    }
+
+    /**
+     * Get the clients that logged in again and only got what they missed
+     * @return the count
+     */
+    public long getResumes() {
+        return resumes.sum();
+    }
+
+    /**
+     * Get the viewport changes clients asked for
+     * @return the count
+     */
+    public long getSubscribes() {
+        return subscribes.sum();
+    }
+
+    /**
+     * Get the chunks sent to clients that started seeing them
+     * @return the count
+     */
+    public long getChunksSent() {
+        return chunksSent.sum();
+    }
+
+    /**
+     * Get the connections closed for not sending their LOGIN in time
+     * @return the count
+     */
+    public long getLoginTimeouts() {
+        return loginTimeouts.sum();
+    }
+
+    /**
+     * Get the boards encoded for clients
+     * @return the count
+     */
+    public long getSnapshotsEncoded() {
+        return snapshotsEncoded.sum();
+    }
+
+    /**
+     * Get the broadcast frames encoded
+     * @return the count
+     */
+    public long getFramesEncoded() {
+        return framesEncoded.sum();
+    }
+
+    /**
+     * Get the tile frames skipped for clients that fell behind
+     * @return the count
+     */
+    public long getFramesDropped() {
+        return framesDropped.sum();
+    }
+
+    /**
+     * Get the times a client started lagging
+     * @return the count
+     */
+    public long getLagging() {
+        return lagging.sum();
+    }
+
+    /**
+     * Get the fresh boards sent to clients that caught up
+     * @return the count
+     */
+    public long getResyncs() {
+        return resyncs.sum();
+    }
+
+    /**
+     * Get the clients disconnected for falling too far behind
+     * @return the count
+     */
+    public long getClientsDropped() {
+        return clientsDropped.sum();
+    }
+
+    /**
+     * The counters as a line for the log
+     *
+     * @return the counters as a string
+     */
+    @Override
+    public String toString() {
+        return "loginTimeouts=" + getLoginTimeouts() +
+                " snapshotsEncoded=" + getSnapshotsEncoded() +
+                " framesEncoded=" + getFramesEncoded() +
+                " framesDropped=" + getFramesDropped() +
+                " lagging=" + getLagging() +
+                " resyncs=" + getResyncs() +
+                " clientsDropped=" + getClientsDropped() +
+                " resumes=" + getResumes() +
+                " subscribes=" + getSubscribes() +
+                " chunksSent=" + getChunksSent() +
+                " checkpoints=" + getCheckpoints() +
+                " placementsDelayed=" + getPlacementsDelayed() +
+                " placementsRefused=" + getPlacementsRefused() +
+                " placementsShed=" + getPlacementsShed() +
+                " cooldownsMerged=" + getCooldownsMerged();
+    }
+}
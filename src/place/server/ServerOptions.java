@@ -0,0 +1,155 @@
+package place.server;
+
+import java.util.ArrayList;
+import java.util.Hashtable;
+
+/**
+ * The optional settings of a PlaceServer.  They come after the required
+ * command line arguments as pairs, for example:
+ *
+ * $ java PlaceServer 5000 100 1000 -mode nio -io 4
+ *
+ * The options, with their defaults:
+ *
+ *      mode: thread, a platform thread per client; virtual, a virtual thread
+ *          per client (needs Java 21); or nio, io selector threads (one per
+ *          CPU) shared by all clients<br>
+ *      tick: milliseconds between broadcasts of the changes in one batch per
+ *          client (0, each change as it comes)<br>
+ *      queue-high, queue-low, queue-max: bytes a client's outbound queue may
+ *          hold; over queue-high it skips tile changes and, with slow resync,
+ *          gets a fresh board once under queue-low, or with slow disconnect
+ *          is dropped; over queue-max it is dropped either way (4 MB, 1 MB,
+ *          twice queue-high)<br>
+ *      stats: seconds between metrics lines in the log (0, none)<br>
+ *      stripes: locks the board is guarded by, so changes in different parts
+ *          commit in parallel (64)<br>
+ *      snapshot-ms, snapshot-changes: how old the board encoded for logins
+ *          may get before it is encoded again (1000, 10000)<br>
+ *      login-timeout, login-threads, login-queue: see LoginPipeline (5000,
+ *          64, 1024)<br>
+ *      board: a file to map the board from instead of the heap, with the
+ *          owner names beside it in the file with .owners added<br>
+ *      log, log-sync, log-sync-ms: a TileLog replayed at startup, and when it
+ *          is forced: commit, interval or none (interval, every 100 ms)<br>
+ *      checkpoint, checkpoint-ms: where and how often the board is
+ *          checkpointed and the log compacted (the log with .checkpoint
+ *          added, 60000, 0 for never)<br>
+ *      history, history-keyframe: a HistoryStore directory, and the changes
+ *          between its keyframes (none, 100000)<br>
+ *      cooldown, burst, ip-cooldown, ip-burst: see RateLimiter (500, 1, 0 for
+ *          no limit per address, 1)<br>
+ *      rate-delay: the longest a tile placed too soon is held back before it
+ *          is refused instead (1000, 0 to refuse them all)<br>
+ *      access, access-type: the AccessList file and whether it is a
+ *          whitelist or a blacklist (whitelist.txt, whitelist)<br>
+ *      pending, ip-connections, ip-connect-rate, ip-connect-burst: the
+ *          connections that may wait on their LOGIN, be open from one
+ *          address, and be opened by one address a second and at once; see
+ *          AdmissionControl (4096, the rest 0 for no limit)<br>
+ *      slo-latency, slo-queue, slo-pending: the objectives for the commit to
+ *          send p99 in milliseconds, the queued bytes and the pending
+ *          connections; see LoadShedder (0, not looked at)<br>
+ *      shed-ms, shed-recover, shed-tick: the LoadShedder's window, the
+ *          healthy windows before it steps back, and the tick at SLOW (1000,
+ *          5, four ticks)<br>
+ *
+ * @author Cameron Myron
+ */
+public class ServerOptions {
+
+    /**
+     * The option values by name (without the dash)
+     */
+    private final Hashtable<String,String> options = new Hashtable<>();
+
+    /**
+     * Creates an empty set of options, so every setting has its default.
+     */
+    public ServerOptions() {
+    }
+
+    /**
+     * Reads the "-name value" pairs out of the command line arguments.
+     * @param args the command line arguments
+     * @throws IllegalArgumentException if an option has no value
+     */
+    public ServerOptions(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("-")) {
+                if (i + 1 >= args.length)
+                    throw new IllegalArgumentException("Missing Value For " + args[i]);
+                set(args[i].substring(1), args[++i]);
+            }
+        }
+    }
+
+    /**
+     * Changes an option.
+     * @param name the option name
+     * @param value the value
+     * @return these options
+     */
+    public ServerOptions set(String name, String value) {
+        options.put(name.toLowerCase(), value);
+        return this;
+    }
+
+    /**
+     * Get an option as a string.
+     * @param name the option name
+     * @param def the default value
+     * @return the value
+     */
+    public String get(String name, String def) {
+        return options.getOrDefault(name.toLowerCase(), def);
+    }
+
+    /**
+     * Get an option as an int.
+     * @param name the option name
+     * @param def the default value
+     * @return the value
+     */
+    public int getInt(String name, int def) {
+        String v = options.get(name.toLowerCase());
+        return v == null ? def : Integer.parseInt(v);
+    }
+
+    /**
+     * Get an option as a long.
+     * @param name the option name
+     * @param def the default value
+     * @return the value
+     */
+    public long getLong(String name, long def) {
+        String v = options.get(name.toLowerCase());
+        return v == null ? def : Long.parseLong(v);
+    }
+
+    /**
+     * Get the positional arguments, which are everything that is not an option.
+     * @param args the command line arguments
+     * @return the positional arguments
+     */
+    public static String[] positional(String[] args) {
+        ArrayList<String> rtrn = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("-"))
+                i++;
+            else
+                rtrn.add(args[i]);
+        }
+        return rtrn.toArray(new String[0]);
+    }
+
+    /**
+     * Utility method for debugging only.
+     *
+     * @return the options as a string
+     */
+    @Override
+    public String toString() {
+        return "ServerOptions" + options;
+    }
+}
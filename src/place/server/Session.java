@@ -0,0 +1,68 @@
+package place.server;
+
+import place.PlaceTile;
+import place.network.Codec;
+
+/**
+ * A logged in connection to the PlaceServer.  The server only needs to know a
+ * session's username and how to tell it about tile changes, no matter which
+ * engine is running the connection.
+ *
+ * @author Cameron Myron
+ */
+public interface Session {
+
+    /**
+     * The getter for the username
+     * @return the username
+     */
+    String getUSERNAME();
+
+    /**
+     * Get the codec the session speaks, which picks the frames it is sent
+     * @return the codec
+     */
+    Codec getCodec();
+
+    /**
+     * Called just before the session is added to the server, while the
+     * board can not change.  The session should send the login success, the
+     * board and the changes made since the board was taken.  A client that
+     * resumes gets no board; the changes it missed go as one TILES_CHANGED,
+     * even if there are none, since the client waits for it.
+     * @param board the board, null for a client that resumes
+     * @param missed the changes made since, in order
+     */
+    void start(BoardSnapshot board, PlaceTile[] missed);
+
+    /**
+     * Sends a tile change, or a batch of them, to the session.  The session
+     * takes the frame of its wire format from the broadcast instead of
+     * encoding the changes itself.
+     * @param b the broadcast
+     */
+    void broadcast(Broadcast b);
+
+    /**
+     * Sends the whole board to a session that skipped tile changes while it
+     * was behind, and the changes made since the board was taken.  Called by
+     * the server while it holds every stripe.
+     * @param board the board
+     * @param missed the changes made since, in order
+     */
+    void sendBoard(BoardSnapshot board, PlaceTile[] missed);
+
+    /**
+     * Get the bytes waiting to be written to the session
+     * @return the outbound queue depth in bytes
+     */
+    long getQueuedBytes();
+
+    /**
+     * Tells the session it placed a tile too soon, or that it may place again,
+     * if its protocol has COOLDOWN
+     * @param wait the milliseconds until its tile goes in if more than 0, until
+     *             it may place again if less than 0; 0 if it may place now
+     */
+    void cooldown(long wait);
+}
@@ -0,0 +1,109 @@
+package place.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An encoded frame that any number of clients send.  The bytes never change
+ * once the frame is made: every client reads them through a view of its own,
+ * so one tile change going out to thousands of clients is encoded once and
+ * lives in memory once.
+ *
+ * A frame counts its holders.  Whoever makes it holds it, every outbound
+ * queue that takes it holds it until the frame is written or thrown away, and
+ * when the last holder lets go a pooled buffer goes back to its pool.  A
+ * broadcast takes the holds of all its clients up front and gives back the
+ * ones it did not hand out, so the count is not touched once per client.
+ *
+ * @author Cameron Myron
+ */
+public final class SharedFrame {
+
+    /**
+     * The frame, header included, from position 0 to the limit
+     */
+    private final ByteBuffer BUFFER;
+
+    /**
+     * Where the buffer goes back to, null if it is not pooled
+     */
+    private final FramePool POOL;
+
+    /**
+     * The number of holders
+     */
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    /**
+     * Creates a frame held by its maker
+     * @param buffer the frame
+     * @param pool where the buffer goes back to, or null
+     */
+    SharedFrame(ByteBuffer buffer, FramePool pool) {
+        BUFFER = buffer;
+        POOL = pool;
+    }
+
+    /**
+     * Creates an unpooled frame over encoded bytes
+     * @param frame the bytes, header included
+     * @return the frame, held by the caller
+     */
+    static SharedFrame wrap(byte[] frame) {
+        return new SharedFrame(ByteBuffer.wrap(frame), null);
+    }
+
+    /**
+     * Get the size of the frame
+     * @return the bytes, header included
+     */
+    public int size() {
+        return BUFFER.limit();
+    }
+
+    /**
+     * Makes a view of the frame with a position of its own
+     * @return the view
+     */
+    public ByteBuffer view() {
+        return BUFFER.duplicate();
+    }
+
+    /**
+     * Adds a holder
+     * @return this frame
+     */
+    public SharedFrame retain() {
+        return retain(1);
+    }
+
+    /**
+     * Adds a number of holders at once
+     * @param holders the number of holders
+     * @return this frame
+     */
+    SharedFrame retain(int holders) {
+        if (refs.getAndAdd(holders) <= 0)
+            throw new IllegalStateException("Frame Already Released");
+        return this;
+    }
+
+    /**
+     * Removes a holder, returning the buffer to its pool after the last one
+     */
+    public void release() {
+        release(1);
+    }
+
+    /**
+     * Removes a number of holders at once
+     * @param holders the number of holders
+     */
+    void release(int holders) {
+        int left = refs.addAndGet(-holders);
+        if (left == 0 && POOL != null)
+            POOL.recycle(BUFFER);
+        else if (left < 0)
+            throw new IllegalStateException("Frame Released Too Often");
+    }
+}
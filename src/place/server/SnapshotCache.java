@@ -0,0 +1,283 @@
+package place.server;
+
+import place.OwnerDictionary;
+import place.PlaceBoard;
+import place.PlaceTile;
+import place.network.BinaryCodec;
+import place.network.Codec;
+import place.network.PlaceRequest;
+import place.network.SerialCodec;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps the board encoded for the clients that log in, so a storm of logins
+ * costs one encode per wire format instead of one per client.  The board is
+ * copied while every stripe is held, which gives an image that matches one
+ * sequence number exactly, and encoded after the stripes are let go.  An
+ * image is reused until it is more than a number of milliseconds or a number
+ * of changes old.
+ *
+ * A client that gets an image also needs the changes made after it, so the
+ * cache remembers the most recent changes in a ring, indexed by sequence
+ * number.  The ring is as long as the most changes an image may be behind.
+ *
+ * The ring also lets a client that lost its connection pick up where it left
+ * off: it gets the changes after the last one it has instead of a new board.
+ * One that has fallen out of the ring gets the chunks changed since instead,
+ * found from the sequence number of the last change in every chunk.
+ *
+ * @author Cameron Myron
+ */
+class SnapshotCache {
+
+    /**
+     * The live board
+     */
+    private final PlaceBoard MODEL;
+
+    /**
+     * The stripes that guard the board
+     */
+    private final BoardStripes STRIPES;
+
+    /**
+     * The sequence number of the last committed change
+     */
+    private final AtomicLong SEQUENCE;
+
+    /**
+     * The server's owner dictionary
+     */
+    private final OwnerDictionary OWNERS;
+
+    /**
+     * The server metrics
+     */
+    private final ServerMetrics METRICS;
+
+    /**
+     * The oldest an image may get, in milliseconds
+     */
+    private final long MAX_AGE;
+
+    /**
+     * The most changes an image may be behind, which is also the ring length
+     */
+    private final int MAX_CHANGES;
+
+    /**
+     * The recent changes, each at its sequence number modulo the length.
+     * Written under the stripe of the tile, read under every stripe.
+     */
+    private final PlaceTile[] recent;
+
+    /**
+     * The sequence number of the last change in every chunk of the board
+     */
+    private final AtomicLongArray chunkSeqs;
+
+    /**
+     * The sequence number the server started at; a client with an older one
+     * has a board from before a restart
+     */
+    private final long FIRST;
+
+    /**
+     * The current image, null before the first login
+     */
+    private PlaceBoard image;
+
+    /**
+     * The sequence number of the image
+     */
+    private long imageSeq;
+
+    /**
+     * When the image was taken
+     */
+    private long imageTime;
+
+    /**
+     * The image encoded in each format, made when first asked for
+     */
+    private final BoardSnapshot[] encoded = new BoardSnapshot[1 + BinaryCodec.VERSION * 4];
+
+    /**
+     * Creates the cache
+     * @param model the live board
+     * @param stripes the stripes that guard the board
+     * @param sequence the sequence number of the last committed change
+     * @param owners the server's owner dictionary
+     * @param metrics the server metrics
+     * @param maxAge the oldest an image may get, in milliseconds
+     * @param maxChanges the most changes an image may be behind
+     */
+    SnapshotCache(PlaceBoard model, BoardStripes stripes, AtomicLong sequence, OwnerDictionary owners,
+                  ServerMetrics metrics, long maxAge, int maxChanges) {
+        MODEL = model;
+        STRIPES = stripes;
+        SEQUENCE = sequence;
+        OWNERS = owners;
+        METRICS = metrics;
+        MAX_AGE = maxAge;
+        MAX_CHANGES = Math.max(1, maxChanges);
+        recent = new PlaceTile[MAX_CHANGES];
+        chunkSeqs = new AtomicLongArray(model.getChunkCount());
+        FIRST = sequence.get();
+    }
+
+    /**
+     * Remembers a committed change. Called under the stripe of the tile.
+     * @param t the tile, with its sequence number
+     */
+    void committed(PlaceTile t) {
+        recent[(int) (t.getSeq() % MAX_CHANGES)] = t;
+        chunkSeqs.accumulateAndGet(MODEL.chunkOf(t.getRow(), t.getCol()), t.getSeq(), Math::max);
+    }
+
+    /**
+     * Get the board for a client, taking a new image or encoding it for the
+     * client's format if need be. Call it without holding any stripe.
+     * @param codec the codec of the client
+     * @return the snapshot, with a hold the caller releases once it is sent
+     */
+    synchronized BoardSnapshot get(Codec codec) {
+        long now = System.currentTimeMillis();
+        long behind = SEQUENCE.get() - imageSeq;
+        if (image == null || behind >= MAX_CHANGES || (behind > 0 && now - imageTime >= MAX_AGE)) {
+            STRIPES.lockAll();
+            try {
+                if (image == null)
+                    image = MODEL.copy();
+                else
+                    MODEL.copyTo(image);
+                imageSeq = SEQUENCE.get();
+            } finally {
+                STRIPES.unlockAll();
+            }
+            imageTime = now;
+            for (int i = 0; i < encoded.length; i++) {
+                if (encoded[i] != null)
+                    encoded[i].release();
+                encoded[i] = null;
+            }
+        }
+        int format = format(codec);
+        if (encoded[format] == null)
+            encoded[format] = encode(codec, image, imageSeq);
+        return encoded[format].hold();
+    }
+
+    /**
+     * Encodes the live board for a client that could not be served from the
+     * image. Call it while holding every stripe.
+     * @param codec the codec of the client
+     * @return the snapshot, not cached, held by the caller
+     */
+    BoardSnapshot live(Codec codec) {
+        return encode(codec, MODEL, SEQUENCE.get());
+    }
+
+    /**
+     * Get the changes made after a snapshot. Call it while holding every
+     * stripe, so the changes can not move on.
+     * @param snap the snapshot
+     * @return the changes in the order they were made, null if the ring no
+     *         longer holds them all
+     */
+    PlaceTile[] since(BoardSnapshot snap) {
+        return since(snap.getSeq());
+    }
+
+    /**
+     * Get the changes made after a sequence number. Call it while holding
+     * every stripe, so the changes can not move on.
+     * @param from the sequence number
+     * @return the changes in the order they were made, null if the ring no
+     *         longer holds them all
+     */
+    private PlaceTile[] since(long from) {
+        long last = SEQUENCE.get();
+        if (from > last || last - from > MAX_CHANGES)
+            return null;
+        PlaceTile[] tiles = new PlaceTile[(int) (last - from)];
+        for (int i = 0; i < tiles.length; i++) {
+            long seq = from + 1 + i;
+            PlaceTile t = recent[(int) (seq % MAX_CHANGES)];
+            if (t == null || t.getSeq() != seq)
+                return null;
+            tiles[i] = t;
+        }
+        return tiles;
+    }
+
+    /**
+     * Get what a client that already has the board up to a sequence number
+     * is missing: the changes after it if the ring still holds them, or else
+     * the tiles of every chunk changed since, stamped with the last sequence
+     * number.  Chunks that would come to more tiles than the ring holds cost
+     * more than the board, which is deflated, so then the client gets that.
+     * Call it while holding every stripe.
+     * @param from the sequence number of the last change the client has
+     * @return the tiles to send, in order, null if the client needs a new
+     *         board (its sequence number is from before a restart or unknown,
+     *         or too much changed)
+     */
+    PlaceTile[] resume(long from) {
+        long last = SEQUENCE.get();
+        if (from < FIRST || from > last)
+            return null;
+        PlaceTile[] tiles = since(from);
+        if (tiles != null)
+            return tiles;
+        ArrayList<PlaceTile> changed = new ArrayList<>();
+        for (int chunk = 0; chunk < chunkSeqs.length(); chunk++) {
+            if (chunkSeqs.get(chunk) <= from)
+                continue;
+            for (PlaceTile t : MODEL.getChunk(chunk).getChangedTiles()) {
+                t.setSeq(last);
+                changed.add(t);
+            }
+            if (changed.size() > MAX_CHANGES)
+                return null;
+        }
+        return changed.toArray(new PlaceTile[0]);
+    }
+
+    /**
+     * Encodes a board the way a fresh connection of a client's format gets it
+     * @param codec the codec of the client
+     * @param board the board
+     * @param seq the sequence number of the board
+     * @return the snapshot
+     */
+    private BoardSnapshot encode(Codec codec, PlaceBoard board, long seq) {
+        board.setSeq(seq);
+        PlaceRequest<PlaceBoard> req = new PlaceRequest<>(PlaceRequest.RequestType.BOARD, board);
+        METRICS.snapshotsEncoded.increment();
+        if (!(codec instanceof BinaryCodec))
+            return new BoardSnapshot(SharedFrame.wrap(SerialCodec.INSTANCE.encode(req)), seq, null);
+        BinaryCodec client = (BinaryCodec) codec;
+        BinaryCodec fresh = new BinaryCodec(client.getVersion());
+        fresh.shareOwners(OWNERS);
+        fresh.setBoardFields(client.getBoardFields());
+        byte[] frames = fresh.encode(req);
+        return new BoardSnapshot(SharedFrame.wrap(frames), seq, fresh.getAnnounced());
+    }
+
+    /**
+     * Get the slot of a client's format
+     * @param codec the codec of the client
+     * @return 0 for Java serialization, otherwise one per binary version and board fields
+     */
+    private static int format(Codec codec) {
+        if (!(codec instanceof BinaryCodec))
+            return 0;
+        BinaryCodec c = (BinaryCodec) codec;
+        return 1 + (c.getVersion() - 1) * 4 + c.getBoardFields();
+    }
+}
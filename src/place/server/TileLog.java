@@ -0,0 +1,939 @@
+package place.server;
+
+import place.OwnerDictionary;
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * An append only log of the tile changes the server commits, so the board can
+ * be rebuilt after a restart.  Every change is a record of its sequence
+ * number, row, column, color, owner id and time; the first time an owner id
+ * shows up its name goes in the log ahead of it, so the log can be read back
+ * into a new owner dictionary.
+ *
+ * Appending only copies the record into a buffer.  A writer thread takes
+ * whatever has piled up since its last write and writes it as one frame (its
+ * length, a CRC32C of it and the records), so a burst of changes costs one
+ * write, and with COMMIT one fsync, however many changes are in it.  The
+ * fsync policy is one of:
+ *
+ *  COMMIT:   every frame is forced to disk before the changes in it are
+ *            acknowledged; the placing thread waits for it (see awaitDurable),
+ *            or leaves a task the writer runs once it is (see whenDurable)
+ *  INTERVAL: frames are written right away and forced every few milliseconds,
+ *            so a crash of the machine loses at most that much (the default)
+ *  NONE:     frames are written right away and the OS forces them when it likes
+ *
+ * The buffer is guarded by a ReentrantLock, which every placing thread
+ * takes while it holds its stripe, so it is held only for the copy.  The
+ * threads that wait, to append while the writer is far behind or for a
+ * force, wait on a Condition of their own: a virtual thread parks there
+ * without pinning its carrier as it would in wait(), and a swap or a force
+ * wakes only the threads it concerns.  It is still one lock for the whole
+ * board.  A buffer per stripe would take it off the placing path, but the
+ * writer would have to merge the buffers back into one order for the frames,
+ * the mark and the compaction, and the copy is far cheaper than that.
+ *
+ * On open the frames are replayed into the board in order.  A frame cut short
+ * or with a bad CRC, from a crash while it was written, ends the log; it and
+ * anything after it are cut off.  Replaying a change twice does no harm, so
+ * the log may also be replayed onto a board that already has some of it.
+ *
+ * The log does not have to grow forever.  The server marks it when it starts
+ * a checkpoint of the board, at a sequence number every change before which
+ * is in the log ahead of the mark; once the checkpoint is on disk it asks the
+ * log to compact, and the writer rewrites the log as the owner names and the
+ * frames after the mark, and renames it over the old one.  The changes up to
+ * the checkpoint's sequence number are then skipped when the log is opened.
+ *
+ * The file is "PLOG", the version and DIM as ints, then the frames.
+ *
+ * @author Cameron Myron
+ */
+public class TileLog implements Closeable {
+
+    /**
+     * A task to run once a change is on disk
+     */
+    private static final class Waiter {
+
+        /**
+         * The sequence number of the change
+         */
+        final long SEQ;
+
+        /**
+         * The task
+         */
+        final Runnable DONE;
+
+        /**
+         * Creates a waiter
+         * @param seq the sequence number of the change
+         * @param done the task
+         */
+        Waiter(long seq, Runnable done) {
+            SEQ = seq;
+            DONE = done;
+        }
+    }
+
+    /**
+     * When the log forces what it wrote to disk
+     */
+    public enum Sync {
+        /** Before the changes are acknowledged */
+        COMMIT,
+        /** Every few milliseconds */
+        INTERVAL,
+        /** When the OS likes */
+        NONE
+    }
+
+    /**
+     * The first int of the file, "PLOG"
+     */
+    private static final int MAGIC = 0x504C4F47;
+
+    /**
+     * The version of the file layout
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The bytes of the file header: magic, version and DIM
+     */
+    private static final int HEADER_BYTES = 12;
+
+    /**
+     * The bytes in front of every frame: its length and CRC
+     */
+    private static final int FRAME_HEADER_BYTES = 8;
+
+    /**
+     * The record type of a tile change
+     */
+    private static final byte TILE = 0;
+
+    /**
+     * The record type of an owner name
+     */
+    private static final byte OWNER = 1;
+
+    /**
+     * The bytes of a tile change record: type, sequence number, row, column,
+     * color, owner id and time
+     */
+    private static final int TILE_BYTES = 1 + 8 + 4 + 4 + 1 + 4 + 8;
+
+    /**
+     * The most bytes that may wait for the writer before appending waits too
+     */
+    private static final int MAX_PENDING = 16 << 20;
+
+    /**
+     * The log file, only used by the writer once the log is open
+     */
+    private FileChannel channel;
+
+    /**
+     * The square dimension of the board the log is for
+     */
+    private final int DIM;
+
+    /**
+     * The path of the log file
+     */
+    private final Path PATH;
+
+    /**
+     * When the log is forced to disk
+     */
+    private final Sync SYNC;
+
+    /**
+     * Milliseconds between forces with Sync.INTERVAL
+     */
+    private final long SYNC_MS;
+
+    /**
+     * The owners of the board the log is for
+     */
+    private final OwnerDictionary OWNERS;
+
+    /**
+     * The thread that writes the frames
+     */
+    private final Thread WRITER;
+
+    /**
+     * The records appended since the writer last took them
+     */
+    private ByteBuffer pending = ByteBuffer.allocate(1 << 16);
+
+    /**
+     * The records the writer is writing, empty otherwise
+     */
+    private ByteBuffer writing = ByteBuffer.allocate(1 << 16);
+
+    /**
+     * The sequence number of the last change appended
+     */
+    private long appended;
+
+    /**
+     * The sequence number of the last change forced to disk
+     */
+    private long synced;
+
+    /**
+     * The owner ids below this have had their names logged
+     */
+    private int named = 1;
+
+    /**
+     * Where the mark is in the pending records, -1 if there is none
+     */
+    private int split = -1;
+
+    /**
+     * The sequence number of the last mark
+     */
+    private long markSeq;
+
+    /**
+     * Where the records after the last mark start in the file, -1 until the
+     * writer gets there
+     */
+    private long markOffset = -1;
+
+    /**
+     * The sequence number of the mark to compact the log to, 0 for none
+     */
+    private long compactSeq;
+
+    /**
+     * Whether the log takes no more changes
+     */
+    private boolean closed;
+
+    /**
+     * Whether the writer has exited, after which nothing more goes to disk
+     */
+    private boolean stopped;
+
+    /**
+     * Guards the buffers, the counters and the state the writer shares
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Signalled when the writer has something to do
+     */
+    private final Condition work = lock.newCondition();
+
+    /**
+     * Signalled when the writer takes the pending records, so appending may go on
+     */
+    private final Condition room = lock.newCondition();
+
+    /**
+     * Signalled when the log was forced to disk, or the writer stopped
+     */
+    private final Condition onDisk = lock.newCondition();
+
+    /**
+     * The tasks waiting for their change to be forced to disk
+     */
+    private final ArrayList<Waiter> waiters = new ArrayList<>();
+
+    /**
+     * The sequence number of the last change in the log when it was opened
+     */
+    private final long lastSeq;
+
+    /**
+     * The changes replayed when the log was opened
+     */
+    private final long replayed;
+
+    /**
+     * The frames written
+     */
+    private long frames;
+
+    /**
+     * The bytes written
+     */
+    private long bytes;
+
+    /**
+     * The times the log was forced to disk
+     */
+    private long syncs;
+
+    /**
+     * The times the log was compacted
+     */
+    private long compactions;
+
+    /**
+     * Opens a log, replaying it into a board, and starts its writer.  The
+     * file is made if it does not exist.
+     * @param path the log file
+     * @param board the board to replay into, which also gives the owner ids
+     *              of the changes appended
+     * @param sync when the log is forced to disk
+     * @param syncMs milliseconds between forces with Sync.INTERVAL
+     * @return the log, ready for the changes after the ones in it
+     * @throws IOException if the file can not be read or written, or is not a
+     *                     log of a board of the same size
+     */
+    public static TileLog open(Path path, PlaceBoard board, Sync sync, long syncMs) throws IOException {
+        return open(path, board, sync, syncMs, 0);
+    }
+
+    /**
+     * Opens a log, replaying the changes after a checkpoint into a board, and
+     * starts its writer.  The file is made if it does not exist.
+     * @param path the log file
+     * @param board the board to replay into, with the checkpoint loaded
+     * @param sync when the log is forced to disk
+     * @param syncMs milliseconds between forces with Sync.INTERVAL
+     * @param after the sequence number of the checkpoint; changes up to it are skipped
+     * @return the log, ready for the changes after the ones in it
+     * @throws IOException if the file can not be read or written, or is not a
+     *                     log of a board of the same size
+     */
+    public static TileLog open(Path path, PlaceBoard board, Sync sync, long syncMs, long after) throws IOException {
+        FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            return new TileLog(path, ch, board, sync, syncMs, after);
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Replays a log and starts its writer
+     * @param path the log file
+     * @param ch the log file, open for reading and writing
+     * @param board the board to replay into
+     * @param sync when the log is forced to disk
+     * @param syncMs milliseconds between forces with Sync.INTERVAL
+     * @param after changes up to this sequence number are skipped
+     * @throws IOException if the file can not be read or written, or is not a
+     *                     log of a board of the same size
+     */
+    private TileLog(Path path, FileChannel ch, PlaceBoard board, Sync sync, long syncMs, long after)
+            throws IOException {
+        PATH = path;
+        DIM = board.DIM;
+        channel = ch;
+        SYNC = sync;
+        SYNC_MS = syncMs;
+        OWNERS = board.getOwners();
+        long size = ch.size();
+        if (size < HEADER_BYTES) {
+            ByteBuffer header = header();
+            ch.truncate(0);
+            while (header.hasRemaining())
+                ch.write(header, HEADER_BYTES - header.remaining());
+            ch.force(true);
+            size = HEADER_BYTES;
+        } else {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining() && ch.read(header, header.position()) > 0)
+                ;
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION)
+                throw new IOException("Not A Tile Log: " + path);
+            int dim = header.getInt();
+            if (dim != board.DIM)
+                throw new IOException("Tile Log Is For A " + dim + "x" + dim + " Board: " + path);
+        }
+
+        long[] result = replay(ch, board, size, after);
+        long good = result[0];
+        lastSeq = result[1];
+        replayed = result[2];
+        named = (int) result[3];
+        if (good < size) {
+            System.out.println("Tile Log: Cut Off " + (size - good) + " Bytes Of Unfinished Frames At The End");
+            ch.truncate(good);
+        }
+        ch.position(good);
+        synced = appended = lastSeq;
+
+        WRITER = new Thread(this::write, "TileLog");
+        WRITER.setDaemon(true);
+        WRITER.start();
+    }
+
+    /**
+     * Makes the file header of a log
+     * @return the header, ready to be written
+     */
+    private ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putInt(VERSION).putInt(DIM).flip();
+        return header;
+    }
+
+    /**
+     * Replays the frames of the log into a board, up to the first one that is
+     * cut short or damaged.  The file is read in large blocks, so a log of
+     * small frames does not cost a read each.
+     * @param ch the log file
+     * @param board the board
+     * @param size the size of the file
+     * @param after changes up to this sequence number are skipped
+     * @return where the good frames end, the last sequence number, the number
+     *         of changes replayed and the first owner id whose name in the log is not
+     *         the one in the board's owners
+     * @throws IOException if the file can not be read
+     */
+    private long[] replay(FileChannel ch, PlaceBoard board, long size, long after) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(8 << 20);
+        buf.flip();
+        CRC32C crc = new CRC32C();
+        int[] ids = new int[1024];
+        int known = 1;
+        long last = 0, count = 0;
+        long good = HEADER_BYTES;
+        long read = HEADER_BYTES;
+        while (true) {
+            if (buf.remaining() < FRAME_HEADER_BYTES) {
+                buf = fill(ch, buf, read, FRAME_HEADER_BYTES);
+                read = good + buf.remaining();
+                if (buf.remaining() < FRAME_HEADER_BYTES)
+                    break;
+            }
+            int length = buf.getInt(buf.position());
+            int sum = buf.getInt(buf.position() + 4);
+            if (length <= 0 || good + FRAME_HEADER_BYTES + length > size)
+                break;
+            if (buf.remaining() < FRAME_HEADER_BYTES + length) {
+                buf = fill(ch, buf, read, FRAME_HEADER_BYTES + length);
+                read = good + buf.remaining();
+                if (buf.remaining() < FRAME_HEADER_BYTES + length)
+                    break;
+            }
+            int start = buf.position() + FRAME_HEADER_BYTES;
+            crc.reset();
+            crc.update(buf.array(), buf.arrayOffset() + start, length);
+            if ((int) crc.getValue() != sum)
+                break;
+
+            buf.position(start);
+            int end = start + length;
+            while (buf.position() < end) {
+                byte type = buf.get();
+                if (type == TILE) {
+                    long seq = buf.getLong();
+                    int row = buf.getInt(), col = buf.getInt();
+                    int color = buf.get();
+                    int owner = buf.getInt();
+                    long time = buf.getLong();
+                    if (seq > after && row >= 0 && row < board.DIM && col >= 0 && col < board.DIM
+                            && color >= 0 && color < PlaceColor.TOTAL_COLORS) {
+                        board.set(row, col, PlaceColor.fromNumber(color),
+                                owner > 0 && owner < ids.length ? ids[owner] : 0, time);
+                        count++;
+                    }
+                    last = Math.max(last, seq);
+                } else if (type == OWNER) {
+                    int id = buf.getInt();
+                    byte[] name = new byte[buf.getShort() & 0xFFFF];
+                    buf.get(name);
+                    if (id >= ids.length)
+                        ids = Arrays.copyOf(ids, Math.max(ids.length * 2, id + 1));
+                    ids[id] = OWNERS.idOf(new String(name, StandardCharsets.UTF_8));
+                    known = Math.max(known, id + 1);
+                } else {
+                    break;
+                }
+            }
+            buf.position(end);
+            good += FRAME_HEADER_BYTES + length;
+        }
+        int same = 1;
+        while (same < known && ids[same] == same)
+            same++;
+        return new long[]{good, last, count, same};
+    }
+
+    /**
+     * Reads more of the log into a buffer, keeping what is left in it
+     * @param ch the log file
+     * @param buf the buffer, ready to be read
+     * @param from where the buffer's contents end in the file
+     * @param need the bytes wanted in the buffer
+     * @return the buffer, or a bigger one if need did not fit, ready to be read
+     * @throws IOException if the file can not be read
+     */
+    private static ByteBuffer fill(FileChannel ch, ByteBuffer buf, long from, int need) throws IOException {
+        if (need > buf.capacity()) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(need, buf.capacity() * 2));
+            bigger.put(buf);
+            buf = bigger;
+        } else {
+            buf.compact();
+        }
+        int n;
+        while (buf.hasRemaining() && (n = ch.read(buf, from)) > 0)
+            from += n;
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Adds a committed change to the log.  Call it under the stripe of the
+     * tile, so the changes to one tile are in the log in the order of their
+     * sequence numbers.  It only waits if the writer has fallen MAX_PENDING
+     * bytes behind.
+     * @param t the change, with its sequence number and time set
+     * @param owner the id of its owner in the board's owners
+     */
+    public void append(PlaceTile t, int owner) {
+        lock.lock();
+        try {
+            while (pending.position() >= MAX_PENDING && !closed) {
+                try {
+                    room.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (closed)
+                return;
+            boolean wasEmpty = pending.position() == 0;
+            for (; named <= owner; named++) {
+                byte[] name = OWNERS.nameOf(named).getBytes(StandardCharsets.UTF_8);
+                room(1 + 4 + 2 + name.length);
+                pending.put(OWNER).putInt(named).putShort((short) name.length).put(name);
+            }
+            room(TILE_BYTES);
+            pending.put(TILE).putLong(t.getSeq()).putInt(t.getRow()).putInt(t.getCol())
+                    .put((byte) t.getColor().getNumber()).putInt(owner).putLong(t.getTime());
+            appended = Math.max(appended, t.getSeq());
+            if (wasEmpty)
+                work.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes room in the pending buffer
+     * @param bytes the bytes about to be put in it
+     */
+    private void room(int bytes) {
+        if (pending.remaining() < bytes) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + bytes));
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+        }
+    }
+
+    /**
+     * Marks the log for a checkpoint.  Call it while holding every stripe,
+     * so every change up to the sequence number is ahead of the mark and
+     * every change after it is behind.
+     * @param seq the sequence number of the last change
+     */
+    public void mark(long seq) {
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            split = pending.position();
+            markSeq = seq;
+            markOffset = -1;
+            work.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops everything ahead of a mark, once the checkpoint taken at it is on
+     * disk.  The writer does it between frames.
+     * @param seq the sequence number the mark was made at
+     */
+    public void compact(long seq) {
+        lock.lock();
+        try {
+            if (seq == markSeq) {
+                compactSeq = seq;
+                work.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until a change is on disk, if the log forces every commit.  Call
+     * it after the stripe is let go, so the changes around it keep committing
+     * and go to disk in the same force.  Closing the log does not end the
+     * wait, since the writer still forces what was appended; only the writer
+     * stopping, with everything forced or the file failed, does.
+     * @param seq the sequence number of the change
+     */
+    public void awaitDurable(long seq) {
+        if (SYNC != Sync.COMMIT)
+            return;
+        lock.lock();
+        try {
+            while (synced < seq && !stopped) {
+                try {
+                    onDisk.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Leaves a task to run once a change is on disk, for a thread that must
+     * not wait for it.  The writer runs it right after the force, so it
+     * should only hand the news on.  It is also run if the writer stops
+     * first, as awaitDurable would return then.
+     * @param seq the sequence number of the change
+     * @param done the task
+     * @return false if there is nothing to wait for, the log does not force
+     *         every commit or the change is on disk already, and the task was
+     *         not taken
+     */
+    public boolean whenDurable(long seq, Runnable done) {
+        if (SYNC != Sync.COMMIT)
+            return false;
+        lock.lock();
+        try {
+            if (synced >= seq || stopped)
+                return false;
+            waiters.add(new Waiter(seq, done));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the waiters whose change is on disk, or all of them once the
+     * writer has stopped. Call it holding the lock.
+     * @return the tasks to run, null if there are none
+     */
+    private ArrayList<Runnable> durable() {
+        ArrayList<Runnable> done = null;
+        for (Iterator<Waiter> i = waiters.iterator(); i.hasNext(); ) {
+            Waiter w = i.next();
+            if (w.SEQ <= synced || stopped) {
+                if (done == null)
+                    done = new ArrayList<>();
+                done.add(w.DONE);
+                i.remove();
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Runs the tasks of the waiters taken, outside the lock
+     * @param done the tasks, null for none
+     */
+    private static void run(ArrayList<Runnable> done) {
+        if (done == null)
+            return;
+        for (Runnable r : done) {
+            try {
+                r.run();
+            } catch (RuntimeException e) {
+                System.out.println("Tile Log Waiter Failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * Runs the writer: takes the pending records, writes them as a frame and
+     * forces the file as the policy says, until the log is closed and
+     * everything in it is on disk.  A batch with a mark in it is written as
+     * two frames, so the mark falls between frames.  If the file can not be
+     * written the error is printed and the log stops taking changes.
+     */
+    private void write() {
+        CRC32C crc = new CRC32C();
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_BYTES);
+        long forced = System.nanoTime();
+        try {
+            while (true) {
+                ByteBuffer batch;
+                long upTo;
+                int at;
+                boolean last;
+                long compactFrom = -1;
+                lock.lock();
+                try {
+                    while (pending.position() == 0 && !closed && split < 0 && compactSeq == 0) {
+                        if (SYNC != Sync.INTERVAL || synced == appended) {
+                            work.await();
+                        } else {
+                            long left = SYNC_MS - (System.nanoTime() - forced) / 1_000_000;
+                            if (left <= 0)
+                                break;
+                            work.await(left, TimeUnit.MILLISECONDS);
+                        }
+                    }
+                    batch = pending;
+                    pending = writing;
+                    writing = batch;
+                    upTo = appended;
+                    at = split;
+                    split = -1;
+                    last = closed;
+                    if (compactSeq != 0 && markOffset >= 0) {
+                        compactFrom = markOffset;
+                        compactSeq = 0;
+                        markSeq = 0;
+                        markOffset = -1;
+                    }
+                    room.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                batch.flip();
+                if (at >= 0) {
+                    ByteBuffer ahead = batch.duplicate();
+                    ahead.limit(at);
+                    frame(ahead, crc, header);
+                    batch.position(at);
+                    lock.lock();
+                    try {
+                        markOffset = channel.position();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+                frame(batch, crc, header);
+                batch.clear();
+                if (compactFrom >= 0)
+                    compact(compactFrom, crc, header);
+                boolean force = last || SYNC == Sync.COMMIT
+                        || SYNC == Sync.INTERVAL && System.nanoTime() - forced >= SYNC_MS * 1_000_000;
+                if (force) {
+                    channel.force(false);
+                    forced = System.nanoTime();
+                    ArrayList<Runnable> done;
+                    lock.lock();
+                    try {
+                        synced = upTo;
+                        syncs++;
+                        done = durable();
+                        onDisk.signalAll();
+                    } finally {
+                        lock.unlock();
+                    }
+                    run(done);
+                }
+                if (last)
+                    break;
+            }
+        } catch (IOException e) {
+            System.out.println("Tile Log Failed, Changes Are No Longer Logged: " + e);
+        } catch (InterruptedException e) {
+            // closing
+        }
+        ArrayList<Runnable> done;
+        lock.lock();
+        try {
+            closed = true;
+            stopped = true;
+            done = durable();
+            room.signalAll();
+            onDisk.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        run(done);
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // squash
+        }
+    }
+
+    /**
+     * Writes records to the end of the log as a frame
+     * @param records the records, nothing is written if there are none
+     * @param crc the checksum to use
+     * @param header the buffer for the frame header
+     * @throws IOException if the log can not be written
+     */
+    private void frame(ByteBuffer records, CRC32C crc, ByteBuffer header) throws IOException {
+        if (!records.hasRemaining())
+            return;
+        crc.reset();
+        crc.update(records.duplicate());
+        header.clear();
+        header.putInt(records.remaining()).putInt((int) crc.getValue()).flip();
+        ByteBuffer[] frame = {header, records};
+        long n = FRAME_HEADER_BYTES + records.remaining();
+        while (records.hasRemaining())
+            channel.write(frame);
+        lock.lock();
+        try {
+            frames++;
+            bytes += n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Rewrites the log as the names of the owners logged so far and the
+     * frames from a mark on, and renames it over the log.  The frames are
+     * copied file to file; the new log is on disk before the rename, so a
+     * crash leaves either the old log or the new one.
+     * @param from where the frames after the mark start
+     * @param crc the checksum to use
+     * @param header the buffer for the frame header
+     * @throws IOException if the new log can not be written
+     */
+    private void compact(long from, CRC32C crc, ByteBuffer header) throws IOException {
+        Path tmp = PATH.resolveSibling(PATH.getFileName() + ".tmp");
+        FileChannel old = channel;
+        long end = old.position();
+        FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer head = header();
+            while (head.hasRemaining())
+                ch.write(head);
+            int upTo;
+            lock.lock();
+            try {
+                upTo = named;
+            } finally {
+                lock.unlock();
+            }
+            ByteBuffer names = ByteBuffer.allocate(1 << 16);
+            for (int id = 1; id < upTo; id++) {
+                byte[] name = OWNERS.nameOf(id).getBytes(StandardCharsets.UTF_8);
+                if (names.remaining() < 1 + 4 + 2 + name.length) {
+                    ByteBuffer bigger = ByteBuffer.allocate(names.capacity() * 2 + name.length);
+                    names.flip();
+                    names = bigger.put(names);
+                }
+                names.put(OWNER).putInt(id).putShort((short) name.length).put(name);
+            }
+            names.flip();
+            channel = ch;
+            frame(names, crc, header);
+            for (long at = from; at < end; )
+                at += old.transferTo(at, end - at, ch);
+            ch.force(false);
+            Files.move(tmp, PATH, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            channel = old;
+            ch.close();
+            Files.deleteIfExists(tmp);
+            System.out.println("Tile Log Not Compacted: " + e);
+            return;
+        }
+        old.close();
+        lock.lock();
+        try {
+            compactions++;
+        } finally {
+            lock.unlock();
+        }
+        System.out.println("Tile Log Compacted From " + end + " To " + ch.position() + " Bytes");
+    }
+
+    /**
+     * Get the path of the log file
+     * @return the path
+     */
+    public Path getPath() {
+        return PATH;
+    }
+
+    /**
+     * Get the sequence number of the last change in the log when it was opened
+     * @return the sequence number, 0 for an empty log
+     */
+    public long getLastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * Get the number of changes replayed when the log was opened
+     * @return the changes
+     */
+    public long getReplayed() {
+        return replayed;
+    }
+
+    /**
+     * Stops taking changes, and waits until everything appended is written
+     * and forced to disk.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            work.signal();
+            room.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            WRITER.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The log counters as a string for the stats line
+     * @return the counters
+     */
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return "logFrames=" + frames + " logBytes=" + bytes + " logSyncs=" + syncs
+                    + " logCompactions=" + compactions + " logBehind=" + pending.position();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
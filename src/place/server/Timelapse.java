@@ -0,0 +1,303 @@
+package place.server;
+
+import place.PlaceBoard;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Turns the history a server keeps with -history into a timelapse, a frame
+ * for every so many milliseconds of it.  It is run on the command line as:
+ *
+ * $ java place.server.Timelapse dir out [-from time] [-to time] [-every ms] [-scale n] [-fps n] [-threads n]
+ *
+ * If out ends with .png the frames go into one animated PNG shown at fps
+ * frames a second; if not, out is a directory and every frame is a PNG of its
+ * own, numbered.  A time is as for HistoryTool; the whole history is taken if
+ * they are left out, a frame a minute of it.
+ *
+ * Nothing but the board at the start and one frame for every thread is ever
+ * held: the changes are read from the history a block at a time, in order,
+ * and put on a frame packed two tiles to a byte as PNG keeps them.  When a
+ * change comes after the moment of the next frame, a copy of the frame is
+ * handed to the threads to compress, and the compressed frames are written
+ * out in order as they are done.  Making the frames takes one thread; the
+ * compressing, which is most of the work, takes the rest.
+ *
+ * @author Cameron Myron
+ */
+public class Timelapse {
+
+    /**
+     * The history
+     */
+    private final HistoryStore HISTORY;
+
+    /**
+     * The square dimension of the board
+     */
+    private final int DIM;
+
+    /**
+     * The encoder
+     */
+    private final PngEncoder ENCODER;
+
+    /**
+     * The threads that compress frames
+     */
+    private final int THREADS;
+
+    /**
+     * The board as of the last change put on it, packed
+     */
+    private final byte[] FRAME;
+
+    /**
+     * The frames being compressed, oldest first
+     */
+    private final ArrayDeque<Future<byte[]>> PENDING = new ArrayDeque<>();
+
+    /**
+     * The frames written
+     */
+    private int written;
+
+    /**
+     * The changes put on the frame
+     */
+    private long changes;
+
+    /**
+     * The bytes written
+     */
+    private long bytes;
+
+    /**
+     * Create a timelapse of a history.
+     * @param history the history
+     * @param scale the pixels a side of every tile
+     * @param threads the threads that compress frames
+     */
+    public Timelapse(HistoryStore history, int scale, int threads) {
+        this.HISTORY = history;
+        this.DIM = history.getDIM();
+        this.ENCODER = new PngEncoder(DIM, scale);
+        this.THREADS = Math.max(1, threads);
+        this.FRAME = new byte[DIM * PngEncoder.stride(DIM)];
+    }
+
+    /**
+     * Makes the timelapse.
+     * @param from the moment of the first frame
+     * @param to the moment the last frame is at or before
+     * @param every the milliseconds between frames
+     * @param out a .png file for one animated PNG, or else a directory for a
+     *            PNG of every frame
+     * @param fps the frames shown a second in an animated PNG
+     * @return the number of frames
+     * @throws IOException if the history can not be read or the frames written
+     */
+    public int export(long from, long to, long every, Path out, int fps) throws IOException {
+        int frames = (int) Math.max(1, (to - from) / every + 1);
+        boolean animated = out.getFileName().toString().endsWith(".png");
+        OutputStream stream = null;
+        if (animated) {
+            stream = new BufferedOutputStream(Files.newOutputStream(out), 1 << 20);
+            ENCODER.startAnimation(stream, frames);
+        } else {
+            Files.createDirectories(out);
+        }
+        written = 0;
+        changes = 0;
+        bytes = 0;
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS, r -> {
+            Thread t = new Thread(r, "Timelapse");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            PlaceBoard board = HISTORY.boardAt(from);
+            for (int row = 0; row < DIM; row++)
+                for (int col = 0; col < DIM; col++)
+                    put(row, col, board.getColor(row, col).getNumber());
+            board = null;
+
+            OutputStream target = stream;
+            long[] next = {from, 0};
+            try {
+                HISTORY.changes(from, to, (seq, time, row, col, owner, color) -> {
+                    while (time > next[0] && next[1] < frames) {
+                        frame(pool, target, out, fps);
+                        next[0] += every;
+                        next[1]++;
+                    }
+                    put(row, col, color);
+                    changes++;
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            for (; next[1] < frames; next[1]++)
+                frame(pool, target, out, fps);
+            while (!PENDING.isEmpty())
+                write(target, out, fps);
+            if (animated)
+                ENCODER.endAnimation(stream);
+        } finally {
+            pool.shutdownNow();
+            PENDING.clear();
+            if (stream != null)
+                stream.close();
+        }
+        return written;
+    }
+
+    /**
+     * Puts a color on the frame
+     * @param row the row
+     * @param col the column
+     * @param color the color number
+     */
+    private void put(int row, int col, int color) {
+        int i = row * PngEncoder.stride(DIM) + col / 2;
+        FRAME[i] = (col & 1) == 0 ? (byte) ((FRAME[i] & 0x0f) | color << 4) : (byte) ((FRAME[i] & 0xf0) | color);
+    }
+
+    /**
+     * Hands a copy of the frame to the threads, first writing out the oldest
+     * frame if every thread has two already
+     * @param pool the threads
+     * @param stream the animated PNG, null for a directory
+     * @param out the file or directory
+     * @param fps the frames shown a second
+     */
+    private void frame(ExecutorService pool, OutputStream stream, Path out, int fps) {
+        try {
+            if (PENDING.size() >= THREADS * 2)
+                write(stream, out, fps);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        byte[] copy = FRAME.clone();
+        PENDING.add(pool.submit(() -> ENCODER.compress(copy)));
+    }
+
+    /**
+     * Waits for the oldest frame to be compressed and writes it out
+     * @param stream the animated PNG, null for a directory
+     * @param out the file or directory
+     * @param fps the frames shown a second
+     * @throws IOException if the frame can not be written
+     */
+    private void write(OutputStream stream, Path out, int fps) throws IOException {
+        byte[] data;
+        try {
+            data = PENDING.remove().get();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        if (stream != null) {
+            ENCODER.writeFrame(stream, data, fps);
+        } else {
+            try (OutputStream file = new BufferedOutputStream(
+                    Files.newOutputStream(out.resolve(String.format("%06d.png", written))))) {
+                ENCODER.writeImage(file, data);
+            }
+        }
+        written++;
+        bytes += data.length;
+    }
+
+    /**
+     * Get the changes put on frames by the last export
+     * @return the changes
+     */
+    public long getChanges() {
+        return changes;
+    }
+
+    /**
+     * Get the bytes of compressed frames written by the last export
+     * @return the bytes
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Runs the tool
+     * @param args the directory, out and the options
+     */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            usage();
+            return;
+        }
+        try {
+            HistoryStore history = HistoryStore.read(Paths.get(args[0]));
+            long from = history.getStart(), to = history.getEnd(), every = 60_000;
+            int scale = 1, fps = 30, threads = Runtime.getRuntime().availableProcessors();
+            for (int i = 2; i + 1 < args.length; i += 2) {
+                switch (args[i]) {
+                    case "-from":
+                        from = HistoryTool.parseTime(args[i + 1]);
+                        break;
+                    case "-to":
+                        to = HistoryTool.parseTime(args[i + 1]);
+                        break;
+                    case "-every":
+                        every = Long.parseLong(args[i + 1]);
+                        break;
+                    case "-scale":
+                        scale = Integer.parseInt(args[i + 1]);
+                        break;
+                    case "-fps":
+                        fps = Integer.parseInt(args[i + 1]);
+                        break;
+                    case "-threads":
+                        threads = Integer.parseInt(args[i + 1]);
+                        break;
+                    default:
+                        usage();
+                        return;
+                }
+            }
+            if (every <= 0 || scale <= 0 || fps <= 0 || to < from) {
+                usage();
+                return;
+            }
+            Timelapse timelapse = new Timelapse(history, scale, threads);
+            long start = System.nanoTime();
+            int frames = timelapse.export(from, to, every, Paths.get(args[1]), fps);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%d frames of %s to %s (%,d changes, %,d KB) in %.2f s: %.1f frames/s%n",
+                    frames, Instant.ofEpochMilli(from), Instant.ofEpochMilli(to), timelapse.getChanges(),
+                    timelapse.getBytes() >> 10, seconds, frames / seconds);
+        } catch (IOException e) {
+            System.out.println("Can Not Make Timelapse: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Prints how the tool is run
+     */
+    private static void usage() {
+        System.out.println("Usage: java place.server.Timelapse dir out [-from time] [-to time] [-every ms] "
+                + "[-scale n] [-fps n] [-threads n]");
+    }
+}
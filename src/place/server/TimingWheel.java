@@ -0,0 +1,265 @@
+package place.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs tasks after a delay, for as many of them as there are users, on one
+ * thread.  The timers are kept in a hierarchical timing wheel: three levels
+ * of 256 slots, the first a millisecond a slot, every next one 256 times
+ * coarser, so about four and a half hours fit before a timer has to go round
+ * again.  Adding a timer is putting it on the list of its slot, and every
+ * millisecond the thread runs the timers of the next slot of the first level;
+ * every 256 the next slot of the level above is spread over the one below it,
+ * which only moves the timers of the next 256 milliseconds at once.  So a
+ * timer costs the same however many others there are, unlike a priority
+ * queue, and there is no thread or scheduled future per timer.
+ *
+ * Only the wheel's thread touches the slots.  Other threads hand it timers
+ * through a queue, and wake it if it was waiting for one.  The tasks run on
+ * the wheel's thread, so they have to be short.
+ *
+ * @author Cameron Myron
+ */
+public class TimingWheel {
+
+    /**
+     * The bits of a slot number
+     */
+    private static final int BITS = 8;
+
+    /**
+     * The slots of a level
+     */
+    private static final int SLOTS = 1 << BITS;
+
+    /**
+     * The mask of a slot number
+     */
+    private static final int MASK = SLOTS - 1;
+
+    /**
+     * The levels of the wheel
+     */
+    private static final int LEVELS = 3;
+
+    /**
+     * Nanoseconds in a tick
+     */
+    private static final long TICK = 1_000_000;
+
+    /**
+     * A task, and when it runs
+     */
+    private static final class Timer {
+        /**
+         * The tick it runs at
+         */
+        final long at;
+        /**
+         * The task
+         */
+        final Runnable task;
+        /**
+         * The next timer in the same slot
+         */
+        Timer next;
+
+        /**
+         * Create a timer
+         * @param at the tick it runs at
+         * @param task the task
+         */
+        Timer(long at, Runnable task) {
+            this.at = at;
+            this.task = task;
+        }
+    }
+
+    /**
+     * When tick 0 was, from System.nanoTime
+     */
+    private final long START = System.nanoTime();
+
+    /**
+     * The first timer of every slot of every level
+     */
+    private final Timer[][] slots = new Timer[LEVELS][SLOTS];
+
+    /**
+     * Timers added since the thread last looked
+     */
+    private final ConcurrentLinkedQueue<Timer> added = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The thread that runs the timers
+     */
+    private final Thread thread;
+
+    /**
+     * Whether the thread waits for a timer to be added
+     */
+    private volatile boolean idle;
+
+    /**
+     * The last tick the thread went through
+     */
+    private long now;
+
+    /**
+     * The timers in the slots
+     */
+    private long pending;
+
+    /**
+     * The timers run
+     */
+    private volatile long fired;
+
+    /**
+     * Create a wheel and start its thread.
+     * @param name the name of the thread
+     */
+    public TimingWheel(String name) {
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Runs a task after a delay.  Can be called from any thread.
+     * @param task the task
+     * @param delay the milliseconds until it runs; it runs at the first tick
+     *              after that, which is at most a millisecond later
+     */
+    public void schedule(Runnable task, long delay) {
+        added.add(new Timer(tick() + Math.max(1, delay), task));
+        if (idle)
+            LockSupport.unpark(thread);
+    }
+
+    /**
+     * Get the tick it is now
+     * @return the milliseconds since the wheel started
+     */
+    private long tick() {
+        return (System.nanoTime() - START) / TICK;
+    }
+
+    /**
+     * Runs the timers as their ticks come, and waits when there are none
+     */
+    private void run() {
+        while (true) {
+            Timer t;
+            while ((t = added.poll()) != null) {
+                if (t.at <= now) {
+                    fire(t);
+                } else {
+                    insert(t);
+                    pending++;
+                }
+            }
+            if (pending == 0) {
+                idle = true;
+                if (added.isEmpty())
+                    LockSupport.park(this);
+                idle = false;
+                now = Math.max(now, tick() - 1);
+                continue;
+            }
+            long target = tick();
+            while (now < target && pending > 0)
+                advance();
+            if (pending == 0)
+                now = Math.max(now, target);
+            LockSupport.parkNanos(this, TICK - (System.nanoTime() - START) % TICK);
+        }
+    }
+
+    /**
+     * Goes on to the next tick: spreads the slots above over the ones below
+     * if the first level came round, then runs the timers of the tick
+     */
+    private void advance() {
+        now++;
+        int slot = (int) now & MASK;
+        if (slot == 0) {
+            for (int level = 1; level < LEVELS; level++) {
+                int above = (int) (now >>> (BITS * level)) & MASK;
+                Timer t = slots[level][above];
+                slots[level][above] = null;
+                while (t != null) {
+                    Timer next = t.next;
+                    insert(t);
+                    t = next;
+                }
+                if (above != 0)
+                    break;
+            }
+        }
+        Timer t = slots[0][slot];
+        slots[0][slot] = null;
+        while (t != null) {
+            Timer next = t.next;
+            if (t.at > now) {
+                insert(t);
+            } else {
+                pending--;
+                fire(t);
+            }
+            t = next;
+        }
+    }
+
+    /**
+     * Runs the task of a timer
+     * @param t the timer
+     */
+    private void fire(Timer t) {
+        fired++;
+        try {
+            t.task.run();
+        } catch (RuntimeException e) {
+            System.out.println(e);
+        }
+    }
+
+    /**
+     * Puts a timer in the slot of its tick, on the first level that reaches
+     * that far; a timer past the last level goes in its last slot and comes
+     * round again.  A timer due this tick goes in this tick's slot, which is
+     * only run after the levels above are spread out.
+     * @param t the timer
+     */
+    private void insert(Timer t) {
+        long at = Math.max(t.at, now);
+        long ahead = at - now;
+        int level = 0;
+        while (level < LEVELS - 1 && ahead >= 1L << (BITS * (level + 1)))
+            level++;
+        if (ahead >= 1L << (BITS * LEVELS))
+            at = now + (1L << (BITS * LEVELS)) - 1;
+        int slot = (int) (at >>> (BITS * level)) & MASK;
+        t.next = slots[level][slot];
+        slots[level][slot] = t;
+    }
+
+    /**
+     * Get the timers run so far
+     * @return the count
+     */
+    public long getFired() {
+        return fired;
+    }
+
+    /**
+     * The wheel as a line for the log
+     *
+     * @return the timers run
+     */
+    @Override
+    public String toString() {
+        return "timersFired=" + getFired();
+    }
+}
@@ -0,0 +1,192 @@
+package place.server;
+
+import place.PlaceBoard;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Which sessions see which parts of the board.  A session sees the whole
+ * board until it subscribes to a few rectangles of it; from then on it is
+ * listed under every chunk of the board (PlaceBoard.CHUNK on a side) that one
+ * of its rectangles touches, and only gets the changes made in those chunks.
+ * Broadcasts look sessions up by chunk without locking; subscriptions change
+ * one at a time, and a session is added where it is going before it is taken
+ * from where it was, so a broadcast running alongside may reach it twice but
+ * never misses it.
+ *
+ * @author Cameron Myron
+ */
+class ViewportIndex {
+
+    /**
+     * The most rectangles a session may subscribe to at once
+     */
+    static final int MAX_RECTS = 16;
+
+    /**
+     * The board, which numbers the chunks
+     */
+    private final PlaceBoard MODEL;
+
+    /**
+     * The sessions that see the whole board
+     */
+    private final Set<Session> EVERYWHERE = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The sessions that see each chunk, null for a chunk nobody subscribed to
+     */
+    private final AtomicReferenceArray<Set<Session>> CHUNKS;
+
+    /**
+     * The chunks of every session that subscribed, in order
+     */
+    private final ConcurrentHashMap<Session,int[]> VIEWS = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an index where nobody sees anything
+     * @param model the board
+     */
+    ViewportIndex(PlaceBoard model) {
+        MODEL = model;
+        CHUNKS = new AtomicReferenceArray<>(model.getChunkCount());
+    }
+
+    /**
+     * Adds a session that sees the whole board
+     * @param s the session
+     */
+    synchronized void add(Session s) {
+        EVERYWHERE.add(s);
+    }
+
+    /**
+     * Takes a session out of the index
+     * @param s the session
+     */
+    synchronized void remove(Session s) {
+        EVERYWHERE.remove(s);
+        int[] chunks = VIEWS.remove(s);
+        if (chunks != null)
+            for (int chunk : chunks)
+                CHUNKS.get(chunk).remove(s);
+    }
+
+    /**
+     * Changes what a session sees.  Call it while holding every stripe, so
+     * the chunks it starts seeing can be sent to it before any change to them.
+     * @param s the session
+     * @param rects row, column, rows and columns of every rectangle; null, or
+     *              rectangles that cover the whole board, for the whole board
+     * @return the chunks the session did not see before and does now, null if
+     *         the session is not in the index
+     */
+    synchronized int[] subscribe(Session s, int[] rects) {
+        int[] before = VIEWS.get(s);
+        if (before == null && !EVERYWHERE.contains(s))
+            return null;
+        int[] after = rects == null ? null : chunks(rects);
+        if (after != null && after.length == MODEL.getChunkCount())
+            after = null;
+        if (after == null) {
+            EVERYWHERE.add(s);
+            VIEWS.remove(s);
+        } else {
+            for (int chunk : after) {
+                Set<Session> set = CHUNKS.get(chunk);
+                if (set == null)
+                    CHUNKS.set(chunk, set = ConcurrentHashMap.newKeySet());
+                set.add(s);
+            }
+            VIEWS.put(s, after);
+            EVERYWHERE.remove(s);
+        }
+        if (before != null)
+            for (int chunk : before)
+                if (after == null || Arrays.binarySearch(after, chunk) < 0)
+                    CHUNKS.get(chunk).remove(s);
+        if (after == null)
+            return before == null ? new int[0] : missing(before);
+        if (before == null)
+            return new int[0];
+        int[] fresh = new int[after.length];
+        int n = 0;
+        for (int chunk : after)
+            if (Arrays.binarySearch(before, chunk) < 0)
+                fresh[n++] = chunk;
+        return Arrays.copyOf(fresh, n);
+    }
+
+    /**
+     * Get the sessions that see the whole board
+     * @return the sessions
+     */
+    Set<Session> everywhere() {
+        return EVERYWHERE;
+    }
+
+    /**
+     * Get the sessions that subscribed to a chunk
+     * @param chunk the chunk
+     * @return the sessions, null if there are none
+     */
+    Set<Session> at(int chunk) {
+        Set<Session> set = CHUNKS.get(chunk);
+        return set == null || set.isEmpty() ? null : set;
+    }
+
+    /**
+     * Whether any session sees less than the whole board
+     * @return has anyone subscribed?
+     */
+    boolean hasViews() {
+        return !VIEWS.isEmpty();
+    }
+
+    /**
+     * Get the chunks that rectangles touch, clipped to the board
+     * @param rects row, column, rows and columns of every rectangle, at most MAX_RECTS of them
+     * @return the chunks, in order without repeats
+     */
+    private int[] chunks(int[] rects) {
+        int across = MODEL.getChunksAcross();
+        boolean[] in = new boolean[MODEL.getChunkCount()];
+        int count = 0;
+        for (int i = 0; i + 3 < rects.length && i < 4 * MAX_RECTS; i += 4) {
+            int top = Math.max(0, rects[i]), left = Math.max(0, rects[i + 1]);
+            int bottom = (int) Math.min(MODEL.DIM, (long) rects[i] + rects[i + 2]);
+            int right = (int) Math.min(MODEL.DIM, (long) rects[i + 1] + rects[i + 3]);
+            if (top >= bottom || left >= right)
+                continue;
+            for (int row = top / PlaceBoard.CHUNK; row <= (bottom - 1) / PlaceBoard.CHUNK; row++)
+                for (int col = left / PlaceBoard.CHUNK; col <= (right - 1) / PlaceBoard.CHUNK; col++)
+                    if (!in[row * across + col]) {
+                        in[row * across + col] = true;
+                        count++;
+                    }
+        }
+        int[] chunks = new int[count];
+        int n = 0;
+        for (int chunk = 0; chunk < in.length; chunk++)
+            if (in[chunk])
+                chunks[n++] = chunk;
+        return chunks;
+    }
+
+    /**
+     * Get every chunk that is not in a list
+     * @param chunks the chunks, in order
+     * @return the other chunks, in order
+     */
+    private int[] missing(int[] chunks) {
+        int[] rest = new int[MODEL.getChunkCount() - chunks.length];
+        int n = 0;
+        for (int chunk = 0; chunk < MODEL.getChunkCount(); chunk++)
+            if (Arrays.binarySearch(chunks, chunk) < 0)
+                rest[n++] = chunk;
+        return rest;
+    }
+}
@@ -0,0 +1,560 @@
+package place.network;
+
+import org.junit.jupiter.api.Test;
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the binary protocol: that what it encodes comes back the same, and
+ * that the frames a peer can make up are refused before they can make the
+ * decoder keep or allocate more than the frame is worth.
+ *
+ * @author Cameron Myron
+ */
+public class BinaryCodecTest {
+
+    /**
+     * Decodes every frame of an encoded request, in order
+     * @param codec the codec
+     * @param encoded the frames, headers included
+     * @return the last request
+     * @throws Exception if a frame does not decode
+     */
+    private static PlaceRequest<?> decodeAll(BinaryCodec codec, byte[] encoded) throws Exception {
+        ByteBuffer b = ByteBuffer.wrap(encoded);
+        PlaceRequest<?> last = null;
+        while (b.hasRemaining()) {
+            int len = b.getInt();
+            last = codec.decode(encoded, b.position(), len);
+            b.position(b.position() + len);
+        }
+        return last;
+    }
+
+    /**
+     * Starts a payload by hand
+     * @param version the protocol version
+     * @param type the request type
+     * @return the stream to write the body to, and the payload from
+     * @throws IOException never, it is in memory
+     */
+    private static Payload payload(int version, PlaceRequest.RequestType type) throws IOException {
+        Payload p = new Payload();
+        p.data.writeByte(version);
+        p.data.writeByte(type.ordinal());
+        return p;
+    }
+
+    /**
+     * A payload being written by hand
+     */
+    private static class Payload {
+        /** The bytes */
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        /** Writes into the bytes */
+        final DataOutputStream data = new DataOutputStream(bytes);
+
+        /**
+         * Decodes the payload
+         * @param codec the codec
+         * @return the request
+         * @throws Exception if it does not decode
+         */
+        PlaceRequest<?> decode(BinaryCodec codec) throws Exception {
+            byte[] b = bytes.toByteArray();
+            return codec.decode(b, 0, b.length);
+        }
+    }
+
+    /**
+     * Makes the payload of a BOARD frame around a snapshot written by hand
+     * @param dim the dimension
+     * @param fields the board fields
+     * @param snapshot the uncompressed snapshot
+     * @return the payload
+     * @throws IOException never, it is in memory
+     */
+    private static Payload board(int dim, int fields, byte[] snapshot) throws IOException {
+        Payload p = payload(BinaryCodec.VERSION, PlaceRequest.RequestType.BOARD);
+        p.data.writeInt(dim);
+        p.data.writeByte(fields);
+        p.data.writeLong(7);
+        DeflaterOutputStream z = new DeflaterOutputStream(p.bytes);
+        z.write(snapshot);
+        z.finish();
+        return p;
+    }
+
+    /**
+     * Writes a number as the snapshot's varint
+     * @param out where it goes
+     * @param value the number, treated as unsigned
+     */
+    private static void varint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Writes a string as the snapshot's length and UTF-8 bytes
+     * @param out where it goes
+     * @param s the string
+     */
+    private static void string(ByteArrayOutputStream out, String s) {
+        byte[] utf = s.getBytes(StandardCharsets.UTF_8);
+        varint(out, utf.length);
+        out.write(utf, 0, utf.length);
+    }
+
+    /**
+     * Fills a board with a pattern of colors, owners and times
+     * @param dim the dimension
+     * @return the board
+     */
+    private static PlaceBoard pattern(int dim) {
+        PlaceBoard board = new PlaceBoard(dim);
+        for (int row = 0; row < dim; row++)
+            for (int col = 0; col < dim; col++)
+                if ((row + col) % 3 != 0)
+                    board.setTile(new PlaceTile(row, col, "user" + (row % 2),
+                            PlaceColor.fromNumber((row * dim + col) % PlaceColor.TOTAL_COLORS), 1000L * row - col));
+        board.setSeq(42);
+        return board;
+    }
+
+    /**
+     * A tile comes back whole, with the OWNER frame that names its owner
+     * sent ahead of it
+     * @throws Exception if it does not decode
+     */
+    @Test
+    public void tileRoundTrip() throws Exception {
+        BinaryCodec server = new BinaryCodec(BinaryCodec.VERSION, true);
+        BinaryCodec client = new BinaryCodec();
+        PlaceTile t = new PlaceTile(3, 4, "alice", PlaceColor.RED, 123456789L);
+        t.setSeq(99);
+        PlaceTile back = (PlaceTile) decodeAll(client,
+                server.encode(new PlaceRequest<>(PlaceRequest.RequestType.TILE_CHANGED, t))).getData();
+        assertEquals(3, back.getRow());
+        assertEquals(4, back.getCol());
+        assertEquals("alice", back.getOwner());
+        assertEquals(PlaceColor.RED, back.getColor());
+        assertEquals(123456789L, back.getTime());
+        assertEquals(99, back.getSeq());
+    }
+
+    /**
+     * A board comes back the same in every version, with the fields the
+     * client asked for and the empty owner and time 0 for the others
+     * @throws Exception if it does not decode
+     */
+    @Test
+    public void boardRoundTrip() throws Exception {
+        PlaceBoard board = pattern(5);
+        for (int version = 1; version <= BinaryCodec.VERSION; version++) {
+            for (int fields = 0; fields <= BinaryCodec.BOARD_FULL; fields++) {
+                BinaryCodec server = new BinaryCodec(version, true);
+                BinaryCodec client = new BinaryCodec(version);
+                server.setBoardFields(fields);
+                PlaceBoard back = (PlaceBoard) decodeAll(client,
+                        server.encode(new PlaceRequest<>(PlaceRequest.RequestType.BOARD, board))).getData();
+                boolean owners = version == 1 || (fields & BinaryCodec.BOARD_OWNERS) != 0;
+                boolean times = version == 1 || (fields & BinaryCodec.BOARD_TIMES) != 0;
+                String where = "version " + version + " fields " + fields;
+                assertEquals(board.DIM, back.DIM, where);
+                assertEquals(version >= 3 ? 42 : 0, back.getSeq(), where);
+                for (int row = 0; row < board.DIM; row++) {
+                    for (int col = 0; col < board.DIM; col++) {
+                        PlaceTile t = board.getTile(row, col), b = back.getTile(row, col);
+                        assertEquals(t.getColor(), b.getColor(), where);
+                        assertEquals(owners ? t.getOwner() : "", b.getOwner(), where);
+                        assertEquals(times ? t.getTime() : 0, b.getTime(), where);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * An OWNER frame can not name the empty owner or a negative id
+     * @throws Exception if the payload can not be written
+     */
+    @Test
+    public void ownerRefusesBadIds() throws Exception {
+        BinaryCodec client = new BinaryCodec();
+        for (int id : new int[]{0, -1, Integer.MIN_VALUE}) {
+            Payload p = payload(BinaryCodec.VERSION, PlaceRequest.RequestType.OWNER);
+            p.data.writeInt(id);
+            p.data.writeUTF("mallory");
+            IOException e = assertThrows(IOException.class, () -> p.decode(client));
+            assertTrue(e.getMessage().startsWith("Bad Owner"), e.getMessage());
+        }
+        Payload p = payload(BinaryCodec.VERSION, PlaceRequest.RequestType.OWNER);
+        p.data.writeInt(Integer.MAX_VALUE);
+        p.data.writeUTF("bob");
+        assertEquals("bob", p.decode(client).getData());
+    }
+
+    /**
+     * A tile can only name an owner that was announced
+     * @throws Exception if the payload can not be written
+     */
+    @Test
+    public void tileRefusesUnknownOwner() throws Exception {
+        for (int id : new int[]{5, -1}) {
+            Payload p = payload(BinaryCodec.VERSION, PlaceRequest.RequestType.TILE_CHANGED);
+            p.data.writeInt(0);
+            p.data.writeInt(0);
+            p.data.writeByte(1);
+            p.data.writeInt(id);
+            p.data.writeLong(0);
+            p.data.writeLong(1);
+            IOException e = assertThrows(IOException.class, () -> p.decode(new BinaryCodec()));
+            assertTrue(e.getMessage().startsWith("Unknown Owner"), e.getMessage());
+        }
+    }
+
+    /**
+     * A tile can not have a color that is not one
+     * @throws Exception if the payload can not be written
+     */
+    @Test
+    public void tileRefusesBadColor() throws Exception {
+        for (int color : new int[]{-1, PlaceColor.TOTAL_COLORS}) {
+            Payload p = payload(BinaryCodec.VERSION, PlaceRequest.RequestType.CHANGE_TILE);
+            p.data.writeInt(0);
+            p.data.writeInt(0);
+            p.data.writeByte(color);
+            p.data.writeInt(0);
+            p.data.writeLong(0);
+            p.data.writeLong(0);
+            IOException e = assertThrows(IOException.class, () -> p.decode(new BinaryCodec()));
+            assertTrue(e.getMessage().startsWith("Bad Color"), e.getMessage());
+        }
+    }
+
+    /**
+     * A batch of tiles comes back whole and in order
+     * @throws Exception if it does not decode
+     */
+    @Test
+    public void batchRoundTrip() throws Exception {
+        PlaceTile[] tiles = {
+                new PlaceTile(0, 1, "alice", PlaceColor.RED, 1),
+                new PlaceTile(2, 3, "bob", PlaceColor.BLUE, 2),
+                new PlaceTile(4, 5, "alice", PlaceColor.WHITE, 3)};
+        PlaceTile[] back = (PlaceTile[]) decodeAll(new BinaryCodec(), new BinaryCodec()
+                .encode(new PlaceRequest<>(PlaceRequest.RequestType.TILES_CHANGED, tiles))).getData();
+        assertEquals(tiles.length, back.length);
+        for (int i = 0; i < tiles.length; i++) {
+            assertEquals(tiles[i].getRow(), back[i].getRow());
+            assertEquals(tiles[i].getCol(), back[i].getCol());
+            assertEquals(tiles[i].getOwner(), back[i].getOwner());
+            assertEquals(tiles[i].getColor(), back[i].getColor());
+            assertEquals(tiles[i].getTime(), back[i].getTime());
+        }
+    }
+
+    /**
+     * The server's end only takes what a client sends, so a client can not
+     * make it keep owners or inflate boards
+     * @throws Exception if the payload can not be written
+     */
+    @Test
+    public void serverRefusesServerFrames() throws Exception {
+        BinaryCodec server = new BinaryCodec(BinaryCodec.VERSION, true);
+        for (PlaceRequest.RequestType type : PlaceRequest.RequestType.values()) {
+            if (type == PlaceRequest.RequestType.LOGIN || type == PlaceRequest.RequestType.CHANGE_TILE
+                    || type == PlaceRequest.RequestType.SUBSCRIBE)
+                continue;
+            Payload p = payload(BinaryCodec.VERSION, type);
+            p.data.writeInt(1);
+            p.data.writeUTF("x");
+            IOException e = assertThrows(IOException.class, () -> p.decode(server), type.toString());
+            assertTrue(e.getMessage().startsWith("Unexpected Request"), e.getMessage());
+        }
+        Payload login = payload(BinaryCodec.VERSION, PlaceRequest.RequestType.LOGIN);
+        login.data.writeUTF("alice");
+        assertEquals("alice", login.decode(server).getData());
+    }
+
+    /**
+     * A count of tiles or rectangles can not be more than the frame holds, so
+     * it can not make the decoder allocate for them
+     * @throws Exception if the payload can not be written
+     */
+    @Test
+    public void countsBoundedByFrame() throws Exception {
+        for (int count : new int[]{Integer.MAX_VALUE, -1, 2}) {
+            Payload p = payload(BinaryCodec.VERSION, PlaceRequest.RequestType.TILES_CHANGED);
+            p.data.writeInt(count);
+            p.data.writeInt(0);
+            IOException e = assertThrows(IOException.class, () -> p.decode(new BinaryCodec()));
+            assertTrue(e.getMessage().startsWith("Bad Tile Count"), e.getMessage());
+        }
+        for (int count : new int[]{Integer.MAX_VALUE, -1}) {
+            Payload p = payload(BinaryCodec.VERSION, PlaceRequest.RequestType.SUBSCRIBE);
+            p.data.writeInt(count);
+            IOException e = assertThrows(IOException.class, () -> p.decode(new BinaryCodec()));
+            assertTrue(e.getMessage().startsWith("Bad Rectangle Count"), e.getMessage());
+        }
+        Payload p = payload(BinaryCodec.VERSION, PlaceRequest.RequestType.SUBSCRIBE);
+        p.data.writeInt(1);
+        for (int i : new int[]{1, 2, 3, 4})
+            p.data.writeInt(i);
+        assertArrayEquals(new int[]{1, 2, 3, 4}, (int[]) p.decode(new BinaryCodec()).getData());
+    }
+
+    /**
+     * Takes the payload out of a serialized frame
+     * @param req the request
+     * @return the payload
+     */
+    private static byte[] serialized(PlaceRequest<?> req) {
+        byte[] frame = SerialCodec.INSTANCE.encode(req);
+        return Arrays.copyOfRange(frame, PlaceExchange.HEADER, frame.length);
+    }
+
+    /**
+     * A serialized refusal is read before the first binary frame and not
+     * after it, and never by the server's end; and it can only hold what a
+     * request can
+     * @throws Exception if the payload can not be written
+     */
+    @Test
+    public void serialOnlyBeforeBinary() throws Exception {
+        byte[] error = serialized(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, "Server Is Full!"));
+        BinaryCodec client = new BinaryCodec();
+        assertEquals("Server Is Full!", client.decode(error, 0, error.length).getData());
+        Payload cooldown = payload(BinaryCodec.VERSION, PlaceRequest.RequestType.COOLDOWN);
+        cooldown.data.writeLong(1);
+        cooldown.decode(client);
+        IOException e = assertThrows(IOException.class, () -> client.decode(error, 0, error.length));
+        assertTrue(e.getMessage().startsWith("Unexpected Serialized"), e.getMessage());
+
+        BinaryCodec server = new BinaryCodec(BinaryCodec.VERSION, true);
+        assertThrows(IOException.class, () -> server.decode(error, 0, error.length));
+
+        byte[] list = serialized(new PlaceRequest<>(PlaceRequest.RequestType.ERROR, new ArrayList<String>()));
+        assertThrows(IOException.class, () -> new BinaryCodec().decode(list, 0, list.length));
+    }
+
+    /**
+     * The first binary frame may lower the version, and every frame after it
+     * has to be in that version; the server's end takes one LOGIN only
+     * @throws Exception if the payload can not be written
+     */
+    @Test
+    public void versionSettlesOnFirstFrame() throws Exception {
+        BinaryCodec client = new BinaryCodec();
+        for (int v : new int[]{1, 1}) {
+            Payload p = payload(v, PlaceRequest.RequestType.COOLDOWN);
+            p.data.writeLong(1);
+            p.decode(client);
+        }
+        assertEquals(1, client.getVersion());
+        Payload newer = payload(BinaryCodec.VERSION, PlaceRequest.RequestType.COOLDOWN);
+        newer.data.writeLong(1);
+        assertThrows(IOException.class, () -> newer.decode(client));
+
+        BinaryCodec server = new BinaryCodec(BinaryCodec.VERSION, true);
+        Payload login = payload(BinaryCodec.VERSION, PlaceRequest.RequestType.LOGIN);
+        login.data.writeUTF("alice");
+        login.decode(server);
+        for (int v : new int[]{1, BinaryCodec.VERSION}) {
+            Payload again = payload(v, PlaceRequest.RequestType.LOGIN);
+            again.data.writeUTF("bob");
+            again.data.writeByte(0);
+            assertThrows(IOException.class, () -> again.decode(server), "version " + v);
+        }
+        Payload older = payload(1, PlaceRequest.RequestType.SUBSCRIBE);
+        older.data.writeInt(0);
+        assertThrows(IOException.class, () -> older.decode(server));
+        assertEquals(BinaryCodec.VERSION, server.getVersion());
+        assertEquals(BinaryCodec.BOARD_FULL, server.getBoardFields());
+    }
+
+    /**
+     * A frame of a type or version there is not is refused
+     * @throws Exception if the payload can not be written
+     */
+    @Test
+    public void refusesUnknownTypeAndVersion() throws Exception {
+        Payload type = new Payload();
+        type.data.writeByte(BinaryCodec.VERSION);
+        type.data.writeByte(PlaceRequest.RequestType.values().length);
+        assertThrows(IOException.class, () -> type.decode(new BinaryCodec()));
+        Payload negative = new Payload();
+        negative.data.writeByte(BinaryCodec.VERSION);
+        negative.data.writeByte(-1);
+        assertThrows(IOException.class, () -> negative.decode(new BinaryCodec()));
+        Payload version = payload(BinaryCodec.VERSION + 1, PlaceRequest.RequestType.ERROR);
+        version.data.writeUTF("x");
+        assertThrows(IOException.class, () -> version.decode(new BinaryCodec()));
+        Payload zero = payload(0, PlaceRequest.RequestType.ERROR);
+        zero.data.writeUTF("x");
+        assertThrows(IOException.class, () -> zero.decode(new BinaryCodec()));
+    }
+
+    /**
+     * A snapshot's dimension has to make a board there can be
+     * @throws Exception if the payload can not be written
+     */
+    @Test
+    public void snapshotRefusesBadDimension() throws Exception {
+        for (int dim : new int[]{-1, 46341, Integer.MAX_VALUE, Integer.MIN_VALUE}) {
+            Payload p = board(dim, 0, new byte[0]);
+            IOException e = assertThrows(IOException.class, () -> p.decode(new BinaryCodec()));
+            assertTrue(e.getMessage().startsWith("Bad Board Dimension"), e.getMessage());
+        }
+    }
+
+    /**
+     * A version 1 board's dimension has to make a board there can be, and
+     * the board has to fit in the frame before anything is allocated for it
+     * @throws Exception if the payload can not be written
+     */
+    @Test
+    public void version1BoardRefusesBadDimension() throws Exception {
+        for (int dim : new int[]{-1, 46340, 46341, 1000, Integer.MIN_VALUE}) {
+            Payload p = payload(1, PlaceRequest.RequestType.BOARD);
+            p.data.writeInt(dim);
+            p.data.write(new byte[64]);
+            IOException e = assertThrows(IOException.class, () -> p.decode(new BinaryCodec()));
+            assertTrue(e.getMessage().startsWith("Bad Board Dimension"), e.getMessage());
+        }
+    }
+
+    /**
+     * A snapshot shorter than its colors is refused
+     * @throws Exception if the payload can not be written
+     */
+    @Test
+    public void snapshotRefusesMissingColors() throws Exception {
+        Payload p = board(100, 0, new byte[10]);
+        assertThrows(IOException.class, () -> p.decode(new BinaryCodec()));
+    }
+
+    /**
+     * The owners a snapshot announces need ids that fit, and the tiles can
+     * only have owners that were announced
+     * @throws Exception if the payload can not be written
+     */
+    @Test
+    public void snapshotRefusesBadOwners() throws Exception {
+        for (long id : new long[]{0, Integer.MAX_VALUE - 7L, Integer.MAX_VALUE, 1L << 40, -1L}) {
+            ByteArrayOutputStream z = new ByteArrayOutputStream();
+            z.write(0);
+            varint(z, 1);
+            varint(z, id);
+            string(z, "mallory");
+            varint(z, 0);
+            Payload p = board(1, BinaryCodec.BOARD_OWNERS, z.toByteArray());
+            IOException e = assertThrows(IOException.class, () -> p.decode(new BinaryCodec()), "id " + id);
+            assertTrue(e.getMessage().startsWith("Bad Owner"), e.getMessage());
+        }
+        for (long id : new long[]{5, 1L << 31, 1L << 40}) {
+            ByteArrayOutputStream z = new ByteArrayOutputStream();
+            z.write(0);
+            varint(z, 0);
+            varint(z, id);
+            Payload p = board(1, BinaryCodec.BOARD_OWNERS, z.toByteArray());
+            IOException e = assertThrows(IOException.class, () -> p.decode(new BinaryCodec()), "id " + id);
+            assertTrue(e.getMessage().startsWith("Unknown Owner"), e.getMessage());
+        }
+        ByteArrayOutputStream z = new ByteArrayOutputStream();
+        z.write(0x20);
+        z.write(0);
+        varint(z, 1);
+        varint(z, Integer.MAX_VALUE - 8);
+        string(z, "bob");
+        varint(z, Integer.MAX_VALUE - 8);
+        for (int i = 0; i < 3; i++)
+            varint(z, 0);
+        PlaceBoard back = (PlaceBoard) board(2, BinaryCodec.BOARD_OWNERS, z.toByteArray())
+                .decode(new BinaryCodec()).getData();
+        assertEquals("bob", back.getOwner(0, 0));
+        assertEquals(PlaceColor.SILVER, back.getColor(0, 0));
+        assertEquals("", back.getOwner(0, 1));
+        assertEquals(7, back.getSeq());
+    }
+
+    /**
+     * A snapshot that inflates past the most its board can take is refused,
+     * as is one announcing more owners than it has tiles
+     * @throws Exception if the payload can not be written
+     */
+    @Test
+    public void snapshotRefusesBomb() throws Exception {
+        Payload bomb = board(8, BinaryCodec.BOARD_FULL, new byte[8 << 20]);
+        assertTrue(bomb.bytes.size() < 16 << 10);
+        IOException e = assertThrows(IOException.class, () -> bomb.decode(new BinaryCodec()));
+        assertTrue(e.getMessage().startsWith("Snapshot Too Big"), e.getMessage());
+        Payload colors = board(8, 0, new byte[33]);
+        e = assertThrows(IOException.class, () -> colors.decode(new BinaryCodec()));
+        assertTrue(e.getMessage().startsWith("Snapshot Too Big"), e.getMessage());
+        assertEquals(8, ((PlaceBoard) board(8, 0, new byte[32]).decode(new BinaryCodec()).getData()).DIM);
+
+        ByteArrayOutputStream z = new ByteArrayOutputStream();
+        z.write(0);
+        varint(z, 2);
+        Payload owners = board(1, BinaryCodec.BOARD_OWNERS, z.toByteArray());
+        e = assertThrows(IOException.class, () -> owners.decode(new BinaryCodec()));
+        assertTrue(e.getMessage().startsWith("Bad Owner Count"), e.getMessage());
+    }
+
+    /**
+     * A snapshot that runs out in the middle of a string or a number, or has
+     * a number that never ends, is refused
+     * @throws Exception if the payload can not be written
+     */
+    @Test
+    public void snapshotRefusesTruncatedFields() throws Exception {
+        ByteArrayOutputStream string = new ByteArrayOutputStream();
+        string.write(0);
+        varint(string, 1);
+        varint(string, 1);
+        varint(string, 1000);
+        string.write('x');
+        Payload p = board(1, BinaryCodec.BOARD_OWNERS, string.toByteArray());
+        assertThrows(IOException.class, () -> p.decode(new BinaryCodec()));
+
+        ByteArrayOutputStream huge = new ByteArrayOutputStream();
+        huge.write(0);
+        varint(huge, 1);
+        varint(huge, 1);
+        varint(huge, 0xFFFFFFFFL);
+        Payload q = board(1, BinaryCodec.BOARD_OWNERS, huge.toByteArray());
+        assertThrows(IOException.class, () -> q.decode(new BinaryCodec()));
+
+        ByteArrayOutputStream endless = new ByteArrayOutputStream();
+        endless.write(0);
+        for (int i = 0; i < 10; i++)
+            endless.write(0x80);
+        Payload r = board(1, BinaryCodec.BOARD_TIMES, endless.toByteArray());
+        IOException e = assertThrows(IOException.class, () -> r.decode(new BinaryCodec()));
+        assertEquals("Bad Varint", e.getMessage());
+
+        ByteArrayOutputStream times = new ByteArrayOutputStream();
+        times.write(0);
+        times.write(0);
+        varint(times, 2);
+        Payload s = board(2, BinaryCodec.BOARD_TIMES, times.toByteArray());
+        assertThrows(IOException.class, () -> s.decode(new BinaryCodec()));
+    }
+}
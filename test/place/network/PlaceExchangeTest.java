@@ -0,0 +1,155 @@
+package place.network;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import place.PlaceColor;
+import place.PlaceTile;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the exchange over a real socket: a greeted client on bare object
+ * streams is read and written without frames, a framed client skips the
+ * greeting, and a bare stream is held to what one request may hold.
+ *
+ * @author Cameron Myron
+ */
+public class PlaceExchangeTest {
+
+    /**
+     * Where the server's end is accepted
+     */
+    private ServerSocket listener;
+
+    /**
+     * The client's end of the connection
+     */
+    private Socket client;
+
+    /**
+     * The server's end of the connection
+     */
+    private PlaceExchange server;
+
+    /**
+     * Connects the two ends and greets the client
+     * @throws IOException if they can not connect
+     */
+    @BeforeEach
+    public void connect() throws IOException {
+        listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        client = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+        server = new PlaceExchange(listener.accept());
+        server.setMaxFrame(PlaceExchange.MAX_REQUEST);
+        server.greet();
+    }
+
+    /**
+     * Closes both ends
+     * @throws IOException if they do not close
+     */
+    @AfterEach
+    public void close() throws IOException {
+        server.close();
+        client.close();
+        listener.close();
+    }
+
+    /**
+     * A client on bare object streams, as before framing, gets its answers
+     * as objects on its one stream, frames it shares handles across included
+     * @throws Exception if the exchange fails
+     */
+    @Test
+    public void rawClient() throws Exception {
+        ObjectInputStream in = new ObjectInputStream(client.getInputStream());
+        ObjectOutputStream out = new ObjectOutputStream(client.getOutputStream());
+        out.writeObject(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN, "alice"));
+        for (int i = 0; i < 3; i++)
+            out.writeObject(new PlaceRequest<>(PlaceRequest.RequestType.CHANGE_TILE,
+                    new PlaceTile(i, i, "alice", PlaceColor.RED)));
+        out.flush();
+
+        assertEquals("alice", server.receive().getData());
+        assertTrue(server.isRaw());
+        for (int i = 0; i < 3; i++) {
+            PlaceTile t = (PlaceTile) server.receive().getData();
+            assertEquals(i, t.getRow());
+            assertEquals(PlaceColor.RED, t.getColor());
+        }
+        server.send(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN_SUCCESS, "alice"));
+        byte[] frame = SerialCodec.INSTANCE.encode(new PlaceRequest<>(PlaceRequest.RequestType.TILE_CHANGED,
+                new PlaceTile(1, 2, "bob", PlaceColor.BLUE)));
+        server.write(frame);
+        server.write(frame);
+        assertEquals(PlaceRequest.RequestType.LOGIN_SUCCESS, ((PlaceRequest<?>) in.readObject()).getType());
+        for (int i = 0; i < 2; i++) {
+            PlaceTile t = (PlaceTile) ((PlaceRequest<?>) in.readObject()).getData();
+            assertEquals("bob", t.getOwner());
+            assertEquals(PlaceColor.BLUE, t.getColor());
+        }
+    }
+
+    /**
+     * A framed client skips the greeting and is answered in frames
+     * @throws Exception if the exchange fails
+     */
+    @Test
+    public void framedClient() throws Exception {
+        PlaceExchange framed = new PlaceExchange(client);
+        framed.send(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN, "alice"));
+        assertEquals("alice", server.receive().getData());
+        assertFalse(server.isRaw());
+        server.send(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN_SUCCESS, "alice"));
+        assertEquals(PlaceRequest.RequestType.LOGIN_SUCCESS, framed.receive().getType());
+    }
+
+    /**
+     * A bare stream can only hold the classes of a request, and no more of
+     * them than one request may take
+     * @throws Exception if the exchange fails
+     */
+    @Test
+    public void rawClientIsBounded() throws Exception {
+        new ObjectInputStream(client.getInputStream());
+        ObjectOutputStream out = new ObjectOutputStream(client.getOutputStream());
+        out.writeObject(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN, "alice"));
+        out.writeObject(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN, new ArrayList<String>()));
+        out.flush();
+        assertEquals("alice", server.receive().getData());
+        assertThrows(IOException.class, server::receive);
+    }
+
+    /**
+     * A request longer than the most the server reads is refused part way
+     * @throws Exception if the exchange fails
+     */
+    @Test
+    public void rawRequestIsBounded() throws Exception {
+        new ObjectInputStream(client.getInputStream());
+        ObjectOutputStream out = new ObjectOutputStream(client.getOutputStream());
+        Thread writer = new Thread(() -> {
+            try {
+                out.writeObject(new PlaceRequest<>(PlaceRequest.RequestType.LOGIN,
+                        "x".repeat(PlaceExchange.MAX_REQUEST)));
+                out.flush();
+            } catch (IOException e) {
+                // the server closed it
+            }
+        });
+        writer.start();
+        IOException e = assertThrows(IOException.class, server::receive);
+        assertTrue(e.getMessage().startsWith("Bad Frame Length"), e.getMessage());
+        server.close();
+        writer.join();
+    }
+}
@@ -0,0 +1,195 @@
+package place.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the access list: addresses and CIDR ranges are read without DNS,
+ * entries that are not one are skipped, the ranges are merged where they
+ * overlap or touch, and checks find the range an address is in at both ends.
+ *
+ * @author Cameron Myron
+ */
+public class AccessListTest {
+
+    /**
+     * Where the list files are written
+     */
+    @TempDir
+    Path dir;
+
+    /**
+     * Writes a list file and reads it as a blacklist
+     * @param lines the lines of the file
+     * @return the list
+     * @throws IOException if the file can not be written
+     */
+    private AccessList list(String... lines) throws IOException {
+        Path file = dir.resolve("list.txt");
+        Files.write(file, java.util.Arrays.asList(lines));
+        return new AccessList(file.toString(), AccessList.Type.BLACKLIST);
+    }
+
+    /**
+     * Single addresses are on the list and their neighbours are not
+     * @throws IOException if the file can not be written
+     */
+    @Test
+    public void addresses() throws IOException {
+        AccessList l = list("10.0.0.5", "# a comment", "", "  192.168.1.1  ", "::1");
+        assertTrue(l.onList("10.0.0.5"));
+        assertFalse(l.onList("10.0.0.4"));
+        assertFalse(l.onList("10.0.0.6"));
+        assertTrue(l.onList("192.168.1.1"));
+        assertTrue(l.onList("::1"));
+        assertTrue(l.onList("0:0:0:0:0:0:0:1"));
+        assertFalse(l.onList("::2"));
+        assertEquals(3, l.size());
+        assertEquals(3, l.getRanges());
+    }
+
+    /**
+     * A CIDR range covers from its first address to its last, whatever the
+     * address it is written with
+     * @throws IOException if the file can not be written
+     */
+    @Test
+    public void ranges() throws IOException {
+        AccessList l = list("10.1.2.77/24", "172.16.0.0/12", "2001:db8::/32", "fe80::1/128");
+        assertTrue(l.onList("10.1.2.0"));
+        assertTrue(l.onList("10.1.2.255"));
+        assertFalse(l.onList("10.1.1.255"));
+        assertFalse(l.onList("10.1.3.0"));
+        assertTrue(l.onList("172.31.255.255"));
+        assertFalse(l.onList("172.32.0.0"));
+        assertTrue(l.onList("2001:db8::"));
+        assertTrue(l.onList("2001:db8:ffff:ffff:ffff:ffff:ffff:ffff"));
+        assertFalse(l.onList("2001:db9::"));
+        assertFalse(l.onList("2001:db7:ffff:ffff:ffff:ffff:ffff:ffff"));
+        assertTrue(l.onList("fe80::1"));
+        assertFalse(l.onList("fe80::2"));
+    }
+
+    /**
+     * The widest ranges cover everything of their kind, and only that
+     * @throws IOException if the file can not be written
+     */
+    @Test
+    public void everything() throws IOException {
+        AccessList v4 = list("0.0.0.0/0");
+        assertTrue(v4.onList("0.0.0.0"));
+        assertTrue(v4.onList("255.255.255.255"));
+        assertFalse(v4.onList("::"));
+        AccessList v6 = list("::/0");
+        assertTrue(v6.onList("::"));
+        assertTrue(v6.onList("ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff"));
+        assertTrue(v6.onList("8000::"));
+        assertFalse(v6.onList("1.2.3.4"));
+    }
+
+    /**
+     * Ranges that overlap or touch are merged into one, and ones with a gap
+     * between them are not
+     * @throws IOException if the file can not be written
+     */
+    @Test
+    public void merges() throws IOException {
+        assertEquals(1, list("10.0.0.0/25", "10.0.0.128/25").getRanges());
+        assertEquals(1, list("10.0.0.0/8", "10.1.0.0/16", "10.200.3.4").getRanges());
+        assertEquals(1, list("10.0.0.255", "10.0.1.0").getRanges());
+        assertEquals(2, list("10.0.0.254", "10.0.1.0").getRanges());
+        assertEquals(1, list("255.255.255.255", "255.255.255.0/24").getRanges());
+        assertEquals(1, list("2001:db8::/33", "2001:db8:8000::/33").getRanges());
+        assertEquals(1, list("::/1", "8000::/1").getRanges());
+        assertEquals(1, list("::ffff:ffff:ffff:ffff", "0:0:0:1::").getRanges());
+        assertEquals(2, list("::ffff:ffff:ffff:fffe", "0:0:0:1::").getRanges());
+        assertEquals(1, list("ffff::/16", "ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff").getRanges());
+
+        AccessList l = list("10.0.0.0/24", "10.0.2.0/24", "10.0.1.0/24", "10.0.5.0/24");
+        assertEquals(2, l.getRanges());
+        assertTrue(l.onList("10.0.1.128"));
+        assertFalse(l.onList("10.0.3.0"));
+        assertFalse(l.onList("10.0.4.255"));
+        assertTrue(l.onList("10.0.5.0"));
+        assertFalse(l.onList("9.255.255.255"));
+    }
+
+    /**
+     * Entries that are not an address or range are skipped and left off the
+     * list, so changing the list afterwards still works, and nothing is
+     * looked up in DNS
+     * @throws IOException if the file can not be written
+     */
+    @Test
+    public void skipsBadEntries() throws IOException {
+        AccessList l = list("localhost", "example.com", "1.2.3", "1.2.3.4.5", "256.1.1.1", "1.2.3.4/33",
+                "1.2.3.4/-1", "1.2.3.4/x", "1..2.3", "::1/129", "gggg::1", "1.2.3.4/", "0001.2.3.4", "10.0.0.1");
+        assertEquals(1, l.getRanges());
+        assertTrue(l.onList("10.0.0.1"));
+        assertFalse(l.onList("localhost"));
+        assertFalse(l.onList("127.0.0.1"));
+        assertFalse(l.onList("1.2.3.4"));
+        assertFalse(l.onList("not an address"));
+        assertFalse(l.add("example.com"));
+        assertFalse(l.add("10.0.0.0/40"));
+        assertEquals(1, l.size());
+        assertTrue(l.add("1.2.3.4"));
+        assertTrue(l.onList("1.2.3.4"));
+        assertTrue(l.remove("10.0.0.1"));
+        assertFalse(l.onList("10.0.0.1"));
+        assertFalse(l.remove("example.com"));
+        assertEquals(1, l.getRanges());
+    }
+
+    /**
+     * Raw address bytes and InetAddresses are checked the same as their
+     * strings, high IPv4 addresses too
+     * @throws IOException if the file can not be written
+     */
+    @Test
+    public void rawAddresses() throws IOException {
+        AccessList l = list("192.168.0.0/16", "2001:db8::/48");
+        assertTrue(l.onList(new byte[]{(byte) 192, (byte) 168, 7, 9}));
+        assertFalse(l.onList(new byte[]{(byte) 192, (byte) 169, 0, 0}));
+        assertTrue(l.onList(InetAddress.getByName("2001:db8:0:ffff::1")));
+        assertFalse(l.onList(InetAddress.getByName("2001:db8:1::1")));
+        assertFalse(l.onList(new byte[5]));
+        assertTrue(l.onList(InetAddress.getByName("192.168.255.254")));
+        assertFalse(l.onList(InetAddress.getByName("192.167.255.255")));
+        assertFalse(list("255.255.255.0/24").onList(InetAddress.getByName("255.255.254.255")));
+        assertTrue(list("255.255.255.0/24").onList(InetAddress.getByName("255.255.255.255")));
+    }
+
+    /**
+     * Adding and removing entries changes the ranges, and the type of list
+     * decides who is allowed
+     * @throws IOException if the file can not be written
+     */
+    @Test
+    public void addRemoveAllowed() throws IOException {
+        AccessList l = list("10.0.0.0/24");
+        assertFalse(l.allowed("10.0.0.1"));
+        assertTrue(l.allowed("10.0.1.1"));
+        assertTrue(l.add("10.0.1.0/24"));
+        assertFalse(l.add("10.0.1.0/24"));
+        assertEquals(1, l.getRanges());
+        assertFalse(l.allowed("10.0.1.1"));
+        assertTrue(l.remove("10.0.0.0/24"));
+        assertFalse(l.remove("10.0.0.0/24"));
+        assertTrue(l.allowed("10.0.0.1"));
+        assertEquals(1, l.size());
+
+        Path file = dir.resolve("white.txt");
+        Files.write(file, java.util.Arrays.asList("10.0.0.0/24"));
+        AccessList white = new AccessList(file.toString(), AccessList.Type.WHITELIST);
+        assertTrue(white.allowed("10.0.0.1"));
+        assertFalse(white.allowed("10.0.1.1"));
+    }
+}
@@ -0,0 +1,118 @@
+package place.server;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the rate limiter's cell rate algorithm: a full bucket lets a burst
+ * through, then a placement a cooldown, placements within the most delay are
+ * held back, later ones refused without taking tokens, and the address bucket
+ * gives back the user's token when it refuses.  The times are whole seconds
+ * apart, so a slow run can only make a wait a little shorter.
+ *
+ * @author Cameron Myron
+ */
+public class RateLimiterTest {
+
+    /**
+     * With no cooldowns nothing is limited
+     */
+    @Test
+    public void unlimited() {
+        RateLimiter limiter = new RateLimiter(0, 1, 0, 1, 0);
+        for (int i = 0; i < 1000; i++)
+            assertEquals(0, limiter.admit(1, "10.0.0.1"));
+        assertEquals(0, limiter.getUsers());
+        assertEquals(0, limiter.getAddresses());
+    }
+
+    /**
+     * A burst goes through at once, the next placement is refused for about
+     * a cooldown, and refusing it takes nothing from the bucket
+     */
+    @Test
+    public void burstThenRefused() {
+        RateLimiter limiter = new RateLimiter(10_000, 3, 0, 1, 0);
+        for (int i = 0; i < 3; i++)
+            assertEquals(0, limiter.admit(1, "10.0.0.1"), "placement " + i);
+        long refused = limiter.admit(1, "10.0.0.1");
+        assertTrue(refused < 0 && refused >= -10_000 && refused < -9_000, "refused for " + refused);
+        long again = limiter.admit(1, "10.0.0.1");
+        assertTrue(again < 0 && again >= refused, "refused for " + again + " after " + refused);
+    }
+
+    /**
+     * Users have buckets of their own, on pages made as they come
+     */
+    @Test
+    public void usersApart() {
+        RateLimiter limiter = new RateLimiter(10_000, 1, 0, 1, 0);
+        assertEquals(0, limiter.admit(1, "10.0.0.1"));
+        assertTrue(limiter.admit(1, "10.0.0.1") < 0);
+        assertEquals(0, limiter.admit(2, "10.0.0.1"));
+        assertEquals(0, limiter.admit(70_000, "10.0.0.1"));
+        assertTrue(limiter.admit(70_000, "10.0.0.1") < 0);
+        assertEquals(2 * 65_536, limiter.getUsers());
+    }
+
+    /**
+     * Placements within the most delay are held back a cooldown more each,
+     * and the one past it is refused for as long as it is past
+     */
+    @Test
+    public void heldBackThenRefused() {
+        RateLimiter limiter = new RateLimiter(10_000, 1, 0, 1, 25_000);
+        assertEquals(0, limiter.admit(1, "10.0.0.1"));
+        long first = limiter.admit(1, "10.0.0.1");
+        assertTrue(first > 9_000 && first <= 10_000, "held back for " + first);
+        long second = limiter.admit(1, "10.0.0.1");
+        assertTrue(second > 19_000 && second <= 20_000, "held back for " + second);
+        long refused = limiter.admit(1, "10.0.0.1");
+        assertTrue(refused < 0 && refused >= -5_000 && refused < -4_000, "refused for " + refused);
+    }
+
+    /**
+     * An address bucket limits the users behind it together, and a refusal
+     * by the address gives the user back its token
+     */
+    @Test
+    public void addressLimitsUsers() {
+        RateLimiter limiter = new RateLimiter(10_000, 1, 10_000, 2, 0);
+        assertEquals(0, limiter.admit(1, "10.0.0.1"));
+        assertEquals(0, limiter.admit(2, "10.0.0.1"));
+        long refused = limiter.admit(3, "10.0.0.1");
+        assertTrue(refused < 0 && refused >= -10_000, "refused for " + refused);
+        assertEquals(0, limiter.admit(3, "10.0.0.2"));
+        assertEquals(2, limiter.getAddresses());
+    }
+
+    /**
+     * The address held back longest decides the delay of a placement
+     */
+    @Test
+    public void longestWaitWins() {
+        RateLimiter limiter = new RateLimiter(1_000, 1, 10_000, 1, 60_000);
+        assertEquals(0, limiter.admit(1, "10.0.0.1"));
+        long wait = limiter.admit(2, "10.0.0.1");
+        assertTrue(wait > 9_000 && wait <= 10_000, "held back for " + wait);
+    }
+
+    /**
+     * Sweeping drops the address buckets that are full again and keeps the
+     * others
+     * @throws InterruptedException if the test is interrupted
+     */
+    @Test
+    public void sweep() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(0, 1, 1, 1, 0);
+        assertEquals(0, limiter.admit(1, "10.0.0.1"));
+        Thread.sleep(20);
+        RateLimiter slow = new RateLimiter(0, 1, 60_000, 1, 0);
+        assertEquals(0, slow.admit(1, "10.0.0.1"));
+        limiter.sweep();
+        slow.sweep();
+        assertEquals(0, limiter.getAddresses());
+        assertEquals(1, slow.getAddresses());
+    }
+}
@@ -0,0 +1,228 @@
+package place.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import place.PlaceBoard;
+import place.PlaceColor;
+import place.PlaceTile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the tile log: what is appended is replayed into a new board, and a
+ * frame at the end that is cut short or fails its CRC ends the replay and is
+ * cut off the file, keeping every frame before it.
+ *
+ * @author Cameron Myron
+ */
+public class TileLogTest {
+
+    /**
+     * The dimension of the boards
+     */
+    private static final int DIM = 8;
+
+    /**
+     * Where the logs are written
+     */
+    @TempDir
+    Path dir;
+
+    /**
+     * The board as it was after the first frame of the last log written
+     */
+    private PlaceBoard first;
+
+    /**
+     * The size of the last log written after its first frame
+     */
+    private long size;
+
+    /**
+     * Appends changes to a log and waits until they are on disk, so the
+     * frames after them start where the file ends
+     * @param log the log
+     * @param board the board the log belongs to
+     * @param from the sequence number of the first change
+     * @param count the changes
+     */
+    private static void append(TileLog log, PlaceBoard board, long from, int count) {
+        for (long seq = from; seq < from + count; seq++) {
+            int i = (int) (seq % (DIM * DIM));
+            PlaceTile t = new PlaceTile(i / DIM, i % DIM, "user" + seq % 3,
+                    PlaceColor.fromNumber((int) (seq % PlaceColor.TOTAL_COLORS)), 1000 * seq);
+            t.setSeq(seq);
+            board.setTile(t);
+            log.append(t, board.getOwners().idOf(t.getOwner()));
+        }
+        log.awaitDurable(from + count - 1);
+    }
+
+    /**
+     * Checks that a board has the same tiles as another
+     * @param expected the board written
+     * @param actual the board replayed
+     */
+    private static void assertSameBoard(PlaceBoard expected, PlaceBoard actual) {
+        for (int row = 0; row < DIM; row++) {
+            for (int col = 0; col < DIM; col++) {
+                String where = row + "," + col;
+                assertEquals(expected.getColor(row, col), actual.getColor(row, col), where);
+                assertEquals(expected.getOwner(row, col), actual.getOwner(row, col), where);
+                assertEquals(expected.getTime(row, col), actual.getTime(row, col), where);
+            }
+        }
+    }
+
+    /**
+     * Writes a log of 100 changes and then one more, which is a frame of its
+     * own, and keeps the board and the size of the file before the last one
+     * @param file the log file
+     * @return the board after all of them
+     * @throws IOException if the log can not be written
+     */
+    private PlaceBoard twoFrames(Path file) throws IOException {
+        PlaceBoard board = new PlaceBoard(DIM);
+        TileLog log = TileLog.open(file, board, TileLog.Sync.COMMIT, 0);
+        append(log, board, 1, 100);
+        size = Files.size(file);
+        first = board.copy();
+        append(log, board, 101, 1);
+        log.close();
+        return board;
+    }
+
+    /**
+     * Everything appended comes back when the log is opened again
+     * @throws IOException if the log can not be written
+     */
+    @Test
+    public void replays() throws IOException {
+        Path file = dir.resolve("tiles.plog");
+        PlaceBoard written = twoFrames(file);
+        PlaceBoard read = new PlaceBoard(DIM);
+        TileLog log = TileLog.open(file, read, TileLog.Sync.COMMIT, 0);
+        log.close();
+        assertEquals(101, log.getLastSeq());
+        assertEquals(101, log.getReplayed());
+        assertSameBoard(written, read);
+    }
+
+    /**
+     * Changes up to a checkpoint are skipped, but still count for the last
+     * sequence number
+     * @throws IOException if the log can not be written
+     */
+    @Test
+    public void skipsCheckpoint() throws IOException {
+        Path file = dir.resolve("tiles.plog");
+        twoFrames(file);
+        TileLog log = TileLog.open(file, new PlaceBoard(DIM), TileLog.Sync.NONE, 0, 100);
+        log.close();
+        assertEquals(101, log.getLastSeq());
+        assertEquals(1, log.getReplayed());
+    }
+
+    /**
+     * A frame cut short at the end is cut off, and the log goes on from the
+     * frame before it
+     * @throws IOException if the log can not be written
+     */
+    @Test
+    public void truncatesShortFrame() throws IOException {
+        Path file = dir.resolve("tiles.plog");
+        twoFrames(file);
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ch.truncate(Files.size(file) - 3);
+        }
+        PlaceBoard read = new PlaceBoard(DIM);
+        TileLog log = TileLog.open(file, read, TileLog.Sync.COMMIT, 0);
+        assertEquals(100, log.getLastSeq());
+        assertEquals(100, log.getReplayed());
+        assertEquals(size, Files.size(file));
+        assertSameBoard(first, read);
+
+        append(log, read, 101, 5);
+        log.close();
+        PlaceBoard again = new PlaceBoard(DIM);
+        log = TileLog.open(file, again, TileLog.Sync.COMMIT, 0);
+        log.close();
+        assertEquals(105, log.getLastSeq());
+        assertSameBoard(read, again);
+    }
+
+    /**
+     * A frame whose records do not match its CRC is cut off, as is anything
+     * after it
+     * @throws IOException if the log can not be written
+     */
+    @Test
+    public void truncatesDamagedFrame() throws IOException {
+        Path file = dir.resolve("tiles.plog");
+        twoFrames(file);
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            ch.read(b, size + 20);
+            b.put(0, (byte) (b.get(0) ^ 1));
+            b.rewind();
+            ch.write(b, size + 20);
+        }
+        PlaceBoard read = new PlaceBoard(DIM);
+        TileLog log = TileLog.open(file, read, TileLog.Sync.COMMIT, 0);
+        log.close();
+        assertEquals(100, log.getLastSeq());
+        assertEquals(size, Files.size(file));
+        assertSameBoard(first, read);
+    }
+
+    /**
+     * A frame length past the end of the file, or one that is not a length,
+     * is cut off instead of read
+     * @throws IOException if the log can not be written
+     */
+    @Test
+    public void truncatesBadLength() throws IOException {
+        Path file = dir.resolve("tiles.plog");
+        twoFrames(file);
+        for (int length : new int[]{Integer.MAX_VALUE, -8, 0}) {
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                ByteBuffer b = ByteBuffer.allocate(8).putInt(length).putInt(0);
+                b.flip();
+                ch.write(b, size);
+            }
+            PlaceBoard read = new PlaceBoard(DIM);
+            TileLog log = TileLog.open(file, read, TileLog.Sync.NONE, 0);
+            log.close();
+            assertEquals(100, log.getLastSeq(), "length " + length);
+            assertEquals(size, Files.size(file), "length " + length);
+            assertSameBoard(first, read);
+        }
+    }
+
+    /**
+     * A file that is not a log, or is the log of another size of board, is
+     * refused and left alone
+     * @throws IOException if the files can not be written
+     */
+    @Test
+    public void refusesOtherFiles() throws IOException {
+        Path file = dir.resolve("tiles.plog");
+        twoFrames(file);
+        long whole = Files.size(file);
+        assertThrows(IOException.class,
+                () -> TileLog.open(file, new PlaceBoard(DIM + 1), TileLog.Sync.NONE, 0));
+        assertEquals(whole, Files.size(file));
+
+        Path other = dir.resolve("other.txt");
+        Files.write(other, "not a tile log at all".getBytes());
+        assertThrows(IOException.class, () -> TileLog.open(other, new PlaceBoard(DIM), TileLog.Sync.NONE, 0));
+        assertEquals(21, Files.size(other));
+    }
+}
@@ -0,0 +1,106 @@
+package place.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests the timing wheel: timers run once, in order, and not before the tick
+ * of their delay, both in the first level and after they are spread down
+ * from the level above.  A delay counts from the tick it is scheduled in, so
+ * a timer may run up to a tick before the delay has passed in full.
+ *
+ * @author Cameron Myron
+ */
+public class TimingWheelTest {
+
+    /**
+     * Schedules timers and waits for all of them
+     * @param wheel the wheel
+     * @param delays the delays in milliseconds
+     * @return the index of every timer and the milliseconds it ran late, in
+     *         the order they ran
+     * @throws InterruptedException if the test is interrupted
+     */
+    private static List<long[]> run(TimingWheel wheel, long[] delays) throws InterruptedException {
+        List<long[]> ran = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(delays.length);
+        long start = System.nanoTime();
+        for (int i = 0; i < delays.length; i++) {
+            int index = i;
+            long delay = delays[i];
+            wheel.schedule(() -> {
+                ran.add(new long[]{index, (System.nanoTime() - start) / 1_000_000 - delay});
+                done.countDown();
+            }, delay);
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS), "timers did not run");
+        return ran;
+    }
+
+    /**
+     * Timers within the first level run once each, not before their tick
+     * @throws InterruptedException if the test is interrupted
+     */
+    @Test
+    public void firstLevel() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel("TestWheel");
+        long[] delays = new long[100];
+        for (int i = 0; i < delays.length; i++)
+            delays[i] = i * 2;
+        List<long[]> ran = run(wheel, delays);
+        assertEquals(delays.length, ran.size());
+        for (long[] r : ran)
+            assertTrue(r[1] >= -1, "timer " + r[0] + " ran " + -r[1] + " ms early");
+        Thread.sleep(50);
+        assertEquals(delays.length, wheel.getFired());
+    }
+
+    /**
+     * Timers past the first level are spread down when it comes round, and
+     * still run not before their tick and in the order of their delays,
+     * including two in the same slot and ones a tick apart on either side of
+     * the reach of the first level
+     * @throws InterruptedException if the test is interrupted
+     */
+    @Test
+    public void cascades() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel("TestWheel");
+        long[] delays = {255, 256, 257, 300, 300, 511, 512, 513, 700, 1000};
+        List<long[]> ran = run(wheel, delays);
+        assertEquals(delays.length, ran.size());
+        long last = -1;
+        for (long[] r : ran) {
+            assertTrue(r[1] >= -1, "timer " + r[0] + " ran " + -r[1] + " ms early");
+            assertTrue(delays[(int) r[0]] >= last, "timer " + r[0] + " ran out of order");
+            last = delays[(int) r[0]];
+        }
+        assertEquals(delays.length, wheel.getFired());
+    }
+
+    /**
+     * A timer added from a running task, and one with no delay, still run;
+     * and a task that throws does not stop the wheel
+     * @throws InterruptedException if the test is interrupted
+     */
+    @Test
+    public void fromTasks() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel("TestWheel");
+        CountDownLatch done = new CountDownLatch(2);
+        wheel.schedule(() -> {
+            throw new IllegalStateException("thrown by the test");
+        }, 1);
+        wheel.schedule(() -> {
+            done.countDown();
+            wheel.schedule(done::countDown, 300);
+        }, 0);
+        assertTrue(done.await(10, TimeUnit.SECONDS), "timers did not run");
+        assertEquals(3, wheel.getFired());
+    }
+}